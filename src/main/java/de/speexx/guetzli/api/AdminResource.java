@@ -0,0 +1,206 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.api;
+
+import de.speexx.guetzli.service.Configuration;
+import de.speexx.guetzli.service.MetadataJson;
+import de.speexx.guetzli.service.TransformationJob;
+import de.speexx.guetzli.service.TransformationScheduler;
+import de.speexx.guetzli.transformer.TimeoutModel;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Introspection and control of the {@link TransformationScheduler} of this node. The data comes from the scheduler
+ * only, the metadata of the content IDs is not read.
+ * <p>The endpoints are disabled with HTTP code 404 unless the system property key
+ * <code>guetzli.service.admin.token</code> is set. Each request must contain the token in header
+ * {@literal X-Guetzli-Admin-Token}. Otherwise the response has HTTP code 403.</p>
+ * @author sascha.kohlmann
+ */
+@Path("/admin")
+public class AdminResource {
+
+    private static final String TOKEN_HEADER = "X-Guetzli-Admin-Token";
+    private static final double PIXELS_PER_MEGAPIXEL = 1_000_000d;
+
+    /**
+     * Lists the running jobs, the longest running first, and the queued jobs in the order they get a
+     * transformation slot. Each job has its ID, content ID, optional variant, priority, age and the
+     * estimated transformation time. Running jobs have the running time and the process ID of the
+     * <code>guetzli</code> process, queued jobs their position.
+     * @param token the admin token.
+     * @return the jobs and the scheduler state in a JSON object.
+     */
+    @GET
+    @Path("jobs")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getJobs(final @HeaderParam(TOKEN_HEADER) String token) {
+        checkToken(token);
+        final TransformationScheduler scheduler = TransformationScheduler.instance();
+        final long now = System.currentTimeMillis();
+        final long millisPerMegapixel = TimeoutModel.instance().getMillisPerMegapixel();
+
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = Json.createGenerator(writer);) {
+            generator.writeStartObject();
+            writeState(generator, scheduler);
+            generator.writeStartArray("running");
+            for (final TransformationJob job : scheduler.getRunning()) {
+                generator.writeStartObject();
+                writeJob(generator, job, now, millisPerMegapixel);
+                generator.write("runningMillis", now - job.getStartedAt());
+                if (job.getPid() > 0) {
+                    generator.write("pid", job.getPid());
+                }
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeStartArray("queued");
+            final List<TransformationJob> queued = scheduler.getQueued();
+            for (int i = 0; i < queued.size(); i++) {
+                generator.writeStartObject();
+                generator.write("position", i + 1);
+                writeJob(generator, queued.get(i), now, millisPerMegapixel);
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeEnd();
+        }
+        return Response.ok().entity(writer.toString()).build();
+    }
+
+    /**
+     * Changes the priority of a queued job. Jobs with a higher priority get a transformation slot first.
+     * @param token the admin token.
+     * @param id the job ID.
+     * @param priority the new priority. Default priority of all jobs is {@literal 0}.
+     * @return HTTP code 204 or 404 if the job is unknown.
+     */
+    @PUT
+    @Path("jobs/{id}")
+    public Response reprioritize(final @HeaderParam(TOKEN_HEADER) String token,
+                                 final @PathParam("id") String id,
+                                 final @QueryParam("priority") int priority) {
+        checkToken(token);
+        if (!TransformationScheduler.instance().reprioritize(id, priority)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.noContent().build();
+    }
+
+    /**
+     * {@linkplain TransformationScheduler#pause() Pauses} the scheduler.
+     * @param token the admin token.
+     * @return the scheduler state in a JSON object.
+     */
+    @POST
+    @Path("pause")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response pause(final @HeaderParam(TOKEN_HEADER) String token) {
+        checkToken(token);
+        TransformationScheduler.instance().pause();
+        return state();
+    }
+
+    /**
+     * {@linkplain TransformationScheduler#resume() Resumes} the scheduler.
+     * @param token the admin token.
+     * @return the scheduler state in a JSON object.
+     */
+    @POST
+    @Path("resume")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response resume(final @HeaderParam(TOKEN_HEADER) String token) {
+        checkToken(token);
+        TransformationScheduler.instance().resume();
+        return state();
+    }
+
+    /**
+     * {@linkplain TransformationScheduler#drain() Drains} the scheduler. Can be polled until
+     * <code>drained</code> is {@literal true}, e.g. before a deployment.
+     * @param token the admin token.
+     * @return the scheduler state in a JSON object.
+     */
+    @POST
+    @Path("drain")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response drain(final @HeaderParam(TOKEN_HEADER) String token) {
+        checkToken(token);
+        TransformationScheduler.instance().drain();
+        return state();
+    }
+
+    Response state() {
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = Json.createGenerator(writer);) {
+            generator.writeStartObject();
+            writeState(generator, TransformationScheduler.instance());
+            generator.writeEnd();
+        }
+        return Response.ok().entity(writer.toString()).build();
+    }
+
+    static void writeState(final JsonGenerator generator, final TransformationScheduler scheduler) {
+        generator.write("paused", scheduler.isPaused());
+        generator.write("draining", scheduler.isDraining());
+        generator.write("drained", scheduler.isDrained());
+        generator.write("concurrency", scheduler.getConcurrency());
+        generator.write("pending", scheduler.getPending());
+    }
+
+    static void writeJob(final JsonGenerator generator, final TransformationJob job, final long now, final long millisPerMegapixel) {
+        generator.write("id", job.getId());
+        generator.write("contentId", job.getContentId());
+        if (job.getVariant() != null) {
+            MetadataJson.writeVariant(generator, job.getVariant());
+        }
+        generator.write("priority", job.getPriority());
+        generator.write("ageMillis", now - job.getSubmittedAt());
+        if (job.getPixels() > 0) {
+            generator.write("pixels", job.getPixels());
+            generator.write("estimatedMillis", Math.round(job.getPixels() / PIXELS_PER_MEGAPIXEL * millisPerMegapixel));
+        }
+    }
+
+    static void checkToken(final String token) {
+        final String expected = Configuration.stringValue("guetzli.service.admin.token", null);
+        if (expected == null) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        if (token == null || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+    }
+}
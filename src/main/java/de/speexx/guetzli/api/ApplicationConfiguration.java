@@ -43,5 +43,8 @@ public class ApplicationConfiguration extends Application {
      */
     private void addRestResourceClasses(Set<Class<?>> resources) {
         resources.add(de.speexx.guetzli.api.GuetzliResource.class);
+        resources.add(de.speexx.guetzli.api.MetricsResource.class);
+        resources.add(de.speexx.guetzli.api.HealthResource.class);
+        resources.add(de.speexx.guetzli.api.AdminResource.class);
     }
 }
@@ -17,28 +17,48 @@
  */
 package de.speexx.guetzli.api;
 
+import de.speexx.guetzli.service.CompletionListeners;
+import de.speexx.guetzli.service.Configuration;
+import de.speexx.guetzli.service.ContentDeleter;
 import de.speexx.guetzli.service.ImageMetadata;
 import de.speexx.guetzli.service.ImageService;
 import de.speexx.guetzli.service.ImageType;
+import de.speexx.guetzli.service.MetadataJson;
 import de.speexx.guetzli.service.ProcessStatus;
+import de.speexx.guetzli.service.TransformationScheduler;
+import de.speexx.guetzli.service.Variant;
 import de.speexx.guetzli.service.event.ContentEvent;
+import de.speexx.guetzli.transformer.ResizeOptions;
+import de.speexx.guetzli.transformer.StripOptions;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedReader;
-import java.io.PipedWriter;
 import java.io.StringWriter;
-import java.io.Writer;
+import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import javax.ejb.Stateless;
 import javax.enterprise.event.Event;
 import javax.inject.Inject;
 import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonReader;
+import javax.json.JsonString;
 import javax.json.stream.JsonGenerator;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
@@ -48,7 +68,11 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
@@ -58,7 +82,7 @@ import de.speexx.guetzli.service.event.NewContent;
  * Handle s the access to the <code>guetzli</code> remote transformation system.
  * The process works in the following steps:
  * <ul>
- *   <li>{@linkplain #uploadImage(java.io.InputStream, java.lang.String, long, java.lang.String) upload} and image
+ *   <li>{@linkplain #uploadImage upload} and image
  *     of mime type <em>image/png</em> or <em>image/jpeg</em> to the remote system. The upload
  *     must be a <code>POST</code> HTTP call. The reponse header contains a <code>location</code> entry
  *     with a link to the uploaded image.</li>
@@ -72,6 +96,9 @@ import de.speexx.guetzli.service.event.NewContent;
  *       <dd>The uploaded image is in the transformation process.</dd>
  *       <dt>{@linkplain ProcessStatus#transformed transformed}</dt>
  *       <dd>The uploaded image was successfull transformed.</dd>
+ *       <dt>{@linkplain ProcessStatus#skipped skipped}</dt>
+ *       <dd>The <code>guetzli</code> result is not used, e.g. because it can't be smaller than the source image.
+ *         The meta data contains the reason. For JPEG images the target is a copy of the source image.</dd>
  *       <dt>{@linkplain ProcessStatus#failed failed}</dt>
  *       <dd>The transformation process failed for different reasons.</dd>
  *     </dl>
@@ -90,11 +117,23 @@ public class GuetzliResource {
     
     private static Logger LOG = Logger.getLogger(GuetzliResource.class.getSimpleName());
 
-    private static final long MAX_SIZE_IN_MB = 8;
+    static final long MAX_SIZE_IN_MB = 8;
     private static final long KIB = 1024;
-    private static final long MAX_SIZE_IN_BYTE = KIB * KIB * MAX_SIZE_IN_MB;
+    static final long MAX_SIZE_IN_BYTE = KIB * KIB * MAX_SIZE_IN_MB;
     private static final String MEDIA_TYPE_PNG = "image/png";
     private static final String MEDIA_TYPE_JPEG = "image/jpeg";
+    private static final String STATUS_HEADER = "X-Guetzli-Status";
+    private static final int MAX_WAIT_SECONDS = 600;
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int MAX_BULK_DELETE = 10_000;
+    private static final Pattern CONTENT_ID_PATTERN = Pattern.compile("[0-9a-f]{32}");
+
+    /** Writes the resumed responses, so slow clients don't hold the thread finishing the transformation. */
+    private static final ExecutorService RESUMER = Executors.newCachedThreadPool(r -> {
+        final Thread t = new Thread(r, "guetzli-resume");
+        t.setDaemon(true);
+        return t;
+    });
     
     @Context private UriInfo uriInfo;
     @Inject private ImageService imgSrv;
@@ -102,7 +141,7 @@ public class GuetzliResource {
     @Inject @NewContent private Event<ContentEvent> imageEvents;
 
     /**
-     * Download the {@linkplain #uploadImage(java.io.InputStream, java.lang.String, long, java.lang.String) uploaded}
+     * Download the {@linkplain #uploadImage uploaded}
      * source image. The GET URL can have an optional query parameter <code>download</code>. If the value of 
      * <code>download</code> is {@literal true} the repsonse header may contain the <em>Content-Disposition</em>
      * header with the filename of the uploaded image.
@@ -134,7 +173,7 @@ public class GuetzliResource {
     }
 
     /**
-     * Download the transformed {@linkplain #uploadImage(java.io.InputStream, java.lang.String, long, java.lang.String) uploaded}
+     * Download the transformed {@linkplain #uploadImage uploaded}
      * target image if available. The GET URL can have an optional query parameter <code>download</code>. If the value of 
      * <code>download</code> is {@literal true} the repsonse header may contain the <em>Content-Disposition</em>
      * header with the filename of the uploaded image.
@@ -151,6 +190,65 @@ public class GuetzliResource {
         return getImage(contentId, Type.target, ImageType.JPG, isDownloadable(download));
     }
 
+    /**
+     * Download the transformed target image of a variant if available.
+     * @param contentId the ID of the uploaded image.
+     * @param width the width of the variant.
+     * @return contains the target image of the variant or a failure message. HTTP reponse might be 200, 404 or 500.
+     * @see #getTargetImage(java.lang.String, java.lang.String)
+     */
+    @GET
+    @Path("{contentId}/target/{width: [0-9]+}")
+    @Produces({"image/jpeg"})
+    public Response getVariantImage(final @PathParam("contentId") String contentId, final @PathParam("width") int width) {
+        return getVariantImage(contentId, String.valueOf(width), () -> new Variant(width));
+    }
+
+    /**
+     * Download the transformed target image of a variant by its name, e.g. <code>q90</code> for the variant of
+     * quality level 90 or <code>w640q90</code> for the variant of width 640 and quality level 90.
+     * @param contentId the ID of the uploaded image.
+     * @param name the name of the variant.
+     * @return contains the target image of the variant or a failure message. HTTP reponse might be 200, 404 or 500.
+     * @see #getVariantImage(java.lang.String, int)
+     */
+    @GET
+    @Path("{contentId}/target/{name: (?:w[0-9]+)?q[0-9]+}")
+    @Produces({"image/jpeg"})
+    public Response getNamedVariantImage(final @PathParam("contentId") String contentId, final @PathParam("name") String name) {
+        return getVariantImage(contentId, name, () -> Variant.parse(name));
+    }
+
+    Response getVariantImage(final String contentId, final String width, final Supplier<Variant> parser) {
+        assert contentId != null;
+        assert width != null;
+        assert parser != null;
+
+        final Variant variant;
+        try {
+            variant = parser.get();
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("No variant " + width + " for ID " + contentId)
+                                                      .build());
+        }
+        try {
+            return Response.ok(this.imgSrv.getTargetImage(contentId, variant)).type(ImageType.JPG.getMimeType()).build();
+        } catch (final IOException e) {
+            if (e instanceof FileNotFoundException) {
+                throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND)
+                                                          .type(MediaType.TEXT_PLAIN)
+                                                          .entity("No target image of variant " + width + " for ID " + contentId)
+                                                          .build());
+            }
+            throw new WebApplicationException(Response.serverError()
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("Unable to get target image of variant " + width + " for ID " + contentId)
+                                                      .build());
+        }
+    }
+
     /**
      * Common method to get the <em>source</em> or transformed <em>traget</em> image.
      * @see #getSourceImage(java.lang.String, java.lang.String)
@@ -218,7 +316,7 @@ public class GuetzliResource {
      * Return the meta data for the given content ID.
      * @param contentId teh content ID to get the metadata for
      * @return contains the metadata in JSON format (HTTP 200) or HTTP error code 404 of the content ID has no
-     *         corresponding {@linkplain #uploadImage(java.io.InputStream, java.lang.String, long, java.lang.String)}
+     *         corresponding {@linkplain #uploadImage}
      *         or HTTP error code 500 for any other problem.
      */
     @GET
@@ -228,53 +326,11 @@ public class GuetzliResource {
         
         try {
             final ImageMetadata meta = this.imgSrv.getMetadata(contentId);
-            final PipedReader reader = new PipedReader();
-            final Writer writer = new PipedWriter(reader);
-            
-            try (final JsonGenerator generator = Json.createGenerator(writer);) {
-                generator.writeStartObject();
-
-                generator.write("contentId", contentId);
-                final ProcessStatus status = meta.getStatus();
-                assert status != null;
-                generator.write("status", status.name());
-
-                generator.writeStartObject("source");
-                final String sourceName = meta.getSourceName();
-                if (sourceName != null) {
-                    generator.write("name", sourceName);
-                }
-                final ImageType sourceType = meta.getSourceType();
-                if (sourceType != null) {
-                    generator.write("mime", sourceType.getMimeType());
-                }
-                final int sourceQuality = meta.getSourceQuality();
-                if (sourceQuality > 0) {
-                    generator.write("qualitylevel", sourceQuality);
-                }
-                final long sourceSize = meta.getSourceSize();
-                if (sourceSize > 0) {
-                    generator.write("size", sourceSize);
-                }
-                generator.writeEnd();
-
-                if (status == ProcessStatus.transformed) {
-                    generator.writeStartObject("target");
-                    final int targetQuality = meta.getTargetQuality();
-                    if (targetQuality > 0) {
-                        generator.write("qualitylevel", targetQuality);
-                    }
-                    final long targetSize = meta.getTargetSize();
-                    if (targetSize > 0) {
-                        generator.write("size", targetSize);
-                    }
-                    generator.writeEnd();
-                }
-
-                generator.writeEnd();
+            final List<ImageMetadata> variants = new ArrayList<>();
+            for (final Variant variant : meta.getVariants()) {
+                variants.add(this.imgSrv.getMetadata(contentId, variant));
             }
-            
-            return Response.ok(reader).build();
+            return Response.ok(MetadataJson.toJson(meta, variants)).build();
         } catch (final IOException e) {
             if (e instanceof FileNotFoundException) {
                 throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND)
@@ -292,20 +348,74 @@ public class GuetzliResource {
     /**
      * Receives an image in format {@literal image/jpeg} or {@literal image/png} to perform a <code>guetzli</code>
      * transformation on it.
+     * <p>With the optional query parameter <code>wait</code> the response is suspended until the transformation
+     * is finished, but at most <code>wait</code> seconds. The response contains the smallest available image if
+     * the transformation finished in time. Otherwise the response has HTTP code 202 and a {@literal location}
+     * header with the URL of the meta data. The request thread is not blocked while waiting.</p>
+     * <p>With the optional query parameters <code>maxWidth</code>, <code>maxHeight</code>, <code>fit</code> and
+     * <code>crop</code> the source image is cropped and scaled down before the transformation. The uploaded
+     * image is kept as source image.</p>
+     * <p>With the optional query parameter <code>widths</code> the upload generates additional variants of the
+     * given maximum widths for responsive images. The variants are transformed in parallel and can be downloaded
+     * by appending the width to the <code>target</code> URL, e.g. <code>target/640</code>. The
+     * {@linkplain #getMeta(java.lang.String) meta data} contains the status of all variants.</p>
+     * <p>With the optional query parameter <code>qualities</code> the upload generates additional variants of the
+     * given <code>guetzli</code> quality levels. The variants can be downloaded by appending <code>q</code> and
+     * the quality level to the <code>target</code> URL, e.g. <code>target/q90</code>. Variants can be
+     * {@linkplain #addVariants(java.lang.String, java.lang.String, java.lang.String) added} later.</p>
+     * <p>With the optional query parameter <code>strip</code> metadata segments are removed from JPEG images
+     * before the transformation without decoding the pixels. The ICC color profile and the EXIF orientation are
+     * kept unless <code>keepIcc</code> or <code>keepOrientation</code> is {@literal false}. With <code>rotate</code>
+     * the pixels are rotated instead of keeping the orientation.</p>
+     * <p>If the node is {@linkplain TransformationScheduler#isSaturated() saturated} the response has HTTP code
+     * 429 and a {@literal Retry-After} header with the estimated seconds until the node accepts uploads again.
+     * If the node is {@linkplain TransformationScheduler#isDraining() draining} the response has HTTP code 503.</p>
+     * <p>In a servlet container the upload is received non-blocking by the {@link UploadSpoolFilter}, so the
+     * request thread isn't blocked by slow clients. The image is read from the spooled upload.</p>
+     * <p>Without waiting the response has HTTP code 201 and the header contains a {@literal location} header
+     * with the download URL for the uploaded source image.</p>
+     * @param response the suspended response.
      * @param in the stream with the image data.
      * @param fileType the mime type of the uploaded image.
      * @param fileSize the size of the uploaded image. must be not greater 8MiB.
      * @param uploadFileName the optional filename of the uploaded image. Must be in header {@literal X-Guetzli-Img-Name}.
-     * @return In case of HTTP code 201 the header contains a {@literal location} header with the download URL
-     *         for the uploaded source image.
+     * @param callbackUrl the optional <code>http</code> or <code>https</code> URL to <code>POST</code> the
+     *                    {@linkplain #getMeta(java.lang.String) meta data} to when the transformation is finished.
+     *                    Must be in header {@literal X-Guetzli-Callback}.
+     * @param wait the maximum time in seconds to wait for the transformation. {@literal 0} doesn't wait.
+     * @param maxWidth the optional maximum width of the target image. {@literal 0} for no limit.
+     * @param maxHeight the optional maximum height of the target image. {@literal 0} for no limit.
+     * @param fit the optional fit mode {@literal contain} or {@literal cover}. Default is {@literal contain}.
+     * @param crop the optional crop region of the source image in the format <code>x,y,width,height</code>.
+     * @param widths the optional comma separated widths of additional variants, e.g. <code>320,640,1280</code>.
+     * @param qualities the optional comma separated quality levels of additional variants, e.g. <code>84,90,95</code>.
+     * @param strip {@literal true} to strip metadata segments like EXIF, XMP and comments from a JPEG image.
+     * @param keepIcc {@literal true} to keep the ICC color profile when stripping. Default is {@literal true}.
+     * @param keepOrientation {@literal true} to keep the EXIF orientation when stripping. Default is {@literal true}.
+     * @param rotate {@literal true} to rotate the pixels according to the EXIF orientation when stripping.
      */
     @POST
     @Consumes({MEDIA_TYPE_JPEG, MEDIA_TYPE_PNG})
-    public Response uploadImage(final InputStream in,
-                                final @HeaderParam("Content-Type") String fileType,
-                                final @HeaderParam("Content-Length") long fileSize,
-                                final @HeaderParam("X-Guetzli-Img-Name") String uploadFileName) {
+    public void uploadImage(final @Suspended AsyncResponse response,
+                            final InputStream in,
+                            final @HeaderParam("Content-Type") String fileType,
+                            final @HeaderParam("Content-Length") long fileSize,
+                            final @HeaderParam("X-Guetzli-Img-Name") String uploadFileName,
+                            final @HeaderParam("X-Guetzli-Callback") String callbackUrl,
+                            final @DefaultValue("0") @QueryParam("wait") int wait,
+                            final @DefaultValue("0") @QueryParam("maxWidth") int maxWidth,
+                            final @DefaultValue("0") @QueryParam("maxHeight") int maxHeight,
+                            final @QueryParam("fit") String fit,
+                            final @QueryParam("crop") String crop,
+                            final @QueryParam("widths") String widths,
+                            final @QueryParam("qualities") String qualities,
+                            final @DefaultValue("false") @QueryParam("strip") boolean strip,
+                            final @DefaultValue("true") @QueryParam("keepIcc") boolean keepIcc,
+                            final @DefaultValue("true") @QueryParam("keepOrientation") boolean keepOrientation,
+                            final @DefaultValue("false") @QueryParam("rotate") boolean rotate) {
         
+        checkAcceptance();
+
         if (fileSize > MAX_SIZE_IN_BYTE) {
             throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
                                                       .type(MediaType.TEXT_PLAIN)
@@ -315,13 +425,24 @@ public class GuetzliResource {
         
         try {
             final ImageType type = toImageType(fileType);
-            final String imageSourceId = this.imgSrv.newImage(in, fileSize, type, uploadFileName);
+            checkCallbackUrl(callbackUrl);
+            final ResizeOptions resize = toResizeOptions(maxWidth, maxHeight, fit, crop);
+            final List<Variant> variants = toVariants(widths, qualities);
+            final StripOptions stripOptions = strip ? new StripOptions(keepIcc, keepOrientation, rotate) : null;
+            final String imageSourceId = this.imgSrv.newImage(in, fileSize, type, uploadFileName, callbackUrl, resize, stripOptions, variants);
+            final String basePath = this.uriInfo.getPath() + "/" + imageSourceId;
+
+            if (wait > 0) {
+                suspendUntilCompletion(response, imageSourceId, basePath, Math.min(wait, maxWaitSeconds()));
+            }
 
             this.imageEvents.fire(new ContentEvent(imageSourceId));
             
-            return Response.status(Response.Status.CREATED)
-                           .location(URI.create(this.uriInfo.getPath() + "/" + imageSourceId + "/source"))
-                           .build();
+            if (wait <= 0) {
+                response.resume(Response.status(Response.Status.CREATED)
+                                        .location(URI.create(basePath + "/source"))
+                                        .build());
+            }
             
         } catch (final UnsupportedTypeException ex) {
             throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
@@ -335,6 +456,216 @@ public class GuetzliResource {
                                                       .build());
         }
     }
+
+    /**
+     * Adds variants to an uploaded image after its main transformation is finished. Variants with an existing
+     * target image are served from the storage and are not transformed again. Failed variants are transformed
+     * again.
+     * @param contentId the ID of the uploaded image.
+     * @param widths the optional comma separated widths of the variants, e.g. <code>320,640,1280</code>.
+     * @param qualities the optional comma separated quality levels of the variants, e.g. <code>84,90,95</code>.
+     * @return HTTP code 200 with the {@linkplain #getMeta(java.lang.String) meta data} if all variants are
+     *         available, HTTP code 202 with a {@literal location} header of the meta data if variants are
+     *         transformed, 400 for invalid variants, 404 for an unknown content ID, 409 if the main transformation
+     *         is not finished, 429 or 503 like an {@linkplain #uploadImage upload} or 500.
+     */
+    @POST
+    @Path("{contentId}/variants")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response addVariants(final @PathParam("contentId") String contentId,
+                                final @QueryParam("widths") String widths,
+                                final @QueryParam("qualities") String qualities) {
+        final List<Variant> variants = toVariants(widths, qualities);
+        if (variants.isEmpty()) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("No widths or qualities given")
+                                                      .build());
+        }
+        checkAcceptance();
+        try {
+            final List<Variant> pending = this.imgSrv.addVariants(contentId, variants);
+            if (pending.isEmpty()) {
+                return getMeta(contentId);
+            }
+            this.imageEvents.fire(new ContentEvent(contentId));
+            return Response.status(Response.Status.ACCEPTED)
+                           .location(this.uriInfo.getBaseUriBuilder().path(GuetzliResource.class).path(contentId).path("meta").build())
+                           .build();
+        } catch (final IllegalStateException e) {
+            throw new WebApplicationException(Response.status(Response.Status.CONFLICT)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity(e.getMessage())
+                                                      .build());
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity(e.getMessage())
+                                                      .build());
+        } catch (final FileNotFoundException e) {
+            throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("No metadata found for ID: " + contentId)
+                                                      .build());
+        } catch (final IOException e) {
+            throw new WebApplicationException(Response.serverError()
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("Unable to add variants for ID " + contentId)
+                                                      .build());
+        }
+    }
+
+    /**
+     * Deletes an uploaded image. The image is invisible immediately and its transformation is cancelled. The data
+     * is deleted in the background.
+     * @param contentId the ID of the uploaded image.
+     * @return HTTP code 204 or 404 if the content ID is unknown.
+     * @see ContentDeleter
+     */
+    @DELETE
+    @Path("{contentId}")
+    public Response delete(final @PathParam("contentId") String contentId) {
+        if (!CONTENT_ID_PATTERN.matcher(contentId).matches()
+                || ContentDeleter.instance().delete(Collections.singletonList(contentId)) == 0) {
+            throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("No content found for ID: " + contentId)
+                                                      .build());
+        }
+        return Response.noContent().build();
+    }
+
+    /**
+     * Deletes uploaded images in bulk. The request body is a JSON object with the content IDs in the array
+     * <code>ids</code>, e.g. <code>{"ids": ["&lt;contentId&gt;", ...]}</code>. The images are invisible
+     * immediately and their transformations are cancelled. The data is deleted in the background at a limited rate.
+     * Unknown content IDs are ignored.
+     * @param in the request body.
+     * @return HTTP code 202 with the number of <code>deleted</code> content IDs and the number of content IDs
+     *         <code>pending</code> for the deletion of their data, or 400 for an invalid request.
+     * @see ContentDeleter
+     */
+    @POST
+    @Path("delete")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response deleteAll(final InputStream in) {
+        final List<String> contentIds = toContentIds(in);
+        final ContentDeleter deleter = ContentDeleter.instance();
+        final int deleted = deleter.delete(contentIds);
+
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = Json.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.write("deleted", deleted);
+            generator.write("pending", deleter.getPending());
+            generator.writeEnd();
+        }
+        return Response.status(Response.Status.ACCEPTED).entity(writer.toString()).build();
+    }
+
+    static List<String> toContentIds(final InputStream in) {
+        try (final JsonReader reader = Json.createReader(in)) {
+            final JsonArray ids = reader.readObject().getJsonArray("ids");
+            if (ids == null || ids.size() > MAX_BULK_DELETE) {
+                throw new IllegalArgumentException("Expected an array 'ids' with at most " + MAX_BULK_DELETE + " content IDs");
+            }
+            final List<String> contentIds = new ArrayList<>(ids.size());
+            for (final JsonString id : ids.getValuesAs(JsonString.class)) {
+                if (!CONTENT_ID_PATTERN.matcher(id.getString()).matches()) {
+                    throw new IllegalArgumentException("Invalid content ID: " + id.getString());
+                }
+                contentIds.add(id.getString());
+            }
+            return contentIds;
+        } catch (final JsonException | ClassCastException | IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("Invalid delete request: " + e.getMessage())
+                                                      .build());
+        }
+    }
+
+    /**
+     * Rejects new transformations if the node is saturated or draining.
+     */
+    static void checkAcceptance() {
+        final TransformationScheduler scheduler = TransformationScheduler.instance();
+        if (scheduler.isSaturated()) {
+            throw new WebApplicationException(Response.status(TOO_MANY_REQUESTS)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .header(HttpHeaders.RETRY_AFTER, scheduler.getRetryAfterSeconds())
+                                                      .entity("Too many pending transformations")
+                                                      .build());
+        }
+        if (scheduler.isDraining()) {
+            throw new WebApplicationException(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("Node is draining")
+                                                      .build());
+        }
+    }
+
+    /**
+     * Resumes the response when the transformation of the content ID is finished or with HTTP code 202 after
+     * the timeout.
+     */
+    void suspendUntilCompletion(final AsyncResponse response, final String contentId, final String basePath, final int wait) {
+        assert response != null;
+        assert contentId != null;
+        assert basePath != null;
+
+        final CompletionListeners.Registration registration =
+                CompletionListeners.onCompletion(contentId, meta -> RESUMER.execute(() -> response.resume(completedResponse(meta))));
+        response.register((CompletionCallback) throwable -> registration.cancel());
+        response.setTimeoutHandler(r -> {
+            registration.cancel();
+            r.resume(Response.status(Response.Status.ACCEPTED)
+                             .location(URI.create(basePath + "/meta"))
+                             .build());
+        });
+        response.setTimeout(wait, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The response for a finished transformation. Contains the target image or the source image if there is no
+     * target image.
+     */
+    Response completedResponse(final ImageMetadata meta) {
+        assert meta != null;
+
+        final String contentId = meta.getContentId();
+        try {
+            switch (meta.getStatus()) {
+                case transformed:
+                    return Response.ok(this.imgSrv.getTargetImage(contentId), ImageType.JPG.getMimeType())
+                                   .header(STATUS_HEADER, meta.getStatus().name())
+                                   .build();
+                case skipped:
+                    final boolean hasTarget = meta.getTargetSize() > 0;
+                    return Response.ok(hasTarget ? this.imgSrv.getTargetImage(contentId) : this.imgSrv.getSourceImage(contentId),
+                                       hasTarget ? ImageType.JPG.getMimeType() : meta.getSourceType().getMimeType())
+                                   .header(STATUS_HEADER, meta.getStatus().name())
+                                   .build();
+                default:
+                    return Response.serverError()
+                                   .type(MediaType.TEXT_PLAIN)
+                                   .header(STATUS_HEADER, meta.getStatus().name())
+                                   .entity("Transformation failed for ID " + contentId)
+                                   .build();
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to load image for ID " + contentId, e);
+            return Response.serverError()
+                           .type(MediaType.TEXT_PLAIN)
+                           .entity("Unable to get image for ID " + contentId)
+                           .build();
+        }
+    }
+
+    int maxWaitSeconds() {
+        return Configuration.intValue("guetzli.service.upload.wait.max", MAX_WAIT_SECONDS);
+    }
     
     /**
      * Returns all available content IDs in a JSON array.
@@ -360,6 +691,71 @@ public class GuetzliResource {
     }
 
     
+    static ResizeOptions toResizeOptions(final int maxWidth, final int maxHeight, final String fit, final String crop) {
+        if (maxWidth == 0 && maxHeight == 0 && crop == null) {
+            return null;
+        }
+        try {
+            return new ResizeOptions(maxWidth, maxHeight, fit == null ? null : ResizeOptions.Fit.valueOf(fit), ResizeOptions.parseCrop(crop));
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("Invalid resize parameters: " + e.getMessage())
+                                                      .build());
+        }
+    }
+
+    static List<Variant> toVariants(final String widths, final String qualities) {
+        final List<Variant> variants = new ArrayList<>();
+        final int maxVariants = maxVariants();
+        try {
+            variants.addAll(Variant.parseWidths(widths));
+            if (variants.size() > maxVariants) {
+                throw new IllegalArgumentException("At most " + maxVariants + " widths supported");
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("Invalid widths: " + e.getMessage())
+                                                      .build());
+        }
+        try {
+            final List<Variant> qualityVariants = Variant.parseQualities(qualities);
+            if (qualityVariants.size() > maxVariants) {
+                throw new IllegalArgumentException("At most " + maxVariants + " qualities supported");
+            }
+            variants.addAll(qualityVariants);
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                                                      .type(MediaType.TEXT_PLAIN)
+                                                      .entity("Invalid qualities: " + e.getMessage())
+                                                      .build());
+        }
+        return variants;
+    }
+
+    static int maxVariants() {
+        return ImageService.maxVariants();
+    }
+
+    static void checkCallbackUrl(final String callbackUrl) {
+        if (callbackUrl == null) {
+            return;
+        }
+        try {
+            final String protocol = new URL(callbackUrl).getProtocol();
+            if ("http".equals(protocol) || "https".equals(protocol)) {
+                return;
+            }
+        } catch (final MalformedURLException e) {
+            LOG.log(Level.FINE, "Invalid callback URL {0}", callbackUrl);
+        }
+        throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                                                  .type(MediaType.TEXT_PLAIN)
+                                                  .entity("Callback URL '" + callbackUrl + "' must be a http or https URL.")
+                                                  .build());
+    }
+
     ImageType toImageType(final String contentType) throws UnsupportedTypeException {
         assert contentType != null;
         if (MEDIA_TYPE_PNG.equalsIgnoreCase(contentType)) {
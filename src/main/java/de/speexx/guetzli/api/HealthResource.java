@@ -0,0 +1,82 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.api;
+
+import de.speexx.guetzli.service.TransformationScheduler;
+import java.io.StringWriter;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Health checks for load balancers.
+ * @author sascha.kohlmann
+ */
+@Path("/health")
+public class HealthResource {
+
+    /**
+     * Reports whether the node accepts uploads. The response has HTTP code 200 if the node accepts uploads and
+     * HTTP code 503 with a {@literal Retry-After} header if the node is
+     * {@linkplain TransformationScheduler#isSaturated() saturated}. A {@linkplain TransformationScheduler#isDraining()
+     * draining} node is not ready either. The JSON object contains the pending transformations, the watermarks and
+     * the drain throughput.
+     * @return the readiness in a JSON object.
+     */
+    @GET
+    @Path("ready")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getReadiness() {
+        final TransformationScheduler scheduler = TransformationScheduler.instance();
+        final boolean saturated = scheduler.isSaturated();
+        final boolean draining = scheduler.isDraining();
+        final long retryAfter = scheduler.getRetryAfterSeconds();
+
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = Json.createGenerator(writer);) {
+            generator.writeStartObject();
+            generator.write("ready", !saturated && !draining);
+            generator.write("draining", draining);
+            generator.write("pending", scheduler.getPending());
+            generator.write("highWatermark", scheduler.getHighWatermark());
+            generator.write("lowWatermark", scheduler.getLowWatermark());
+            generator.write("saturation", (double) scheduler.getPending() / Math.max(1, scheduler.getHighWatermark()));
+            generator.write("throughputPerMinute", scheduler.getThroughputPerMinute());
+            if (saturated) {
+                generator.write("retryAfterSeconds", retryAfter);
+            }
+            generator.writeEnd();
+        }
+
+        if (saturated) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                           .header(HttpHeaders.RETRY_AFTER, retryAfter)
+                           .entity(writer.toString())
+                           .build();
+        }
+        if (draining) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(writer.toString()).build();
+        }
+        return Response.ok().entity(writer.toString()).build();
+    }
+}
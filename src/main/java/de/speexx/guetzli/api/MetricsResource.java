@@ -0,0 +1,56 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.api;
+
+import de.speexx.guetzli.service.Metrics;
+import java.io.StringWriter;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Provides the {@linkplain Metrics metrics} of this node as JSON object.
+ * @author sascha.kohlmann
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+    /**
+     * Returns the metrics in a JSON object.
+     * @return the metrics in a JSON object.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getMetrics() {
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = Json.createGenerator(writer);) {
+            generator.writeStartObject();
+            for (final Map.Entry<String, Long> entry : Metrics.instance().snapshot().entrySet()) {
+                generator.write(entry.getKey(), entry.getValue());
+            }
+            generator.writeEnd();
+        }
+
+        return Response.ok().entity(writer.toString()).build();
+    }
+}
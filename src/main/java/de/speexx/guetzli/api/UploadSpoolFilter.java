@@ -0,0 +1,307 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.api;
+
+import de.speexx.guetzli.service.Configuration;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reads image {@linkplain GuetzliResource#uploadImage uploads} with the non-blocking I/O of Servlet 3.1 before
+ * the upload is handled by the REST API. Slow clients don't hold a request thread for the whole upload: the
+ * chunks are written to a spool file with an {@link AsynchronousFileChannel} as they arrive. After the last chunk
+ * the request is {@linkplain AsyncContext#dispatch() dispatched} to the REST API with the spool file as request
+ * body. The spool file is deleted when the request is completed.
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.upload.timeout</code></dt>
+ *   <dd>The maximum time in milliseconds to receive an upload. Default is {@value #DEFAULT_TIMEOUT_MILLIS}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+@WebFilter(urlPatterns = "/api/image", asyncSupported = true)
+public class UploadSpoolFilter implements Filter {
+
+    private static final Logger LOG = Logger.getLogger(UploadSpoolFilter.class.getSimpleName());
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 300_000;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int REQUEST_TIMEOUT = 408;
+    private static final long UNKNOWN_LENGTH = -1;
+
+    @Override
+    public void init(final FilterConfig config) {
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException {
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        if (!isSpooled(httpRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final Path spool = Files.createTempFile("guetzli-upload-", ".tmp");
+        final AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(spool, StandardOpenOption.WRITE);
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+        final SpooledRequest spooledRequest = new SpooledRequest(httpRequest, spool);
+        final AsyncContext context = request.startAsync(spooledRequest, response);
+        context.setTimeout(Configuration.longValue("guetzli.service.upload.timeout", DEFAULT_TIMEOUT_MILLIS));
+        final Upload upload = new Upload(context, request.getInputStream(), channel, spool);
+        context.addListener(upload);
+        request.getInputStream().setReadListener(upload);
+    }
+
+    /**
+     * Only uploads within the size limit are spooled. Larger uploads are rejected by the REST API without reading
+     * the body. Chunked uploads without a content length are spooled, their size is checked while reading.
+     */
+    static boolean isSpooled(final HttpServletRequest request) {
+        final String type = request.getContentType();
+        final long length = request.getContentLengthLong();
+        return "POST".equals(request.getMethod())
+                && type != null
+                && (type.startsWith("image/jpeg") || type.startsWith("image/png"))
+                && (length == UNKNOWN_LENGTH || length <= GuetzliResource.MAX_SIZE_IN_BYTE);
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Receives the chunks of an upload and writes them to the spool file. Guarded by this.
+     */
+    static final class Upload implements ReadListener, AsyncListener {
+
+        private final AsyncContext context;
+        private final ServletInputStream in;
+        private final AsynchronousFileChannel channel;
+        private final Path spool;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private long received;
+        private int pendingWrites;
+        private boolean allRead;
+        private boolean finished;
+
+        Upload(final AsyncContext context, final ServletInputStream in, final AsynchronousFileChannel channel, final Path spool) {
+            this.context = context;
+            this.in = in;
+            this.channel = channel;
+            this.spool = spool;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            int read;
+            while (this.in.isReady() && (read = this.in.read(this.chunk)) != -1) {
+                synchronized (this) {
+                    if (this.finished) {
+                        return;
+                    }
+                    if (this.received + read > GuetzliResource.MAX_SIZE_IN_BYTE) {
+                        fail(HttpServletResponse.SC_BAD_REQUEST, "Image is larger than " + GuetzliResource.MAX_SIZE_IN_MB + "MB");
+                        return;
+                    }
+                    write(ByteBuffer.wrap(Arrays.copyOf(this.chunk, read)), this.received);
+                    this.received += read;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onAllDataRead() {
+            this.allRead = true;
+            dispatchIfComplete();
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            LOG.log(Level.INFO, "Unable to read upload: {0}", t.toString());
+            fail(HttpServletResponse.SC_BAD_REQUEST, "Incomplete upload.");
+        }
+
+        /** Must hold the lock. */
+        void write(final ByteBuffer data, final long position) {
+            this.pendingWrites++;
+            this.channel.write(data, position, data, new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(final Integer written, final ByteBuffer buffer) {
+                    synchronized (Upload.this) {
+                        Upload.this.pendingWrites--;
+                        if (buffer.hasRemaining()) {
+                            write(buffer, position + buffer.position());
+                        } else {
+                            dispatchIfComplete();
+                        }
+                    }
+                }
+
+                @Override
+                public void failed(final Throwable t, final ByteBuffer buffer) {
+                    LOG.log(Level.WARNING, "Unable to write upload to {0}: {1}", new Object[] {Upload.this.spool, t});
+                    fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Request failed.");
+                }
+            });
+        }
+
+        /** Must hold the lock. */
+        void dispatchIfComplete() {
+            if (this.allRead && this.pendingWrites == 0 && !this.finished) {
+                this.finished = true;
+                closeChannel();
+                this.context.dispatch();
+            }
+        }
+
+        synchronized void fail(final int status, final String message) {
+            if (this.finished) {
+                return;
+            }
+            this.finished = true;
+            closeChannel();
+            try {
+                final HttpServletResponse response = (HttpServletResponse) this.context.getResponse();
+                response.setStatus(status);
+                response.setContentType("text/plain");
+                response.getWriter().write(message);
+            } catch (final IOException | IllegalStateException e) {
+                LOG.log(Level.FINE, "Unable to send failure response: {0}", e.toString());
+            }
+            this.context.complete();
+        }
+
+        void closeChannel() {
+            try {
+                this.channel.close();
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "Unable to close {0}: {1}", new Object[] {this.spool, e});
+            }
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            closeChannel();
+            try {
+                Files.deleteIfExists(this.spool);
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Unable to delete upload spool {0}: {1}", new Object[] {this.spool, e});
+            }
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            fail(REQUEST_TIMEOUT, "Upload timeout.");
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            onComplete(event);
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+            // the REST API suspends the dispatched request: keep the spool file until the new cycle is completed
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * Request with the spool file as body.
+     */
+    static final class SpooledRequest extends HttpServletRequestWrapper {
+
+        private final Path spool;
+
+        SpooledRequest(final HttpServletRequest request, final Path spool) {
+            super(request);
+            this.spool = spool;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            final InputStream file = Files.newInputStream(this.spool);
+            return new ServletInputStream() {
+                private boolean finished;
+
+                @Override
+                public int read() throws IOException {
+                    final int b = file.read();
+                    this.finished = b == -1;
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final int read = file.read(b, off, len);
+                    this.finished = read == -1;
+                    return read;
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return this.finished;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(final ReadListener listener) {
+                    throw new IllegalStateException("Spooled upload is read blocking");
+                }
+
+                @Override
+                public void close() throws IOException {
+                    file.close();
+                }
+            };
+        }
+    }
+}
@@ -17,12 +17,15 @@
  */
 package de.speexx.guetzli.api.support;
 
+import de.speexx.guetzli.service.ContentDeleter;
 import de.speexx.guetzli.service.ImageMetadata;
 import de.speexx.guetzli.service.ImageService;
 import java.io.IOException;
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
 import javax.ejb.Schedule;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
@@ -31,7 +34,8 @@ import javax.inject.Inject;
 /**
  * Removes uploaded images and transformed images which are older 24 hours.
  * The implementation starts when deploying the project to the application server as a
- * stateless Enterprise Java Bean.
+ * stateless Enterprise Java Bean. The images are deleted in the background by the {@link ContentDeleter}, which
+ * is started with the bean to delete the content IDs marked as deleted before a restart.
  * @author sascha.kohlmann
  * @see ImageService#delete(java.lang.String) 
  */
@@ -44,14 +48,32 @@ public class Cleanup {
 
     @Inject private ImageService imgSrv;
 
+    /**
+     * Creates a new instance for the container.
+     */
+    public Cleanup() {
+    }
+
+    /**
+     * Creates a new instance outside of a container.
+     * @param imgSrv the image service.
+     */
+    public Cleanup(final ImageService imgSrv) {
+        this.imgSrv = imgSrv;
+    }
+
     /**
      * Removes all content ID which are older 24 hours.
      * 
      * <p><strong>Usage:</strong> method call only in CDI context.</p>
-     * <p><strong>Configuration:</strong> scheduled to run every 30 minutes.</p>
+     * <p><strong>Configuration:</strong> scheduled to run every 30 minutes. Runs only on the
+     * {@linkplain ImageService#isLeader() leader} node.</p>
      */
     @Schedule(second="11", minute="*/30", hour="*", persistent = false)
     public void process() {
+        if (!this.imgSrv.isLeader()) {
+            return;
+        }
         LOG.log(Level.INFO, "guetzli service automated cleanup process started");
         this.imgSrv.getContentIds().forEachRemaining(id -> {
             try {
@@ -67,14 +89,14 @@ public class Cleanup {
         });
     }
 
+    @PostConstruct
+    void startDeleter() {
+        ContentDeleter.instance();
+    }
+
     void triggerDeletion(final String id) {
         assert id != null;
-
-        try {
-            this.imgSrv.delete(id);
-        } catch (final IllegalStateException | IOException e) {
-            LOG.log(Level.WARNING, "Unable to delete ID " + id, e);
-        }
+        ContentDeleter.instance().delete(Collections.singletonList(id));
     }
 
     static boolean checkForDeletion(final LocalDateTime creationData) {
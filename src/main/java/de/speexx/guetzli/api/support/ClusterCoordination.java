@@ -0,0 +1,62 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.api.support;
+
+import de.speexx.guetzli.service.ImageService;
+import de.speexx.guetzli.service.cluster.LeaseManager;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.inject.Inject;
+
+/**
+ * Coordinates the nodes sharing one storage: renews the leases of this node, elects the leader and lets this
+ * node take over queued content IDs if it has free capacity. Does nothing if the {@link LeaseManager} is not
+ * enabled.
+ * @author sascha.kohlmann
+ * @see ImageService#coordinate(java.util.concurrent.Executor)
+ */
+@Singleton
+@Startup
+public class ClusterCoordination {
+
+    private static final Logger LOG = Logger.getLogger(ClusterCoordination.class.getSimpleName());
+
+    @Resource private ManagedExecutorService managedExecutorService;
+    @Inject private ImageService imgSrv;
+
+    /**
+     * Runs the coordination.
+     *
+     * <p><strong>Usage:</strong> method call only in CDI context.</p>
+     * <p><strong>Configuration:</strong> scheduled to run every 10 seconds. The lease duration must be
+     * considerably longer.</p>
+     */
+    @Schedule(second="*/10", minute="*", hour="*", persistent = false)
+    public void process() {
+        try {
+            this.imgSrv.coordinate(this.managedExecutorService);
+        } catch (final RuntimeException e) {
+            LOG.log(Level.WARNING, "Cluster coordination failed", e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.api.support;
+
+import de.speexx.guetzli.service.ImageService;
+import de.speexx.guetzli.service.watch.FolderWatcher;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.inject.Inject;
+
+/**
+ * Starts the {@link FolderWatcher} of the configured watch directory when deploying the project.
+ * @author sascha.kohlmann
+ */
+@Singleton
+@Startup
+public class FolderWatch {
+
+    private static final Logger LOG = Logger.getLogger(FolderWatch.class.getSimpleName());
+
+    @Resource private ManagedExecutorService managedExecutorService;
+    @Inject private ImageService imgSrv;
+
+    private FolderWatcher watcher;
+
+    @PostConstruct
+    void start() {
+        this.watcher = FolderWatcher.create(this.imgSrv, this.managedExecutorService);
+        if (this.watcher == null) {
+            return;
+        }
+        try {
+            this.watcher.start();
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to start the folder watcher", e);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (this.watcher == null) {
+            return;
+        }
+        try {
+            this.watcher.close();
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to stop the folder watcher", e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.api.support;
+
+import de.speexx.guetzli.service.Configuration;
+import de.speexx.guetzli.service.ImageService;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+
+/**
+ * Moves content IDs of the flat storage layout into the sharded storage layout while the service is running.
+ * The number of content IDs moved per run can be configured with system property key
+ * <code>guetzli.service.storage.migration.batch</code>. Default is {@value #DEFAULT_BATCH_SIZE}.
+ * @author sascha.kohlmann
+ * @see ImageService#migrateToShardedLayout(int)
+ */
+@Singleton
+@Startup
+public class StorageMigration {
+
+    private static final Logger LOG = Logger.getLogger(StorageMigration.class.getSimpleName());
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    @Inject private ImageService imgSrv;
+
+    /**
+     * Creates a new instance for the container.
+     */
+    public StorageMigration() {
+    }
+
+    /**
+     * Creates a new instance outside of a container.
+     * @param imgSrv the image service.
+     */
+    public StorageMigration(final ImageService imgSrv) {
+        this.imgSrv = imgSrv;
+    }
+
+    /**
+     * Migrates the next batch of content IDs. After the migration the base directory contains only the
+     * shard directories, so a run is cheap.
+     *
+     * <p><strong>Usage:</strong> method call only in CDI context.</p>
+     * <p><strong>Configuration:</strong> scheduled to run every minute. Runs only on the
+     * {@linkplain ImageService#isLeader() leader} node.</p>
+     */
+    @Schedule(second="41", minute="*", hour="*", persistent = false)
+    public void process() {
+        if (!this.imgSrv.isLeader()) {
+            return;
+        }
+        try {
+            this.imgSrv.migrateToShardedLayout(batchSize());
+        } catch (final IOException | IllegalStateException e) {
+            LOG.log(Level.WARNING, "Storage layout migration failed", e);
+        }
+    }
+
+    int batchSize() {
+        return Configuration.intValue("guetzli.service.storage.migration.batch", DEFAULT_BATCH_SIZE);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.cli;
+
+import de.speexx.guetzli.service.Configuration;
+import de.speexx.guetzli.service.FileTransformer;
+import de.speexx.guetzli.service.ImageMetadata;
+import de.speexx.guetzli.service.ImageType;
+import de.speexx.guetzli.service.ProcessStatus;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transforms all JPEG and PNG images of a directory tree into a mirror tree without the REST API.
+ * <p>Usage: <code>java -cp guetzli-service-standalone.jar de.speexx.guetzli.cli.BatchTransformation
+ * [--threads n] [--checkpoint file] [--hash] &lt;source directory&gt; &lt;target directory&gt;</code></p>
+ * <p>Transformed images are written with the relative path of the source image and the postfix
+ * <code>.jpg</code>. Skipped and failed images are copied unchanged, so the mirror tree is complete. Each
+ * finished image is recorded in a {@link Checkpoint}. Images which are not modified since the last run are not
+ * transformed again, so an interrupted run continues where it stopped.</p>
+ * <p>The number of parallel transformations is limited by the number of CPUs and the physical memory divided by
+ * the <code>guetzli</code> memory limit, unless configured with <code>--threads</code>.</p>
+ * @author sascha.kohlmann
+ * @see FileTransformer
+ */
+public final class BatchTransformation {
+
+    private static final Logger LOG = Logger.getLogger(BatchTransformation.class.getSimpleName());
+
+    static final String CHECKPOINT_FILE = ".guetzli-checkpoint";
+    private static final long MB = 1024 * 1024;
+    private static final int DEFAULT_MEMLIMIT_MB = 6000;
+    private static final int PROGRESS_INTERVAL = 100;
+
+    private final Path sourceDirectory;
+    private final Path targetDirectory;
+    private final Checkpoint checkpoint;
+    private final FileTransformer transformer = new FileTransformer();
+
+    private final AtomicLong transformed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong upToDate = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    BatchTransformation(final Path sourceDirectory, final Path targetDirectory, final Checkpoint checkpoint) {
+        this.sourceDirectory = Objects.requireNonNull(sourceDirectory);
+        this.targetDirectory = Objects.requireNonNull(targetDirectory);
+        this.checkpoint = Objects.requireNonNull(checkpoint);
+    }
+
+    /**
+     * Runs the batch transformation.
+     * @param args the command line arguments.
+     * @throws Exception if the batch run fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        System.exit(execute(args));
+    }
+
+    /**
+     * Runs the batch transformation.
+     * @param args the command line arguments.
+     * @return the exit status: {@literal 0} on success, {@literal 1} if a transformation failed and
+     *         {@literal 2} for invalid arguments.
+     * @throws Exception if the batch run fails.
+     */
+    static int execute(final String[] args) throws Exception {
+        int threads = 0;
+        Path checkpointFile = null;
+        boolean hash = false;
+        Path source = null;
+        Path target = null;
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if ("--threads".equals(arg) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--checkpoint".equals(arg) && i + 1 < args.length) {
+                checkpointFile = Paths.get(args[++i]);
+            } else if ("--hash".equals(arg)) {
+                hash = true;
+            } else if (source == null) {
+                source = Paths.get(arg);
+            } else if (target == null) {
+                target = Paths.get(arg);
+            } else {
+                usage();
+                return 2;
+            }
+        }
+        if (source == null || target == null || !Files.isDirectory(source)) {
+            usage();
+            return 2;
+        }
+        if (threads <= 0) {
+            threads = defaultThreads();
+        }
+        // the transformation slots limit the guetzli processes, the threads only wait for them
+        System.setProperty("guetzli.service.concurrency", String.valueOf(threads));
+        Files.createDirectories(target);
+
+        final boolean success;
+        try (final Checkpoint checkpoint = Checkpoint.open(checkpointFile == null ? target.resolve(CHECKPOINT_FILE) : checkpointFile, hash)) {
+            final BatchTransformation batch = new BatchTransformation(source.toAbsolutePath(), target.toAbsolutePath(), checkpoint);
+            success = batch.run(threads);
+        }
+        return success ? 0 : 1;
+    }
+
+    static void usage() {
+        System.err.println("Usage: BatchTransformation [--threads n] [--checkpoint file] [--hash] <source directory> <target directory>");
+    }
+
+    /**
+     * The number of <code>guetzli</code> processes which fit the CPUs and the physical memory.
+     */
+    // getTotalMemorySize() replaces the deprecated method only since Java 14, the target is Java 8
+    @SuppressWarnings("deprecation")
+    static int defaultThreads() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final long memlimit = Configuration.intValue("guetzli.service.memlimit", DEFAULT_MEMLIMIT_MB) * MB;
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (memlimit <= 0 || !(os instanceof com.sun.management.OperatingSystemMXBean)) {
+            return cpus;
+        }
+        final long memory = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        return (int) Math.max(1, Math.min(cpus, memory / memlimit));
+    }
+
+    /**
+     * Transforms all images of the source tree.
+     * @param threads the number of parallel transformations.
+     * @return {@code true} if no transformation failed.
+     * @throws IOException if and only if it is not possible to walk the source tree.
+     * @throws InterruptedException if interrupted while waiting for the transformations.
+     */
+    boolean run(final int threads) throws IOException, InterruptedException {
+        LOG.log(Level.INFO, "Transform {0} to {1} with {2} threads", new Object[] {this.sourceDirectory, this.targetDirectory, threads});
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // bounds the submitted but not started files, the tree can contain millions of files
+        final Semaphore queued = new Semaphore(threads * 2);
+        try {
+            Files.walkFileTree(this.sourceDirectory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                    return dir.equals(BatchTransformation.this.targetDirectory) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                    final ImageType type = ImageType.ofFileName(file.getFileName().toString());
+                    if (type == null || !attrs.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        queued.acquire();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
+                    }
+                    executor.execute(() -> {
+                        try {
+                            process(file, type);
+                        } finally {
+                            queued.release();
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        LOG.log(Level.INFO, "Finished: {0} transformed, {1} skipped, {2} failed, {3} up to date, {4} bytes saved",
+                new Object[] {this.transformed, this.skipped, this.failed, this.upToDate, this.savedBytes});
+        return this.failed.get() == 0;
+    }
+
+    void process(final Path file, final ImageType type) {
+        assert file != null;
+        assert type != null;
+
+        final String relative = this.sourceDirectory.relativize(file).toString();
+        try {
+            final Path copy = this.targetDirectory.resolve(relative);
+            final Path target = type == ImageType.JPG ? copy : copy.resolveSibling(ImageType.JPG.toFileName(copy.getFileName().toString()));
+            if ((Files.exists(target) || Files.exists(copy)) && this.checkpoint.isUpToDate(relative, file)) {
+                this.upToDate.incrementAndGet();
+                return;
+            }
+            Files.createDirectories(copy.getParent());
+
+            final ImageMetadata meta = this.transformer.transform(file, type, target);
+            if (meta.getStatus() == ProcessStatus.transformed) {
+                this.transformed.incrementAndGet();
+                this.savedBytes.addAndGet(meta.getSourceSize() - meta.getTargetSize());
+            } else {
+                // keep the mirror tree complete
+                Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                (meta.getStatus() == ProcessStatus.failed ? this.failed : this.skipped).incrementAndGet();
+            }
+            this.checkpoint.record(relative, file, meta.getStatus());
+        } catch (final IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to transform " + file, e);
+            this.failed.incrementAndGet();
+        }
+        final long done = this.transformed.get() + this.skipped.get() + this.failed.get();
+        if (done > 0 && done % PROGRESS_INTERVAL == 0) {
+            LOG.log(Level.INFO, "Progress: {0} transformed, {1} skipped, {2} failed, {3} up to date",
+                    new Object[] {this.transformed, this.skipped, this.failed, this.upToDate});
+        }
+    }
+}
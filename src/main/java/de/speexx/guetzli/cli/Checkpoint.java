@@ -0,0 +1,172 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.cli;
+
+import de.speexx.guetzli.service.ProcessStatus;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the finished files of a {@link BatchTransformation} run. Each line contains the status, the size, the
+ * modification time and optionally the SHA-256 hash of a source file and its relative path, separated by tabs.
+ * Lines are only appended and flushed for each file, so the checkpoint survives an interrupted run. A later line of
+ * the same path replaces an earlier one.
+ * <p>A source file is up to date if it was transformed or skipped and the size and the modification time didn't
+ * change. With hashes a file with a new modification time is still up to date if the content didn't change.
+ * Failed files are never up to date.</p>
+ * @author sascha.kohlmann
+ */
+final class Checkpoint implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(Checkpoint.class.getSimpleName());
+
+    private static final String SEPARATOR = "\t";
+    private static final String NO_HASH = "-";
+    private static final int FIELDS = 5;
+
+    private final Map<String, Entry> entries;
+    private final BufferedWriter writer;
+    private final boolean hash;
+
+    Checkpoint(final Map<String, Entry> entries, final BufferedWriter writer, final boolean hash) {
+        assert entries != null;
+        assert writer != null;
+        this.entries = entries;
+        this.writer = writer;
+        this.hash = hash;
+    }
+
+    /**
+     * Loads an existing checkpoint file or creates a new one.
+     * @param file the checkpoint file.
+     * @param hash {@literal true} to compare the content hash of modified files.
+     * @return the checkpoint. Never {@code null}.
+     * @throws IOException if and only if it is not possible to read or create the file.
+     */
+    static Checkpoint open(final Path file, final boolean hash) throws IOException {
+        final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        if (Files.exists(file)) {
+            try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(SEPARATOR, FIELDS);
+                    if (fields.length != FIELDS) {
+                        continue; // torn line of an interrupted run
+                    }
+                    try {
+                        entries.put(fields[4], new Entry(ProcessStatus.valueOf(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                    } catch (final IllegalArgumentException e) {
+                        LOG.log(Level.FINE, "Ignore checkpoint line {0}", line);
+                    }
+                }
+            }
+            LOG.log(Level.INFO, "Loaded {0} entries from checkpoint {1}", new Object[] {entries.size(), file});
+        }
+        final BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return new Checkpoint(entries, writer, hash);
+    }
+
+    /**
+     * Whether a source file is unchanged since it was recorded.
+     * @param relative the relative path of the source file.
+     * @param file the source file.
+     * @return {@code true} if the file needs no transformation.
+     * @throws IOException if and only if it is not possible to read the file attributes.
+     */
+    boolean isUpToDate(final String relative, final Path file) throws IOException {
+        final Entry entry = this.entries.get(relative);
+        if (entry == null || entry.status == ProcessStatus.failed || entry.size != Files.size(file)) {
+            return false;
+        }
+        if (entry.modified == Files.getLastModifiedTime(file).toMillis()) {
+            return true;
+        }
+        return this.hash && !NO_HASH.equals(entry.hash) && entry.hash.equals(sha256(file));
+    }
+
+    /**
+     * Records a finished source file.
+     * @param relative the relative path of the source file.
+     * @param file the source file.
+     * @param status the final status of the file.
+     * @throws IOException if and only if it is not possible to write the checkpoint.
+     */
+    void record(final String relative, final Path file, final ProcessStatus status) throws IOException {
+        final Entry entry = new Entry(status, Files.size(file), Files.getLastModifiedTime(file).toMillis(), this.hash ? sha256(file) : NO_HASH);
+        this.entries.put(relative, entry);
+        synchronized (this.writer) {
+            this.writer.write(entry.status + SEPARATOR + entry.size + SEPARATOR + entry.modified + SEPARATOR + entry.hash + SEPARATOR + relative);
+            this.writer.newLine();
+            this.writer.flush();
+        }
+    }
+
+    static String sha256(final Path file) throws IOException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] buffer = new byte[64 * 1024];
+            try (final InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                while (in.read(buffer) != -1) {
+                    // digest only
+                }
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (final byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this.writer) {
+            this.writer.close();
+        }
+    }
+
+    static final class Entry {
+        final ProcessStatus status;
+        final long size;
+        final long modified;
+        final String hash;
+
+        Entry(final ProcessStatus status, final long size, final long modified, final String hash) {
+            this.status = status;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Notifies listeners when the transformation of a content ID reaches a final {@link ProcessStatus}, i.e.
+ * {@linkplain ProcessStatus#transformed transformed}, {@linkplain ProcessStatus#skipped skipped} or
+ * {@linkplain ProcessStatus#failed failed}. Listeners are called in the thread finishing the transformation
+ * and must not block.
+ * @author sascha.kohlmann
+ */
+public final class CompletionListeners {
+
+    private static final Logger LOG = Logger.getLogger(CompletionListeners.class.getSimpleName());
+
+    private static final Map<String, List<Consumer<ImageMetadata>>> LISTENERS = new ConcurrentHashMap<>();
+
+    private CompletionListeners() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Registers a listener for the completion of the transformation of the given content ID. The listener
+     * is called at most once and removed afterwards.
+     * @param contentId the content ID.
+     * @param listener the listener.
+     * @return the registration to remove the listener before completion. Never {@code null}.
+     * @throws NullPointerException if a parameter is {@code null}.
+     */
+    public static Registration onCompletion(final String contentId, final Consumer<ImageMetadata> listener) {
+        Objects.requireNonNull(contentId);
+        Objects.requireNonNull(listener);
+        LISTENERS.computeIfAbsent(contentId, id -> new CopyOnWriteArrayList<>()).add(listener);
+        return () -> LISTENERS.computeIfPresent(contentId, (id, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+    static void completed(final ImageMetadata meta) {
+        assert meta != null;
+
+        final List<Consumer<ImageMetadata>> listeners = LISTENERS.remove(meta.getContentId());
+        if (listeners == null) {
+            return;
+        }
+        for (final Consumer<ImageMetadata> listener : listeners) {
+            try {
+                listener.accept(meta);
+            } catch (final RuntimeException e) {
+                LOG.log(Level.WARNING, "Completion listener failed for content ID " + meta.getContentId(), e);
+            }
+        }
+    }
+
+    /**
+     * Registration of a completion listener.
+     */
+    @FunctionalInterface
+    public interface Registration {
+
+        /**
+         * Removes the listener.
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Simple access to the configuration values of the service. The values are
+ * {@linkplain System#getProperty(java.lang.String) system properties}, usually with the prefix <code>guetzli.service.</code>.
+ * Invalid values are logged and replaced by the given default value.
+ * @author sascha.kohlmann
+ */
+public final class Configuration {
+
+    private static final Logger LOG = Logger.getLogger(Configuration.class.getSimpleName());
+
+    private Configuration() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Returns the value of the given key.
+     * @param key the key of the system property.
+     * @param defaultValue the value to return if the property isn't set. Can be {@code null}.
+     * @return the property value or <em>defaultValue</em>.
+     */
+    public static String stringValue(final String key, final String defaultValue) {
+        assert key != null;
+        final String value = AccessController.doPrivileged((PrivilegedAction<String>) () -> new GetProperty(key).run());
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Returns the value of the given key as {@code int}.
+     * @param key the key of the system property.
+     * @param defaultValue the value to return if the property isn't set or invalid.
+     * @return the property value or <em>defaultValue</em>.
+     */
+    public static int intValue(final String key, final int defaultValue) {
+        return (int) longValue(key, defaultValue);
+    }
+
+    /**
+     * Returns the value of the given key as {@code long}.
+     * @param key the key of the system property.
+     * @param defaultValue the value to return if the property isn't set or invalid.
+     * @return the property value or <em>defaultValue</em>.
+     */
+    public static long longValue(final String key, final long defaultValue) {
+        final String value = stringValue(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Invalid value ''{0}'' for {1}. Using {2}", new Object[] {value, key, defaultValue});
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of the given key as {@code double}.
+     * @param key the key of the system property.
+     * @param defaultValue the value to return if the property isn't set or invalid.
+     * @return the property value or <em>defaultValue</em>.
+     */
+    public static double doubleValue(final String key, final double defaultValue) {
+        final String value = stringValue(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Invalid value ''{0}'' for {1}. Using {2}", new Object[] {value, key, defaultValue});
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of the given key as {@code boolean}.
+     * @param key the key of the system property.
+     * @param defaultValue the value to return if the property isn't set.
+     * @return the property value or <em>defaultValue</em>.
+     */
+    public static boolean booleanValue(final String key, final boolean defaultValue) {
+        final String value = stringValue(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
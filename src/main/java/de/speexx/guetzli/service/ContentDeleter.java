@@ -0,0 +1,192 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes content IDs in the background. A content ID is {@linkplain ImageService#tombstone(java.lang.String)
+ * marked as deleted} immediately, so it is invisible to reads and listings and its jobs are cancelled. The data
+ * is {@linkplain ImageService#delete(java.lang.String) deleted} by a daemon thread at a limited rate after all jobs
+ * of the content ID are finished, so a bulk deletion doesn't compete with the transformations for the storage.
+ * <p>The marks are stored with the content. Content IDs marked before a restart are deleted after the restart.</p>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.delete.rate</code></dt>
+ *   <dd>The maximum number of content IDs deleted per second. Default is {@value #DEFAULT_RATE}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class ContentDeleter implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(ContentDeleter.class.getSimpleName());
+
+    static final double DEFAULT_RATE = 10;
+
+    private static volatile ContentDeleter instance;
+
+    private final ImageService imgSrv;
+    private final long intervalNanos;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private Thread thread;
+    private volatile boolean running;
+
+    ContentDeleter(final ImageService imgSrv, final double rate) {
+        assert rate > 0;
+        this.imgSrv = Objects.requireNonNull(imgSrv);
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    /**
+     * The deleter of the {@linkplain de.speexx.guetzli.service.storage.Storages#defaultStorage() configured storage}.
+     * The deleter is started with the first call.
+     * @return the deleter. Never {@code null}.
+     */
+    public static ContentDeleter instance() {
+        ContentDeleter deleter = instance;
+        if (deleter == null) {
+            synchronized (ContentDeleter.class) {
+                deleter = instance;
+                if (deleter == null) {
+                    final double rate = Configuration.doubleValue("guetzli.service.delete.rate", DEFAULT_RATE);
+                    deleter = new ContentDeleter(new ImageService(), rate > 0 ? rate : DEFAULT_RATE);
+                    deleter.start(true);
+                    instance = deleter;
+                }
+            }
+        }
+        return deleter;
+    }
+
+    /**
+     * Marks the content IDs as deleted and schedules the deletion of their data. Unknown content IDs are ignored.
+     * @param contentIds the content IDs to delete.
+     * @return the number of marked content IDs.
+     */
+    public int delete(final Collection<String> contentIds) {
+        Objects.requireNonNull(contentIds);
+        int marked = 0;
+        for (final String contentId : contentIds) {
+            try {
+                if (this.imgSrv.tombstone(contentId)) {
+                    enqueue(contentId);
+                    marked++;
+                }
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Unable to mark content ID " + contentId + " as deleted", e);
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * The number of marked content IDs not yet deleted.
+     * @return the number of content IDs.
+     */
+    public int getPending() {
+        return this.pending.size();
+    }
+
+    void enqueue(final String contentId) {
+        if (this.pending.add(contentId)) {
+            this.queue.add(contentId);
+        }
+    }
+
+    /**
+     * Starts the daemon thread.
+     * @param recover {@code true} to delete the content IDs marked before the start.
+     */
+    synchronized void start(final boolean recover) {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.thread = new Thread(() -> run(recover), "guetzli-content-deleter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    void run(final boolean recover) {
+        if (recover) {
+            recover();
+        }
+        try {
+            while (this.running) {
+                final String contentId = this.queue.take();
+                deleteData(contentId);
+                TimeUnit.NANOSECONDS.sleep(this.intervalNanos);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void recover() {
+        try {
+            for (final String contentId : this.imgSrv.findTombstones()) {
+                enqueue(contentId);
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to find content IDs marked as deleted", e);
+        }
+    }
+
+    /**
+     * Deletes the data of a marked content ID or enqueues it again if it still has jobs.
+     * @return {@code true} if the data is deleted.
+     */
+    boolean deleteData(final String contentId) {
+        assert contentId != null;
+
+        if (TransformationScheduler.instance().isActive(contentId)) {
+            // cancelled jobs are still finishing
+            this.queue.add(contentId);
+            return false;
+        }
+        try {
+            this.imgSrv.delete(contentId);
+            LOG.log(Level.FINE, "Deleted content ID {0}", contentId);
+            return true;
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to delete content ID " + contentId, e);
+            return false;
+        } finally {
+            this.pending.remove(contentId);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import javax.imageio.IIOException;
+
+/**
+ * The reason of a {@linkplain ProcessStatus#failed failed} transformation. Transformations failed for a
+ * {@linkplain #isTransient() transient} reason are retried.
+ * @author sascha.kohlmann
+ */
+public enum FailureReason {
+    /** The <code>guetzli</code> process exceeded its timeout and was killed. */
+    timeout(true),
+    /** The <code>guetzli</code> process exceeded its memory limit or was killed by the system. */
+    outOfMemory(true),
+    /** The source image can't be read. */
+    invalidInput(false),
+    /** Reading or writing the images failed. */
+    io(true),
+    /** Any other failure. */
+    error(false);
+
+    private final boolean transientFailure;
+
+    private FailureReason(final boolean transientFailure) {
+        this.transientFailure = transientFailure;
+    }
+
+    /**
+     * Whether a transformation failed for this reason might succeed with another attempt.
+     * @return {@code true} for a transient reason, {@code false} for a permanent reason.
+     */
+    public boolean isTransient() {
+        return this.transientFailure;
+    }
+
+    /**
+     * The reason for the cause of a failed transformation.
+     * @param t the cause.
+     * @return the reason. Never {@code null}.
+     */
+    static FailureReason of(final Throwable t) {
+        FailureReason reason = error;
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransformationTimeoutException) {
+                return timeout;
+            }
+            if (cause instanceof TransformationOutOfMemoryException || cause instanceof OutOfMemoryError) {
+                return outOfMemory;
+            }
+            if (cause instanceof InvalidInputException || cause instanceof IIOException) {
+                return invalidInput;
+            }
+            if (cause instanceof IOException || cause instanceof UncheckedIOException) {
+                // a more specific cause might follow
+                reason = io;
+            }
+        }
+        return reason;
+    }
+}
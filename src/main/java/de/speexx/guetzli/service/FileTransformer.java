@@ -0,0 +1,147 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import de.speexx.guetzli.service.storage.Storage;
+import de.speexx.guetzli.transformer.GuetzliTransformationProcessor;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transforms a single image file outside of the {@link Storage}, e.g. for batch runs over a directory tree. Uses
+ * the same decisions, savings prediction and transformation slots as the {@link ImageService}.
+ * <p>The target image is written to a temporary file and renamed when finished, so an interrupted run never
+ * leaves a partial target image.</p>
+ * <p>The source image is staged into a temporary work directory like a {@link Workspace} of the service.
+ * <code>guetzli</code>, its log and the sample tiles of the prediction only write to the work directory, never
+ * to the source tree, which may be read only.</p>
+ * @author sascha.kohlmann
+ * @see TransformationScheduler
+ */
+public final class FileTransformer {
+
+    private static final Logger LOG = Logger.getLogger(FileTransformer.class.getSimpleName());
+
+    private final TransformationDecision decision = new TransformationDecision();
+
+    /**
+     * Transforms the source image to the target image. The target image is only written if the status of the
+     * returned metadata is {@linkplain ProcessStatus#transformed transformed}.
+     * @param source the source image.
+     * @param type the type of the source image.
+     * @param target the target JPEG image.
+     * @return the metadata with the status and the {@linkplain SkipReason skip} or
+     *         {@linkplain FailureReason failure} reason. Never {@code null}.
+     * @throws IOException if and only if it is not possible to read the source image.
+     */
+    public ImageMetadata transform(final Path source, final ImageType type, final Path target) throws IOException {
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(type);
+        Objects.requireNonNull(target);
+
+        final ImageMetadata meta = new ImageMetadata();
+        meta.setSourceName(source.getFileName().toString());
+        meta.setSourceType(type);
+        meta.setSourceSize(Files.size(source));
+        meta.setSourceQuality(type == ImageType.JPG ? new ImageQualityIdentifier().fetchQuality(source) : 100);
+        final Dimension dimension = new ImageDimensionIdentifier().fetchDimension(source);
+        meta.setSourceWidth(dimension.width);
+        meta.setSourceHeight(dimension.height);
+
+        SkipReason skip = this.decision.beforeTransformation(meta);
+        if (skip != null) {
+            return skipped(meta, skip);
+        }
+
+        final Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        final Path work = Files.createTempDirectory("guetzli-file-");
+        final TransformationScheduler scheduler = TransformationScheduler.instance();
+        final TransformationJob job = scheduler.submitted(source.toString(), null);
+        job.setPixels(ImageService.pixels(meta));
+        try {
+            final GuetzliTransformationProcessor processor = new GuetzliTransformationProcessor(job::setPid);
+            final SavingsPredictor predictor = new SavingsPredictor(processor);
+            final Path input = work.resolve("source." + type.getPostfix());
+            final Path output = work.resolve("target.jpg");
+            Files.copy(source, input);
+            scheduler.acquireSlot(job);
+            try {
+                if (predictor.isApplicable(meta)) {
+                    meta.setPredictedTargetSize(predictor.predictTargetSize(meta, input));
+                    skip = this.decision.afterPrediction(meta, meta.getSourceSize());
+                }
+                if (skip == null) {
+                    meta.setResourceUsage(processor.transform(input, output, 0, job.getPixels()));
+                }
+            } finally {
+                scheduler.releaseSlot(job);
+            }
+            if (skip == null) {
+                skip = this.decision.afterTransformation(meta, meta.getSourceSize(), Files.size(output));
+            }
+            if (skip != null) {
+                return skipped(meta, skip);
+            }
+            meta.setTargetSize(Files.size(output));
+            meta.setTargetWidth(meta.getSourceWidth());
+            meta.setTargetHeight(meta.getSourceHeight());
+            Files.move(output, temp, StandardCopyOption.REPLACE_EXISTING);
+            move(temp, target);
+            meta.setStatus(ProcessStatus.transformed);
+            return meta;
+
+        } catch (final InterruptedException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Failing guetzli transformation for " + source, e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            meta.setStatus(ProcessStatus.failed);
+            meta.setFailureReason(FailureReason.of(e));
+            return meta;
+        } finally {
+            scheduler.finished(job);
+            Files.deleteIfExists(temp);
+            Files.walkFileTree(work, new DeleteDirectoryVisitor());
+        }
+    }
+
+    ImageMetadata skipped(final ImageMetadata meta, final SkipReason reason) {
+        assert meta != null;
+        assert reason != null;
+
+        meta.setSkipReason(reason);
+        meta.setStatus(ProcessStatus.skipped);
+        return meta;
+    }
+
+    static void move(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Fetches the width and height of an image. Only the header of the image is read, the pixel data is not decoded.
+ * @author sascha.kohlmann
+ */
+final class ImageDimensionIdentifier {
+
+    private static final Logger LOG = Logger.getLogger(ImageDimensionIdentifier.class.getSimpleName());
+
+    /**
+     * Fetch the dimension.
+     * @param sourcePath the path to the source file.
+     * @return the dimension of the image.
+     * @throws IOException if and only if it is not possible to read the image header.
+     * @throws NullPointerException if <em>sourcePath</em> is {@code null}.
+     */
+    public Dimension fetchDimension(final Path sourcePath) throws IOException {
+        LOG.log(Level.FINE, "Fetch dimension for {0}", sourcePath);
+        try (final ImageInputStream in = ImageIO.createImageInputStream(sourcePath.toFile())) {
+            if (in == null) {
+                throw new IOException("Unable to read " + sourcePath);
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader available for " + sourcePath);
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
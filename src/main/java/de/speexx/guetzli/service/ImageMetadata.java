@@ -17,9 +17,18 @@
  */
 package de.speexx.guetzli.service;
 
+import de.speexx.guetzli.transformer.ResizeOptions;
+import de.speexx.guetzli.transformer.ResourceLimits;
+import de.speexx.guetzli.transformer.ResourceUsage;
+import de.speexx.guetzli.transformer.StripOptions;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.stream.Collectors;
 
 /**
  * Bean container for the meta data of the image transformation. 
@@ -32,10 +41,37 @@ public final class ImageMetadata {
     private static final String SOURCE_QUALITY_KEY = "source.quality";
     private static final String SOURCE_TYPE_KEY = "source.type";
     private static final String SOURCE_SIZE_KEY = "source.size";
+    private static final String SOURCE_WIDTH_KEY = "source.width";
+    private static final String SOURCE_HEIGHT_KEY = "source.height";
     private static final String TARGET_QUALITY_KEY = "target.quality";
     private static final String TARGET_SIZE_KEY = "target.size";
     private static final String ID_KEY = "contentId";
     private static final String CREATION_DATETIME_KEY = "stored.datetime";
+    private static final String SKIP_REASON_KEY = "skip.reason";
+    private static final String PREDICTED_TARGET_SIZE_KEY = "predicted.target.size";
+    private static final String CALLBACK_URL_KEY = "callback.url";
+    private static final String TARGET_WIDTH_KEY = "target.width";
+    private static final String TARGET_HEIGHT_KEY = "target.height";
+    private static final String RESIZE_MAX_WIDTH_KEY = "resize.width.max";
+    private static final String RESIZE_MAX_HEIGHT_KEY = "resize.height.max";
+    private static final String RESIZE_FIT_KEY = "resize.fit";
+    private static final String RESIZE_CROP_KEY = "resize.crop";
+    private static final String STRIP_ICC_KEY = "strip.icc";
+    private static final String STRIP_ORIENTATION_KEY = "strip.orientation";
+    private static final String STRIP_ROTATE_KEY = "strip.rotate";
+    private static final String STRIPPED_BYTES_KEY = "stripped.bytes";
+    private static final String CPU_TIME_KEY = "transform.cpu.millis";
+    private static final String PEAK_RSS_KEY = "transform.rss.peak";
+    private static final String WALL_TIME_KEY = "transform.wall.millis";
+    private static final String LIMIT_MECHANISM_KEY = "transform.limit.mechanism";
+    private static final String LIMIT_MEMORY_KEY = "transform.limit.memory";
+    private static final String LIMIT_CPUS_KEY = "transform.limit.cpus";
+    private static final String FAILURE_REASON_KEY = "failure.reason";
+    private static final String ATTEMPTS_KEY = "attempts";
+    private static final String LAST_ERROR_KEY = "error.last";
+    private static final String RETRY_AT_KEY = "retry.at";
+    private static final String VARIANT_KEY = "variant";
+    private static final String VARIANTS_KEY = "variants";
     
     private String contentId;
     private ProcessStatus status;
@@ -44,8 +80,25 @@ public final class ImageMetadata {
     private String sourceName;
     private int sourceQuality;
     private long sourceSize;
+    private int sourceWidth;
+    private int sourceHeight;
     private int targetQuality;
     private long targetSize;
+    private SkipReason skipReason;
+    private long predictedTargetSize;
+    private String callbackUrl;
+    private int targetWidth;
+    private int targetHeight;
+    private ResizeOptions resize;
+    private StripOptions strip;
+    private long strippedBytes;
+    private ResourceUsage resourceUsage;
+    private FailureReason failureReason;
+    private int attempts;
+    private String lastError;
+    private long retryAt;
+    private Variant variant;
+    private List<Variant> variants = Collections.emptyList();
 
     /**
      * Returns the ID of the image to transform.
@@ -119,6 +172,30 @@ public final class ImageMetadata {
         this.sourceSize = sourceSize;
     }
 
+    /**
+     * The width of the source image in pixel.
+     * @return the width or 0 if unknown.
+     */
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    void setSourceWidth(int sourceWidth) {
+        this.sourceWidth = sourceWidth;
+    }
+
+    /**
+     * The height of the source image in pixel.
+     * @return the height or 0 if unknown.
+     */
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    void setSourceHeight(int sourceHeight) {
+        this.sourceHeight = sourceHeight;
+    }
+
     /**
      * The quality level of the target image.
      * @return the qualiy level between 0 and 100.
@@ -143,6 +220,188 @@ public final class ImageMetadata {
         this.targetSize = targetSize;
     }
 
+    /**
+     * The predicted size of the target image. The prediction is based on a <code>guetzli</code> run on
+     * some tiles of the source image.
+     * @return the predicted size or 0 if there is no prediction.
+     */
+    public long getPredictedTargetSize() {
+        return predictedTargetSize;
+    }
+
+    void setPredictedTargetSize(long predictedTargetSize) {
+        this.predictedTargetSize = predictedTargetSize;
+    }
+
+    /**
+     * The URL to notify when the transformation is finished.
+     * @return the callback URL. Can be {@code null}.
+     */
+    public String getCallbackUrl() {
+        return callbackUrl;
+    }
+
+    void setCallbackUrl(String callbackUrl) {
+        this.callbackUrl = callbackUrl;
+    }
+
+    /**
+     * The width of the target image.
+     * @return the width or 0 if unknown.
+     */
+    public int getTargetWidth() {
+        return targetWidth;
+    }
+
+    void setTargetWidth(int targetWidth) {
+        this.targetWidth = targetWidth;
+    }
+
+    /**
+     * The height of the target image.
+     * @return the height or 0 if unknown.
+     */
+    public int getTargetHeight() {
+        return targetHeight;
+    }
+
+    void setTargetHeight(int targetHeight) {
+        this.targetHeight = targetHeight;
+    }
+
+    /**
+     * The options to resize the source image before the <code>guetzli</code> transformation.
+     * @return the resize options or {@code null} if the source image is not resized.
+     */
+    public ResizeOptions getResize() {
+        return resize;
+    }
+
+    void setResize(ResizeOptions resize) {
+        this.resize = resize;
+    }
+
+    /**
+     * The options to strip metadata segments from a JPEG source image before the <code>guetzli</code> transformation.
+     * @return the strip options or {@code null} if the source image is not stripped.
+     */
+    public StripOptions getStrip() {
+        return strip;
+    }
+
+    void setStrip(StripOptions strip) {
+        this.strip = strip;
+    }
+
+    /**
+     * The number of bytes of metadata segments removed from the source image.
+     * @return the number of removed bytes.
+     */
+    public long getStrippedBytes() {
+        return strippedBytes;
+    }
+
+    void setStrippedBytes(long strippedBytes) {
+        this.strippedBytes = strippedBytes;
+    }
+
+    /**
+     * The resources used by the <code>guetzli</code> process.
+     * @return the resource usage or {@code null} if <code>guetzli</code> didn't run.
+     */
+    public ResourceUsage getResourceUsage() {
+        return resourceUsage;
+    }
+
+    void setResourceUsage(ResourceUsage resourceUsage) {
+        this.resourceUsage = resourceUsage;
+    }
+
+    /**
+     * The reason of a failed transformation.
+     * @return the reason if the status is {@linkplain ProcessStatus#failed failed} or the reason of the last
+     *         failed attempt if a retry is scheduled. Otherwise {@code null}.
+     */
+    public FailureReason getFailureReason() {
+        return failureReason;
+    }
+
+    void setFailureReason(FailureReason failureReason) {
+        this.failureReason = failureReason;
+    }
+
+    /**
+     * The number of started transformation attempts.
+     * @return the number of attempts. {@literal 0} if no attempt started.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * The message of the last failed attempt.
+     * @return the message or {@code null} if no attempt failed.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    /**
+     * The earliest time of the next attempt of a retried transformation.
+     * @return the time in milliseconds since the epoch or {@literal 0} if no retry is scheduled.
+     */
+    public long getRetryAt() {
+        return retryAt;
+    }
+
+    void setRetryAt(long retryAt) {
+        this.retryAt = retryAt;
+    }
+
+    /**
+     * The variant described by this metadata.
+     * @return the variant or {@code null} for the metadata of the main transformation.
+     */
+    public Variant getVariant() {
+        return variant;
+    }
+
+    void setVariant(Variant variant) {
+        this.variant = variant;
+    }
+
+    /**
+     * The variants requested with the upload. Only available in the metadata of the main transformation.
+     * @return the variants. Never {@code null}.
+     */
+    public List<Variant> getVariants() {
+        return variants;
+    }
+
+    void setVariants(List<Variant> variants) {
+        this.variants = variants == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(variants));
+    }
+
+    /**
+     * The reason why the <code>guetzli</code> result is not used.
+     * @return the reason if the status is {@linkplain ProcessStatus#skipped skipped}. Otherwise {@code null}.
+     */
+    public SkipReason getSkipReason() {
+        return skipReason;
+    }
+
+    void setSkipReason(SkipReason skipReason) {
+        this.skipReason = skipReason;
+    }
+
     /**
      * The creation time when stored the source image.
      * @return the source stored image date time. Never {@code null}.
@@ -157,7 +416,7 @@ public final class ImageMetadata {
 
     @Override
     public String toString() {
-        return "ImageMetadata{" + "contentId=" + contentId + ", status=" + status + ", creationDatetime=" + creationDatetime + ", sourceType=" + sourceType + ", sourceName=" + sourceName + ", sourceQuality=" + sourceQuality + ", sourceSize=" + sourceSize + ", targetQuality=" + targetQuality + ", targetSize=" + targetSize + '}';
+        return "ImageMetadata{" + "contentId=" + contentId + ", status=" + status + ", creationDatetime=" + creationDatetime + ", sourceType=" + sourceType + ", sourceName=" + sourceName + ", sourceQuality=" + sourceQuality + ", sourceSize=" + sourceSize + ", sourceWidth=" + sourceWidth + ", sourceHeight=" + sourceHeight + ", targetQuality=" + targetQuality + ", targetSize=" + targetSize + ", skipReason=" + skipReason + ", predictedTargetSize=" + predictedTargetSize + ", callbackUrl=" + callbackUrl + ", targetWidth=" + targetWidth + ", targetHeight=" + targetHeight + ", resize=" + resize + ", strip=" + strip + ", strippedBytes=" + strippedBytes + ", resourceUsage=" + resourceUsage + ", failureReason=" + failureReason + ", attempts=" + attempts + ", retryAt=" + retryAt + ", variant=" + variant + ", variants=" + variants + '}';
     }
 
     static Properties toProperties(final ImageMetadata metadata) {
@@ -173,10 +432,75 @@ public final class ImageMetadata {
         p.setProperty(SOURCE_TYPE_KEY, String.valueOf(metadata.getSourceType().name()));
         p.setProperty(SOURCE_QUALITY_KEY, String.valueOf(metadata.getSourceQuality()));
         p.setProperty(SOURCE_SIZE_KEY, String.valueOf(metadata.getSourceSize()));
+        p.setProperty(SOURCE_WIDTH_KEY, String.valueOf(metadata.getSourceWidth()));
+        p.setProperty(SOURCE_HEIGHT_KEY, String.valueOf(metadata.getSourceHeight()));
         p.setProperty(TARGET_QUALITY_KEY, String.valueOf(metadata.getTargetQuality()));
         p.setProperty(TARGET_SIZE_KEY, String.valueOf(metadata.getTargetSize()));
         p.setProperty(PROCESS_STATUS_KEY, metadata.getStatus().name());
         p.setProperty(CREATION_DATETIME_KEY, DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(metadata.getCreationDatetime()));
+        if (metadata.getPredictedTargetSize() > 0) {
+            p.setProperty(PREDICTED_TARGET_SIZE_KEY, String.valueOf(metadata.getPredictedTargetSize()));
+        }
+        if (metadata.getCallbackUrl() != null) {
+            p.setProperty(CALLBACK_URL_KEY, metadata.getCallbackUrl());
+        }
+        if (metadata.getSkipReason() != null) {
+            p.setProperty(SKIP_REASON_KEY, metadata.getSkipReason().name());
+        }
+        if (metadata.getTargetWidth() > 0) {
+            p.setProperty(TARGET_WIDTH_KEY, String.valueOf(metadata.getTargetWidth()));
+            p.setProperty(TARGET_HEIGHT_KEY, String.valueOf(metadata.getTargetHeight()));
+        }
+        final StripOptions strip = metadata.getStrip();
+        if (strip != null) {
+            p.setProperty(STRIP_ICC_KEY, String.valueOf(strip.isKeepIcc()));
+            p.setProperty(STRIP_ORIENTATION_KEY, String.valueOf(strip.isKeepOrientation()));
+            p.setProperty(STRIP_ROTATE_KEY, String.valueOf(strip.isRotate()));
+        }
+        if (metadata.getStrippedBytes() > 0) {
+            p.setProperty(STRIPPED_BYTES_KEY, String.valueOf(metadata.getStrippedBytes()));
+        }
+        final ResourceUsage usage = metadata.getResourceUsage();
+        if (usage != null) {
+            p.setProperty(CPU_TIME_KEY, String.valueOf(usage.getCpuTimeMillis()));
+            p.setProperty(PEAK_RSS_KEY, String.valueOf(usage.getPeakRssBytes()));
+            p.setProperty(WALL_TIME_KEY, String.valueOf(usage.getWallTimeMillis()));
+            final ResourceLimits limits = usage.getLimits();
+            if (limits.getMechanism() != ResourceLimits.Mechanism.none) {
+                p.setProperty(LIMIT_MECHANISM_KEY, limits.getMechanism().name());
+                p.setProperty(LIMIT_MEMORY_KEY, String.valueOf(limits.getMemoryBytes()));
+                if (limits.getCpus() != null) {
+                    p.setProperty(LIMIT_CPUS_KEY, limits.getCpus());
+                }
+            }
+        }
+        if (metadata.getFailureReason() != null) {
+            p.setProperty(FAILURE_REASON_KEY, metadata.getFailureReason().name());
+        }
+        if (metadata.getAttempts() > 0) {
+            p.setProperty(ATTEMPTS_KEY, String.valueOf(metadata.getAttempts()));
+        }
+        if (metadata.getLastError() != null) {
+            p.setProperty(LAST_ERROR_KEY, metadata.getLastError());
+        }
+        if (metadata.getRetryAt() > 0) {
+            p.setProperty(RETRY_AT_KEY, String.valueOf(metadata.getRetryAt()));
+        }
+        if (metadata.getVariant() != null) {
+            p.setProperty(VARIANT_KEY, metadata.getVariant().getName());
+        }
+        if (!metadata.getVariants().isEmpty()) {
+            p.setProperty(VARIANTS_KEY, metadata.getVariants().stream().map(Variant::getName).collect(Collectors.joining(",")));
+        }
+        final ResizeOptions resize = metadata.getResize();
+        if (resize != null) {
+            p.setProperty(RESIZE_MAX_WIDTH_KEY, String.valueOf(resize.getMaxWidth()));
+            p.setProperty(RESIZE_MAX_HEIGHT_KEY, String.valueOf(resize.getMaxHeight()));
+            p.setProperty(RESIZE_FIT_KEY, resize.getFit().name());
+            if (resize.getCrop() != null) {
+                p.setProperty(RESIZE_CROP_KEY, ResizeOptions.formatCrop(resize.getCrop()));
+            }
+        }
         
         return p;
     }
@@ -202,6 +526,12 @@ public final class ImageMetadata {
         if (p.containsKey(SOURCE_SIZE_KEY)) {
             meta.setSourceSize(Long.parseLong(p.getProperty(SOURCE_SIZE_KEY)));
         }
+        if (p.containsKey(SOURCE_WIDTH_KEY)) {
+            meta.setSourceWidth(Integer.parseInt(p.getProperty(SOURCE_WIDTH_KEY)));
+        }
+        if (p.containsKey(SOURCE_HEIGHT_KEY)) {
+            meta.setSourceHeight(Integer.parseInt(p.getProperty(SOURCE_HEIGHT_KEY)));
+        }
         if (p.containsKey(TARGET_QUALITY_KEY)) {
             meta.setTargetQuality(Integer.parseInt(p.getProperty(TARGET_QUALITY_KEY)));
         }
@@ -211,6 +541,60 @@ public final class ImageMetadata {
         if (p.containsKey(CREATION_DATETIME_KEY)) {
             meta.setCreationDatetime(LocalDateTime.parse(p.getProperty(CREATION_DATETIME_KEY), DateTimeFormatter.ISO_LOCAL_DATE_TIME));
         }
+        if (p.containsKey(PREDICTED_TARGET_SIZE_KEY)) {
+            meta.setPredictedTargetSize(Long.parseLong(p.getProperty(PREDICTED_TARGET_SIZE_KEY)));
+        }
+        if (p.containsKey(CALLBACK_URL_KEY)) {
+            meta.setCallbackUrl(p.getProperty(CALLBACK_URL_KEY));
+        }
+        if (p.containsKey(SKIP_REASON_KEY)) {
+            meta.setSkipReason(SkipReason.valueOf(p.getProperty(SKIP_REASON_KEY)));
+        }
+        if (p.containsKey(TARGET_WIDTH_KEY)) {
+            meta.setTargetWidth(Integer.parseInt(p.getProperty(TARGET_WIDTH_KEY)));
+            meta.setTargetHeight(Integer.parseInt(p.getProperty(TARGET_HEIGHT_KEY, "0")));
+        }
+        if (p.containsKey(STRIP_ROTATE_KEY)) {
+            meta.setStrip(new StripOptions(Boolean.parseBoolean(p.getProperty(STRIP_ICC_KEY)),
+                                           Boolean.parseBoolean(p.getProperty(STRIP_ORIENTATION_KEY)),
+                                           Boolean.parseBoolean(p.getProperty(STRIP_ROTATE_KEY))));
+        }
+        if (p.containsKey(STRIPPED_BYTES_KEY)) {
+            meta.setStrippedBytes(Long.parseLong(p.getProperty(STRIPPED_BYTES_KEY)));
+        }
+        if (p.containsKey(WALL_TIME_KEY)) {
+            final ResourceLimits limits = p.containsKey(LIMIT_MECHANISM_KEY)
+                    ? new ResourceLimits(ResourceLimits.Mechanism.valueOf(p.getProperty(LIMIT_MECHANISM_KEY)),
+                                         Long.parseLong(p.getProperty(LIMIT_MEMORY_KEY, "0")),
+                                         p.getProperty(LIMIT_CPUS_KEY))
+                    : ResourceLimits.NONE;
+            meta.setResourceUsage(new ResourceUsage(Long.parseLong(p.getProperty(CPU_TIME_KEY, "0")),
+                                                    Long.parseLong(p.getProperty(PEAK_RSS_KEY, "0")),
+                                                    Long.parseLong(p.getProperty(WALL_TIME_KEY)),
+                                                    limits));
+        }
+        if (p.containsKey(FAILURE_REASON_KEY)) {
+            meta.setFailureReason(FailureReason.valueOf(p.getProperty(FAILURE_REASON_KEY)));
+        }
+        if (p.containsKey(ATTEMPTS_KEY)) {
+            meta.setAttempts(Integer.parseInt(p.getProperty(ATTEMPTS_KEY)));
+        }
+        meta.setLastError(p.getProperty(LAST_ERROR_KEY));
+        if (p.containsKey(RETRY_AT_KEY)) {
+            meta.setRetryAt(Long.parseLong(p.getProperty(RETRY_AT_KEY)));
+        }
+        if (p.containsKey(VARIANT_KEY)) {
+            meta.setVariant(Variant.parse(p.getProperty(VARIANT_KEY)));
+        }
+        if (p.containsKey(VARIANTS_KEY)) {
+            meta.setVariants(Arrays.stream(p.getProperty(VARIANTS_KEY).split(",")).map(Variant::parse).collect(Collectors.toList()));
+        }
+        if (p.containsKey(RESIZE_FIT_KEY)) {
+            meta.setResize(new ResizeOptions(Integer.parseInt(p.getProperty(RESIZE_MAX_WIDTH_KEY, "0")),
+                                             Integer.parseInt(p.getProperty(RESIZE_MAX_HEIGHT_KEY, "0")),
+                                             ResizeOptions.Fit.valueOf(p.getProperty(RESIZE_FIT_KEY)),
+                                             ResizeOptions.parseCrop(p.getProperty(RESIZE_CROP_KEY))));
+        }
         
         return meta;
     }
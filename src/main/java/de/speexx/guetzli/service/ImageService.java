@@ -17,53 +17,150 @@
  */
 package de.speexx.guetzli.service;
 
-import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import de.speexx.guetzli.io.ByteBufferInputStream;
+import de.speexx.guetzli.service.cluster.LeaseManager;
+import de.speexx.guetzli.service.storage.FileSystemStorage;
+import de.speexx.guetzli.service.storage.Storage;
+import de.speexx.guetzli.service.storage.Storages;
+import de.speexx.guetzli.service.storage.WriteBehindStorage;
+import de.speexx.guetzli.service.webhook.WebhookDispatcher;
 import de.speexx.guetzli.transformer.GuetzliTransformationProcessor;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import de.speexx.guetzli.transformer.ImageResizer;
+import de.speexx.guetzli.transformer.JpegSegmentStripper;
+import de.speexx.guetzli.transformer.ResizeOptions;
+import de.speexx.guetzli.transformer.ResourceUsage;
+import de.speexx.guetzli.transformer.StripOptions;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
-import java.nio.file.AccessDeniedException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.WRITE;
-import static java.nio.file.StandardOpenOption.READ;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
-import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 /**
  * Main service to handle the <code>guetzli</code> transformation.
- * <p>A new image is stored in the filesystem. The base storage path can be configured with system property key
- * <code>guetzli.service.storage</code>. Images are stored in a sub directory of the base directory where the
- * name of the directory is the content ID.</p>
+ * <p>A new image is stored in the configured {@link Storage}. By default the storage is the filesystem. The base
+ * storage path can be configured with system property key <code>guetzli.service.storage</code>. Images are
+ * stored in a sub directory of the base directory where the name of the directory is the content ID.
+ * The <code>guetzli</code> transformation runs in a local {@link Workspace}.</p>
+ * <p>Several nodes can share one storage if the {@link LeaseManager} is enabled. Each job runs only with a lease,
+ * so a job is transformed by one node at a time and jobs of dead nodes are taken over by other nodes.</p>
+ * <p>A transformation failed for a {@linkplain FailureReason#isTransient() transient reason} is retried with an
+ * exponential backoff. Retries after a timeout or too little memory run {@linkplain TransformationJob#isExclusive()
+ * exclusive}. Permanent failures fail fast. The attempts and the last error are stored in the metadata.</p>
+ * <p>Finished target images are served from the {@link TargetCache} if the cache is enabled.</p>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.retry.attempts</code></dt>
+ *   <dd>The maximum number of attempts of a transformation. Default is {@value #DEFAULT_RETRY_ATTEMPTS}.</dd>
+ *   <dt><code>guetzli.service.retry.backoff</code></dt>
+ *   <dd>The delay in milliseconds before the first retry. The delay doubles with each retry up to
+ *       {@value #MAX_RETRY_BACKOFF_MILLIS} ms. Default is {@value #DEFAULT_RETRY_BACKOFF_MILLIS}.</dd>
+ *   <dt><code>guetzli.service.retry.exclusive</code></dt>
+ *   <dd>Whether retries after a timeout or too little memory run without other transformations. Default is
+ *       {@value #DEFAULT_RETRY_EXCLUSIVE}.</dd>
+ *   <dt><code>guetzli.service.variants.max</code></dt>
+ *   <dd>The maximum number of widths and of qualities. A content ID has at most twice as many variants.
+ *       Default is {@value #DEFAULT_MAX_VARIANTS}.</dd>
+ * </dl>
  *
  * @author sascha.kohlmann
+ * @see Storages#defaultStorage()
  */
 public final class ImageService {
     
     private static Logger LOG = Logger.getLogger(ImageService.class.getSimpleName());
 
-    private static boolean basePathLogged = false;
-
-    private static final Semaphore EXEC_COUNTER = new Semaphore(2);
     private static final String META_FILE = "meta";
+    private static final String RESIZED_FILE = "resized.png";
+    private static final String STRIPPED_FILE = "stripped.jpg";
+    private static final String TOMBSTONE_FILE = "tombstone";
+
+    static final int DEFAULT_RETRY_ATTEMPTS = 3;
+    static final long DEFAULT_RETRY_BACKOFF_MILLIS = 30_000;
+    static final long MAX_RETRY_BACKOFF_MILLIS = 900_000;
+    static final boolean DEFAULT_RETRY_EXCLUSIVE = true;
+    static final int DEFAULT_MAX_VARIANTS = 8;
+
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "guetzli-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Content IDs with a {@linkplain #process(java.lang.String, java.util.concurrent.Executor) submitted} job on this node. */
+    private static final Set<String> IN_PROCESS = ConcurrentHashMap.newKeySet();
+    /** Content IDs {@linkplain #tombstone(java.lang.String) marked as deleted} but not yet deleted. */
+    private static final Set<String> TOMBSTONES = ConcurrentHashMap.newKeySet();
+    /** Time of the last tombstone check in the storage of content IDs not marked as deleted. Cluster only. */
+    private static final Map<String, Long> LIVE_CHECKS = new ConcurrentHashMap<>();
+    static final long TOMBSTONE_CHECK_MILLIS = 1_000;
+    private static final int MAX_LIVE_CHECKS = 10_000;
+
+    private final Storage storage;
+    private final LeaseManager cluster;
+    private final TargetCache cache;
+
+    /**
+     * Creates a new service for the {@linkplain Storages#defaultStorage() configured storage}.
+     */
+    public ImageService() {
+        this(Storages.defaultStorage(), LeaseManager.instance(), TargetCache.instance());
+    }
+
+    /**
+     * Creates a new service for the given storage.
+     * @param storage the storage for images and metadata.
+     * @throws NullPointerException if <em>storage</em> is {@code null}.
+     */
+    public ImageService(final Storage storage) {
+        this(storage, null);
+    }
+
+    /**
+     * Creates a new service for the given storage shared with other nodes.
+     * @param storage the storage for images and metadata.
+     * @param cluster the lease manager to coordinate the nodes. {@code null} for a single node.
+     * @throws NullPointerException if <em>storage</em> is {@code null}.
+     */
+    public ImageService(final Storage storage, final LeaseManager cluster) {
+        this(storage, cluster, null);
+    }
+
+    ImageService(final Storage storage, final LeaseManager cluster, final TargetCache cache) {
+        this.storage = Objects.requireNonNull(storage);
+        this.cluster = cluster;
+        this.cache = cache;
+    }
     
     /**
      * Stores a new image.
@@ -75,19 +172,57 @@ public final class ImageService {
      * @throws IOException if and only if it is not possible to store the image.
      */
     public String newImage(final InputStream in, final long size, final ImageType type, final String name) throws IOException {
+        return newImage(in, size, type, name, null, null, null, Collections.emptyList());
+    }
+
+    /**
+     * Stores a new image with a callback URL, resize and strip options and variants. The callback URL is notified with the
+     * {@linkplain MetadataJson JSON meta data} when the transformation is finished. With resize options the
+     * source image is kept and a resized copy is the input of the <code>guetzli</code> transformation. Each
+     * variant gets its own metadata and is transformed as a sibling of the main transformation.
+     * @param in a stream containing the raw imae data
+     * @param size the size of the image
+     * @param type the type of the image
+     * @param name the optional name of the image. Can be {@code null}.
+     * @param callbackUrl the optional callback URL. Can be {@code null}.
+     * @param resize the optional options to resize the image before the transformation. Can be {@code null}.
+     * @param strip the optional options to strip metadata segments from a JPEG image before the transformation.
+     *              Can be {@code null}.
+     * @param variants the additional {@linkplain Variant variants} to generate. Can be empty.
+     * @return the content ID of the stored image
+     * @throws IOException if and only if it is not possible to store the image.
+     * @see WebhookDispatcher
+     * @see ImageResizer
+     * @see JpegSegmentStripper
+     */
+    public String newImage(final InputStream in,
+                           final long size,
+                           final ImageType type,
+                           final String name,
+                           final String callbackUrl,
+                           final ResizeOptions resize,
+                           final StripOptions strip,
+                           final List<Variant> variants) throws IOException {
+        Objects.requireNonNull(variants);
         final String targetDirName = UUID.randomUUID().toString().replace("-", "");
         LOG.log(Level.INFO, "Receive new image. ID {0}", targetDirName);
         final String fileName = createSourceFileName(type);
-        Path targetFile = createImagePath(targetDirName, fileName);
         
-        try {
-            AccessController.doPrivileged((PrivilegedExceptionAction<Long>) () -> Files.copy(in, targetFile, StandardCopyOption.REPLACE_EXISTING));
+        this.storage.create(targetDirName);
+        try (final Workspace workspace = Workspace.open(this.storage, targetDirName)) {
+            final Path targetFile = workspace.path(fileName);
+            Files.copy(in, targetFile);
             int quality = fetchQualityLevel(targetFile, type);
-            final ImageMetadata meta = createAndStoreMetadata(targetDirName, name, size, type, quality);
+            final Dimension dimension = fetchDimension(targetFile);
+            workspace.commit(fileName);
+            final ImageMetadata meta = createAndStoreMetadata(targetDirName, name, size, type, quality, dimension, callbackUrl, resize, strip, variants);
+            if (this.cluster != null) {
+                this.cluster.enqueue(targetDirName);
+            }
             LOG.log(Level.INFO, "Stored new image for {0}", meta);
-        } catch (final PrivilegedActionException ex) {
+        } catch (final IOException | RuntimeException ex) {
             LOG.log(Level.WARNING, "Failed to store new image for content ID {0}", targetDirName);
-            throw new IOException(ex.getException());
+            throw ex;
         }
         
         return targetDirName;
@@ -101,14 +236,30 @@ public final class ImageService {
         return 100; // PNGs always have 100 quality
     }
 
+    Dimension fetchDimension(final Path targetFile) {
+        try {
+            final ImageDimensionIdentifier dIdentifier = new ImageDimensionIdentifier();
+            return dIdentifier.fetchDimension(targetFile);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to fetch dimension for " + targetFile, e);
+            return new Dimension();
+        }
+    }
+
     ImageMetadata createAndStoreMetadata(final String targetDirName,
                                          final String name,
                                          final long size,
                                          final ImageType type,
-                                         final int qualityLevel) throws IOException {
+                                         final int qualityLevel,
+                                         final Dimension dimension,
+                                         final String callbackUrl,
+                                         final ResizeOptions resize,
+                                         final StripOptions strip,
+                                         final List<Variant> variants) throws IOException {
         assert targetDirName != null;
         assert size >= 0;
         assert type != null;
+        assert dimension != null;
 
         final ImageMetadata meta = new ImageMetadata();
         meta.setContentId(targetDirName);
@@ -119,12 +270,295 @@ public final class ImageService {
         meta.setStatus(ProcessStatus.stored);
         meta.setSourceType(type);
         meta.setSourceQuality(qualityLevel);
-        
+        meta.setSourceWidth(dimension.width);
+        meta.setSourceHeight(dimension.height);
+        meta.setCallbackUrl(callbackUrl);
+        meta.setResize(resize);
+        meta.setStrip(type == ImageType.JPG ? strip : null);
+        meta.setVariants(variants);
+
+        for (final Variant variant : variants) {
+            storeMetadata(variantMetadata(meta, variant));
+        }
         storeMetadata(meta);
         
         return meta;
     }
     
+    ImageMetadata variantMetadata(final ImageMetadata meta, final Variant variant) {
+        assert meta != null;
+        assert variant != null;
+
+        final ImageMetadata variantMeta = new ImageMetadata();
+        variantMeta.setContentId(meta.getContentId());
+        variantMeta.setCreationDatetime(meta.getCreationDatetime());
+        variantMeta.setSourceName(meta.getSourceName());
+        variantMeta.setSourceSize(meta.getSourceSize());
+        variantMeta.setSourceType(meta.getSourceType());
+        variantMeta.setSourceQuality(meta.getSourceQuality());
+        variantMeta.setSourceWidth(meta.getSourceWidth());
+        variantMeta.setSourceHeight(meta.getSourceHeight());
+        variantMeta.setStatus(ProcessStatus.stored);
+        variantMeta.setVariant(variant);
+        if (variant.isResized()) {
+            variantMeta.setResize(variant.toResizeOptions(meta.getResize() == null ? null : meta.getResize().getCrop()));
+        } else {
+            // transformed from the same input as the main transformation
+            variantMeta.setResize(meta.getResize());
+            variantMeta.setStrip(meta.getStrip());
+        }
+        return variantMeta;
+    }
+
+    /**
+     * Submits the jobs of a content ID: the {@linkplain #prepareVariants(java.lang.String) preparation} of the
+     * variants, the variant transformations and the main transformation. Each job is counted as pending by the
+     * {@link TransformationScheduler}. A content ID is submitted only once per node at a time. Failed jobs with a
+     * scheduled retry are submitted again after their backoff. With a
+     * {@link LeaseManager} the content ID is removed from the shared queue when all jobs are finished.
+     * @param contentId the content ID to process.
+     * @param executor the executor for the jobs.
+     * @return {@code true} if the jobs are submitted, {@code false} if the content ID is already in process.
+     */
+    public boolean process(final String contentId, final Executor executor) {
+        Objects.requireNonNull(contentId);
+        Objects.requireNonNull(executor);
+        if (!IN_PROCESS.add(contentId)) {
+            return false;
+        }
+        submit(contentId, null, executor, () -> {
+            try {
+                for (final Variant variant : prepareVariants(contentId)) {
+                    submit(contentId, variant, executor, () -> transformVariant(contentId, variant));
+                }
+            } catch (final TransformationException e) {
+                LOG.log(Level.FINE, "Continue without variants for content ID {0}", contentId);
+            }
+            try {
+                transformToGuetzli(contentId);
+            } finally {
+                IN_PROCESS.remove(contentId);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Adds variants to the finished transformation of a content ID. Variants with an existing target image are
+     * served from the storage and not transformed again. Failed variants are transformed again. The returned
+     * variants must be {@linkplain #process(java.lang.String, java.util.concurrent.Executor) processed}.
+     * @param contentId the content ID.
+     * @param variants the requested variants.
+     * @return the variants to transform. Empty if all requested variants are available.
+     * @throws IOException if and only if it is not possible to read or to store the metadata.
+     * @throws FileNotFoundException if and only if there is no content for the given content ID.
+     * @throws IllegalStateException if the main transformation of the content ID is not finished.
+     * @throws IllegalArgumentException if the content ID would have more than twice the
+     *                                  {@linkplain #maxVariants() maximum} variants.
+     */
+    public List<Variant> addVariants(final String contentId, final List<Variant> variants) throws IOException {
+        Objects.requireNonNull(contentId);
+        Objects.requireNonNull(variants);
+
+        synchronized (IN_PROCESS) {
+            final ImageMetadata meta = getMetadata(contentId);
+            if (!isFinal(meta.getStatus())) {
+                throw new IllegalStateException("Transformation of content ID " + contentId + " is not finished");
+            }
+            final List<Variant> all = new ArrayList<>(meta.getVariants());
+            final long added = variants.stream().distinct().filter(variant -> !all.contains(variant)).count();
+            // widths and qualities are limited separately on upload
+            if (all.size() + added > 2L * maxVariants()) {
+                throw new IllegalArgumentException("Too many variants for ID " + contentId);
+            }
+            final List<Variant> pending = new ArrayList<>();
+            for (final Variant variant : variants) {
+                if (!all.contains(variant)) {
+                    storeMetadata(variantMetadata(meta, variant));
+                    all.add(variant);
+                    pending.add(variant);
+                } else {
+                    final ProcessStatus status = getMetadata(contentId, variant).getStatus();
+                    if (status == ProcessStatus.failed) {
+                        storeMetadata(variantMetadata(meta, variant));
+                        pending.add(variant);
+                    } else if (!isFinal(status)) {
+                        pending.add(variant);
+                    }
+                }
+            }
+            if (all.size() != meta.getVariants().size()) {
+                meta.setVariants(all);
+                writeMetadata(meta);
+            }
+            if (this.cluster != null && !pending.isEmpty()) {
+                this.cluster.enqueue(contentId);
+            }
+            LOG.log(Level.INFO, "Added variants {0} to content ID {1}", new Object[] {pending, contentId});
+            return pending;
+        }
+    }
+
+    /**
+     * The maximum number of widths and of qualities of a content ID.
+     * @return the maximum number.
+     */
+    public static int maxVariants() {
+        return Configuration.intValue("guetzli.service.variants.max", DEFAULT_MAX_VARIANTS);
+    }
+
+    void submit(final String contentId, final Variant variant, final Executor executor, final Runnable task) {
+        assert contentId != null;
+        assert executor != null;
+        assert task != null;
+
+        final TransformationScheduler scheduler = TransformationScheduler.instance();
+        final TransformationJob job = scheduler.submitted(contentId, variant);
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    scheduler.finished(job);
+                    scheduleRetry(contentId, variant, executor);
+                    dequeueIfCompleted(contentId);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            scheduler.finished(job);
+            IN_PROCESS.remove(contentId);
+            throw e;
+        }
+    }
+
+    void scheduleRetry(final String contentId, final Variant variant, final Executor executor) {
+        assert contentId != null;
+        assert executor != null;
+
+        if (isDeleted(contentId)) {
+            return;
+        }
+        try {
+            final ImageMetadata meta = getMetadata(contentId, variant);
+            if (meta.getStatus() != ProcessStatus.stored || meta.getRetryAt() == 0) {
+                return;
+            }
+            final long delay = Math.max(0, meta.getRetryAt() - System.currentTimeMillis());
+            RETRY_TIMER.schedule(() -> submit(contentId, variant, executor, () -> transform(contentId, variant)), delay, TimeUnit.MILLISECONDS);
+        } catch (final IOException | RejectedExecutionException e) {
+            LOG.log(Level.WARNING, "Unable to schedule retry for content ID " + contentId, e);
+        }
+    }
+
+    /**
+     * The delay before the next attempt.
+     * @param attempts the number of failed attempts.
+     * @return the delay in milliseconds.
+     */
+    static long backoffMillis(final int attempts) {
+        assert attempts > 0;
+        final long base = Configuration.longValue("guetzli.service.retry.backoff", DEFAULT_RETRY_BACKOFF_MILLIS);
+        return Math.min(MAX_RETRY_BACKOFF_MILLIS, base << Math.min(attempts - 1, 20));
+    }
+
+    void dequeueIfCompleted(final String contentId) {
+        if (this.cluster == null) {
+            return;
+        }
+        try {
+            final ImageMetadata meta = getMetadata(contentId);
+            if (!isFinal(meta.getStatus())) {
+                return;
+            }
+            for (final Variant variant : meta.getVariants()) {
+                if (!isFinal(getMetadata(contentId, variant).getStatus())) {
+                    return;
+                }
+            }
+            this.cluster.dequeue(contentId);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to dequeue content ID " + contentId, e);
+        }
+    }
+
+    /**
+     * Decodes the source image once and writes the resized input images of all variants which are not yet
+     * transformed. The returned variants can be {@linkplain #transformVariant(java.lang.String, Variant) transformed}
+     * in parallel.
+     * @param contentId the ID of the content to prepare the variants for
+     * @return the prepared variants. Never {@code null}.
+     * @throws TransformationException if and only if it is not possible to prepare the variants. The variants
+     *                                 are marked as {@linkplain ProcessStatus#failed failed}.
+     */
+    public List<Variant> prepareVariants(final String contentId) throws TransformationException {
+        final List<Variant> prepared = new ArrayList<>();
+        final String leaseName = contentId + ".variants";
+        if (this.cluster != null && !this.cluster.acquire(leaseName)) {
+            LOG.log(Level.INFO, "Variants of content ID {0} are prepared by another node", contentId);
+            return prepared;
+        }
+        try (final Workspace workspace = Workspace.openScratch(this.storage, contentId, sourceName(contentId))) {
+            final ImageMetadata meta = getMetadata(contentId);
+            final ImageResizer resizer = new ImageResizer();
+            BufferedImage source = null;
+            for (final Variant variant : meta.getVariants()) {
+                final ImageMetadata variantMeta = getMetadata(contentId, variant);
+                if (!isStartable(variantMeta.getStatus())) {
+                    continue;
+                }
+                final String inputName = inputName(variant);
+                if (variant.isResized() && !this.storage.exists(contentId, inputName)) {
+                    if (source == null) {
+                        final Path sourcePath = workspace.fetch(createSourceFileName(meta.getSourceType()));
+                        final int orientation = meta.getSourceType() == ImageType.JPG ? readOrientation(sourcePath) : JpegSegmentStripper.NORMAL_ORIENTATION;
+                        source = resizer.orient(resizer.read(sourcePath), orientation);
+                    }
+                    final BufferedImage resized = resizer.resize(source, variantMeta.getResize());
+                    workspace.reserve(uncompressedBytes((long) resized.getWidth() * resized.getHeight()));
+                    resizer.write(resized, workspace.path(inputName));
+                    workspace.commit(inputName);
+                    variantMeta.setTargetWidth(resized.getWidth());
+                    variantMeta.setTargetHeight(resized.getHeight());
+                    storeMetadata(variantMeta);
+                }
+                prepared.add(variant);
+            }
+            LOG.log(Level.INFO, "Prepared variants {0} for content ID {1}", new Object[] {prepared, contentId});
+            return prepared;
+
+        } catch (final Exception e) {
+            LOG.log(Level.WARNING, "Failing to prepare variants for content ID " + contentId, e);
+            try {
+                for (final Variant variant : getMetadata(contentId).getVariants()) {
+                    final ImageMetadata variantMeta = getMetadata(contentId, variant);
+                    if (isStartable(variantMeta.getStatus())) {
+                        variantMeta.setStatus(ProcessStatus.failed);
+                        variantMeta.setFailureReason(FailureReason.of(e));
+                        storeMetadata(variantMeta);
+                    }
+                }
+            } catch (final IOException ex) {
+                throw new TransformationException(ex);
+            }
+            throw new TransformationException(e);
+        } finally {
+            if (this.cluster != null) {
+                this.cluster.release(leaseName);
+            }
+        }
+    }
+
+    /**
+     * Starts the transformation process of a {@linkplain #prepareVariants(java.lang.String) prepared} variant.
+     * @param contentId the ID of the content to transform
+     * @param variant the variant to transform
+     * @throws TransformationException if and only if it is not possible to start the transformation process.
+     */
+    public void transformVariant(final String contentId, final Variant variant) throws TransformationException {
+        Objects.requireNonNull(variant);
+        transform(contentId, variant);
+    }
+
     /**
      * Starts the transormation process of a
      * {@linkplain #newImage(java.io.InputStream, long, de.speexx.guetzli.service.ImageType, java.lang.String) new image}.
@@ -133,49 +567,275 @@ public final class ImageService {
      * @throws TransformationException if and only if it is not possible to start the transformation process.
      */
     public void transformToGuetzli(final String contentId) throws TransformationException {
-        try {
-            LOG.log(Level.INFO, "Start guetzli transformation for content ID {0}", contentId);
-            final ImageMetadata meta = getMetadata(contentId);
-            if (meta.getStatus() != ProcessStatus.stored) {
+        transform(contentId, null);
+    }
+
+    void transform(final String contentId, final Variant variant) throws TransformationException {
+        final String leaseName = variant == null ? contentId : contentId + "." + variant.getName();
+        boolean leased = false;
+        final TransformationScheduler scheduler = TransformationScheduler.instance();
+        final TransformationJob registered = scheduler.job(contentId, variant);
+        // direct calls without submission get their own job
+        final TransformationJob job = registered == null ? scheduler.submitted(contentId, variant) : registered;
+        int attempt = 0;
+        try (final Workspace workspace = Workspace.openScratch(this.storage, contentId, sourceName(contentId))) {
+            LOG.log(Level.INFO, "Start guetzli transformation for content ID {0} {1}", new Object[] {contentId, variant == null ? "" : variant});
+            if (isDeleted(contentId)) {
+                return; // deleted while queued
+            }
+            final ImageMetadata meta = getMetadata(contentId, variant);
+            if (!isStartable(meta.getStatus())) {
                 return; // don't start the process twice.
             }
+            if (meta.getRetryAt() > System.currentTimeMillis()) {
+                return; // the retry is scheduled after the backoff
+            }
+            attempt = meta.getAttempts() + 1;
+            meta.setAttempts(attempt);
+            final boolean preparedInput = variant != null && variant.isResized();
+            final String sourceName = preparedInput ? inputName(variant) : createSourceFileName(meta.getSourceType());
+            final String targetName = targetName(variant);
+
+            final TransformationDecision decision = new TransformationDecision();
+            final SkipReason skipBefore = decision.beforeTransformation(meta);
+            if (skipBefore != null) {
+                keepSource(meta, skipBefore);
+                return;
+            }
+
             meta.setStatus(ProcessStatus.waiting);
             storeMetadata(meta);
+            job.setPixels(pixels(meta));
+            job.setExclusive(isExclusiveRetry(meta));
 
-            final GuetzliTransformationProcessor processor = new GuetzliTransformationProcessor();
-            final Path sourcePath = createSourceImagePath(meta.getSourceType(), contentId);
-            final Path targetPath = createTargetImagePath(contentId);
+            final GuetzliTransformationProcessor processor = new GuetzliTransformationProcessor(job::setPid, job::isCancelled);
 
-            EXEC_COUNTER.acquire();
+            final SavingsPredictor predictor = new SavingsPredictor(processor);
+            SkipReason skipPrediction = null;
+            final Path sourcePath;
+            final Path targetPath = workspace.path(targetName);
+            scheduler.acquireSlot(job);
             try {
+                if (this.cluster != null) {
+                    // the lease is acquired with the slot, so idle nodes can take over the waiting jobs of busy nodes
+                    leased = this.cluster.acquire(leaseName);
+                    if (!leased || isFinal(getMetadata(contentId, variant).getStatus())) {
+                        LOG.log(Level.INFO, "Content ID {0} {1} is transformed by another node", new Object[] {contentId, variant == null ? "" : variant});
+                        return;
+                    }
+                }
                 meta.setStatus(ProcessStatus.transforming);
+                meta.setFailureReason(null);
+                meta.setRetryAt(0);
                 storeMetadata(meta);
-                processor.transform(sourcePath, targetPath);
-                LOG.log(Level.INFO, "Finished guetzli transformation for content ID {0}", contentId);
+                sourcePath = workspace.fetch(sourceName);
+                if (predictor.isApplicable(meta)) {
+                    meta.setPredictedTargetSize(predictor.predictTargetSize(meta, sourcePath));
+                    skipPrediction = decision.afterPrediction(meta, Files.size(sourcePath));
+                }
+                if (skipPrediction == null) {
+                    final Path inputPath = preparedInput ? sourcePath : prepareInput(meta, sourcePath, workspace);
+                    // guetzli results larger than the input are discarded
+                    workspace.reserve(Files.size(inputPath));
+                    final ResourceUsage usage = processor.transform(inputPath, targetPath, targetQuality(variant), pixels(meta));
+                    meta.setResourceUsage(usage);
+                    Metrics.instance().processed(usage);
+                    LOG.log(Level.INFO, "Finished guetzli transformation for content ID {0}", contentId);
+                }
             } finally {
-                EXEC_COUNTER.release();
+                scheduler.releaseSlot(job);
+                Files.deleteIfExists(workspace.path(resizedName(variant)));
+                Files.deleteIfExists(workspace.path(strippedName(variant)));
+            }
+            if (skipPrediction != null) {
+                keepSource(meta, skipPrediction);
+                return;
+            }
+
+            final long keptSize = Files.size(sourcePath) - meta.getStrippedBytes();
+            final SkipReason skipAfter = decision.afterTransformation(meta, keptSize, Files.size(targetPath));
+            if (skipAfter != null) {
+                keepSource(meta, skipAfter);
+                return;
             }
 
             final ImageQualityIdentifier qIdentifer = new ImageQualityIdentifier();
             meta.setTargetQuality(qIdentifer.fetchQuality(targetPath));
-            meta.setStatus(ProcessStatus.transformed);
             meta.setTargetSize(Files.size(targetPath));
+            if (meta.getResize() == null) {
+                meta.setTargetWidth(meta.getSourceWidth());
+                meta.setTargetHeight(meta.getSourceHeight());
+            }
+            workspace.commit(targetName);
+            invalidateTarget(contentId, variant);
+            if (preparedInput) {
+                this.storage.remove(contentId, sourceName);
+            }
+            meta.setStatus(ProcessStatus.transformed);
             storeMetadata(meta);
             LOG.log(Level.INFO, "Finialized transformation for {0}", meta);
             
         } catch (final Exception e) {
+            if (job.isCancelled() || isDeleted(contentId)) {
+                LOG.log(Level.INFO, "Cancelled guetzli transformation for deleted content ID {0}", contentId);
+                return;
+            }
             LOG.log(Level.WARNING, "Failing guetzli transformation for content ID " + contentId, e);
+            final FailureReason reason = FailureReason.of(e);
             try {
-                final ImageMetadata meta = getMetadata(contentId);
+                final ImageMetadata meta = getMetadata(contentId, variant);
+                // the attempt is not yet stored if it failed early
+                meta.setAttempts(Math.max(meta.getAttempts(), Math.max(attempt, 1)));
+                meta.setFailureReason(reason);
+                meta.setLastError(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+                final int maxAttempts = Configuration.intValue("guetzli.service.retry.attempts", DEFAULT_RETRY_ATTEMPTS);
+                if (reason.isTransient() && meta.getAttempts() < maxAttempts) {
+                    meta.setStatus(ProcessStatus.stored);
+                    meta.setRetryAt(System.currentTimeMillis() + backoffMillis(meta.getAttempts()));
+                    storeMetadata(meta);
+                    Metrics.instance().retried();
+                    LOG.log(Level.INFO, "Retry transformation of content ID {0} {1} after attempt {2} failed with {3}",
+                            new Object[] {contentId, variant == null ? "" : variant, meta.getAttempts(), reason});
+                    return;
+                }
                 meta.setStatus(ProcessStatus.failed);
                 storeMetadata(meta);
             } catch (final IOException ex) {
                 throw new TransformationException(ex);
             }
             throw new TransformationException(e);
+        } finally {
+            if (leased) {
+                this.cluster.release(leaseName);
+            }
+            if (registered == null) {
+                scheduler.finished(job);
+            }
         }
     }
+
+    /**
+     * Whether the job is a retry after a timeout or too little memory, which should run without other jobs.
+     */
+    static boolean isExclusiveRetry(final ImageMetadata meta) {
+        assert meta != null;
+
+        final FailureReason reason = meta.getFailureReason();
+        return meta.getAttempts() > 1
+                && (reason == FailureReason.outOfMemory || reason == FailureReason.timeout)
+                && Configuration.booleanValue("guetzli.service.retry.exclusive", DEFAULT_RETRY_EXCLUSIVE);
+    }
+
+    static long pixels(final ImageMetadata meta) {
+        assert meta != null;
+
+        if (meta.getResize() != null) {
+            final Dimension target = meta.getResize().targetDimension(meta.getSourceWidth(), meta.getSourceHeight());
+            return (long) target.width * target.height;
+        }
+        return (long) meta.getSourceWidth() * meta.getSourceHeight();
+    }
     
+    /**
+     * Strips metadata segments from a JPEG source image and resizes the source image if the metadata contains
+     * strip or resize options. The resized image is rotated according to the EXIF orientation because the
+     * intermediate PNG image can't carry the orientation.
+     * @return the input image for <code>guetzli</code>. The source image if there are no options.
+     */
+    Path prepareInput(final ImageMetadata meta, final Path sourcePath, final Workspace workspace) throws IOException {
+        assert meta != null;
+        assert sourcePath != null;
+        assert workspace != null;
+
+        Path inputPath = sourcePath;
+        int orientation = JpegSegmentStripper.NORMAL_ORIENTATION;
+        final StripOptions strip = meta.getStrip();
+        if (meta.getSourceType() == ImageType.JPG) {
+            if (strip != null) {
+                final Path strippedPath = workspace.path(strippedName(meta.getVariant()));
+                workspace.reserve(Files.size(sourcePath));
+                final JpegSegmentStripper stripper = new JpegSegmentStripper(strip);
+                try (final InputStream in = new BufferedInputStream(Files.newInputStream(sourcePath));
+                     final OutputStream out = new BufferedOutputStream(Files.newOutputStream(strippedPath))) {
+                    meta.setStrippedBytes(stripper.strip(in, out));
+                }
+                orientation = stripper.getOrientation();
+                inputPath = strippedPath;
+            } else if (meta.getResize() != null) {
+                orientation = readOrientation(sourcePath);
+            }
+        }
+
+        final boolean rotate = orientation != JpegSegmentStripper.NORMAL_ORIENTATION
+                && (meta.getResize() != null || (strip != null && strip.isRotate()));
+        if (meta.getResize() == null && !rotate) {
+            return inputPath;
+        }
+        final Path resizedPath = workspace.path(resizedName(meta.getVariant()));
+        workspace.reserve(uncompressedBytes(pixels(meta)));
+        final ResizeOptions resize = meta.getResize() == null ? new ResizeOptions(0, 0, null, null) : meta.getResize();
+        final Dimension dimension = new ImageResizer().resize(inputPath, resizedPath, resize, orientation);
+        meta.setTargetWidth(dimension.width);
+        meta.setTargetHeight(dimension.height);
+        return resizedPath;
+    }
+
+    /**
+     * Upper bound of the size of a resized PNG image: 4 bytes per pixel without compression.
+     */
+    static long uncompressedBytes(final long pixels) {
+        return 4 * pixels;
+    }
+
+    int readOrientation(final Path jpegPath) throws IOException {
+        try (final InputStream in = new BufferedInputStream(Files.newInputStream(jpegPath))) {
+            return JpegSegmentStripper.readOrientation(in);
+        }
+    }
+
+    /**
+     * Finishes the process without a <code>guetzli</code> result. JPEG source images are copied to the target
+     * image, so the target image is always the smallest available image. With strip options the copy is stripped.
+     * Resized images have no target image.
+     */
+    void keepSource(final ImageMetadata meta, final SkipReason reason) throws IOException {
+        assert meta != null;
+        assert reason != null;
+
+        final String contentId = meta.getContentId();
+        final String targetName = targetName(meta.getVariant());
+        if (meta.getSourceType() == ImageType.JPG && meta.getResize() == null) {
+            try (final InputStream in = this.storage.read(contentId, createSourceFileName(meta.getSourceType()))) {
+                if (meta.getStrip() == null) {
+                    this.storage.write(contentId, targetName, in);
+                } else {
+                    // the pixels are not rotated without guetzli run, so the orientation must be kept
+                    final StripOptions strip = meta.getStrip();
+                    final JpegSegmentStripper stripper = new JpegSegmentStripper(new StripOptions(strip.isKeepIcc(), strip.isKeepOrientation() || strip.isRotate(), false));
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    meta.setStrippedBytes(stripper.strip(new BufferedInputStream(in), out));
+                    this.storage.write(contentId, targetName, new ByteArrayInputStream(out.toByteArray()));
+                }
+            }
+            meta.setTargetQuality(meta.getSourceQuality());
+            meta.setTargetSize(this.storage.size(contentId, targetName));
+            meta.setTargetWidth(meta.getSourceWidth());
+            meta.setTargetHeight(meta.getSourceHeight());
+        } else {
+            this.storage.remove(contentId, targetName);
+            meta.setTargetWidth(0);
+            meta.setTargetHeight(0);
+        }
+        if (meta.getVariant() != null && meta.getVariant().isResized()) {
+            this.storage.remove(contentId, inputName(meta.getVariant()));
+        }
+        invalidateTarget(contentId, meta.getVariant());
+        meta.setSkipReason(reason);
+        meta.setStatus(ProcessStatus.skipped);
+        storeMetadata(meta);
+        LOG.log(Level.INFO, "Skipped guetzli result for {0}", meta);
+    }
+
     /**
      * Returns a stream to read the source image raw data for the given content ID.
      * @param contentId content ID to fetch the source image raw data for.
@@ -187,13 +847,13 @@ public final class ImageService {
     public InputStream getSourceImage(final String contentId) throws IOException, FileNotFoundException {
         Objects.requireNonNull(contentId);
         final ImageMetadata meta = getMetadata(contentId);
-        final Path targetFile = createSourceImagePath(meta.getSourceType(), contentId);
-        return fetchImageInputStream(targetFile);
+        return this.storage.read(contentId, createSourceFileName(meta.getSourceType()));
     }
 
     /**
      * Returns a stream to read the target image raw data for the given content ID. The
-     * {@link ProcessStatus} must be {@linkplain ProcessStatus#transformed transformed}.
+     * {@link ProcessStatus} must be {@linkplain ProcessStatus#transformed transformed} or
+     * {@linkplain ProcessStatus#skipped skipped} for a JPEG source image.
      * @param contentId content ID to fetch the target image raw data for.
      * @return the target image raw data stream. Never {@code null}.
      * @throws IOException if and only if a problem occurs during getting the target image raw data.
@@ -201,46 +861,102 @@ public final class ImageService {
      * @throws NullPointerException if no content ID is given.
      */
     public InputStream getTargetImage(final String contentId) throws IOException, FileNotFoundException {
+        return getTargetImage(contentId, null);
+    }
+
+    /**
+     * Returns a stream to read the target image raw data of a variant for the given content ID.
+     * @param contentId content ID to fetch the target image raw data for.
+     * @param variant the variant or {@code null} for the target image of the main transformation.
+     * @return the target image raw data stream. Never {@code null}.
+     * @throws IOException if and only if a problem occurs during getting the target image raw data.
+     * @throws FileNotFoundException if and only if there is no target image for the given content ID and variant.
+     * @throws NullPointerException if no content ID is given.
+     */
+    public InputStream getTargetImage(final String contentId, final Variant variant) throws IOException, FileNotFoundException {
         Objects.requireNonNull(contentId);
-        final Path targetFile = createTargetImagePath(contentId);
-        return fetchImageInputStream(targetFile);
+        checkNotDeleted(contentId);
+        final String name = targetName(variant);
+        if (this.cache != null) {
+            final ByteBuffer cached = this.cache.get(contentId, name);
+            if (cached != null) {
+                return new ByteBufferInputStream(cached);
+            }
+            final ImageMetadata meta = getMetadata(contentId, variant);
+            if (isFinal(meta.getStatus()) && this.cache.accepts(meta.getTargetSize())) {
+                final ByteBuffer image = readDirect(contentId, name, meta.getTargetSize());
+                this.cache.put(contentId, name, image);
+                return new ByteBufferInputStream(image);
+            }
+        }
+        return this.storage.read(contentId, name);
     }
 
-    InputStream fetchImageInputStream(final Path imagePath) throws IOException, FileNotFoundException {
-        assert imagePath != null;
-        try {
-            return AccessController.doPrivileged((PrivilegedExceptionAction<InputStream>) () -> Files.newInputStream(imagePath, READ));
-        } catch (final PrivilegedActionException ex) {
-            final Exception cause = ex.getException();
-            if (cause instanceof IOException) {
-                throw (IOException) cause;
+    /**
+     * Reads an image into a direct buffer. Images of a local storage are read without a copy on the heap.
+     * @return the image from position {@literal 0} to the limit.
+     */
+    ByteBuffer readDirect(final String contentId, final String name, final long size) throws IOException {
+        assert size > 0 && size <= Integer.MAX_VALUE;
+
+        final ByteBuffer image = ByteBuffer.allocateDirect((int) size);
+        final Path local = this.storage.localDirectory(contentId);
+        try (final ReadableByteChannel in = local != null ? FileChannel.open(local.resolve(name))
+                                                          : Channels.newChannel(this.storage.read(contentId, name))) {
+            while (image.hasRemaining() && in.read(image) >= 0) {
+                // read until the buffer is full
             }
-            throw new AccessDeniedException("Access denied for image wih content ID " + imagePath);
+        } catch (final NoSuchFileException e) {
+            throw new FileNotFoundException("No " + name + " for content ID " + contentId);
+        }
+        if (image.hasRemaining()) {
+            throw new IOException("Image " + name + " of content ID " + contentId + " is shorter than " + size + " bytes");
         }
+        image.flip();
+        return image;
     }
 
-    Path createSourceImagePath(final ImageType type, final String contentId) {
-        final String fileName = createSourceFileName(type);
-        final Path targetFile = createImagePath(contentId, fileName);
-        return targetFile;
+    void invalidateTarget(final String contentId, final Variant variant) {
+        if (this.cache != null) {
+            this.cache.invalidate(contentId, targetName(variant));
+        }
     }
 
-    Path createImagePath(final String contentId, final String fileName) {
-        assert contentId != null;
-        assert fileName != null;
+    String targetName(final Variant variant) {
+        return variant == null ? "target.jpg" : "target-" + variant.getName() + ".jpg";
+    }
 
-        final Path basePath = basePath();
-        final Path targetDir = targetDirectory(basePath, contentId);
-        return Paths.get(targetDir.toString(), fileName);
+    /**
+     * The <code>guetzli</code> quality level of a transformation.
+     * @return the quality level or {@literal 0} for the default quality level.
+     */
+    static int targetQuality(final Variant variant) {
+        return variant == null ? 0 : variant.getQuality();
     }
-    
-    Path createTargetImagePath(final String contentId) {
-        final String fileName = targetName();
-        return createImagePath(contentId, fileName);
+
+    String resizedName(final Variant variant) {
+        return variant == null ? RESIZED_FILE : "resized-" + variant.getName() + ".png";
     }
-    
-    String targetName() {
-        return "target.jpg";
+
+    String strippedName(final Variant variant) {
+        return variant == null ? STRIPPED_FILE : "stripped-" + variant.getName() + ".jpg";
+    }
+
+    String sourceName(final String contentId) {
+        try {
+            return createSourceFileName(getMetadata(contentId).getSourceType());
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    String inputName(final Variant variant) {
+        assert variant != null;
+        return "input-" + variant.getName() + ".png";
+    }
+
+    String metadataName(final Variant variant) {
+        return variant == null ? META_FILE : META_FILE + "-" + variant.getName();
     }
 
     /**
@@ -252,146 +968,279 @@ public final class ImageService {
      * @throws NullPointerException if no content ID is given.
      */
     public ImageMetadata getMetadata(final String contentId) throws IOException, FileNotFoundException {
+        return getMetadata(contentId, null);
+    }
+
+    /**
+     * Returns the meta data of a variant for the given content ID.
+     * @param contentId the content ID to fetch the meta data for.
+     * @param variant the variant or {@code null} for the meta data of the main transformation.
+     * @return the meta data. Never {@code null}.
+     * @throws IOException if and only if it is not possible to fetch the meta data.
+     * @throws FileNotFoundException if and only if there is no meta data for the given content ID and variant.
+     * @throws NullPointerException if no content ID is given.
+     */
+    public ImageMetadata getMetadata(final String contentId, final Variant variant) throws IOException, FileNotFoundException {
         Objects.requireNonNull(contentId);
-        
-        final Path metaFile = createMetaPath(contentId);
-        try (final BufferedReader reader = AccessController.doPrivileged((PrivilegedExceptionAction<BufferedReader>) ()
-                    -> Files.newBufferedReader(metaFile, Charset.forName("UTF-8")));) {
-            final Properties p = new Properties();
-            p.load(reader);
-            return ImageMetadata.toMeta(p);
-        } catch (final PrivilegedActionException ex) {
-            final Exception cause = ex.getException();
-            if (cause instanceof IOException) {
-                throw (IOException) cause;
-            }
-            throw new IllegalStateException();
-        }
+        checkNotDeleted(contentId);
+        final Properties p = this.storage.readMetadata(contentId, metadataName(variant));
+        return ImageMetadata.toMeta(p);
     }
     
     /**
      * Deletes all data for the given content ID. 
      * @param contentId the content ID to delete
      * @throws IOException if and only if it is not possible to delete the data for the given content ID.
+     * @see ContentDeleter
      */
     public void delete(final String contentId) throws IOException {
         if (contentId == null) {
             return;
         }
-        
-        final Path targetDir = targetDirectory(basePath(), contentId);
-        LOG.log(Level.INFO, "Delete ID {0} in directory {1}", new Object[] {contentId, targetDir});
+        this.storage.delete(contentId);
+        if (this.cache != null) {
+            this.cache.invalidate(contentId);
+        }
+        TOMBSTONES.remove(contentId);
+        if (this.cluster != null) {
+            this.cluster.dequeue(contentId);
+        }
+    }
+
+    /**
+     * Marks a content ID as deleted. The content ID is invisible to reads and listings from now on and its
+     * queued and running jobs are {@linkplain TransformationScheduler#cancel(java.lang.String) cancelled}. The
+     * mark is stored with the content, the data must be {@linkplain #delete(java.lang.String) deleted} later.
+     * @param contentId the content ID to mark.
+     * @return {@code true} if the content ID is marked, {@code false} if it is unknown or already marked.
+     * @throws IOException if and only if it is not possible to store the mark.
+     */
+    public boolean tombstone(final String contentId) throws IOException {
+        Objects.requireNonNull(contentId);
         try {
-            AccessController.doPrivileged((PrivilegedExceptionAction<Path>) () -> Files.walkFileTree(targetDir, new DeleteDirectoryVisitor()));
-        } catch (final PrivilegedActionException ex) {
-            final Exception cause = ex.getException();
-            if (cause instanceof IOException) {
-                throw (IOException) cause;
+            getMetadata(contentId);
+        } catch (final FileNotFoundException e) {
+            return false;
+        }
+        this.storage.write(contentId, TOMBSTONE_FILE, new ByteArrayInputStream(new byte[0]));
+        if (!TOMBSTONES.add(contentId)) {
+            return false;
+        }
+        if (this.cache != null) {
+            this.cache.invalidate(contentId);
+        }
+        if (this.cluster != null) {
+            this.cluster.dequeue(contentId);
+        }
+        final int cancelled = TransformationScheduler.instance().cancel(contentId);
+        LOG.log(Level.INFO, "Marked content ID {0} as deleted and cancelled {1} jobs", new Object[] {contentId, cancelled});
+        return true;
+    }
+
+    /**
+     * Whether the content ID is {@linkplain #tombstone(java.lang.String) marked as deleted}. With several nodes
+     * the marks of other nodes are read from the storage, at most every {@value #TOMBSTONE_CHECK_MILLIS} ms for
+     * each content ID.
+     * @param contentId the content ID.
+     * @return {@code true} if the content ID is marked as deleted.
+     */
+    public boolean isDeleted(final String contentId) {
+        if (TOMBSTONES.contains(contentId)) {
+            return true;
+        }
+        if (this.cluster == null) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        final Long checked = LIVE_CHECKS.get(contentId);
+        if (checked != null && now - checked < TOMBSTONE_CHECK_MILLIS) {
+            return false;
+        }
+        try {
+            if (this.storage.exists(contentId, TOMBSTONE_FILE)) {
+                TOMBSTONES.add(contentId);
+                LIVE_CHECKS.remove(contentId);
+                return true;
             }
-            throw new IllegalStateException(ex);
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Unable to check tombstone of content ID {0}: {1}", new Object[] {contentId, e});
+            return false;
         }
-        
+        if (LIVE_CHECKS.size() >= MAX_LIVE_CHECKS) {
+            LIVE_CHECKS.clear();
+        }
+        LIVE_CHECKS.put(contentId, now);
+        return false;
+    }
+
+    /**
+     * Finds the content IDs marked as deleted before a restart or by another node.
+     * @return the marked content IDs. Never {@code null}.
+     * @throws IOException if and only if it is not possible to list the storage.
+     */
+    public List<String> findTombstones() throws IOException {
+        final List<String> found = new ArrayList<>();
+        for (final Iterator<String> itr = this.storage.contentIds(); itr.hasNext(); ) {
+            final String contentId = itr.next();
+            if (this.storage.exists(contentId, TOMBSTONE_FILE)) {
+                TOMBSTONES.add(contentId);
+                found.add(contentId);
+            }
+        }
+        return found;
+    }
+
+    void checkNotDeleted(final String contentId) throws FileNotFoundException {
+        if (isDeleted(contentId)) {
+            throw new FileNotFoundException("Content ID " + contentId + " is deleted");
+        }
+    }
+
+    /**
+     * Whether this node runs the maintenance tasks, e.g. the cleanup. Always {@code true} for a single node.
+     * @return {@code true} if this node is the leader of the nodes.
+     * @see LeaseManager#isLeader()
+     */
+    public boolean isLeader() {
+        return this.cluster == null || this.cluster.isLeader();
+    }
+
+    /**
+     * Renews the leases of this node, elects the leader and takes over queued content IDs of other nodes if this
+     * node has free capacity. Does nothing for a single node. Must be called more often than the lease duration.
+     * @param executor the executor for the taken over jobs.
+     * @return the number of taken over content IDs.
+     * @see LeaseManager
+     */
+    public int coordinate(final Executor executor) {
+        Objects.requireNonNull(executor);
+        if (this.cluster == null) {
+            return 0;
+        }
+        this.cluster.renewAll();
+        this.cluster.electLeader();
+
+        final TransformationScheduler scheduler = TransformationScheduler.instance();
+        final int capacity = scheduler.getConcurrency() - scheduler.getPending();
+        if (capacity <= 0) {
+            return 0;
+        }
+        int claimed = 0;
+        try {
+            for (final String contentId : this.cluster.claimable(capacity, id -> !isDeleted(id))) {
+                if (process(contentId, executor)) {
+                    claimed++;
+                }
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to read the shared queue", e);
+        }
+        if (claimed > 0) {
+            LOG.log(Level.INFO, "Took over {0} queued content IDs", claimed);
+        }
+        return claimed;
     }
     
     /**
-     * Returns an iterator over all available content IDs.
+     * Returns an iterator over all available content IDs. Content IDs marked as deleted are not available.
      * @return never {@code null}
      */
     public Iterator<String> getContentIds() {
         try {
-            final Path base = basePath();
-            final Set<String> ids = AccessController.doPrivileged((PrivilegedExceptionAction<Set<String>>) ()
-                    -> Files.list(base)
-                            .filter(path -> Files.isDirectory(path))
-                            .map(path -> path.getFileName().toString())
-                            .collect(Collectors.toSet()));
-            return ids.iterator();
-        } catch (final PrivilegedActionException ex) {
-            LOG.log(Level.WARNING, "Unable to get content IDs.", ex.getException());
+            final Iterator<String> contentIds = this.storage.contentIds();
+            if (TOMBSTONES.isEmpty() && this.cluster == null) {
+                return contentIds;
+            }
+            final Iterable<String> all = () -> contentIds;
+            return StreamSupport.stream(all.spliterator(), false).filter(id -> !isDeleted(id)).iterator();
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Unable to get content IDs.", ex);
             return Collections.emptyIterator();
         }
     }
 
+    /**
+     * Moves content IDs of the flat filesystem storage layout into the sharded layout. Content IDs in
+     * transformation are left untouched and will be moved by a later call. Does nothing for other storages.
+     * @param maxEntries the maximum number of content IDs to move with this call.
+     * @return the number of moved content IDs.
+     * @throws IOException if and only if it is not possible to list the storage.
+     * @see FileSystemStorage#migrateToShardedLayout(int, java.util.function.Predicate)
+     */
+    public int migrateToShardedLayout(final int maxEntries) throws IOException {
+        final Storage backend = this.storage instanceof WriteBehindStorage ? ((WriteBehindStorage) this.storage).getDelegate() : this.storage;
+        if (!(backend instanceof FileSystemStorage)) {
+            return 0;
+        }
+        return ((FileSystemStorage) backend).migrateToShardedLayout(maxEntries, contentId -> {
+            try {
+                final ImageMetadata meta = getMetadata(contentId);
+                if (isInTransformation(meta.getStatus())) {
+                    return false;
+                }
+                for (final Variant variant : meta.getVariants()) {
+                    if (isInTransformation(getMetadata(contentId, variant).getStatus())) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Unable to get metadata for ID " + contentId, e);
+                return false;
+            }
+        });
+    }
+
     void storeMetadata(final ImageMetadata meta) throws IOException {
         assert meta != null;
         assert meta.getContentId() != null;
         
-        final String id = meta.getContentId();
-        final Path metaFile = createMetaPath(id);
-        try (final BufferedWriter writer = AccessController.doPrivileged((PrivilegedExceptionAction<BufferedWriter>) ()
-                    -> Files.newBufferedWriter(metaFile, Charset.forName("UTF-8"), CREATE, WRITE));) {
-            final Properties p = ImageMetadata.toProperties(meta);
-            p.store(writer, "");
-        } catch (final PrivilegedActionException ex) {
-            LOG.log(Level.WARNING, "Unable to store metadata: {0}", meta);
-            final Exception cause = ex.getException();
-            if (cause instanceof IOException) {
-                throw (IOException) cause;
+        writeMetadata(meta);
+        if (isFinal(meta.getStatus()) && meta.getVariant() == null) {
+            Metrics.instance().completed(meta);
+            CompletionListeners.completed(meta);
+            if (meta.getCallbackUrl() != null) {
+                WebhookDispatcher.instance().deliver(meta.getCallbackUrl(), MetadataJson.toJson(meta));
             }
-            throw new IllegalStateException();
         }
     }
-    
-    Path createMetaPath(final String contentId) {
-        assert contentId != null;
-        final Path baseDir = basePath();
-        final Path targetDir = targetDirectory(baseDir, contentId);
-        return Paths.get(targetDir.toString(), META_FILE);
-    }
 
-    Path targetDirectory(final Path basePath, final String dirName) {
-        assert basePath != null;
-        assert dirName != null;
-
-        final Path dir = Paths.get(basePath.toString(), dirName);
-        return pathExists(dir);
-    }
+    /**
+     * Writes the metadata without notifying the completion.
+     */
+    void writeMetadata(final ImageMetadata meta) throws IOException {
+        assert meta != null;
 
-    String createSourceFileName(final ImageType type) {
-        assert type != null;
-        return "source." + type.getPostfix();
-    }
-    
-    Path basePath() {
-        final String basePath = AccessController.doPrivileged((PrivilegedAction<String>) () -> new GetProperty("guetzli.service.storage").run());
-        if (basePath != null) {
-            logBasePath(Paths.get(basePath));
-            return pathExists(Paths.get(basePath));
-        }
-        final Path homePath = basePathInHomeDirectory();
-        logBasePath(homePath);
-        return homePath;
-    }
-    
-    static void logBasePath(final Path basePath) {
-        if (!basePathLogged) {
-            LOG.log(Level.INFO, "guetzli-service storage base path: {0}", basePath);
-            basePathLogged = true;
+        try {
+            this.storage.writeMetadata(meta.getContentId(), metadataName(meta.getVariant()), ImageMetadata.toProperties(meta));
+            if (isFinal(meta.getStatus())) {
+                // intermediate states are coalesced, final states must be durable
+                this.storage.flush(meta.getContentId());
+            }
+        } catch (final IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Unable to store metadata: {0}", meta);
+            throw ex;
         }
     }
 
-    Path basePathInHomeDirectory() {
-        final String userHome = userHome();
-        final Path homePath = Paths.get(userHome, ".guetzli-data");
-        return pathExists(homePath);
+    /**
+     * Whether a job can be started. Jobs in transformation can only be started to take them over from a dead
+     * node. The {@link LeaseManager} prevents that they are taken over from a living node.
+     */
+    boolean isStartable(final ProcessStatus status) {
+        return status == ProcessStatus.stored || (this.cluster != null && isInTransformation(status));
     }
 
-    Path pathExists(final Path path) throws UncheckedIOException {
-        assert path != null;
+    static boolean isInTransformation(final ProcessStatus status) {
+        return status == ProcessStatus.waiting || status == ProcessStatus.transforming;
+    }
 
-        if (!Files.exists(path)) {
-            try {
-                return AccessController.doPrivileged((PrivilegedExceptionAction<Path>) () -> {
-                    return Files.createDirectories(path);
-                });
-            } catch (final PrivilegedActionException e) {
-                throw new UncheckedIOException((IOException) e.getException());
-            }
-        }
-        return path;
+    static boolean isFinal(final ProcessStatus status) {
+        return status == ProcessStatus.transformed || status == ProcessStatus.skipped || status == ProcessStatus.failed;
     }
 
-    String userHome() {
-        return AccessController.doPrivileged((PrivilegedAction<String>) () -> new GetProperty("user.home").run());
+    String createSourceFileName(final ImageType type) {
+        assert type != null;
+        return "source." + type.getPostfix();
     }
 }
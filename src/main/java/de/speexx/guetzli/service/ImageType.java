@@ -17,6 +17,8 @@
  */
 package de.speexx.guetzli.service;
 
+import java.util.Locale;
+
 /**
  * Describes the type of an image.
  * @author sascha.kohlmann
@@ -53,4 +55,30 @@ public enum ImageType {
     public String getMimeType() {
         return this.mimeType;
     }
+
+    /**
+     * Returns the type of an image file by the extension of the file name. <code>jpeg</code> is also a JPEG image.
+     * @param fileName the file name.
+     * @return the type or {@code null} if the extension is not of a supported image type.
+     */
+    public static ImageType ofFileName(final String fileName) {
+        final String name = fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+            return JPG;
+        }
+        if (name.endsWith(".png")) {
+            return PNG;
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the extension of the file name with the {@linkplain #getPostfix() postfix} of this type.
+     * @param fileName the file name.
+     * @return the file name with the postfix of this type.
+     */
+    public String toFileName(final String fileName) {
+        final int dot = fileName.lastIndexOf('.');
+        return (dot < 0 ? fileName : fileName.substring(0, dot)) + "." + this.postfix;
+    }
 }
@@ -0,0 +1,226 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.transformer.ResizeOptions;
+import de.speexx.guetzli.transformer.ResourceLimits;
+import de.speexx.guetzli.transformer.ResourceUsage;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Writes the {@link ImageMetadata} in the JSON format of the REST API.
+ * @author sascha.kohlmann
+ */
+public final class MetadataJson {
+
+    private MetadataJson() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Returns the metadata as JSON object.
+     * @param meta the metadata
+     * @return the JSON object. Never {@code null}.
+     */
+    public static String toJson(final ImageMetadata meta) {
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = Json.createGenerator(writer);) {
+            write(generator, meta);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Returns the metadata with the metadata of the variants as JSON object.
+     * @param meta the metadata
+     * @param variants the metadata of the variants
+     * @return the JSON object. Never {@code null}.
+     */
+    public static String toJson(final ImageMetadata meta, final Collection<ImageMetadata> variants) {
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = Json.createGenerator(writer);) {
+            write(generator, meta, variants);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes the metadata as JSON object.
+     * @param generator the generator to write to. The generator must be in a state to write an object.
+     * @param meta the metadata
+     */
+    public static void write(final JsonGenerator generator, final ImageMetadata meta) {
+        write(generator, meta, Collections.emptyList());
+    }
+
+    static void write(final JsonGenerator generator, final ImageMetadata meta, final Collection<ImageMetadata> variants) {
+        assert generator != null;
+        assert meta != null;
+        assert variants != null;
+
+        generator.writeStartObject();
+
+        generator.write("contentId", meta.getContentId());
+        writeFields(generator, meta);
+
+        if (!variants.isEmpty()) {
+            generator.writeStartArray("variants");
+            for (final ImageMetadata variant : variants) {
+                generator.writeStartObject();
+                writeVariant(generator, variant.getVariant());
+                writeFields(generator, variant);
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+        }
+
+        generator.writeEnd();
+    }
+
+    /**
+     * Writes the name, the width and the quality level of a variant.
+     * @param generator the generator with an open object.
+     * @param variant the variant.
+     */
+    public static void writeVariant(final JsonGenerator generator, final Variant variant) {
+        generator.write("name", variant.getName());
+        if (variant.getWidth() > 0) {
+            generator.write("width", variant.getWidth());
+        }
+        if (variant.getQuality() > 0) {
+            generator.write("quality", variant.getQuality());
+        }
+    }
+
+    static void writeFields(final JsonGenerator generator, final ImageMetadata meta) {
+        final ProcessStatus status = meta.getStatus();
+        assert status != null;
+        generator.write("status", status.name());
+
+        generator.writeStartObject("source");
+        final String sourceName = meta.getSourceName();
+        if (sourceName != null) {
+            generator.write("name", sourceName);
+        }
+        final ImageType sourceType = meta.getSourceType();
+        if (sourceType != null) {
+            generator.write("mime", sourceType.getMimeType());
+        }
+        final int sourceQuality = meta.getSourceQuality();
+        if (sourceQuality > 0) {
+            generator.write("qualitylevel", sourceQuality);
+        }
+        final long sourceSize = meta.getSourceSize();
+        if (sourceSize > 0) {
+            generator.write("size", sourceSize);
+        }
+        if (meta.getSourceWidth() > 0 && meta.getSourceHeight() > 0) {
+            generator.write("width", meta.getSourceWidth());
+            generator.write("height", meta.getSourceHeight());
+        }
+        generator.writeEnd();
+
+        final ResizeOptions resize = meta.getResize();
+        if (resize != null) {
+            generator.writeStartObject("resize");
+            if (resize.getMaxWidth() > 0) {
+                generator.write("maxWidth", resize.getMaxWidth());
+            }
+            if (resize.getMaxHeight() > 0) {
+                generator.write("maxHeight", resize.getMaxHeight());
+            }
+            generator.write("fit", resize.getFit().name());
+            if (resize.getCrop() != null) {
+                generator.write("crop", ResizeOptions.formatCrop(resize.getCrop()));
+            }
+            generator.writeEnd();
+        }
+
+        final long strippedBytes = meta.getStrippedBytes();
+        if (strippedBytes > 0) {
+            generator.write("strippedBytes", strippedBytes);
+        }
+
+        final ResourceUsage usage = meta.getResourceUsage();
+        if (usage != null) {
+            generator.writeStartObject("resources");
+            generator.write("cpuTimeMillis", usage.getCpuTimeMillis());
+            generator.write("peakRssBytes", usage.getPeakRssBytes());
+            generator.write("wallTimeMillis", usage.getWallTimeMillis());
+            final ResourceLimits limits = usage.getLimits();
+            if (limits.getMechanism() != ResourceLimits.Mechanism.none) {
+                generator.writeStartObject("limits");
+                generator.write("mechanism", limits.getMechanism().name());
+                if (limits.getMemoryBytes() > 0) {
+                    generator.write("memoryBytes", limits.getMemoryBytes());
+                }
+                if (limits.getCpus() != null) {
+                    generator.write("cpus", limits.getCpus());
+                }
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+        }
+
+        final long predictedTargetSize = meta.getPredictedTargetSize();
+        if (predictedTargetSize > 0) {
+            generator.write("predictedTargetSize", predictedTargetSize);
+        }
+
+        final SkipReason skipReason = meta.getSkipReason();
+        if (skipReason != null) {
+            generator.write("skipReason", skipReason.name());
+        }
+
+        final FailureReason failureReason = meta.getFailureReason();
+        if (failureReason != null) {
+            generator.write("failureReason", failureReason.name());
+        }
+        if (meta.getAttempts() > 0) {
+            generator.write("attempts", meta.getAttempts());
+        }
+        if (meta.getLastError() != null) {
+            generator.write("lastError", meta.getLastError());
+        }
+        if (meta.getRetryAt() > 0) {
+            generator.write("retryAt", Instant.ofEpochMilli(meta.getRetryAt()).toString());
+        }
+
+        if (status == ProcessStatus.transformed || (status == ProcessStatus.skipped && meta.getTargetSize() > 0)) {
+            generator.writeStartObject("target");
+            final int targetQuality = meta.getTargetQuality();
+            if (targetQuality > 0) {
+                generator.write("qualitylevel", targetQuality);
+            }
+            final long targetSize = meta.getTargetSize();
+            if (targetSize > 0) {
+                generator.write("size", targetSize);
+            }
+            if (meta.getTargetWidth() > 0 && meta.getTargetHeight() > 0) {
+                generator.write("width", meta.getTargetWidth());
+                generator.write("height", meta.getTargetHeight());
+            }
+            generator.writeEnd();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import de.speexx.guetzli.transformer.ResourceUsage;
+import de.speexx.guetzli.transformer.TimeoutModel;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregated counters of the finished transformations of this node since start. Only the main transformation
+ * of a content ID is counted, not the {@linkplain Variant variants}.
+ * <p>The savings are the difference of the source and the target size of all content with a target image.
+ * The stripped bytes are the part of the savings from {@linkplain de.speexx.guetzli.transformer.JpegSegmentStripper
+ * removed metadata segments}.</p>
+ * <p>Failed transformations are counted separately for timeouts and other failures. Retried attempts of all
+ * transformations, including variants, are counted as retries.</p>
+ * <p>The resources of all <code>guetzli</code> runs, including variants, are counted to size the memory limit
+ * and the concurrency from evidence.</p>
+ * <p>The counters of the {@link TargetCache} are part of the metrics if the cache is enabled.</p>
+ * @author sascha.kohlmann
+ */
+public final class Metrics {
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final LongAdder transformed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder sourceBytes = new LongAdder();
+    private final LongAdder targetBytes = new LongAdder();
+    private final LongAdder strippedBytes = new LongAdder();
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder cpuTimeMillis = new LongAdder();
+    private final LongAdder wallTimeMillis = new LongAdder();
+    private final LongAccumulator peakRssBytes = new LongAccumulator(Math::max, 0);
+
+    Metrics() {
+    }
+
+    /**
+     * The metrics of this node.
+     * @return the metrics. Never {@code null}.
+     */
+    public static Metrics instance() {
+        return INSTANCE;
+    }
+
+    void completed(final ImageMetadata meta) {
+        assert meta != null;
+
+        switch (meta.getStatus()) {
+            case transformed:
+                this.transformed.increment();
+                break;
+            case skipped:
+                this.skipped.increment();
+                break;
+            case failed:
+                if (meta.getFailureReason() == FailureReason.timeout) {
+                    this.timeouts.increment();
+                } else {
+                    this.failed.increment();
+                }
+                return;
+            default:
+                return;
+        }
+        if (meta.getTargetSize() > 0) {
+            this.sourceBytes.add(meta.getSourceSize());
+            this.targetBytes.add(meta.getTargetSize());
+            this.strippedBytes.add(meta.getStrippedBytes());
+        }
+    }
+
+    void retried() {
+        this.retries.increment();
+    }
+
+    void processed(final ResourceUsage usage) {
+        assert usage != null;
+
+        this.runs.increment();
+        this.cpuTimeMillis.add(usage.getCpuTimeMillis());
+        this.wallTimeMillis.add(usage.getWallTimeMillis());
+        this.peakRssBytes.accumulate(usage.getPeakRssBytes());
+    }
+
+    /**
+     * A snapshot of all counters.
+     * @return the counters by name in a stable order. Never {@code null}.
+     */
+    public Map<String, Long> snapshot() {
+        final Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("transformed", this.transformed.sum());
+        snapshot.put("skipped", this.skipped.sum());
+        snapshot.put("failed", this.failed.sum());
+        snapshot.put("timeouts", this.timeouts.sum());
+        snapshot.put("retries", this.retries.sum());
+        final long source = this.sourceBytes.sum();
+        final long target = this.targetBytes.sum();
+        snapshot.put("sourceBytes", source);
+        snapshot.put("targetBytes", target);
+        snapshot.put("savedBytes", source - target);
+        snapshot.put("strippedBytes", this.strippedBytes.sum());
+        snapshot.put("guetzliRuns", this.runs.sum());
+        snapshot.put("cpuTimeMillis", this.cpuTimeMillis.sum());
+        snapshot.put("wallTimeMillis", this.wallTimeMillis.sum());
+        snapshot.put("maxPeakRssBytes", this.peakRssBytes.get());
+        snapshot.put("millisPerMegapixel", TimeoutModel.instance().getMillisPerMegapixel());
+        snapshot.put("pending", (long) TransformationScheduler.instance().getPending());
+        final TargetCache cache = TargetCache.instance();
+        if (cache != null) {
+            snapshot.put("cacheHits", cache.getHits());
+            snapshot.put("cacheMisses", cache.getMisses());
+            snapshot.put("cacheHitRatioPercent", cache.getHitRatioPercent());
+            snapshot.put("cacheEvictions", cache.getEvictions());
+            snapshot.put("cacheBytes", cache.getBytes());
+        }
+        return snapshot;
+    }
+}
@@ -30,6 +30,8 @@ public enum ProcessStatus {
     transforming,
     /** The uploaded image was successfull transformed. */
     transformed,
+    /** The <code>guetzli</code> result is not used. For JPEG images the target image is a copy of the source image. */
+    skipped,
     /** he transformation process failed for different reasons. */
     failed;
 }
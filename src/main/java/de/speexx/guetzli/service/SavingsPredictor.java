@@ -0,0 +1,215 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.transformer.GuetzliTransformationProcessor;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Predicts the size of the <code>guetzli</code> result of a large image by transforming only some tiles
+ * of the source image. The tiles are placed on the diagonal of the image. Each tile is encoded like the source
+ * image and transformed with <code>guetzli</code>. The size ratio of all tiles is extrapolated to the source image.
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.sampling.enabled</code></dt>
+ *   <dd>Enables the prediction. Default is {@code false}.</dd>
+ *   <dt><code>guetzli.service.sampling.pixels.min</code></dt>
+ *   <dd>Only images with more pixels are sampled. Default is {@value #DEFAULT_MIN_PIXELS}.</dd>
+ *   <dt><code>guetzli.service.sampling.tile.size</code></dt>
+ *   <dd>Width and height of a tile. Default is {@value #DEFAULT_TILE_SIZE}.</dd>
+ *   <dt><code>guetzli.service.sampling.tile.count</code></dt>
+ *   <dd>Number of tiles. Default is {@value #DEFAULT_TILE_COUNT}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+final class SavingsPredictor {
+
+    private static final Logger LOG = Logger.getLogger(SavingsPredictor.class.getSimpleName());
+
+    static final long DEFAULT_MIN_PIXELS = 4_000_000L;
+    static final int DEFAULT_TILE_SIZE = 256;
+    static final int DEFAULT_TILE_COUNT = 3;
+
+    private final TileTransformer transformer;
+    private final boolean enabled;
+    private final long minPixels;
+    private final int tileSize;
+    private final int tileCount;
+
+    SavingsPredictor(final GuetzliTransformationProcessor processor) {
+        this(processor::transform,
+             Configuration.booleanValue("guetzli.service.sampling.enabled", false),
+             Configuration.longValue("guetzli.service.sampling.pixels.min", DEFAULT_MIN_PIXELS),
+             Configuration.intValue("guetzli.service.sampling.tile.size", DEFAULT_TILE_SIZE),
+             Configuration.intValue("guetzli.service.sampling.tile.count", DEFAULT_TILE_COUNT));
+    }
+
+    SavingsPredictor(final TileTransformer transformer, final boolean enabled, final long minPixels, final int tileSize, final int tileCount) {
+        assert transformer != null;
+        this.transformer = transformer;
+        this.enabled = enabled;
+        this.minPixels = minPixels;
+        this.tileSize = Math.max(16, tileSize);
+        this.tileCount = Math.max(1, tileCount);
+    }
+
+    /**
+     * Checks if the image of the given metadata should be sampled.
+     * @param meta the metadata of the source image.
+     * @return {@code true} if sampling is enabled and the image is large enough.
+     */
+    boolean isApplicable(final ImageMetadata meta) {
+        assert meta != null;
+        final long pixels = (long) meta.getSourceWidth() * meta.getSourceHeight();
+        return this.enabled && meta.getResize() == null && pixels >= this.minPixels && pixels > (long) this.tileSize * this.tileSize * this.tileCount;
+    }
+
+    /**
+     * Predicts the size of the <code>guetzli</code> result.
+     * @param meta the metadata of the source image.
+     * @param sourcePath the source image.
+     * @return the predicted size of the target image.
+     * @throws IOException if and only if it is not possible to read the source image or to write the tiles.
+     * @throws TransformationException if the transformation of a tile fails.
+     */
+    long predictTargetSize(final ImageMetadata meta, final Path sourcePath) throws IOException {
+        assert meta != null;
+        assert sourcePath != null;
+
+        final List<Path> tiles = new ArrayList<>(this.tileCount);
+        try {
+            long tilesSize = 0;
+            long transformedSize = 0;
+            for (final BufferedImage tile : readTiles(sourcePath, meta.getSourceWidth(), meta.getSourceHeight())) {
+                final Path tilePath = Files.createTempFile(sourcePath.getParent(), ".sample-", "." + meta.getSourceType().getPostfix());
+                tiles.add(tilePath);
+                writeTile(tile, tilePath, meta);
+
+                final Path transformedPath = Files.createTempFile(sourcePath.getParent(), ".sample-", ".jpg");
+                tiles.add(transformedPath);
+                this.transformer.transform(tilePath, transformedPath, ImageService.targetQuality(meta.getVariant()), (long) tile.getWidth() * tile.getHeight());
+
+                tilesSize += Files.size(tilePath);
+                transformedSize += Files.size(transformedPath);
+            }
+            if (tilesSize == 0) {
+                return 0;
+            }
+            final long predicted = Math.round((double) Files.size(sourcePath) * transformedSize / tilesSize);
+            LOG.log(Level.INFO, "Predicted target size {0} for content ID {1}", new Object[] {predicted, meta.getContentId()});
+            return predicted;
+        } finally {
+            for (final Path tile : tiles) {
+                Files.deleteIfExists(tile);
+            }
+        }
+    }
+
+    List<BufferedImage> readTiles(final Path sourcePath, final int width, final int height) throws IOException {
+        try (final ImageInputStream in = ImageIO.createImageInputStream(sourcePath.toFile())) {
+            if (in == null) {
+                throw new IOException("Unable to read " + sourcePath);
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader available for " + sourcePath);
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                final List<BufferedImage> tiles = new ArrayList<>(this.tileCount);
+                for (final Rectangle region : tileRegions(width, height)) {
+                    final ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(region);
+                    tiles.add(reader.read(0, param));
+                }
+                return tiles;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Places the tiles with equal distance on the diagonal of the image.
+     */
+    List<Rectangle> tileRegions(final int width, final int height) {
+        final int w = Math.min(this.tileSize, width);
+        final int h = Math.min(this.tileSize, height);
+        final List<Rectangle> regions = new ArrayList<>(this.tileCount);
+        for (int i = 1; i <= this.tileCount; i++) {
+            final int x = (int) ((long) width * i / (this.tileCount + 1)) - w / 2;
+            final int y = (int) ((long) height * i / (this.tileCount + 1)) - h / 2;
+            regions.add(new Rectangle(Math.max(0, Math.min(x, width - w)), Math.max(0, Math.min(y, height - h)), w, h));
+        }
+        return regions;
+    }
+
+    void writeTile(final BufferedImage tile, final Path tilePath, final ImageMetadata meta) throws IOException {
+        if (meta.getSourceType() == ImageType.PNG) {
+            ImageIO.write(tile, "png", tilePath.toFile());
+            return;
+        }
+
+        final BufferedImage rgb;
+        if (tile.getColorModel().hasAlpha() || tile.getType() == BufferedImage.TYPE_CUSTOM) {
+            rgb = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_INT_RGB);
+            final Graphics2D graphics = rgb.createGraphics();
+            graphics.drawImage(tile, 0, 0, null);
+            graphics.dispose();
+        } else {
+            rgb = tile;
+        }
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (final ImageOutputStream out = ImageIO.createImageOutputStream(tilePath.toFile())) {
+            writer.setOutput(out);
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(1, Math.min(100, meta.getSourceQuality())) / 100f);
+            writer.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Transforms a single tile with <code>guetzli</code>.
+     */
+    @FunctionalInterface
+    interface TileTransformer {
+        void transform(Path source, Path target, int targetQuality, long pixels) throws IOException;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+/**
+ * The reason why the <code>guetzli</code> result is not used for an image.
+ * @author sascha.kohlmann
+ * @see ProcessStatus#skipped
+ */
+public enum SkipReason {
+    /** The quality level of the JPEG source image is below the minimum quality level of <code>guetzli</code>. */
+    lowSourceQuality,
+    /** The image has more pixels than <code>guetzli</code> can handle within its memory limit. */
+    tooManyPixels,
+    /** The predicted size reduction of a <code>guetzli</code> run is below the configured minimum. */
+    lowPredictedGain,
+    /** The <code>guetzli</code> result is not smaller than the source image. */
+    targetNotSmaller;
+}
@@ -0,0 +1,219 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Byte bounded LRU cache of target images in direct {@link ByteBuffer}s. The cached images are outside of the
+ * heap, so a large cache doesn't increase the garbage collection costs. Each hit is a read only view of the cached
+ * buffer.
+ * <p>The direct memory of the JVM must be large enough for the cache, see
+ * <code>-XX:MaxDirectMemorySize</code>.</p>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.cache.size</code></dt>
+ *   <dd>The maximum size of the cached images in bytes. The cache is disabled without a size. Default is
+ *       {@value #DEFAULT_MAX_BYTES}.</dd>
+ *   <dt><code>guetzli.service.cache.entry.max</code></dt>
+ *   <dd>The maximum size of a cached image in bytes. Default is {@value #DEFAULT_MAX_ENTRY_BYTES}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class TargetCache {
+
+    private static final Logger LOG = Logger.getLogger(TargetCache.class.getSimpleName());
+
+    static final long DEFAULT_MAX_BYTES = 0;
+    static final long DEFAULT_MAX_ENTRY_BYTES = 4 * 1024 * 1024;
+    private static final char KEY_SEPARATOR = '/';
+
+    private static volatile TargetCache instance;
+    private static volatile boolean initialized;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    /** The cached images in access order. Guarded by this. */
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    TargetCache(final long maxBytes, final long maxEntryBytes) {
+        assert maxBytes > 0;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+    }
+
+    /**
+     * The configured cache.
+     * @return the cache or {@code null} if the cache is disabled.
+     */
+    public static TargetCache instance() {
+        if (!initialized) {
+            synchronized (TargetCache.class) {
+                if (!initialized) {
+                    final long maxBytes = Configuration.longValue("guetzli.service.cache.size", DEFAULT_MAX_BYTES);
+                    if (maxBytes > 0) {
+                        instance = new TargetCache(maxBytes, Configuration.longValue("guetzli.service.cache.entry.max", DEFAULT_MAX_ENTRY_BYTES));
+                        LOG.log(Level.INFO, "Cache target images up to {0} bytes", maxBytes);
+                    }
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    static String key(final String contentId, final String name) {
+        return contentId + KEY_SEPARATOR + name;
+    }
+
+    /**
+     * Returns a cached image.
+     * @param contentId the content ID.
+     * @param name the name of the image.
+     * @return a read only view of the cached image or {@code null} if the image is not cached.
+     */
+    public ByteBuffer get(final String contentId, final String name) {
+        final ByteBuffer cached;
+        synchronized (this) {
+            cached = this.entries.get(key(contentId, name));
+        }
+        if (cached == null) {
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        return cached.duplicate();
+    }
+
+    /**
+     * Whether an image of the given size can be cached.
+     * @param size the size of the image in bytes.
+     * @return {@code true} if the image is not larger than the maximum entry size.
+     */
+    public boolean accepts(final long size) {
+        return size > 0 && size <= this.maxEntryBytes;
+    }
+
+    /**
+     * Caches an image. Least recently used images are evicted until the image fits into the cache.
+     * @param contentId the content ID.
+     * @param name the name of the image.
+     * @param image the image from position {@literal 0} to the limit. Should be a direct buffer.
+     */
+    public void put(final String contentId, final String name, final ByteBuffer image) {
+        Objects.requireNonNull(image);
+        final ByteBuffer readOnly = image.asReadOnlyBuffer();
+        readOnly.rewind();
+        if (!accepts(readOnly.remaining())) {
+            return;
+        }
+        synchronized (this) {
+            final ByteBuffer previous = this.entries.put(key(contentId, name), readOnly);
+            if (previous != null) {
+                this.bytes -= previous.capacity();
+            }
+            this.bytes += readOnly.capacity();
+            final Iterator<ByteBuffer> eldest = this.entries.values().iterator();
+            while (this.bytes > this.maxBytes && eldest.hasNext()) {
+                this.bytes -= eldest.next().capacity();
+                eldest.remove();
+                this.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes a cached image, e.g. because the image is transformed again.
+     * @param contentId the content ID.
+     * @param name the name of the image.
+     */
+    public synchronized void invalidate(final String contentId, final String name) {
+        final ByteBuffer removed = this.entries.remove(key(contentId, name));
+        if (removed != null) {
+            this.bytes -= removed.capacity();
+        }
+    }
+
+    /**
+     * Removes all cached images of a content ID, e.g. because the content ID is deleted.
+     * @param contentId the content ID.
+     */
+    public synchronized void invalidate(final String contentId) {
+        final String prefix = contentId + KEY_SEPARATOR;
+        for (final Iterator<Map.Entry<String, ByteBuffer>> itr = this.entries.entrySet().iterator(); itr.hasNext(); ) {
+            final Map.Entry<String, ByteBuffer> entry = itr.next();
+            if (entry.getKey().startsWith(prefix)) {
+                this.bytes -= entry.getValue().capacity();
+                itr.remove();
+            }
+        }
+    }
+
+    /**
+     * The number of requests served from the cache.
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * The number of requests not served from the cache.
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * The number of images evicted to free space for other images.
+     * @return the number of evictions.
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * The size of the cached images.
+     * @return the size in bytes.
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * The hit ratio of all requests.
+     * @return the ratio in percent or {@literal 0} without requests.
+     */
+    public long getHitRatioPercent() {
+        final long h = getHits();
+        final long total = h + getMisses();
+        return total == 0 ? 0 : Math.round(100d * h / total);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.awt.Dimension;
+
+/**
+ * Decides before and after a <code>guetzli</code> run whether the run can help to reduce the size of an image.
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.skip.quality.min</code></dt>
+ *   <dd>JPEG source images with a lower quality level are not transformed. Default is {@value #DEFAULT_MIN_QUALITY}.</dd>
+ *   <dt><code>guetzli.service.skip.pixels.max</code></dt>
+ *   <dd>Images with more pixels are not transformed. <code>0</code> disables the limit. Default is derived from
+ *     the memory of a <code>guetzli</code> process: the smaller of <code>guetzli.service.memlimit</code> (default
+ *     {@value #DEFAULT_MEMLIMIT_MB}MB) and a positive <code>guetzli.service.limit.memory</code> divided by
+ *     {@value #MB_PER_MEGAPIXEL}MB per megapixel. Without a memory limit there is no pixel limit.</dd>
+ *   <dt><code>guetzli.service.sampling.gain.min</code></dt>
+ *   <dd>Images with a lower {@linkplain SavingsPredictor predicted} size reduction in percent are not transformed.
+ *     Default is {@value #DEFAULT_MIN_PREDICTED_GAIN}.</dd>
+ * </dl>
+ * <p>Images with {@linkplain ImageMetadata#getResize() resize options} are always transformed because the source
+ * image can't replace the resized image. Only the pixel limit applies to the size of the resized image.</p>
+ * @author sascha.kohlmann
+ */
+final class TransformationDecision {
+
+    /** <code>guetzli</code> doesn't produce smaller results for sources below this quality level. */
+    static final int DEFAULT_MIN_QUALITY = 84;
+    /** <code>guetzli</code> needs about 300MB per megapixel. */
+    static final long MB_PER_MEGAPIXEL = 300;
+    static final int DEFAULT_MEMLIMIT_MB = 6000;
+    private static final long MEGAPIXEL = 1_000_000L;
+    static final double DEFAULT_MIN_PREDICTED_GAIN = 5;
+
+    private final int minQuality;
+    private final long maxPixels;
+    private final double minPredictedGain;
+
+    TransformationDecision() {
+        this(Configuration.intValue("guetzli.service.skip.quality.min", DEFAULT_MIN_QUALITY),
+             Configuration.longValue("guetzli.service.skip.pixels.max", defaultMaxPixels()),
+             Configuration.doubleValue("guetzli.service.sampling.gain.min", DEFAULT_MIN_PREDICTED_GAIN));
+    }
+
+    TransformationDecision(final int minQuality, final long maxPixels, final double minPredictedGain) {
+        this.minQuality = minQuality;
+        this.maxPixels = maxPixels;
+        this.minPredictedGain = minPredictedGain;
+    }
+
+    static long defaultMaxPixels() {
+        return maxPixels(Configuration.intValue("guetzli.service.memlimit", DEFAULT_MEMLIMIT_MB),
+                         Configuration.longValue("guetzli.service.limit.memory", 0));
+    }
+
+    /**
+     * The pixels which fit the memory of a <code>guetzli</code> process.
+     * @param memlimitMb the memory limit of <code>guetzli</code> itself in MB or {@literal 0} for none.
+     * @param processLimitMb the memory limit of the process in MB or {@literal 0} for none.
+     * @return the maximum pixels or {@literal 0} for no limit.
+     */
+    static long maxPixels(final long memlimitMb, final long processLimitMb) {
+        long memoryMb = memlimitMb;
+        if (processLimitMb > 0 && (memoryMb <= 0 || processLimitMb < memoryMb)) {
+            memoryMb = processLimitMb;
+        }
+        return memoryMb <= 0 ? 0 : memoryMb * MEGAPIXEL / MB_PER_MEGAPIXEL;
+    }
+
+    /**
+     * Decides before the transformation.
+     * @param meta the metadata of the source image.
+     * @return the reason to skip the transformation or {@code null} if the transformation should run.
+     */
+    SkipReason beforeTransformation(final ImageMetadata meta) {
+        assert meta != null;
+
+        if (meta.getResize() != null) {
+            final Dimension resized = meta.getResize().targetDimension(meta.getSourceWidth(), meta.getSourceHeight());
+            return exceedsMaxPixels(resized.width, resized.height) ? SkipReason.tooManyPixels : null;
+        }
+        if (meta.getSourceType() == ImageType.JPG
+                && meta.getSourceQuality() > 0
+                && meta.getSourceQuality() < this.minQuality) {
+            return SkipReason.lowSourceQuality;
+        }
+        if (exceedsMaxPixels(meta.getSourceWidth(), meta.getSourceHeight())) {
+            return SkipReason.tooManyPixels;
+        }
+        return null;
+    }
+
+    boolean exceedsMaxPixels(final int width, final int height) {
+        return this.maxPixels > 0 && (long) width * height > this.maxPixels;
+    }
+
+    /**
+     * Decides with the {@linkplain ImageMetadata#getPredictedTargetSize() predicted target size} whether the
+     * full transformation should run.
+     * @param meta the metadata of the source image.
+     * @param sourceSize the size of the stored source image.
+     * @return the reason to skip the transformation or {@code null} if the transformation should run.
+     */
+    SkipReason afterPrediction(final ImageMetadata meta, final long sourceSize) {
+        assert meta != null;
+
+        final long predicted = meta.getPredictedTargetSize();
+        if (predicted <= 0 || sourceSize <= 0) {
+            return null;
+        }
+        final double gain = 100d * (sourceSize - predicted) / sourceSize;
+        if (gain < this.minPredictedGain) {
+            return SkipReason.lowPredictedGain;
+        }
+        return null;
+    }
+
+    /**
+     * Decides after the transformation which image to keep.
+     * @param meta the metadata of the source image.
+     * @param sourceSize the size of the stored source image.
+     * @param targetSize the size of the <code>guetzli</code> result.
+     * @return the reason to keep the source image or {@code null} if the target image should be kept.
+     */
+    SkipReason afterTransformation(final ImageMetadata meta, final long sourceSize, final long targetSize) {
+        assert meta != null;
+
+        if (meta.getResize() == null && meta.getSourceType() == ImageType.JPG && targetSize >= sourceSize) {
+            return SkipReason.targetNotSmaller;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.util.Comparator;
+
+/**
+ * A job known to the {@link TransformationScheduler}, from the submission until it is finished. Jobs with a higher
+ * priority get a transformation slot first, jobs with the same priority in the order of submission.
+ * @author sascha.kohlmann
+ */
+public final class TransformationJob {
+
+    /** The order of the queued jobs. */
+    static final Comparator<TransformationJob> QUEUE_ORDER =
+            Comparator.comparingInt(TransformationJob::getPriority).reversed()
+                      .thenComparingLong(TransformationJob::getSequence);
+
+    private final String id;
+    private final String contentId;
+    private final Variant variant;
+    private final long sequence;
+    private final long submittedAt;
+    private volatile int priority;
+    private volatile long startedAt;
+    private volatile long pixels;
+    private volatile long pid = -1;
+    private volatile boolean exclusive;
+    private volatile boolean cancelled;
+
+    TransformationJob(final String contentId, final Variant variant, final long sequence, final long submittedAt) {
+        assert contentId != null;
+        this.id = id(contentId, variant);
+        this.contentId = contentId;
+        this.variant = variant;
+        this.sequence = sequence;
+        this.submittedAt = submittedAt;
+    }
+
+    static String id(final String contentId, final Variant variant) {
+        return variant == null ? contentId : contentId + "-" + variant.getName();
+    }
+
+    /**
+     * The ID of the job: the content ID, for variants with the variant name as suffix, e.g.
+     * <code>&lt;contentId&gt;-w640</code>.
+     * @return the ID. Never {@code null}.
+     */
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * The content ID.
+     * @return the content ID. Never {@code null}.
+     */
+    public String getContentId() {
+        return this.contentId;
+    }
+
+    /**
+     * The variant.
+     * @return the variant or {@code null} for the main transformation.
+     */
+    public Variant getVariant() {
+        return this.variant;
+    }
+
+    long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * The time of the submission.
+     * @return the time in milliseconds since the epoch.
+     */
+    public long getSubmittedAt() {
+        return this.submittedAt;
+    }
+
+    /**
+     * The priority. Default is {@literal 0}.
+     * @return the priority.
+     */
+    public int getPriority() {
+        return this.priority;
+    }
+
+    void setPriority(final int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * The time the job got a transformation slot.
+     * @return the time in milliseconds since the epoch or {@literal 0} if the job is queued.
+     */
+    public long getStartedAt() {
+        return this.startedAt;
+    }
+
+    void setStartedAt(final long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    /**
+     * Whether the job has a transformation slot.
+     * @return {@code true} if the job is running.
+     */
+    public boolean isRunning() {
+        return this.startedAt != 0;
+    }
+
+    /**
+     * The number of pixels to transform.
+     * @return the number of pixels or {@literal 0} if not yet known.
+     */
+    public long getPixels() {
+        return this.pixels;
+    }
+
+    void setPixels(final long pixels) {
+        this.pixels = pixels;
+    }
+
+    /**
+     * The process ID of the running <code>guetzli</code> process.
+     * @return the process ID or {@literal -1} if no process is running.
+     */
+    public long getPid() {
+        return this.pid;
+    }
+
+    void setPid(final long pid) {
+        this.pid = pid;
+    }
+
+    /**
+     * Whether the job runs without other jobs, e.g. the retry of a job failed with too little memory.
+     * @return {@code true} if the job runs exclusive.
+     */
+    public boolean isExclusive() {
+        return this.exclusive;
+    }
+
+    void setExclusive(final boolean exclusive) {
+        this.exclusive = exclusive;
+    }
+
+    /**
+     * Whether the job is cancelled, e.g. because its content ID was deleted.
+     * @return {@code true} if the job is cancelled.
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    void cancel() {
+        this.cancelled = true;
+    }
+
+    @Override
+    public String toString() {
+        return "TransformationJob{" + "id=" + id + ", priority=" + priority + ", running=" + isRunning() + ", pid=" + pid + ", exclusive=" + exclusive + '}';
+    }
+}
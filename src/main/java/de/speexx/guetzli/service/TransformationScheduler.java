@@ -0,0 +1,485 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controls the pending transformations of this node. The scheduler limits the number of concurrent
+ * <code>guetzli</code> processes and applies backpressure on uploads with a high and a low watermark on the
+ * number of pending transformations. The node is saturated when the pending transformations reach the high
+ * watermark and stays saturated until they drop to the low watermark.
+ * <p>Each submitted {@link TransformationJob} is known to the scheduler until it is finished. Waiting jobs get a
+ * slot in the order of their priority and submission. The scheduler can be {@linkplain #pause() paused}, so no job
+ * gets a new slot, and {@linkplain #drain() drained}, so no new uploads are accepted while the pending jobs
+ * finish. An {@linkplain TransformationJob#isExclusive() exclusive} job waits until all running jobs are finished
+ * and no other job gets a slot while it runs.</p>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.concurrency</code></dt>
+ *   <dd>The maximum number of concurrent <code>guetzli</code> processes. Default is {@value #DEFAULT_CONCURRENCY}.</dd>
+ *   <dt><code>guetzli.service.queue.high</code></dt>
+ *   <dd>The high watermark of pending transformations. Default is {@value #DEFAULT_HIGH_WATERMARK}.</dd>
+ *   <dt><code>guetzli.service.queue.low</code></dt>
+ *   <dd>The low watermark of pending transformations. Default is {@value #DEFAULT_LOW_WATERMARK}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class TransformationScheduler {
+
+    private static final Logger LOG = Logger.getLogger(TransformationScheduler.class.getSimpleName());
+
+    static final int DEFAULT_CONCURRENCY = 2;
+    static final int DEFAULT_HIGH_WATERMARK = 100;
+    static final int DEFAULT_LOW_WATERMARK = 50;
+    /** Time window to compute the drain throughput. */
+    static final long THROUGHPUT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final long DEFAULT_RETRY_AFTER_SECONDS = 60;
+    static final long MAX_RETRY_AFTER_SECONDS = 3600;
+
+    private static volatile TransformationScheduler instance;
+
+    private final int concurrency;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Deque<Long> completions = new ConcurrentLinkedDeque<>();
+    private volatile boolean saturated;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotsChanged = this.lock.newCondition();
+    private final AtomicLong sequence = new AtomicLong();
+    /** All known jobs by ID. Guarded by the lock. */
+    private final Map<String, TransformationJob> jobs = new HashMap<>();
+    /** Jobs blocked in {@link #acquireSlot(TransformationJob)}. Guarded by the lock. */
+    private final PriorityQueue<TransformationJob> waiting = new PriorityQueue<>(TransformationJob.QUEUE_ORDER);
+    /** Jobs with a slot. Guarded by the lock. */
+    private final Set<TransformationJob> running = new HashSet<>();
+    private volatile boolean paused;
+    private volatile boolean draining;
+
+    TransformationScheduler(final int concurrency, final int highWatermark, final int lowWatermark) {
+        this.concurrency = Math.max(1, concurrency);
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+    }
+
+    /**
+     * The scheduler of this node.
+     * @return the scheduler. Never {@code null}.
+     */
+    public static TransformationScheduler instance() {
+        TransformationScheduler scheduler = instance;
+        if (scheduler == null) {
+            synchronized (TransformationScheduler.class) {
+                scheduler = instance;
+                if (scheduler == null) {
+                    scheduler = new TransformationScheduler(
+                            Configuration.intValue("guetzli.service.concurrency", DEFAULT_CONCURRENCY),
+                            Configuration.intValue("guetzli.service.queue.high", DEFAULT_HIGH_WATERMARK),
+                            Configuration.intValue("guetzli.service.queue.low", DEFAULT_LOW_WATERMARK));
+                    instance = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Registers a new job and counts it as pending.
+     * @return the job. Never {@code null}.
+     */
+    TransformationJob submitted(final String contentId, final Variant variant) {
+        final TransformationJob job = new TransformationJob(contentId, variant, this.sequence.incrementAndGet(), System.currentTimeMillis());
+        this.lock.lock();
+        try {
+            this.jobs.put(job.getId(), job);
+        } finally {
+            this.lock.unlock();
+        }
+        accepted(1);
+        return job;
+    }
+
+    /**
+     * Removes a finished job and counts it as completed.
+     */
+    void finished(final TransformationJob job) {
+        assert job != null;
+
+        this.lock.lock();
+        try {
+            this.jobs.remove(job.getId(), job);
+            if (this.waiting.remove(job) || this.running.remove(job)) {
+                this.slotsChanged.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        completed();
+    }
+
+    /**
+     * The registered job.
+     * @return the job or {@code null} if the job isn't registered.
+     */
+    TransformationJob job(final String contentId, final Variant variant) {
+        this.lock.lock();
+        try {
+            return this.jobs.get(TransformationJob.id(contentId, variant));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the job is the first waiting job, a slot is free and the scheduler isn't paused. An exclusive
+     * job blocks until no other job is running.
+     * @throws TransformationCancelledException if the job is {@linkplain #cancel(java.lang.String) cancelled}
+     *                                          while waiting.
+     */
+    void acquireSlot(final TransformationJob job) throws InterruptedException {
+        assert job != null;
+
+        this.lock.lockInterruptibly();
+        try {
+            this.waiting.add(job);
+            try {
+                while (!job.isCancelled() && (this.paused || !hasSlotFor(job) || this.waiting.peek() != job)) {
+                    this.slotsChanged.await();
+                }
+            } catch (final InterruptedException e) {
+                this.waiting.remove(job);
+                this.slotsChanged.signalAll();
+                throw e;
+            }
+            if (job.isCancelled()) {
+                this.waiting.remove(job);
+                this.slotsChanged.signalAll();
+                throw new TransformationCancelledException("Job " + job.getId() + " cancelled");
+            }
+            this.waiting.poll();
+            this.running.add(job);
+            job.setStartedAt(System.currentTimeMillis());
+            // the next waiting job might get another free slot
+            this.slotsChanged.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels all jobs of a content ID. Waiting jobs give up waiting for a slot, running jobs stop their
+     * <code>guetzli</code> process.
+     * @param contentId the content ID.
+     * @return the number of cancelled jobs.
+     */
+    public int cancel(final String contentId) {
+        Objects.requireNonNull(contentId);
+        this.lock.lock();
+        try {
+            int cancelled = 0;
+            for (final TransformationJob job : this.jobs.values()) {
+                if (job.getContentId().equals(contentId)) {
+                    job.cancel();
+                    cancelled++;
+                }
+            }
+            this.slotsChanged.signalAll();
+            return cancelled;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Whether a job of a content ID is submitted and not yet finished.
+     * @param contentId the content ID.
+     * @return {@code true} if a job of the content ID is known.
+     */
+    public boolean isActive(final String contentId) {
+        this.lock.lock();
+        try {
+            return this.jobs.values().stream().anyMatch(job -> job.getContentId().equals(contentId));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean hasSlotFor(final TransformationJob job) {
+        assert this.lock.isHeldByCurrentThread();
+        if (job.isExclusive()) {
+            return this.running.isEmpty();
+        }
+        return this.running.size() < this.concurrency && this.running.stream().noneMatch(TransformationJob::isExclusive);
+    }
+
+    void releaseSlot(final TransformationJob job) {
+        assert job != null;
+
+        this.lock.lock();
+        try {
+            this.running.remove(job);
+            job.setPid(-1);
+            this.slotsChanged.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the priority of a queued job.
+     * @param id the {@linkplain TransformationJob#getId() job ID}.
+     * @param priority the new priority. Higher priorities get a slot first.
+     * @return {@code true} if the job is known.
+     */
+    public boolean reprioritize(final String id, final int priority) {
+        this.lock.lock();
+        try {
+            final TransformationJob job = this.jobs.get(id);
+            if (job == null) {
+                return false;
+            }
+            final boolean wasWaiting = this.waiting.remove(job);
+            job.setPriority(priority);
+            if (wasWaiting) {
+                this.waiting.add(job);
+                this.slotsChanged.signalAll();
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * The jobs with a transformation slot, the longest running first.
+     * @return the running jobs. Never {@code null}.
+     */
+    public List<TransformationJob> getRunning() {
+        final List<TransformationJob> result;
+        this.lock.lock();
+        try {
+            result = new ArrayList<>(this.running);
+        } finally {
+            this.lock.unlock();
+        }
+        result.sort(Comparator.comparingLong(TransformationJob::getStartedAt));
+        return result;
+    }
+
+    /**
+     * The jobs without a transformation slot in the order they get a slot.
+     * @return the queued jobs. Never {@code null}.
+     */
+    public List<TransformationJob> getQueued() {
+        final List<TransformationJob> result = new ArrayList<>();
+        this.lock.lock();
+        try {
+            for (final TransformationJob job : this.jobs.values()) {
+                if (!this.running.contains(job)) {
+                    result.add(job);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        result.sort(TransformationJob.QUEUE_ORDER);
+        return result;
+    }
+
+    /**
+     * Stops to give slots to waiting jobs. Running jobs are not affected.
+     */
+    public void pause() {
+        this.paused = true;
+        LOG.info("Paused transformations");
+    }
+
+    /**
+     * Gives slots to waiting jobs again and accepts new uploads after a {@linkplain #drain() drain}.
+     */
+    public void resume() {
+        this.lock.lock();
+        try {
+            this.paused = false;
+            this.draining = false;
+            this.slotsChanged.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        LOG.info("Resumed transformations");
+    }
+
+    /**
+     * Stops to accept new uploads, e.g. before a deployment. The pending jobs are finished unless the
+     * scheduler is paused.
+     */
+    public void drain() {
+        this.draining = true;
+        LOG.info("Draining transformations");
+    }
+
+    /**
+     * Whether no job gets a new slot.
+     * @return {@code true} if paused.
+     */
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    /**
+     * Whether the node should reject new uploads because of a {@linkplain #drain() drain}.
+     * @return {@code true} if draining.
+     */
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    /**
+     * Whether a drain is finished.
+     * @return {@code true} if draining and no job is pending.
+     */
+    public boolean isDrained() {
+        return this.draining && getPending() == 0;
+    }
+
+    /**
+     * Counts accepted transformations as pending.
+     * @param count the number of accepted transformations.
+     */
+    void accepted(final int count) {
+        updateSaturation(this.pending.addAndGet(count));
+    }
+
+    /**
+     * Counts a finished transformation.
+     */
+    void completed() {
+        final long now = System.currentTimeMillis();
+        this.completions.addLast(now);
+        prune(now);
+        updateSaturation(this.pending.updateAndGet(p -> Math.max(0, p - 1)));
+    }
+
+    void updateSaturation(final int current) {
+        final boolean wasSaturated = this.saturated;
+        if (!wasSaturated && current >= this.highWatermark) {
+            this.saturated = true;
+            LOG.log(Level.WARNING, "Saturated with {0} pending transformations", current);
+        } else if (wasSaturated && current <= this.lowWatermark) {
+            this.saturated = false;
+            LOG.log(Level.INFO, "Accept uploads again with {0} pending transformations", current);
+        }
+    }
+
+    /**
+     * Whether the node should reject new uploads.
+     * @return {@code true} if the pending transformations reached the high watermark and didn't drop to the low
+     *         watermark since.
+     */
+    public boolean isSaturated() {
+        return this.saturated;
+    }
+
+    /**
+     * The number of accepted but not finished transformations.
+     * @return the number of pending transformations.
+     */
+    public int getPending() {
+        return this.pending.get();
+    }
+
+    /**
+     * The number of transformations finished per minute within the last minutes.
+     * @return the throughput per minute or {@literal 0} if unknown.
+     */
+    public double getThroughputPerMinute() {
+        final long now = System.currentTimeMillis();
+        prune(now);
+        final Long first = this.completions.peekFirst();
+        if (first == null) {
+            return 0;
+        }
+        final long window = Math.max(TimeUnit.MINUTES.toMillis(1), now - first);
+        return this.completions.size() * (double) TimeUnit.MINUTES.toMillis(1) / window;
+    }
+
+    /**
+     * The estimated time until the pending transformations drop to the low watermark.
+     * @return the time in seconds, at least {@literal 1}.
+     */
+    public long getRetryAfterSeconds() {
+        final double perMinute = getThroughputPerMinute();
+        if (perMinute <= 0) {
+            return DEFAULT_RETRY_AFTER_SECONDS;
+        }
+        final int excess = Math.max(1, getPending() - this.lowWatermark);
+        final long seconds = (long) Math.ceil(excess * 60 / perMinute);
+        return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, seconds));
+    }
+
+    /**
+     * The maximum number of concurrent <code>guetzli</code> processes.
+     * @return the concurrency.
+     */
+    public int getConcurrency() {
+        return this.concurrency;
+    }
+
+    /**
+     * The high watermark.
+     * @return the high watermark.
+     */
+    public int getHighWatermark() {
+        return this.highWatermark;
+    }
+
+    /**
+     * The low watermark.
+     * @return the low watermark.
+     */
+    public int getLowWatermark() {
+        return this.lowWatermark;
+    }
+
+    void prune(final long now) {
+        for (Long first = this.completions.peekFirst();
+                first != null && now - first > THROUGHPUT_WINDOW_MILLIS;
+                first = this.completions.peekFirst()) {
+            this.completions.pollFirst();
+        }
+    }
+}
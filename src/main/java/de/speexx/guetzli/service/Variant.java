@@ -0,0 +1,210 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.transformer.ResizeOptions;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A variant of an uploaded image. A variant is a sibling of the main transformation with its own
+ * metadata and target image under the same content ID. A variant has a maximum width, a <code>guetzli</code>
+ * quality level or both. The variant of width <em>640</em> has the {@linkplain #getName() name}
+ * <code>w640</code>, the variant of quality level <em>90</em> the name <code>q90</code> and the variant with
+ * both the name <code>w640q90</code>.
+ * <p>A variant without a width is transformed from the same input as the main transformation.</p>
+ * @author sascha.kohlmann
+ */
+public final class Variant {
+
+    /** The lowest quality level supported by <code>guetzli</code>. */
+    public static final int MIN_QUALITY = 84;
+    /** The highest quality level. */
+    public static final int MAX_QUALITY = 100;
+
+    private static final String WIDTH_PREFIX = "w";
+    private static final String QUALITY_PREFIX = "q";
+    private static final Pattern NAME_PATTERN = Pattern.compile("(?:w([0-9]+))?(?:q([0-9]+))?");
+
+    private final int width;
+    private final int quality;
+
+    /**
+     * Creates a new variant of a maximum width.
+     * @param width the maximum width of the variant.
+     * @throws IllegalArgumentException if <em>width</em> is not positive.
+     */
+    public Variant(final int width) {
+        this(width, 0);
+        if (width <= 0) {
+            throw new IllegalArgumentException("Variant width must be positive: " + width);
+        }
+    }
+
+    /**
+     * Creates a new variant.
+     * @param width the maximum width of the variant. {@literal 0} for the width of the main transformation.
+     * @param quality the <code>guetzli</code> quality level between {@value #MIN_QUALITY} and
+     *                {@value #MAX_QUALITY}. {@literal 0} for the default quality level.
+     * @throws IllegalArgumentException if <em>width</em> is negative, the quality level is out of range or both
+     *                                  are {@literal 0}.
+     */
+    public Variant(final int width, final int quality) {
+        if (width < 0) {
+            throw new IllegalArgumentException("Variant width must be positive: " + width);
+        }
+        if (quality != 0 && (quality < MIN_QUALITY || quality > MAX_QUALITY)) {
+            throw new IllegalArgumentException("Variant quality must be between " + MIN_QUALITY + " and " + MAX_QUALITY + ": " + quality);
+        }
+        if (width == 0 && quality == 0) {
+            throw new IllegalArgumentException("Variant needs a width or a quality");
+        }
+        this.width = width;
+        this.quality = quality;
+    }
+
+    /**
+     * The maximum width of the variant.
+     * @return the width or {@literal 0} if the variant has the width of the main transformation.
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * The <code>guetzli</code> quality level of the variant.
+     * @return the quality level or {@literal 0} for the default quality level.
+     */
+    public int getQuality() {
+        return this.quality;
+    }
+
+    /**
+     * Whether the variant is transformed from its own resized input image.
+     * @return {@code true} if the variant has a width.
+     */
+    public boolean isResized() {
+        return this.width > 0;
+    }
+
+    /**
+     * The name of the variant. The name is part of the metadata and image names in the storage.
+     * @return the name. Never {@code null}.
+     */
+    public String getName() {
+        return (this.width > 0 ? WIDTH_PREFIX + this.width : "") + (this.quality > 0 ? QUALITY_PREFIX + this.quality : "");
+    }
+
+    /**
+     * Parses a {@linkplain #getName() variant name}.
+     * @param name the name.
+     * @return the variant.
+     * @throws IllegalArgumentException if the name is invalid.
+     */
+    public static Variant parse(final String name) {
+        final Matcher matcher = NAME_PATTERN.matcher(name == null ? "" : name);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid variant name: " + name);
+        }
+        try {
+            return new Variant(matcher.group(1) == null ? 0 : Integer.parseInt(matcher.group(1)),
+                               matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2)));
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid variant name: " + name, e);
+        }
+    }
+
+    /**
+     * Parses a comma separated list of widths. Duplicates are ignored.
+     * @param widths the widths, e.g. <code>320,640,1280</code>. Can be {@code null}.
+     * @return the variants. Never {@code null}.
+     * @throws IllegalArgumentException if a width is invalid.
+     */
+    public static List<Variant> parseWidths(final String widths) {
+        return parseList(widths, "width", width -> new Variant(width));
+    }
+
+    /**
+     * Parses a comma separated list of quality levels. Duplicates are ignored.
+     * @param qualities the quality levels, e.g. <code>84,90,95</code>. Can be {@code null}.
+     * @return the variants. Never {@code null}.
+     * @throws IllegalArgumentException if a quality level is invalid.
+     */
+    public static List<Variant> parseQualities(final String qualities) {
+        return parseList(qualities, "quality", quality -> new Variant(0, quality));
+    }
+
+    static List<Variant> parseList(final String values, final String kind, final IntFunction<Variant> factory) {
+        if (values == null || values.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Variant> variants = new ArrayList<>();
+        for (final String value : values.split(",")) {
+            final Variant variant;
+            try {
+                variant = factory.apply(Integer.parseInt(value.trim()));
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid variant " + kind + ": " + value, e);
+            }
+            if (!variants.contains(variant)) {
+                variants.add(variant);
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * The options to resize the source image for this variant.
+     * @param crop the optional crop region of the source image. Can be {@code null}.
+     * @return the resize options. Never {@code null}.
+     * @throws IllegalStateException if the variant has no width.
+     */
+    ResizeOptions toResizeOptions(final Rectangle crop) {
+        if (!isResized()) {
+            throw new IllegalStateException("Variant " + getName() + " has no width");
+        }
+        return new ResizeOptions(this.width, 0, ResizeOptions.Fit.contain, crop);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.width + this.quality;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final Variant other = (Variant) obj;
+        return this.width == other.width && this.quality == other.quality;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import de.speexx.guetzli.service.storage.Storage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local directory to work on the blobs of a content ID with external tools like <code>guetzli</code>.
+ * If the {@link Storage} provides a {@linkplain Storage#localDirectory(java.lang.String) local directory} the
+ * blobs are used in place. Otherwise the blobs are copied into a temporary directory which is deleted on
+ * {@linkplain #close() close}.
+ * <p>A {@linkplain #openScratch(de.speexx.guetzli.service.storage.Storage, java.lang.String, java.lang.String) scratch workspace}
+ * is a temporary directory in the configured scratch directory, e.g. on a <code>tmpfs</code> or a local SSD,
+ * even for a local storage. The external tools read and write on the fast scratch directory instead of a
+ * network file system. Committed blobs are moved atomically into the storage. The staged bytes of all scratch
+ * workspaces are limited: each scratch workspace reserves {@value #SCRATCH_FACTOR} times the size of its source
+ * on open for the source, the intermediate files and the target. If the reservation exceeds the limit the
+ * workspace is opened in the storage. The fetched blobs and the files {@linkplain #reserve(long) reserved} before
+ * they are written are charged against the reservation, bytes beyond the reservation are added. Committed files
+ * are imported into the storage without a further copy. The reservation is released on
+ * {@linkplain #close() close}.</p>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.scratch.dir</code></dt>
+ *   <dd>The scratch directory. Without a directory workspaces are not staged.</dd>
+ *   <dt><code>guetzli.service.scratch.size</code></dt>
+ *   <dd>The maximum staged bytes in the scratch directory. Default is {@value #DEFAULT_SCRATCH_SIZE}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+final class Workspace implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(Workspace.class.getSimpleName());
+
+    static final long DEFAULT_SCRATCH_SIZE = 1024L * 1024L * 1024L;
+    static final int SCRATCH_FACTOR = 3;
+    private static final String WORKSPACE_PREFIX = "guetzli-";
+
+    private static final AtomicLong STAGED_BYTES = new AtomicLong();
+    private static volatile Path scratchDirectory;
+    private static volatile boolean scratchInitialized;
+
+    private final Storage storage;
+    private final String contentId;
+    private final Path directory;
+    private final boolean temporary;
+    private final boolean scratch;
+    private long reserved;
+    private long staged;
+
+    private Workspace(final Storage storage, final String contentId, final Path directory, final boolean temporary, final boolean scratch) {
+        this.storage = storage;
+        this.contentId = contentId;
+        this.directory = directory;
+        this.temporary = temporary;
+        this.scratch = scratch;
+    }
+
+    /**
+     * Opens a workspace for the content ID.
+     * @param storage the storage of the content ID
+     * @param contentId the content ID
+     * @return the workspace. Never {@code null}.
+     * @throws IOException if and only if it is not possible to create a temporary directory.
+     */
+    static Workspace open(final Storage storage, final String contentId) throws IOException {
+        Objects.requireNonNull(storage);
+        Objects.requireNonNull(contentId);
+
+        final Path local = storage.localDirectory(contentId);
+        if (local != null) {
+            return new Workspace(storage, contentId, local, false, false);
+        }
+        return new Workspace(storage, contentId, Files.createTempDirectory(WORKSPACE_PREFIX + contentId + "-"), true, false);
+    }
+
+    /**
+     * Opens a workspace for the content ID in the scratch directory. Without a scratch directory or if the
+     * reservation for the source exceeds the limit the workspace is {@linkplain #open(de.speexx.guetzli.service.storage.Storage, java.lang.String)
+     * opened} as usual.
+     * @param storage the storage of the content ID
+     * @param contentId the content ID
+     * @param sourceName the name of the source blob to estimate the staged bytes or {@code null} if unknown.
+     * @return the workspace. Never {@code null}.
+     * @throws IOException if and only if it is not possible to create a temporary directory.
+     */
+    static Workspace openScratch(final Storage storage, final String contentId, final String sourceName) throws IOException {
+        Objects.requireNonNull(storage);
+        Objects.requireNonNull(contentId);
+
+        final Path scratchDir = scratchDirectory();
+        if (scratchDir == null) {
+            return open(storage, contentId);
+        }
+        return openScratch(storage, contentId, scratchDir, Configuration.longValue("guetzli.service.scratch.size", DEFAULT_SCRATCH_SIZE), estimate(storage, contentId, sourceName));
+    }
+
+    static Workspace openScratch(final Storage storage, final String contentId, final Path scratchDir, final long maxBytes, final long estimate) throws IOException {
+        if (scratchDir == null || !reserve(estimate, maxBytes)) {
+            if (scratchDir != null) {
+                LOG.log(Level.INFO, "Scratch directory full with {0} bytes. Open workspace of {1} in storage", new Object[] {STAGED_BYTES.get(), contentId});
+            }
+            return open(storage, contentId);
+        }
+        try {
+            final Workspace workspace = new Workspace(storage, contentId, Files.createTempDirectory(scratchDir, WORKSPACE_PREFIX + contentId + "-"), true, true);
+            workspace.reserved = estimate;
+            return workspace;
+        } catch (final IOException e) {
+            STAGED_BYTES.addAndGet(-estimate);
+            throw e;
+        }
+    }
+
+    static long estimate(final Storage storage, final String contentId, final String sourceName) {
+        if (sourceName == null) {
+            return 0;
+        }
+        try {
+            return SCRATCH_FACTOR * storage.size(contentId, sourceName);
+        } catch (final IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reserves the bytes if the staged bytes including the reservation don't exceed the limit. Check and
+     * reservation are atomic, so concurrent workspaces can't overshoot the limit.
+     */
+    static boolean reserve(final long bytes, final long maxBytes) {
+        long current;
+        do {
+            current = STAGED_BYTES.get();
+            if (current >= maxBytes || current + bytes > maxBytes) {
+                return false;
+            }
+        } while (!STAGED_BYTES.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * The configured scratch directory. Workspaces left over by a crash are deleted on the first call.
+     * @return the directory or {@code null} if no scratch directory is configured.
+     */
+    static Path scratchDirectory() throws IOException {
+        if (!scratchInitialized) {
+            synchronized (Workspace.class) {
+                if (!scratchInitialized) {
+                    final String dir = Configuration.stringValue("guetzli.service.scratch.dir", null);
+                    if (dir != null) {
+                        final Path path = Files.createDirectories(Paths.get(dir));
+                        deleteWorkspaces(path);
+                        scratchDirectory = path;
+                        LOG.log(Level.INFO, "Stage workspaces in scratch directory {0}", path);
+                    }
+                    scratchInitialized = true;
+                }
+            }
+        }
+        return scratchDirectory;
+    }
+
+    static void deleteWorkspaces(final Path scratchDir) throws IOException {
+        try (final DirectoryStream<Path> stale = Files.newDirectoryStream(scratchDir, WORKSPACE_PREFIX + "*")) {
+            for (final Path workspace : stale) {
+                LOG.log(Level.INFO, "Delete stale workspace {0}", workspace);
+                Files.walkFileTree(workspace, new DeleteDirectoryVisitor());
+            }
+        }
+    }
+
+    /**
+     * The bytes staged by all scratch workspaces.
+     * @return the staged bytes.
+     */
+    static long getStagedBytes() {
+        return STAGED_BYTES.get();
+    }
+
+    /**
+     * Returns the local path of a blob. The blob must be {@linkplain #fetch(java.lang.String) fetched} before
+     * reading.
+     * @param name the name of the blob.
+     * @return the local path.
+     */
+    Path path(final String name) {
+        return this.directory.resolve(name);
+    }
+
+    /**
+     * Makes the blob available in the workspace.
+     * @param name the name of the blob.
+     * @return the local path.
+     * @throws IOException if and only if it is not possible to copy the blob.
+     */
+    Path fetch(final String name) throws IOException {
+        final Path path = path(name);
+        if (this.temporary && !Files.exists(path)) {
+            this.storage.exportFile(this.contentId, name, path);
+            reserve(Files.size(path));
+        }
+        return path;
+    }
+
+    /**
+     * Stores the blob of the workspace in the storage. The local file is moved into the storage and must not
+     * be read afterwards.
+     * @param name the name of the blob.
+     * @throws IOException if and only if it is not possible to store the blob.
+     */
+    void commit(final String name) throws IOException {
+        if (this.temporary) {
+            this.storage.importFile(this.contentId, name, path(name));
+        }
+    }
+
+    /**
+     * Charges the bytes of a file before it is written to the workspace, e.g. an intermediate file or a target.
+     * @param bytes the expected size of the file.
+     */
+    void reserve(final long bytes) {
+        if (this.scratch) {
+            final long charged = Math.max(this.reserved, this.staged);
+            this.staged += bytes;
+            if (this.staged > charged) {
+                STAGED_BYTES.addAndGet(this.staged - charged);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.temporary) {
+            try {
+                Files.walkFileTree(this.directory, new DeleteDirectoryVisitor());
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Unable to delete workspace " + this.directory, e);
+            }
+            STAGED_BYTES.addAndGet(-Math.max(this.reserved, this.staged));
+            this.reserved = 0;
+            this.staged = 0;
+        }
+    }
+}
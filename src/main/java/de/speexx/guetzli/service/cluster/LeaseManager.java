@@ -0,0 +1,429 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.cluster;
+
+import de.speexx.guetzli.service.Configuration;
+import de.speexx.guetzli.service.storage.FileSystemStorage;
+import de.speexx.guetzli.service.storage.Storage;
+import de.speexx.guetzli.service.storage.Storages;
+import de.speexx.guetzli.service.storage.WriteBehindStorage;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Coordinates several nodes working on one shared filesystem storage with lease files.
+ * <p>New content IDs are {@linkplain #enqueue(java.lang.String) enqueued} as marker files in the
+ * <code>queue</code> directory. A node {@linkplain #acquire(java.lang.String) acquires} a lease before it
+ * starts a job. The lease is a file in the <code>leases</code> directory created atomically with
+ * {@link StandardOpenOption#CREATE_NEW}. It contains the node ID and an expiry timestamp and is
+ * {@linkplain #renewAll() renewed} periodically. Leases of dead nodes expire and can be taken over by other
+ * nodes. Expired leases are first renamed atomically, so only one node can take over a lease. Each lease
+ * content has a unique token: a renamed lease with another token was renewed or taken over in the meantime and
+ * is restored. The same
+ * mechanism {@linkplain #electLeader() elects} a single leader node.</p>
+ * <p>The clocks of all nodes must be synchronized.</p>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.cluster.enabled</code></dt>
+ *   <dd>{@literal true} to coordinate the nodes. Default is {@literal false}.</dd>
+ *   <dt><code>guetzli.service.cluster.directory</code></dt>
+ *   <dd>The shared directory of queue and leases. Default is <code>.cluster</code> in the base directory of
+ *     the filesystem storage.</dd>
+ *   <dt><code>guetzli.service.cluster.node</code></dt>
+ *   <dd>The unique ID of this node. Default is the host name with a random suffix.</dd>
+ *   <dt><code>guetzli.service.cluster.lease</code></dt>
+ *   <dd>The lease duration in milliseconds. Default is {@value #DEFAULT_LEASE_MILLIS}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class LeaseManager {
+
+    private static final Logger LOG = Logger.getLogger(LeaseManager.class.getSimpleName());
+
+    static final long DEFAULT_LEASE_MILLIS = 60_000;
+    static final String LEADER = "leader";
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String NODE_KEY = "node";
+    private static final String EXPIRES_KEY = "expires";
+    private static final String TOKEN_KEY = "token";
+
+    private static volatile LeaseManager instance;
+    private static volatile boolean initialized;
+
+    private final Path queueDirectory;
+    private final Path leaseDirectory;
+    private final String nodeId;
+    private final long leaseMillis;
+    /** The held leases with the time of the last renewal. */
+    private final Map<String, Long> held = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new manager.
+     * @param directory the shared directory.
+     * @param nodeId the unique ID of this node.
+     * @param leaseMillis the lease duration in milliseconds.
+     * @throws UncheckedIOException if and only if it is not possible to create the directories.
+     */
+    public LeaseManager(final Path directory, final String nodeId, final long leaseMillis) throws UncheckedIOException {
+        this.queueDirectory = directory.resolve("queue");
+        this.leaseDirectory = directory.resolve("leases");
+        this.nodeId = nodeId;
+        this.leaseMillis = leaseMillis;
+        try {
+            Files.createDirectories(this.queueDirectory);
+            Files.createDirectories(this.leaseDirectory);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The manager of this node.
+     * @return the manager or {@code null} if the coordination is not enabled.
+     */
+    public static LeaseManager instance() {
+        if (!initialized) {
+            synchronized (LeaseManager.class) {
+                if (!initialized) {
+                    instance = createInstance();
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    static LeaseManager createInstance() {
+        if (!Configuration.booleanValue("guetzli.service.cluster.enabled", false)) {
+            return null;
+        }
+        final String configured = Configuration.stringValue("guetzli.service.cluster.directory", null);
+        final Path directory;
+        if (configured != null) {
+            directory = Paths.get(configured);
+        } else {
+            final Storage storage = Storages.defaultStorage();
+            final Storage backend = storage instanceof WriteBehindStorage ? ((WriteBehindStorage) storage).getDelegate() : storage;
+            if (!(backend instanceof FileSystemStorage)) {
+                LOG.log(Level.WARNING, "No cluster directory for storage {0}. Coordination disabled.", backend);
+                return null;
+            }
+            directory = ((FileSystemStorage) backend).getBasePath().resolve(".cluster");
+        }
+        final String nodeId = Configuration.stringValue("guetzli.service.cluster.node", defaultNodeId());
+        LOG.log(Level.INFO, "Coordinate node {0} with directory {1}", new Object[] {nodeId, directory});
+        return new LeaseManager(directory, nodeId,
+                                Configuration.longValue("guetzli.service.cluster.lease", DEFAULT_LEASE_MILLIS));
+    }
+
+    static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (final IOException e) {
+            host = "node";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * The ID of this node.
+     * @return the node ID. Never {@code null}.
+     */
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * Adds a content ID to the shared queue.
+     * @param contentId the content ID.
+     * @throws IOException if and only if it is not possible to write the marker file.
+     */
+    public void enqueue(final String contentId) throws IOException {
+        try {
+            Files.createFile(this.queueDirectory.resolve(contentId));
+        } catch (final FileAlreadyExistsException e) {
+            LOG.log(Level.FINE, "Content ID {0} already enqueued", contentId);
+        }
+    }
+
+    /**
+     * Removes a content ID from the shared queue.
+     * @param contentId the content ID.
+     * @throws IOException if and only if it is not possible to delete the marker file.
+     */
+    public void dequeue(final String contentId) throws IOException {
+        Files.deleteIfExists(this.queueDirectory.resolve(contentId));
+    }
+
+    /**
+     * The oldest content IDs of the shared queue without a valid lease. The content IDs can be taken over by
+     * this node.
+     * @param maxEntries the maximum number of content IDs.
+     * @return the content IDs. Never {@code null}.
+     * @throws IOException if and only if it is not possible to list the queue.
+     */
+    public List<String> claimable(final int maxEntries) throws IOException {
+        return claimable(maxEntries, contentId -> true);
+    }
+
+    /**
+     * The oldest content IDs of the shared queue without a valid lease which pass the filter, e.g. content IDs
+     * not marked as deleted.
+     * @param maxEntries the maximum number of content IDs.
+     * @param filter the content IDs to claim.
+     * @return the content IDs. Never {@code null}.
+     * @throws IOException if and only if it is not possible to list the queue.
+     */
+    public List<String> claimable(final int maxEntries, final Predicate<String> filter) throws IOException {
+        final List<Path> queued = new ArrayList<>();
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(this.queueDirectory)) {
+            entries.forEach(queued::add);
+        }
+        final long now = System.currentTimeMillis();
+        return queued.stream()
+                     .sorted(Comparator.comparingLong(LeaseManager::lastModified))
+                     .map(path -> path.getFileName().toString())
+                     .filter(contentId -> !isLeased(contentId, now))
+                     .filter(filter)
+                     .limit(Math.max(0, maxEntries))
+                     .collect(Collectors.toList());
+    }
+
+    /**
+     * Acquires a lease. A lease already held by this node is renewed.
+     * @param name the name of the lease.
+     * @return {@code true} if this node holds the lease.
+     */
+    public boolean acquire(final String name) {
+        final Path lease = leasePath(name);
+        try {
+            if (create(lease)) {
+                this.held.put(name, System.currentTimeMillis());
+                return true;
+            }
+            final Properties current = read(lease);
+            if (this.nodeId.equals(current.getProperty(NODE_KEY))) {
+                return renew(name);
+            }
+            if (!isExpired(current, lease, System.currentTimeMillis())) {
+                return false;
+            }
+            return takeOver(name, current);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to acquire lease " + name, e);
+            return false;
+        }
+    }
+
+    /**
+     * Takes over an expired lease.
+     * @param name the name of the lease.
+     * @param expiredLease the content of the expired lease.
+     * @return {@code true} if this node holds the lease.
+     */
+    boolean takeOver(final String name, final Properties expiredLease) throws IOException {
+        final Path lease = leasePath(name);
+        // only one node can rename the expired lease
+        final Path expired = lease.resolveSibling(lease.getFileName() + "." + this.nodeId + "." + System.nanoTime() + ".expired");
+        try {
+            Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final NoSuchFileException e) {
+            return false;
+        }
+        try {
+            if (!isSameLease(expiredLease, read(expired))) {
+                // renewed or taken over by another node since the lease was read
+                restore(expired, lease);
+                return false;
+            }
+        } finally {
+            Files.deleteIfExists(expired);
+        }
+        LOG.log(Level.INFO, "Took over expired lease {0} of node {1}", new Object[] {name, expiredLease.getProperty(NODE_KEY)});
+        if (create(lease)) {
+            this.held.put(name, System.currentTimeMillis());
+            return true;
+        }
+        return false;
+    }
+
+    static boolean isSameLease(final Properties expected, final Properties actual) {
+        return Objects.equals(expected.getProperty(NODE_KEY), actual.getProperty(NODE_KEY))
+                && Objects.equals(expected.getProperty(EXPIRES_KEY), actual.getProperty(EXPIRES_KEY))
+                && Objects.equals(expected.getProperty(TOKEN_KEY), actual.getProperty(TOKEN_KEY));
+    }
+
+    /**
+     * Moves a lease renamed by mistake back. A hard link never replaces a lease created in the meantime.
+     */
+    static void restore(final Path renamed, final Path lease) throws IOException {
+        try {
+            Files.createLink(lease, renamed);
+        } catch (final FileAlreadyExistsException e) {
+            LOG.log(Level.WARNING, "Unable to restore lease {0}: replaced in the meantime", lease);
+        } catch (final UnsupportedOperationException e) {
+            Files.move(renamed, lease);
+        }
+    }
+
+    /**
+     * Releases a lease held by this node.
+     * @param name the name of the lease.
+     */
+    public void release(final String name) {
+        if (this.held.remove(name) == null) {
+            return;
+        }
+        final Path lease = leasePath(name);
+        try {
+            if (this.nodeId.equals(read(lease).getProperty(NODE_KEY))) {
+                Files.deleteIfExists(lease);
+            }
+        } catch (final NoSuchFileException e) {
+            LOG.log(Level.FINE, "Lease {0} already removed", name);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to release lease " + name, e);
+        }
+    }
+
+    /**
+     * Renews all leases held by this node. Must be called more often than the lease duration.
+     */
+    public void renewAll() {
+        for (final String name : this.held.keySet()) {
+            renew(name);
+        }
+    }
+
+    boolean renew(final String name) {
+        final Path lease = leasePath(name);
+        try {
+            final Properties current = read(lease);
+            if (!this.nodeId.equals(current.getProperty(NODE_KEY))) {
+                this.held.remove(name);
+                LOG.log(Level.WARNING, "Lost lease {0} to node {1}", new Object[] {name, current.getProperty(NODE_KEY)});
+                return false;
+            }
+            final Path temp = Files.createTempFile(this.leaseDirectory, ".renew-", ".tmp");
+            Files.write(temp, content());
+            Files.move(temp, lease, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            this.held.put(name, System.currentTimeMillis());
+            return true;
+        } catch (final IOException e) {
+            this.held.remove(name);
+            LOG.log(Level.WARNING, "Unable to renew lease " + name, e);
+            return false;
+        }
+    }
+
+    /**
+     * Acquires or renews the leader lease.
+     * @return {@code true} if this node is the leader.
+     */
+    public boolean electLeader() {
+        return acquire(LEADER);
+    }
+
+    /**
+     * Whether this node is the leader. The leadership is lost if the leader lease wasn't renewed in time.
+     * @return {@code true} if this node is the leader.
+     */
+    public boolean isLeader() {
+        final Long renewed = this.held.get(LEADER);
+        return renewed != null && System.currentTimeMillis() - renewed < this.leaseMillis;
+    }
+
+    boolean isLeased(final String name, final long now) {
+        final Path lease = leasePath(name);
+        try {
+            return !isExpired(read(lease), lease, now);
+        } catch (final NoSuchFileException e) {
+            return false;
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Unable to read lease {0}: {1}", new Object[] {name, e});
+            return true;
+        }
+    }
+
+    boolean isExpired(final Properties lease, final Path path, final long now) {
+        final String expires = lease.getProperty(EXPIRES_KEY);
+        if (expires == null) {
+            // lease file created but not yet written
+            return now - lastModified(path) > this.leaseMillis;
+        }
+        return now > Long.parseLong(expires);
+    }
+
+    boolean create(final Path lease) throws IOException {
+        try {
+            Files.write(lease, content(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (final FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    byte[] content() {
+        final long expires = System.currentTimeMillis() + this.leaseMillis;
+        return (NODE_KEY + "=" + this.nodeId + "\n"
+                + EXPIRES_KEY + "=" + expires + "\n"
+                + TOKEN_KEY + "=" + UUID.randomUUID() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Properties read(final Path lease) throws IOException {
+        final Properties p = new Properties();
+        p.load(new StringReader(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8)));
+        return p;
+    }
+
+    Path leasePath(final String name) {
+        return this.leaseDirectory.resolve(name + LEASE_SUFFIX);
+    }
+
+    static long lastModified(final Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (final IOException e) {
+            return 0;
+        }
+    }
+}
@@ -51,7 +51,7 @@ public class NewContentListener {
 
         final String contentId = imageEvent.getContentId();
         if (contentId != null) {
-            this.managedExecutorService.execute(() -> NewContentListener.this.imgSrv.transformToGuetzli(contentId));
+            this.imgSrv.process(contentId, this.managedExecutorService);
             LOG.log(Level.INFO, "Enqueued guetzli transformation for content ID {0}", contentId);
         }
     }
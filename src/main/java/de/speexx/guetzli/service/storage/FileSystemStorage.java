@@ -0,0 +1,468 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores blobs and metadata in the local filesystem. Each content ID has its own directory. Blobs are files
+ * with the name of the blob, metadata are property files with the name of the metadata. Metadata are written
+ * to a temporary file, forced to disk and atomically renamed, so a crash never leaves torn metadata. The
+ * content directory with the renames is forced to disk on {@linkplain #flush(java.lang.String) flush} only,
+ * e.g. for the final state of a job.
+ * <p>The content directories are sharded by the first four characters of the content ID, e.g.
+ * <code>base/ab/cd/abcd...</code>, so a directory never contains more than 256 shard directories and a leaf
+ * only <sup>1</sup>/<sub>65536</sub> of all content IDs. Content IDs of the flat layout
+ * <code>base/&lt;id&gt;</code> are found until they are
+ * {@linkplain #migrateToShardedLayout(int, java.util.function.Predicate) migrated}.</p>
+ * <p>Content directories are only created by {@link #create(java.lang.String)} and always in the sharded
+ * layout. Writes of unknown or deleted content IDs fail. Writes and deletes hold a lock of the content ID, so a
+ * migration never moves a directory in use.</p>
+ * @author sascha.kohlmann
+ */
+public final class FileSystemStorage implements Storage {
+
+    private static final Logger LOG = Logger.getLogger(FileSystemStorage.class.getSimpleName());
+
+    private static final int SHARD_NAME_LENGTH = 2;
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path basePath;
+    /** Shared by the writes of a content ID, exclusive for the migration. Striped by the content ID. */
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+    /** Content IDs with metadata written since the last flush. */
+    private final Set<String> unflushed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a new storage for the given base directory. The directory is created if it doesn't exist.
+     * @param basePath the base directory.
+     * @throws UncheckedIOException if and only if it is not possible to create the base directory.
+     */
+    public FileSystemStorage(final Path basePath) throws UncheckedIOException {
+        this.basePath = pathExists(Objects.requireNonNull(basePath));
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new ReentrantReadWriteLock();
+        }
+        LOG.log(Level.INFO, "guetzli-service storage base path: {0}", this.basePath);
+    }
+
+    /**
+     * The base directory of the storage.
+     * @return the base directory. Never {@code null}.
+     */
+    public Path getBasePath() {
+        return this.basePath;
+    }
+
+    @Override
+    public void create(final String contentId) throws IOException {
+        final Path directory = shardedDirectory(contentId);
+        withContent(contentId, () -> Files.createDirectories(directory));
+    }
+
+    @Override
+    public void write(final String contentId, final String name, final InputStream in) throws IOException {
+        withContent(contentId, () -> Files.copy(in, contentDirectory(contentId).resolve(name), StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    @Override
+    public void importFile(final String contentId, final String name, final Path file) throws IOException {
+        withContent(contentId, () -> {
+            final Path target = contentDirectory(contentId).resolve(name);
+            if (target.equals(file)) {
+                return target;
+            }
+            try {
+                return Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                // another file system, e.g. a scratch directory: copy next to the target and rename
+                final Path tempFile = Files.createTempFile(target.getParent(), "." + name + "-", ".tmp");
+                try {
+                    Files.copy(file, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+                    Files.delete(file);
+                    return target;
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+        });
+    }
+
+    @Override
+    public InputStream read(final String contentId, final String name) throws IOException, FileNotFoundException {
+        try {
+            return openBlob(contentId, name);
+        } catch (final FileNotFoundException e) {
+            // the content directory might be migrated in the meantime
+            return openBlob(contentId, name);
+        }
+    }
+
+    InputStream openBlob(final String contentId, final String name) throws IOException {
+        final Path file = existingDirectory(contentId).resolve(name);
+        try {
+            return privileged(() -> Files.newInputStream(file, READ));
+        } catch (final NoSuchFileException e) {
+            throw notFound(contentId, name);
+        }
+    }
+
+    @Override
+    public void exportFile(final String contentId, final String name, final Path file) throws IOException, FileNotFoundException {
+        try (final InputStream in = read(contentId, name)) {
+            privileged(() -> Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING));
+        }
+    }
+
+    @Override
+    public boolean exists(final String contentId, final String name) throws IOException {
+        final Path file = existingDirectory(contentId).resolve(name);
+        return privileged(() -> Files.exists(file));
+    }
+
+    @Override
+    public long size(final String contentId, final String name) throws IOException, FileNotFoundException {
+        final Path file = existingDirectory(contentId).resolve(name);
+        try {
+            return privileged(() -> Files.size(file));
+        } catch (final NoSuchFileException e) {
+            throw notFound(contentId, name);
+        }
+    }
+
+    @Override
+    public void remove(final String contentId, final String name) throws IOException {
+        withContent(contentId, () -> Files.deleteIfExists(existingDirectory(contentId).resolve(name)));
+    }
+
+    @Override
+    public Properties readMetadata(final String contentId, final String name) throws IOException, FileNotFoundException {
+        try {
+            return loadMetadata(contentId, name);
+        } catch (final FileNotFoundException e) {
+            // the content directory might be migrated in the meantime
+            return loadMetadata(contentId, name);
+        }
+    }
+
+    Properties loadMetadata(final String contentId, final String name) throws IOException {
+        final Path metaFile = existingDirectory(contentId).resolve(name);
+        try (final BufferedReader reader = privileged(() -> Files.newBufferedReader(metaFile, StandardCharsets.UTF_8))) {
+            final Properties p = new Properties();
+            p.load(reader);
+            return p;
+        } catch (final NoSuchFileException e) {
+            throw notFound(contentId, name);
+        }
+    }
+
+    @Override
+    public void writeMetadata(final String contentId, final String name, final Properties metadata) throws IOException {
+        withContent(contentId, () -> {
+            final Path directory = contentDirectory(contentId);
+            final Path metaFile = directory.resolve(name);
+            final Path tempFile = Files.createTempFile(directory, "." + name + "-", ".tmp");
+            try {
+                try (final FileChannel channel = FileChannel.open(tempFile, WRITE, TRUNCATE_EXISTING);
+                     final Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1)) {
+                    metadata.store(writer, "");
+                    writer.flush();
+                    channel.force(true);
+                }
+                Files.move(tempFile, metaFile, StandardCopyOption.ATOMIC_MOVE);
+                this.unflushed.add(contentId);
+                return metaFile;
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        });
+    }
+
+    /**
+     * Forces the content directory to disk if metadata were written since the last flush.
+     * @param contentId the content ID
+     * @throws IOException if and only if it is not possible to force the files to disk.
+     */
+    @Override
+    public void flush(final String contentId) throws IOException {
+        if (!this.unflushed.remove(contentId)) {
+            return;
+        }
+        withContent(contentId, () -> {
+            forceDirectory(contentDirectory(contentId));
+            return null;
+        });
+    }
+
+    static void forceDirectory(final Path directory) {
+        try (final FileChannel channel = FileChannel.open(directory, READ)) {
+            channel.force(true);
+        } catch (final IOException e) {
+            // not supported by all platforms
+            LOG.log(Level.FINE, "Unable to force directory {0} to disk: {1}", new Object[] {directory, e});
+        }
+    }
+
+    @Override
+    public void delete(final String contentId) throws IOException {
+        this.unflushed.remove(contentId);
+        try {
+            withContent(contentId, () -> {
+                final Path targetDir = existingDirectory(contentId);
+                LOG.log(Level.INFO, "Delete ID {0} in directory {1}", new Object[] {contentId, targetDir});
+                return Files.walkFileTree(targetDir, new DeleteDirectoryVisitor());
+            });
+        } catch (final NoSuchFileException e) {
+            LOG.log(Level.FINE, "No directory for ID {0}", contentId);
+        }
+    }
+
+    @Override
+    public Iterator<String> contentIds() throws IOException {
+        final Set<String> ids = privileged(() -> {
+            final Set<String> found = new HashSet<>();
+            try (final DirectoryStream<Path> entries = Files.newDirectoryStream(this.basePath, path -> Files.isDirectory(path))) {
+                for (final Path entry : entries) {
+                    final String name = entry.getFileName().toString();
+                    if (isReservedName(name)) {
+                        continue;
+                    }
+                    if (isShardDirectoryName(name)) {
+                        collectShardedContentIds(entry, found);
+                    } else {
+                        found.add(name);
+                    }
+                }
+            }
+            return found;
+        });
+        return ids.iterator();
+    }
+
+    void collectShardedContentIds(final Path firstLevel, final Set<String> ids) throws IOException {
+        assert firstLevel != null;
+        assert ids != null;
+
+        try (final DirectoryStream<Path> secondLevels = Files.newDirectoryStream(firstLevel, path -> Files.isDirectory(path))) {
+            for (final Path secondLevel : secondLevels) {
+                try (final DirectoryStream<Path> contents = Files.newDirectoryStream(secondLevel, path -> Files.isDirectory(path))) {
+                    for (final Path content : contents) {
+                        ids.add(content.getFileName().toString());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the directory of the content ID. The directory is not created.
+     * @param contentId the content ID
+     * @return the directory. Never {@code null}.
+     */
+    @Override
+    public Path localDirectory(final String contentId) {
+        return existingDirectory(contentId);
+    }
+
+    /**
+     * The existing directory of a content ID to write to. Must hold the lock of the content ID.
+     * @throws FileNotFoundException if the content ID isn't {@linkplain #create(java.lang.String) created} or
+     *                               is deleted.
+     */
+    Path contentDirectory(final String contentId) throws FileNotFoundException {
+        final Path directory = existingDirectory(contentId);
+        if (!Files.isDirectory(directory)) {
+            throw new FileNotFoundException("No content ID " + contentId);
+        }
+        return directory;
+    }
+
+    ReadWriteLock lock(final String contentId) {
+        return this.locks[Math.floorMod(contentId.hashCode(), this.locks.length)];
+    }
+
+    <T> T withContent(final String contentId, final PrivilegedExceptionAction<T> action) throws IOException {
+        final Lock lock = lock(contentId).readLock();
+        lock.lock();
+        try {
+            return privileged(action);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves content directories of the flat storage layout <code>base/&lt;id&gt;</code> into the sharded
+     * layout <code>base/ab/cd/&lt;id&gt;</code>. Each directory is moved atomically, so lookups keep working
+     * during the migration.
+     * @param maxEntries the maximum number of directories to move with this call.
+     * @param movable checks whether a content ID can be moved now. Content IDs not movable are left untouched
+     *                and will be moved by a later call.
+     * @return the number of moved directories.
+     * @throws IOException if and only if it is not possible to list the base directory.
+     */
+    public int migrateToShardedLayout(final int maxEntries, final Predicate<String> movable) throws IOException {
+        final List<Path> flat = privileged(() -> {
+            final List<Path> found = new ArrayList<>();
+            try (final DirectoryStream<Path> entries = Files.newDirectoryStream(this.basePath, path -> Files.isDirectory(path))) {
+                for (final Path entry : entries) {
+                    if (found.size() >= maxEntries) {
+                        break;
+                    }
+                    final String name = entry.getFileName().toString();
+                    if (!isShardDirectoryName(name) && !isReservedName(name)) {
+                        found.add(entry);
+                    }
+                }
+            }
+            return found;
+        });
+
+        int moved = 0;
+        for (final Path legacy : flat) {
+            final String contentId = legacy.getFileName().toString();
+            if (!movable.test(contentId)) {
+                continue;
+            }
+            // content IDs with writes in progress are moved by a later call
+            final Lock lock = lock(contentId).writeLock();
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                final Path sharded = shardedDirectory(contentId);
+                privileged(() -> {
+                    Files.createDirectories(sharded.getParent());
+                    return Files.move(legacy, sharded, StandardCopyOption.ATOMIC_MOVE);
+                });
+                moved++;
+            } catch (final IOException ex) {
+                LOG.log(Level.WARNING, "Unable to migrate content ID " + contentId, ex);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (moved > 0) {
+            LOG.log(Level.INFO, "Migrated {0} content IDs to the sharded storage layout", moved);
+        }
+        return moved;
+    }
+
+    /**
+     * Resolves the directory of a content ID without creating it. Returns the flat layout directory if
+     * it exists, otherwise the sharded directory.
+     */
+    Path existingDirectory(final String contentId) {
+        assert contentId != null;
+
+        final Path sharded = shardedDirectory(contentId);
+        if (Files.isDirectory(sharded)) {
+            return sharded;
+        }
+        final Path legacy = Paths.get(this.basePath.toString(), contentId);
+        if (Files.isDirectory(legacy)) {
+            return legacy;
+        }
+        return sharded;
+    }
+
+    Path shardedDirectory(final String contentId) {
+        assert contentId != null;
+
+        final String padded = contentId.length() >= SHARD_NAME_LENGTH * 2 ? contentId : (contentId + "0000").substring(0, SHARD_NAME_LENGTH * 2);
+        return Paths.get(this.basePath.toString(), padded.substring(0, SHARD_NAME_LENGTH), padded.substring(SHARD_NAME_LENGTH, SHARD_NAME_LENGTH * 2), contentId);
+    }
+
+    static boolean isShardDirectoryName(final String name) {
+        return name.length() == SHARD_NAME_LENGTH;
+    }
+
+    /**
+     * Names starting with a dot are reserved for shared data of the service, e.g. the cluster coordination,
+     * and are never content IDs.
+     */
+    static boolean isReservedName(final String name) {
+        return name.startsWith(".");
+    }
+
+    static Path pathExists(final Path path) throws UncheckedIOException {
+        assert path != null;
+
+        if (!Files.exists(path)) {
+            try {
+                return privileged(() -> Files.createDirectories(path));
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return path;
+    }
+
+    static FileNotFoundException notFound(final String contentId, final String name) {
+        return new FileNotFoundException("No " + name + " for content ID " + contentId);
+    }
+
+    static <T> T privileged(final PrivilegedExceptionAction<T> action) throws IOException {
+        try {
+            return AccessController.doPrivileged(action);
+        } catch (final PrivilegedActionException ex) {
+            final Exception cause = ex.getException();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds all blobs and metadata in the heap. The data is lost on shutdown. Intended for tests and benchmarks.
+ * @author sascha.kohlmann
+ */
+public final class InMemoryStorage implements Storage {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Map<String, Content> contents = new ConcurrentHashMap<>();
+
+    @Override
+    public void write(final String contentId, final String name, final InputStream in) throws IOException {
+        Objects.requireNonNull(name);
+        content(contentId).blobs.put(name, toBytes(in));
+    }
+
+    @Override
+    public void importFile(final String contentId, final String name, final Path file) throws IOException {
+        Objects.requireNonNull(name);
+        content(contentId).blobs.put(name, Files.readAllBytes(file));
+        Files.delete(file);
+    }
+
+    @Override
+    public InputStream read(final String contentId, final String name) throws IOException, FileNotFoundException {
+        return new ByteArrayInputStream(blob(contentId, name));
+    }
+
+    @Override
+    public void exportFile(final String contentId, final String name, final Path file) throws IOException, FileNotFoundException {
+        Files.write(file, blob(contentId, name));
+    }
+
+    @Override
+    public boolean exists(final String contentId, final String name) {
+        final Content content = this.contents.get(contentId);
+        return content != null && content.blobs.containsKey(name);
+    }
+
+    @Override
+    public long size(final String contentId, final String name) throws IOException, FileNotFoundException {
+        return blob(contentId, name).length;
+    }
+
+    @Override
+    public void remove(final String contentId, final String name) {
+        final Content content = this.contents.get(contentId);
+        if (content != null) {
+            content.blobs.remove(name);
+        }
+    }
+
+    @Override
+    public Properties readMetadata(final String contentId, final String name) throws IOException, FileNotFoundException {
+        final Content content = this.contents.get(contentId);
+        final Properties metadata = content == null ? null : content.metadata.get(name);
+        if (metadata == null) {
+            throw new FileNotFoundException("No " + name + " for content ID " + contentId);
+        }
+        return (Properties) metadata.clone();
+    }
+
+    @Override
+    public void writeMetadata(final String contentId, final String name, final Properties metadata) {
+        Objects.requireNonNull(name);
+        content(contentId).metadata.put(name, (Properties) metadata.clone());
+    }
+
+    @Override
+    public void delete(final String contentId) {
+        this.contents.remove(contentId);
+    }
+
+    @Override
+    public Iterator<String> contentIds() {
+        return new HashSet<>(this.contents.keySet()).iterator();
+    }
+
+    @Override
+    public Path localDirectory(final String contentId) {
+        return null;
+    }
+
+    byte[] blob(final String contentId, final String name) throws FileNotFoundException {
+        final Content content = this.contents.get(contentId);
+        final byte[] data = content == null ? null : content.blobs.get(name);
+        if (data == null) {
+            throw new FileNotFoundException("No " + name + " for content ID " + contentId);
+        }
+        return data;
+    }
+
+    Content content(final String contentId) {
+        Objects.requireNonNull(contentId);
+        return this.contents.computeIfAbsent(contentId, id -> new Content());
+    }
+
+    static byte[] toBytes(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Content {
+        final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+        final Map<String, Properties> metadata = new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Stores blobs and metadata in a bucket of an S3 compatible object store, e.g. a local <em>MinIO</em> instance.
+ * The object key of a blob or metadata is <code>&lt;contentId&gt;/&lt;name&gt;</code>. Requests use path style
+ * addressing and are signed with AWS signature version 4. The payload is not signed.
+ * <p>The blobs are not on the local filesystem, so <code>guetzli</code> runs on a local copy of the blobs.</p>
+ * <p>Requests time out after the configured connect and read timeout, so a hanging object store doesn't block
+ * the transformation threads forever.</p>
+ * @author sascha.kohlmann
+ */
+public final class ObjectStoreStorage implements Storage {
+
+    private static final Logger LOG = Logger.getLogger(ObjectStoreStorage.class.getSimpleName());
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String HMAC = "HmacSHA256";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final DateTimeFormatter AMZ_DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int NOT_FOUND = 404;
+
+    static final int DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private final URI endpoint;
+    private final String bucket;
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+    private final int timeoutMillis;
+
+    /**
+     * Creates a new storage for a bucket with a timeout of {@value #DEFAULT_TIMEOUT_MILLIS} milliseconds.
+     * @param endpoint the endpoint of the object store, e.g. <code>http://localhost:9000</code>.
+     * @param bucket the name of the existing bucket.
+     * @param region the region of the bucket, e.g. <code>us-east-1</code>.
+     * @param accessKey the access key.
+     * @param secretKey the secret key.
+     * @throws NullPointerException if a parameter is {@code null}.
+     */
+    public ObjectStoreStorage(final URI endpoint, final String bucket, final String region, final String accessKey, final String secretKey) {
+        this(endpoint, bucket, region, accessKey, secretKey, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a new storage for a bucket.
+     * @param endpoint the endpoint of the object store, e.g. <code>http://localhost:9000</code>.
+     * @param bucket the name of the existing bucket.
+     * @param region the region of the bucket, e.g. <code>us-east-1</code>.
+     * @param accessKey the access key.
+     * @param secretKey the secret key.
+     * @param timeoutMillis the connect and read timeout of the requests in milliseconds.
+     * @throws NullPointerException if a parameter is {@code null}.
+     * @throws IllegalArgumentException if the timeout is not positive.
+     */
+    public ObjectStoreStorage(final URI endpoint, final String bucket, final String region, final String accessKey, final String secretKey, final int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutMillis);
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.endpoint = Objects.requireNonNull(endpoint);
+        this.bucket = Objects.requireNonNull(bucket);
+        this.region = Objects.requireNonNull(region);
+        this.accessKey = Objects.requireNonNull(accessKey);
+        this.secretKey = Objects.requireNonNull(secretKey);
+        LOG.log(Level.INFO, "guetzli-service storage bucket: {0}/{1}", new Object[] {endpoint, bucket});
+    }
+
+    @Override
+    public void write(final String contentId, final String name, final InputStream in) throws IOException {
+        final Path file = Files.createTempFile("guetzli-upload-", ".tmp");
+        try {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            put(key(contentId, name), Files.size(file), out -> Files.copy(file, out));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Override
+    public void importFile(final String contentId, final String name, final Path file) throws IOException {
+        put(key(contentId, name), Files.size(file), out -> Files.copy(file, out));
+        Files.delete(file);
+    }
+
+    @Override
+    public InputStream read(final String contentId, final String name) throws IOException, FileNotFoundException {
+        final String key = key(contentId, name);
+        final HttpURLConnection connection = request("GET", key, new TreeMap<>());
+        try {
+            checkResponse(connection, "GET", key);
+        } catch (final IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        return new FilterInputStream(connection.getInputStream()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void exportFile(final String contentId, final String name, final Path file) throws IOException, FileNotFoundException {
+        try (final InputStream in = read(contentId, name)) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public boolean exists(final String contentId, final String name) throws IOException {
+        final HttpURLConnection connection = request("HEAD", key(contentId, name), new TreeMap<>());
+        try {
+            final int code = connection.getResponseCode();
+            if (code == NOT_FOUND) {
+                return false;
+            }
+            checkResponse(connection, "HEAD", key(contentId, name));
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public long size(final String contentId, final String name) throws IOException, FileNotFoundException {
+        final String key = key(contentId, name);
+        final HttpURLConnection connection = request("HEAD", key, new TreeMap<>());
+        try {
+            checkResponse(connection, "HEAD", key);
+            return connection.getContentLengthLong();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void remove(final String contentId, final String name) throws IOException {
+        deleteObject(key(contentId, name));
+    }
+
+    @Override
+    public Properties readMetadata(final String contentId, final String name) throws IOException, FileNotFoundException {
+        try (final Reader reader = new InputStreamReader(read(contentId, name), StandardCharsets.UTF_8)) {
+            final Properties p = new Properties();
+            p.load(reader);
+            return p;
+        }
+    }
+
+    @Override
+    public void writeMetadata(final String contentId, final String name, final Properties metadata) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (final Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8)) {
+            metadata.store(writer, "");
+        }
+        final byte[] data = buffer.toByteArray();
+        put(key(contentId, name), data.length, out -> out.write(data));
+    }
+
+    @Override
+    public void delete(final String contentId) throws IOException {
+        final List<String> keys = new ArrayList<>();
+        list(contentId + "/", false, keys::add);
+        for (final String key : keys) {
+            deleteObject(key);
+        }
+    }
+
+    @Override
+    public Iterator<String> contentIds() throws IOException {
+        final Set<String> ids = new HashSet<>();
+        list("", true, prefix -> ids.add(prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix));
+        return ids.iterator();
+    }
+
+    @Override
+    public Path localDirectory(final String contentId) {
+        return null;
+    }
+
+    void put(final String key, final long length, final BodyWriter body) throws IOException {
+        final HttpURLConnection connection = request("PUT", key, new TreeMap<>());
+        try {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            try (final OutputStream out = connection.getOutputStream()) {
+                body.write(out);
+            }
+            checkResponse(connection, "PUT", key);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    void deleteObject(final String key) throws IOException {
+        final HttpURLConnection connection = request("DELETE", key, new TreeMap<>());
+        try {
+            if (connection.getResponseCode() != NOT_FOUND) {
+                checkResponse(connection, "DELETE", key);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Lists the bucket with <em>ListObjectsV2</em>.
+     * @param prefix the key prefix
+     * @param commonPrefixes if {@code true} the common prefixes up to the next <code>/</code> are consumed,
+     *                       otherwise the keys.
+     * @param consumer consumes the prefixes or keys
+     */
+    void list(final String prefix, final boolean commonPrefixes, final Consumer<String> consumer) throws IOException {
+        String continuationToken = null;
+        do {
+            final Map<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            query.put("prefix", prefix);
+            if (commonPrefixes) {
+                query.put("delimiter", "/");
+            }
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            final HttpURLConnection connection = request("GET", "", query);
+            try {
+                checkResponse(connection, "LIST", prefix);
+                final Document doc;
+                try (final InputStream in = connection.getInputStream()) {
+                    doc = newDocumentBuilder().parse(in);
+                } catch (final ParserConfigurationException | SAXException e) {
+                    throw new IOException("Unable to parse list response for prefix " + prefix, e);
+                }
+                final NodeList entries = doc.getElementsByTagName(commonPrefixes ? "CommonPrefixes" : "Contents");
+                for (int i = 0; i < entries.getLength(); i++) {
+                    final String value = childText((Element) entries.item(i), commonPrefixes ? "Prefix" : "Key");
+                    if (value != null) {
+                        consumer.accept(value);
+                    }
+                }
+                continuationToken = "true".equals(childText(doc.getDocumentElement(), "IsTruncated"))
+                        ? childText(doc.getDocumentElement(), "NextContinuationToken")
+                        : null;
+            } finally {
+                connection.disconnect();
+            }
+        } while (continuationToken != null);
+    }
+
+    static String childText(final Element parent, final String name) {
+        final NodeList children = parent.getElementsByTagName(name);
+        if (children.getLength() == 0) {
+            return null;
+        }
+        return children.item(0).getTextContent();
+    }
+
+    HttpURLConnection request(final String method, final String key, final Map<String, String> query) throws IOException {
+        final String path = canonicalPath(key);
+        final String canonicalQuery = canonicalQuery(query);
+        final URL url = new URL(this.endpoint.getScheme(), this.endpoint.getHost(), this.endpoint.getPort(),
+                                path + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery));
+
+        final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+        final String amzDate = AMZ_DATE.format(now);
+        final String scope = AMZ_DAY.format(now) + "/" + this.region + "/s3/aws4_request";
+        final String host = this.endpoint.getPort() == -1 ? this.endpoint.getHost() : this.endpoint.getHost() + ":" + this.endpoint.getPort();
+        final String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+        final String canonicalRequest = method + "\n"
+                + path + "\n"
+                + canonicalQuery + "\n"
+                + "host:" + host + "\n"
+                + "x-amz-content-sha256:" + UNSIGNED_PAYLOAD + "\n"
+                + "x-amz-date:" + amzDate + "\n"
+                + "\n"
+                + signedHeaders + "\n"
+                + UNSIGNED_PAYLOAD;
+        final String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + hex(sha256(canonicalRequest));
+        final byte[] signingKey = hmac(hmac(hmac(hmac(("AWS4" + this.secretKey).getBytes(StandardCharsets.UTF_8),
+                                                      AMZ_DAY.format(now)), this.region), "s3"), "aws4_request");
+        final String signature = hex(hmac(signingKey, stringToSign));
+
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(this.timeoutMillis);
+        connection.setReadTimeout(this.timeoutMillis);
+        connection.setRequestProperty("x-amz-date", amzDate);
+        connection.setRequestProperty("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        connection.setRequestProperty("Authorization", ALGORITHM + " Credential=" + this.accessKey + "/" + scope
+                + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+        return connection;
+    }
+
+    static void checkResponse(final HttpURLConnection connection, final String method, final String key) throws IOException {
+        final int code = connection.getResponseCode();
+        if (code < 200 || code >= 300) {
+            drain(connection.getErrorStream());
+        }
+        if (code == NOT_FOUND) {
+            throw new FileNotFoundException("No object " + key);
+        }
+        if (code < 200 || code >= 300) {
+            throw new IOException(method + " " + key + " failed with HTTP status " + code + ": " + connection.getResponseMessage());
+        }
+    }
+
+    /**
+     * Parser for the responses of the object store. Document type declarations and external entities are
+     * rejected.
+     */
+    static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setXIncludeAware(false);
+        factory.setExpandEntityReferences(false);
+        return factory.newDocumentBuilder();
+    }
+
+    static void drain(final InputStream error) {
+        if (error == null) {
+            return;
+        }
+        try (final InputStream in = error) {
+            final byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // discard the error body
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Unable to drain error response", e);
+        }
+    }
+
+    String key(final String contentId, final String name) {
+        Objects.requireNonNull(contentId);
+        Objects.requireNonNull(name);
+        return contentId + "/" + name;
+    }
+
+    String canonicalPath(final String key) {
+        final StringBuilder path = new StringBuilder("/").append(encode(this.bucket));
+        if (!key.isEmpty()) {
+            for (final String segment : key.split("/", -1)) {
+                path.append('/').append(encode(segment));
+            }
+        }
+        return path.toString();
+    }
+
+    static String canonicalQuery(final Map<String, String> query) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, String> entry : new TreeMap<>(query).entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(encode(entry.getKey())).append('=').append(encode(entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * URI encoding as required by AWS signature version 4.
+     */
+    static String encode(final String value) {
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            final char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(HEX[c >> 4])).append(Character.toUpperCase(HEX[c & 0xf]));
+            }
+        }
+        return sb.toString();
+    }
+
+    static byte[] sha256(final String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] hmac(final byte[] key, final String value) {
+        try {
+            final Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(final byte[] data) {
+        final char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            chars[i * 2] = HEX[(data[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[data[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    @FunctionalInterface
+    interface BodyWriter {
+        void write(OutputStream out) throws IOException;
+    }
+}
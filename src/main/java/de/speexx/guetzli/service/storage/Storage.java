@@ -0,0 +1,161 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Properties;
+
+/**
+ * Storage for the blobs and the metadata of a content ID. A blob is addressed by the content ID and a name
+ * like <code>source.jpg</code> or <code>target.jpg</code>. Metadata are {@link Properties} also addressed by
+ * the content ID and a name.
+ * <p>Implementations must be thread safe.</p>
+ * @author sascha.kohlmann
+ * @see Storages#defaultStorage()
+ */
+public interface Storage {
+
+    /**
+     * Stores the data of the stream as blob. An existing blob with the same name is replaced.
+     * @param contentId the content ID
+     * @param name the name of the blob
+     * @param in the data of the blob. The stream is not closed.
+     * @throws IOException if and only if it is not possible to store the blob.
+     */
+    void write(String contentId, String name, InputStream in) throws IOException;
+
+    /**
+     * Stores the given local file as blob. The file is moved into the storage if possible, otherwise it is
+     * copied and deleted afterwards. An existing blob with the same name is replaced.
+     * @param contentId the content ID
+     * @param name the name of the blob
+     * @param file the local file
+     * @throws IOException if and only if it is not possible to store the blob.
+     */
+    void importFile(String contentId, String name, Path file) throws IOException;
+
+    /**
+     * Returns a stream to read the blob.
+     * @param contentId the content ID
+     * @param name the name of the blob
+     * @return the stream to read the blob. Never {@code null}.
+     * @throws FileNotFoundException if and only if there is no such blob.
+     * @throws IOException if and only if it is not possible to read the blob.
+     */
+    InputStream read(String contentId, String name) throws IOException, FileNotFoundException;
+
+    /**
+     * Copies the blob into the given local file. An existing file is replaced.
+     * @param contentId the content ID
+     * @param name the name of the blob
+     * @param file the local file
+     * @throws FileNotFoundException if and only if there is no such blob.
+     * @throws IOException if and only if it is not possible to copy the blob.
+     */
+    void exportFile(String contentId, String name, Path file) throws IOException, FileNotFoundException;
+
+    /**
+     * Checks the existence of a blob.
+     * @param contentId the content ID
+     * @param name the name of the blob
+     * @return {@code true} if the blob exists.
+     * @throws IOException if and only if it is not possible to check the blob.
+     */
+    boolean exists(String contentId, String name) throws IOException;
+
+    /**
+     * Returns the size of the blob.
+     * @param contentId the content ID
+     * @param name the name of the blob
+     * @return the size of the blob in bytes.
+     * @throws FileNotFoundException if and only if there is no such blob.
+     * @throws IOException if and only if it is not possible to get the size.
+     */
+    long size(String contentId, String name) throws IOException, FileNotFoundException;
+
+    /**
+     * Removes a single blob if it exists.
+     * @param contentId the content ID
+     * @param name the name of the blob
+     * @throws IOException if and only if it is not possible to remove the blob.
+     */
+    void remove(String contentId, String name) throws IOException;
+
+    /**
+     * Returns the metadata.
+     * @param contentId the content ID
+     * @param name the name of the metadata
+     * @return the metadata. Never {@code null}.
+     * @throws FileNotFoundException if and only if there are no such metadata.
+     * @throws IOException if and only if it is not possible to read the metadata.
+     */
+    Properties readMetadata(String contentId, String name) throws IOException, FileNotFoundException;
+
+    /**
+     * Stores the metadata. Existing metadata with the same name are replaced.
+     * @param contentId the content ID
+     * @param name the name of the metadata
+     * @param metadata the metadata
+     * @throws IOException if and only if it is not possible to store the metadata.
+     */
+    void writeMetadata(String contentId, String name, Properties metadata) throws IOException;
+
+    /**
+     * Makes buffered metadata writes of the content ID durable. Storages without buffering do nothing.
+     * @param contentId the content ID
+     * @throws IOException if and only if it is not possible to write the buffered metadata.
+     */
+    default void flush(String contentId) throws IOException {
+    }
+
+    /**
+     * Creates a new content ID. Blobs and metadata of a content ID can be written after the creation only, so
+     * writes after a {@linkplain #delete(java.lang.String) delete} fail. Storages without containers of content
+     * IDs do nothing.
+     * @param contentId the new content ID
+     * @throws IOException if and only if it is not possible to create the content ID.
+     */
+    default void create(String contentId) throws IOException {
+    }
+
+    /**
+     * Deletes all blobs and metadata of the content ID.
+     * @param contentId the content ID
+     * @throws IOException if and only if it is not possible to delete the content ID.
+     */
+    void delete(String contentId) throws IOException;
+
+    /**
+     * Returns all available content IDs.
+     * @return never {@code null}
+     * @throws IOException if and only if it is not possible to list the content IDs.
+     */
+    Iterator<String> contentIds() throws IOException;
+
+    /**
+     * Returns the local directory containing the blobs of the content ID. Blobs in this directory can be
+     * read and written directly. The directory is not created and doesn't exist for unknown content IDs.
+     * @param contentId the content ID
+     * @return the local directory or {@code null} if the blobs of the storage are not on the local filesystem.
+     */
+    Path localDirectory(String contentId);
+}
@@ -0,0 +1,106 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import de.speexx.guetzli.service.Configuration;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Creates the {@link Storage} configured for the service. The storage is created once and shared by all users.
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.storage.backend</code></dt>
+ *   <dd><code>filesystem</code> (default), <code>memory</code> or <code>s3</code>.</dd>
+ *   <dt><code>guetzli.service.storage</code></dt>
+ *   <dd>Base directory of the <code>filesystem</code> backend. Default is <code>.guetzli-data</code> in the
+ *     home directory of the user.</dd>
+ *   <dt><code>guetzli.service.storage.s3.endpoint</code>, <code>guetzli.service.storage.s3.bucket</code>,
+ *     <code>guetzli.service.storage.s3.region</code>, <code>guetzli.service.storage.s3.accessKey</code>,
+ *     <code>guetzli.service.storage.s3.secretKey</code></dt>
+ *   <dd>Access to the bucket of the <code>s3</code> backend. Default endpoint is <code>http://localhost:9000</code>,
+ *     default bucket <code>guetzli</code> and default region <code>us-east-1</code>.</dd>
+ *   <dt><code>guetzli.service.storage.s3.timeout</code></dt>
+ *   <dd>Connect and read timeout in milliseconds of requests to the <code>s3</code> backend. Default is
+ *     {@value ObjectStoreStorage#DEFAULT_TIMEOUT_MILLIS}.</dd>
+ *   <dt><code>guetzli.service.metadata.flush.delay</code></dt>
+ *   <dd>Maximum delay in milliseconds of {@linkplain WriteBehindStorage buffered} metadata writes. Default is
+ *     {@value #DEFAULT_FLUSH_DELAY}. <code>0</code> disables the buffering.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class Storages {
+
+    private static final long DEFAULT_FLUSH_DELAY = 250;
+
+    private static volatile Storage defaultStorage;
+
+    private Storages() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Returns the configured storage.
+     * @return the storage. Never {@code null}.
+     * @throws IllegalStateException if the configured backend is unknown.
+     */
+    public static Storage defaultStorage() {
+        Storage storage = defaultStorage;
+        if (storage == null) {
+            synchronized (Storages.class) {
+                storage = defaultStorage;
+                if (storage == null) {
+                    storage = createStorage(Configuration.stringValue("guetzli.service.storage.backend", "filesystem"));
+                    final long flushDelay = Configuration.longValue("guetzli.service.metadata.flush.delay", DEFAULT_FLUSH_DELAY);
+                    if (flushDelay > 0) {
+                        storage = new WriteBehindStorage(storage, flushDelay);
+                    }
+                    defaultStorage = storage;
+                }
+            }
+        }
+        return storage;
+    }
+
+    static Storage createStorage(final String backend) {
+        switch (backend) {
+            case "filesystem":
+                return new FileSystemStorage(basePath());
+            case "memory":
+                return new InMemoryStorage();
+            case "s3":
+                return new ObjectStoreStorage(URI.create(Configuration.stringValue("guetzli.service.storage.s3.endpoint", "http://localhost:9000")),
+                                              Configuration.stringValue("guetzli.service.storage.s3.bucket", "guetzli"),
+                                              Configuration.stringValue("guetzli.service.storage.s3.region", "us-east-1"),
+                                              Configuration.stringValue("guetzli.service.storage.s3.accessKey", ""),
+                                              Configuration.stringValue("guetzli.service.storage.s3.secretKey", ""),
+                                              Configuration.intValue("guetzli.service.storage.s3.timeout", ObjectStoreStorage.DEFAULT_TIMEOUT_MILLIS));
+            default:
+                throw new IllegalStateException("Unknown storage backend '" + backend + "'");
+        }
+    }
+
+    static Path basePath() {
+        final String basePath = Configuration.stringValue("guetzli.service.storage", null);
+        if (basePath != null) {
+            return Paths.get(basePath);
+        }
+        return Paths.get(Configuration.stringValue("user.home", "."), ".guetzli-data");
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers metadata writes of another {@link Storage}. A metadata write is delayed up to the configured flush
+ * delay. Successive writes of the same metadata within the delay are coalesced into a single write.
+ * Reads see the buffered metadata. {@linkplain #flush(java.lang.String) Flush} makes buffered metadata durable
+ * immediately. Blob operations are passed through.
+ * @author sascha.kohlmann
+ */
+public final class WriteBehindStorage implements Storage {
+
+    private static final Logger LOG = Logger.getLogger(WriteBehindStorage.class.getSimpleName());
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Storage delegate;
+    private final long flushDelayMillis;
+    /** Buffered metadata by content ID and name. */
+    private final ConcurrentMap<String, ConcurrentMap<String, Properties>> pending = new ConcurrentHashMap<>();
+    /** Serializes the flushes and the delete of a content ID. Striped by the content ID. */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "guetzli-metadata-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Creates a new buffering storage.
+     * @param delegate the storage to write to.
+     * @param flushDelayMillis the maximum delay of a metadata write in milliseconds.
+     * @throws NullPointerException if <em>delegate</em> is {@code null}.
+     */
+    public WriteBehindStorage(final Storage delegate, final long flushDelayMillis) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.flushDelayMillis = flushDelayMillis;
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public Properties readMetadata(final String contentId, final String name) throws IOException, FileNotFoundException {
+        final Map<String, Properties> names = this.pending.get(contentId);
+        final Properties buffered = names == null ? null : names.get(name);
+        if (buffered != null) {
+            return (Properties) buffered.clone();
+        }
+        return this.delegate.readMetadata(contentId, name);
+    }
+
+    @Override
+    public void writeMetadata(final String contentId, final String name, final Properties metadata) {
+        Objects.requireNonNull(name);
+        final Properties copy = (Properties) metadata.clone();
+        final boolean[] first = new boolean[1];
+        this.pending.compute(contentId, (id, names) -> {
+            final ConcurrentMap<String, Properties> buffered = names == null ? new ConcurrentHashMap<>() : names;
+            first[0] = buffered.put(name, copy) == null;
+            return buffered;
+        });
+        if (first[0]) {
+            scheduleFlush(contentId, name);
+        }
+    }
+
+    @Override
+    public void flush(final String contentId) throws IOException {
+        final Map<String, Properties> names = this.pending.get(contentId);
+        if (names != null) {
+            for (final String name : names.keySet()) {
+                flush(contentId, name);
+            }
+        }
+        this.delegate.flush(contentId);
+    }
+
+    void flush(final String contentId, final String name) throws IOException {
+        synchronized (lock(contentId)) {
+            final Map<String, Properties> names = this.pending.get(contentId);
+            final Properties metadata = names == null ? null : names.get(name);
+            if (metadata == null) {
+                return;
+            }
+            this.delegate.writeMetadata(contentId, name, metadata);
+            if (names.remove(name, metadata)) {
+                this.pending.computeIfPresent(contentId, (id, buffered) -> buffered.isEmpty() ? null : buffered);
+            } else {
+                // replaced while writing
+                scheduleFlush(contentId, name);
+            }
+        }
+    }
+
+    void scheduleFlush(final String contentId, final String name) {
+        this.flusher.schedule(() -> {
+            try {
+                flush(contentId, name);
+            } catch (final IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Unable to write metadata " + name + " for content ID " + contentId, e);
+            }
+        }, this.flushDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    Object lock(final String contentId) {
+        return this.locks[Math.floorMod(contentId.hashCode(), this.locks.length)];
+    }
+
+    @Override
+    public void create(final String contentId) throws IOException {
+        this.delegate.create(contentId);
+    }
+
+    @Override
+    public void delete(final String contentId) throws IOException {
+        // a flush of the content ID in progress must not write the metadata after the delete
+        synchronized (lock(contentId)) {
+            this.pending.remove(contentId);
+            this.delegate.delete(contentId);
+        }
+    }
+
+    @Override
+    public void write(final String contentId, final String name, final InputStream in) throws IOException {
+        this.delegate.write(contentId, name, in);
+    }
+
+    @Override
+    public void importFile(final String contentId, final String name, final Path file) throws IOException {
+        this.delegate.importFile(contentId, name, file);
+    }
+
+    @Override
+    public InputStream read(final String contentId, final String name) throws IOException, FileNotFoundException {
+        return this.delegate.read(contentId, name);
+    }
+
+    @Override
+    public void exportFile(final String contentId, final String name, final Path file) throws IOException, FileNotFoundException {
+        this.delegate.exportFile(contentId, name, file);
+    }
+
+    @Override
+    public boolean exists(final String contentId, final String name) throws IOException {
+        return this.delegate.exists(contentId, name);
+    }
+
+    @Override
+    public long size(final String contentId, final String name) throws IOException, FileNotFoundException {
+        return this.delegate.size(contentId, name);
+    }
+
+    @Override
+    public void remove(final String contentId, final String name) throws IOException {
+        this.delegate.remove(contentId, name);
+    }
+
+    @Override
+    public Iterator<String> contentIds() throws IOException {
+        return this.delegate.contentIds();
+    }
+
+    @Override
+    public Path localDirectory(final String contentId) {
+        return this.delegate.localDirectory(contentId);
+    }
+
+    /**
+     * The wrapped storage.
+     * @return the wrapped storage. Never {@code null}.
+     */
+    public Storage getDelegate() {
+        return this.delegate;
+    }
+}
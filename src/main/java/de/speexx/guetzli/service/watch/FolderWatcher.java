@@ -0,0 +1,346 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.watch;
+
+import de.speexx.guetzli.service.CompletionListeners;
+import de.speexx.guetzli.service.Configuration;
+import de.speexx.guetzli.service.ImageMetadata;
+import de.speexx.guetzli.service.ImageService;
+import de.speexx.guetzli.service.ImageType;
+import de.speexx.guetzli.service.ProcessStatus;
+import de.speexx.guetzli.service.TransformationScheduler;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ingests JPEG and PNG images dropped into a watch directory and writes the results into an output directory.
+ * <p>The directory is monitored with a {@link WatchService}. A new file is ingested when its size and modification
+ * time didn't change for the settle time, so files still being copied are not ingested. The file is stored
+ * with {@link ImageService#newImage(java.io.InputStream, long, de.speexx.guetzli.service.ImageType, java.lang.String)
+ * newImage} and removed from the watch directory. At most a batch of files is ingested per tick and nothing while the
+ * {@linkplain TransformationScheduler#isSaturated() scheduler is saturated} or draining, so a burst of files waits in the
+ * directory instead of flooding the executor.</p>
+ * <p>The output directory receives the target image as <code>&lt;name&gt;.jpg</code> or the unchanged source image if
+ * there is no target image. Sources of failed transformations are written to the sub directory
+ * <code>failed</code>.</p>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.watch.directory</code></dt>
+ *   <dd>The watch directory. No default, the watcher is disabled without a directory.</dd>
+ *   <dt><code>guetzli.service.watch.output</code></dt>
+ *   <dd>The output directory. Default is the sub directory <code>out</code> of the watch directory.</dd>
+ *   <dt><code>guetzli.service.watch.settle</code></dt>
+ *   <dd>The settle time in milliseconds. Default is {@value #DEFAULT_SETTLE_MILLIS}.</dd>
+ *   <dt><code>guetzli.service.watch.batch</code></dt>
+ *   <dd>The maximum number of files to ingest per tick. Default is {@value #DEFAULT_BATCH_SIZE}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class FolderWatcher implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(FolderWatcher.class.getSimpleName());
+
+    static final long DEFAULT_SETTLE_MILLIS = 2_000;
+    static final int DEFAULT_BATCH_SIZE = 20;
+    private static final long MAX_TICK_MILLIS = 1_000;
+    private static final String FAILED_DIRECTORY = "failed";
+
+    private final Path directory;
+    private final Path output;
+    private final long settleMillis;
+    private final int batchSize;
+    private final ImageService imgSrv;
+    private final Executor executor;
+
+    /** Files not yet ingested in order of appearance. Only accessed by the watch thread. */
+    private final Map<Path, Candidate> candidates = new LinkedHashMap<>();
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean running;
+
+    FolderWatcher(final Path directory,
+                  final Path output,
+                  final long settleMillis,
+                  final int batchSize,
+                  final ImageService imgSrv,
+                  final Executor executor) {
+        this.directory = Objects.requireNonNull(directory);
+        this.output = Objects.requireNonNull(output);
+        this.settleMillis = settleMillis;
+        this.batchSize = batchSize;
+        this.imgSrv = Objects.requireNonNull(imgSrv);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Creates a watcher for the configured watch directory.
+     * @param imgSrv the service to ingest the images.
+     * @param executor the executor for the transformations.
+     * @return the watcher or {@code null} if no watch directory is configured.
+     */
+    public static FolderWatcher create(final ImageService imgSrv, final Executor executor) {
+        final String configured = Configuration.stringValue("guetzli.service.watch.directory", null);
+        if (configured == null || configured.trim().isEmpty()) {
+            return null;
+        }
+        final Path directory = Paths.get(configured);
+        final String output = Configuration.stringValue("guetzli.service.watch.output", null);
+        return new FolderWatcher(directory,
+                                 output == null ? directory.resolve("out") : Paths.get(output),
+                                 Configuration.longValue("guetzli.service.watch.settle", DEFAULT_SETTLE_MILLIS),
+                                 Configuration.intValue("guetzli.service.watch.batch", DEFAULT_BATCH_SIZE),
+                                 imgSrv,
+                                 executor);
+    }
+
+    /**
+     * Starts to watch the directory in a daemon thread. Files already in the directory are ingested too.
+     * @throws IOException if and only if it is not possible to watch the directory.
+     */
+    public synchronized void start() throws IOException {
+        if (this.running) {
+            return;
+        }
+        Files.createDirectories(this.directory);
+        Files.createDirectories(this.output);
+        this.watchService = this.directory.getFileSystem().newWatchService();
+        this.directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.running = true;
+        this.thread = new Thread(this::watch, "guetzli-folder-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        LOG.log(Level.INFO, "Watch directory {0} with output directory {1}", new Object[] {this.directory, this.output});
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.running = false;
+        if (this.watchService != null) {
+            this.watchService.close();
+        }
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    void watch() {
+        scan();
+        final long tickMillis = Math.max(1, Math.min(MAX_TICK_MILLIS, this.settleMillis));
+        while (this.running) {
+            try {
+                final WatchKey key = this.watchService.poll(tickMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan();
+                        } else {
+                            offer(this.directory.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                tick(System.currentTimeMillis());
+            } catch (final InterruptedException | ClosedWatchServiceException e) {
+                break;
+            } catch (final RuntimeException e) {
+                LOG.log(Level.WARNING, "Watching " + this.directory + " failed", e);
+            }
+        }
+        LOG.log(Level.INFO, "Stopped to watch directory {0}", this.directory);
+    }
+
+    /**
+     * Offers all files of the directory, e.g. after start or after lost events.
+     */
+    void scan() {
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(this.directory)) {
+            entries.forEach(this::offer);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to scan " + this.directory, e);
+        }
+    }
+
+    void offer(final Path file) {
+        if (imageType(file) != null && !this.candidates.containsKey(file)) {
+            this.candidates.put(file, new Candidate());
+        }
+    }
+
+    /**
+     * Ingests the settled files.
+     * @param now the current time in milliseconds.
+     * @return the number of ingested files.
+     */
+    int tick(final long now) {
+        final List<Path> settled = new ArrayList<>();
+        for (final Iterator<Map.Entry<Path, Candidate>> it = this.candidates.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<Path, Candidate> entry = it.next();
+            final Path file = entry.getKey();
+            try {
+                if (!Files.isRegularFile(file)) {
+                    it.remove();
+                    continue;
+                }
+                if (entry.getValue().observe(Files.size(file), Files.getLastModifiedTime(file).toMillis(), now, this.settleMillis)) {
+                    settled.add(file);
+                }
+            } catch (final IOException e) {
+                it.remove();
+            }
+        }
+        int ingested = 0;
+        for (final Path file : settled) {
+            final TransformationScheduler scheduler = TransformationScheduler.instance();
+            if (ingested >= this.batchSize || scheduler.isSaturated() || scheduler.isDraining()) {
+                break;
+            }
+            this.candidates.remove(file);
+            if (ingest(file)) {
+                ingested++;
+            }
+        }
+        if (ingested > 0) {
+            LOG.log(Level.INFO, "Ingested {0} files from {1}, {2} waiting", new Object[] {ingested, this.directory, this.candidates.size()});
+        }
+        return ingested;
+    }
+
+    boolean ingest(final Path file) {
+        final String name = file.getFileName().toString();
+        final String contentId;
+        try (final InputStream in = Files.newInputStream(file)) {
+            contentId = this.imgSrv.newImage(in, Files.size(file), imageType(file), name);
+        } catch (final IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to ingest " + file, e);
+            moveToFailed(file);
+            return false;
+        }
+        try {
+            Files.delete(file);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to remove ingested " + file, e);
+        }
+        CompletionListeners.onCompletion(contentId, meta -> this.executor.execute(() -> writeResult(meta, name)));
+        this.imgSrv.process(contentId, this.executor);
+        return true;
+    }
+
+    void writeResult(final ImageMetadata meta, final String name) {
+        assert meta != null;
+        assert name != null;
+
+        final String contentId = meta.getContentId();
+        try {
+            if (meta.getStatus() == ProcessStatus.failed) {
+                try (final InputStream in = this.imgSrv.getSourceImage(contentId)) {
+                    write(in, this.output.resolve(FAILED_DIRECTORY).resolve(name));
+                }
+            } else if (meta.getStatus() == ProcessStatus.transformed || meta.getTargetSize() > 0) {
+                try (final InputStream in = this.imgSrv.getTargetImage(contentId)) {
+                    write(in, this.output.resolve(ImageType.JPG.toFileName(name)));
+                }
+            } else {
+                try (final InputStream in = this.imgSrv.getSourceImage(contentId)) {
+                    write(in, this.output.resolve(name));
+                }
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to write result of content ID " + contentId + " for " + name, e);
+        }
+    }
+
+    void moveToFailed(final Path file) {
+        try {
+            final Path failed = this.output.resolve(FAILED_DIRECTORY);
+            Files.createDirectories(failed);
+            Files.move(file, failed.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to move " + file + " to the failed directory", e);
+        }
+    }
+
+    /**
+     * Writes to a hidden temporary file first, so readers of the output directory never see partial images.
+     */
+    static void write(final InputStream in, final Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        final Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        try {
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Hidden files, e.g. partial results, are ignored.
+     */
+    static ImageType imageType(final Path file) {
+        final String name = file.getFileName().toString();
+        return name.startsWith(".") ? null : ImageType.ofFileName(name);
+    }
+
+    /**
+     * The last observed size and modification time of a file.
+     */
+    static final class Candidate {
+        private long size = -1;
+        private long modified = -1;
+        private long since;
+
+        /**
+         * @return {@code true} if the file didn't change for the settle time.
+         */
+        boolean observe(final long currentSize, final long currentModified, final long now, final long settleMillis) {
+            if (currentSize != this.size || currentModified != this.modified) {
+                this.size = currentSize;
+                this.modified = currentModified;
+                this.since = now;
+                return false;
+            }
+            return now - this.since >= settleMillis;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.webhook;
+
+import de.speexx.guetzli.service.Configuration;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers JSON notifications to callback URLs with HTTP <code>POST</code>.
+ * <p>{@linkplain #deliver(java.lang.String, java.lang.String) Delivery} never blocks the caller. Notifications
+ * for the same URL arriving within the batch window are sent in one request as JSON array. A single
+ * notification is sent as it is. Failed requests are retried with exponential backoff. The number of pending
+ * notifications is bounded. If the bound is reached the oldest notification of the URL is dropped.</p>
+ * <p>Configuration of the {@linkplain #instance() shared instance}:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.webhook.batch.window</code></dt>
+ *   <dd>Batch window in milliseconds. Default is {@value #DEFAULT_BATCH_WINDOW}.</dd>
+ *   <dt><code>guetzli.service.webhook.batch.size</code></dt>
+ *   <dd>Maximum number of notifications per request. Default is {@value #DEFAULT_BATCH_SIZE}.</dd>
+ *   <dt><code>guetzli.service.webhook.pending.max</code></dt>
+ *   <dd>Maximum number of pending notifications. Default is {@value #DEFAULT_MAX_PENDING}.</dd>
+ *   <dt><code>guetzli.service.webhook.retry.delay</code></dt>
+ *   <dd>Delay of the first retry in milliseconds. Doubled for every retry up to 5 minutes.
+ *     Default is {@value #DEFAULT_RETRY_DELAY}.</dd>
+ *   <dt><code>guetzli.service.webhook.retry.max</code></dt>
+ *   <dd>Maximum number of retries. Default is {@value #DEFAULT_MAX_RETRIES}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class WebhookDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(WebhookDispatcher.class.getSimpleName());
+
+    static final long DEFAULT_BATCH_WINDOW = 500;
+    static final int DEFAULT_BATCH_SIZE = 50;
+    static final int DEFAULT_MAX_PENDING = 10_000;
+    static final long DEFAULT_RETRY_DELAY = 1_000;
+    static final int DEFAULT_MAX_RETRIES = 8;
+    static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+    static final int TIMEOUT_MILLIS = 10_000;
+    static final String BATCH_SIZE_HEADER = "X-Guetzli-Batch-Size";
+
+    private static volatile WebhookDispatcher instance;
+
+    private final long batchWindowMillis;
+    private final int batchSize;
+    private final int maxPending;
+    private final long retryDelayMillis;
+    private final int maxRetries;
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, r -> {
+        final Thread t = new Thread(r, "guetzli-webhook-dispatcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Creates a new dispatcher.
+     * @param batchWindowMillis the batch window in milliseconds.
+     * @param batchSize the maximum number of notifications per request.
+     * @param maxPending the maximum number of pending notifications.
+     * @param retryDelayMillis the delay of the first retry in milliseconds.
+     * @param maxRetries the maximum number of retries.
+     */
+    public WebhookDispatcher(final long batchWindowMillis, final int batchSize, final int maxPending, final long retryDelayMillis, final int maxRetries) {
+        this.batchWindowMillis = batchWindowMillis;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxPending = Math.max(1, maxPending);
+        this.retryDelayMillis = retryDelayMillis;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns the shared and configured instance.
+     * @return never {@code null}.
+     */
+    public static WebhookDispatcher instance() {
+        WebhookDispatcher dispatcher = instance;
+        if (dispatcher == null) {
+            synchronized (WebhookDispatcher.class) {
+                dispatcher = instance;
+                if (dispatcher == null) {
+                    dispatcher = new WebhookDispatcher(Configuration.longValue("guetzli.service.webhook.batch.window", DEFAULT_BATCH_WINDOW),
+                                                       Configuration.intValue("guetzli.service.webhook.batch.size", DEFAULT_BATCH_SIZE),
+                                                       Configuration.intValue("guetzli.service.webhook.pending.max", DEFAULT_MAX_PENDING),
+                                                       Configuration.longValue("guetzli.service.webhook.retry.delay", DEFAULT_RETRY_DELAY),
+                                                       Configuration.intValue("guetzli.service.webhook.retry.max", DEFAULT_MAX_RETRIES));
+                    instance = dispatcher;
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Enqueues a notification.
+     * @param url the callback URL.
+     * @param json the JSON object to post.
+     * @throws NullPointerException if a parameter is {@code null}.
+     */
+    public void deliver(final String url, final String json) {
+        Objects.requireNonNull(url);
+        Objects.requireNonNull(json);
+
+        final Endpoint endpoint = this.endpoints.computeIfAbsent(url, Endpoint::new);
+        synchronized (endpoint) {
+            if (this.pending.incrementAndGet() > this.maxPending) {
+                if (endpoint.queue.pollFirst() != null) {
+                    this.pending.decrementAndGet();
+                    LOG.log(Level.WARNING, "Too many pending notifications. Dropped oldest notification for {0}", url);
+                } else {
+                    this.pending.decrementAndGet();
+                    LOG.log(Level.WARNING, "Too many pending notifications. Dropped notification for {0}", url);
+                    return;
+                }
+            }
+            endpoint.queue.addLast(json);
+            if (!endpoint.scheduled) {
+                endpoint.scheduled = true;
+                this.executor.schedule(() -> send(endpoint), this.batchWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * The number of pending notifications.
+     * @return the number of notifications not yet delivered.
+     */
+    public int pendingCount() {
+        return this.pending.get();
+    }
+
+    void send(final Endpoint endpoint) {
+        final List<String> batch = new ArrayList<>();
+        synchronized (endpoint) {
+            while (batch.size() < this.batchSize && !endpoint.queue.isEmpty()) {
+                batch.add(endpoint.queue.pollFirst());
+            }
+            if (batch.isEmpty()) {
+                idle(endpoint);
+                return;
+            }
+        }
+
+        boolean delivered;
+        try {
+            post(endpoint.url, batch);
+            delivered = true;
+        } catch (final IOException | RuntimeException e) {
+            LOG.log(Level.INFO, "Delivery of " + batch.size() + " notifications to " + endpoint.url + " failed", e);
+            delivered = false;
+        }
+
+        synchronized (endpoint) {
+            final long delay;
+            if (delivered) {
+                this.pending.addAndGet(-batch.size());
+                endpoint.failures = 0;
+                delay = endpoint.queue.isEmpty() ? -1 : 0;
+            } else if (endpoint.failures >= this.maxRetries) {
+                this.pending.addAndGet(-batch.size());
+                LOG.log(Level.WARNING, "Dropped {0} notifications for {1} after {2} retries", new Object[] {batch.size(), endpoint.url, endpoint.failures});
+                endpoint.failures = 0;
+                delay = endpoint.queue.isEmpty() ? -1 : 0;
+            } else {
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    endpoint.queue.addFirst(batch.get(i));
+                }
+                delay = Math.min(MAX_RETRY_DELAY, this.retryDelayMillis << Math.min(endpoint.failures, 30));
+                endpoint.failures++;
+            }
+            if (delay < 0) {
+                idle(endpoint);
+            } else {
+                this.executor.schedule(() -> send(endpoint), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Removes an endpoint without pending notifications. A concurrent delivery to the removed endpoint
+     * schedules the endpoint again, so no notification is lost.
+     */
+    void idle(final Endpoint endpoint) {
+        assert Thread.holdsLock(endpoint);
+        endpoint.scheduled = false;
+        this.endpoints.remove(endpoint.url, endpoint);
+    }
+
+    void post(final String url, final List<String> batch) throws IOException {
+        assert url != null;
+        assert batch != null && !batch.isEmpty();
+
+        final byte[] body = (batch.size() == 1 ? batch.get(0) : "[" + String.join(",", batch) + "]").getBytes(StandardCharsets.UTF_8);
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty(BATCH_SIZE_HEADER, String.valueOf(batch.size()));
+            try (final OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            final int code = connection.getResponseCode();
+            if (code < 200 || code >= 300) {
+                throw new IOException("Callback " + url + " answered with HTTP status " + code);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static final class Endpoint {
+        final String url;
+        final Deque<String> queue = new ArrayDeque<>();
+        boolean scheduled;
+        int failures;
+
+        Endpoint(final String url) {
+            this.url = url;
+        }
+    }
+}
@@ -17,10 +17,17 @@
  */
 package de.speexx.guetzli.transformer;
 
+import de.speexx.guetzli.service.Configuration;
+import de.speexx.guetzli.service.InvalidInputException;
+import de.speexx.guetzli.service.TransformationCancelledException;
 import de.speexx.guetzli.service.TransformationException;
+import de.speexx.guetzli.service.TransformationOutOfMemoryException;
+import de.speexx.guetzli.service.TransformationTimeoutException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
@@ -29,11 +36,26 @@ import java.security.PrivilegedExceptionAction;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Transforms images with the <code>guetzli</code> command line tool JPG files.
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.memlimit</code></dt>
+ *   <dd>The memory limit of <code>guetzli</code> in MB. Default is {@value #GUETZLI_MAX_MEMORY}.</dd>
+ * </dl>
+ * <p>The resources used by each process are {@linkplain ProcessSampler sampled}. The timeout of each process
+ * is computed by the {@link TimeoutModel} from the number of pixels of the source image given by the caller.
+ * Without a pixel count the timeout is the ceiling of the model.</p>
+ * <p>A failed process is classified by its exit value, its peak memory usage and its output: a process killed by
+ * the system or near its memory limit fails with a {@link TransformationOutOfMemoryException}, a process rejecting
+ * its input with an {@link InvalidInputException}.</p>
+ * <p>Each process is started with the limits of the {@link ProcessLimiter}. The limits are part of the
+ * {@link ResourceUsage}.</p>
  * @author sascha.kohlmann
  */
 public final class GuetzliTransformationProcessor {
@@ -41,69 +63,213 @@ public final class GuetzliTransformationProcessor {
     private static final Logger LOG = Logger.getLogger(GuetzliTransformationProcessor.class.getSimpleName());
 
     private static final String PATH_ENV_VARIABLE = "PATH";
-    private static final String GUETZLI_MAX_MEMORY = "6000";
+    private static final int GUETZLI_MAX_MEMORY = 6000;
     private static final String GUETZLI_CMD = "guetzli";
+    private static final long KILL_GRACE_SECONDS = 5;
+    /** Exit value of a process killed with <code>SIGKILL</code>, e.g. by the OOM killer. */
+    static final int KILLED_EXIT_VALUE = 128 + 9;
+    /** Fraction of the memory limit a failed process must reach to count as out of memory. */
+    static final double OUT_OF_MEMORY_FRACTION = 0.9;
+    /** Maximum number of bytes of the process output to classify a failure. */
+    static final int MAX_OUTPUT_BYTES = 4096;
+    /** Interval to check for the cancellation of a running process. */
+    static final long CANCEL_POLL_MILLIS = 500;
+
+    private final LongConsumer pidListener;
+    private final BooleanSupplier cancelled;
+
+    /**
+     * Creates a new processor.
+     */
+    public GuetzliTransformationProcessor() {
+        this(pid -> { });
+    }
+
+    /**
+     * Creates a new processor which reports the process ID of each started <code>guetzli</code> process.
+     * @param pidListener called with the process ID after the start and with {@literal -1} after the end of a
+     *                    process.
+     */
+    public GuetzliTransformationProcessor(final LongConsumer pidListener) {
+        this(pidListener, () -> false);
+    }
+
+    /**
+     * Creates a new processor which reports the process ID of each started <code>guetzli</code> process and kills
+     * the process if the transformation is cancelled.
+     * @param pidListener called with the process ID after the start and with {@literal -1} after the end of a
+     *                    process.
+     * @param cancelled returns {@code true} if the running process should be killed.
+     */
+    public GuetzliTransformationProcessor(final LongConsumer pidListener, final BooleanSupplier cancelled) {
+        this.pidListener = Objects.requireNonNull(pidListener);
+        this.cancelled = Objects.requireNonNull(cancelled);
+    }
     
 
-    public void transform(final Path source, final Path target) throws TransformationException {
-        transform(source, target, 0);
+    public ResourceUsage transform(final Path source, final Path target) throws TransformationException {
+        return transform(source, target, 0);
+    }
+
+    public ResourceUsage transform(final Path source, final Path target, final int targetQuality) throws TransformationException {
+        return transform(source, target, targetQuality, 0);
     }
 
-    public void transform(final Path source, final Path target, final int targetQuality) throws TransformationException {
+    /**
+     * Transforms the source into the target.
+     * @param source the source image.
+     * @param target the target JPG.
+     * @param targetQuality the quality of the target or {@literal 0} for the default quality.
+     * @param pixels the number of pixels of the source or {@literal 0} if unknown.
+     * @return the resources used by the process. Never {@code null}.
+     * @throws TransformationException if and only if the transformation fails.
+     */
+    public ResourceUsage transform(final Path source, final Path target, final int targetQuality, final long pixels) throws TransformationException {
         Objects.requireNonNull(source);
         Objects.requireNonNull(target);
 
+        final String memlimit = String.valueOf(Configuration.intValue("guetzli.service.memlimit", GUETZLI_MAX_MEMORY));
         final ProcessBuilder pb;
         if (targetQuality != 0) {
             pb = new ProcessBuilder(GUETZLI_CMD,
-                    "--memlimit", GUETZLI_MAX_MEMORY,
+                    "--memlimit", memlimit,
                     "--quality", String.valueOf(targetQuality),
                     source.toString(),
                     target.toString());
         } else {
             pb = new ProcessBuilder(GUETZLI_CMD,
-                    "--memlimit", GUETZLI_MAX_MEMORY,
+                    "--memlimit", memlimit,
                     source.toString(),
                     target.toString());
         }
         configureProcessBuilder(pb, true, source.getParent());
-        
-        executeProcess(pb, source, target);
+
+        final ProcessLimiter limiter = ProcessLimiter.configured();
+        final Path leaf;
+        try {
+            leaf = limiter.createLeaf();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            pb.command(limiter.limit(pb.command(), leaf));
+            return executeProcess(pb, source, target, limiter.getLimits(), pixels);
+        } finally {
+            limiter.removeLeaf(leaf);
+        }
     }
 
-    void executeProcess(final ProcessBuilder pb,
+    ResourceUsage executeProcess(final ProcessBuilder pb,
                         final Path source,
                         final Path target) throws UncheckedIOException, TransformationException {
+        return executeProcess(pb, source, target, ResourceLimits.NONE, 0);
+    }
+
+    ResourceUsage executeProcess(final ProcessBuilder pb,
+                        final Path source,
+                        final Path target,
+                        final ResourceLimits limits,
+                        final long pixels) throws UncheckedIOException, TransformationException {
         assert pb != null;
         assert source != null;
         assert target != null;
+        assert limits != null;
 
         try {
             LOG.log(Level.INFO, "Start external process to transform {0} to {1}", new Object[] {source, target});
+            final TimeoutModel timeoutModel = TimeoutModel.instance();
+            final long timeout = timeoutModel.timeoutMillis(pixels);
+            final File log = pb.redirectOutput().file();
+            final long logOffset = log == null ? 0 : log.length();
             final Process p = AccessController.doPrivileged((PrivilegedExceptionAction<Process>) () -> pb.start());
+            final ProcessSampler.Sample sample = ProcessSampler.instance().watch(p);
+            this.pidListener.accept(ProcessSampler.pid(p));
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
             boolean finished = false;
-            for (int i = 0; i < timeoutTries(); i++) {
+            while (!finished && System.nanoTime() < deadline) {
+                if (this.cancelled.getAsBoolean()) {
+                    kill(p);
+                    sample.stop();
+                    this.pidListener.accept(-1);
+                    LOG.log(Level.INFO, "Killed cancelled transformation of {0}", source);
+                    throw new TransformationCancelledException("Transformation cancelled");
+                }
                 try {
-                    finished = p.waitFor(timeoutValue(), timeoutUnit());
-                    if (finished) {
-                        break;
-                    }
+                    final long remaining = deadline - System.nanoTime();
+                    finished = p.waitFor(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(CANCEL_POLL_MILLIS)), TimeUnit.NANOSECONDS);
                 } catch (final InterruptedException ex) {
                     LOG.log(Level.WARNING, "Interuped while processing transformation from {0} to {1}", new Object[]{source, target});
                 }
             }
             if (!finished) {
-                p.destroy();
-                throw new TransformationException("Transformation timeout");
+                kill(p);
+                sample.stop();
+                this.pidListener.accept(-1);
+                LOG.log(Level.WARNING, "Killed transformation of {0} with {1} pixels after {2} ms", new Object[] {source, pixels, timeout});
+                throw new TransformationTimeoutException("Transformation timeout after " + timeout + " ms");
             }
+            final ResourceUsage usage = sample.stop().withLimits(limits);
+            this.pidListener.accept(-1);
+            LOG.log(Level.INFO, "Resource usage for transformation of {0}: {1}", new Object[] {source, usage});
             if (p.exitValue() != 0) {
-                throw new TransformationException("Transformation failed: " +  p.exitValue());
+                throw failure(p.exitValue(), usage, log == null ? "" : readOutput(log, logOffset));
             }
+            timeoutModel.record(pixels, usage.getWallTimeMillis());
+            return usage;
         } catch (final PrivilegedActionException ex) {
             throw new UncheckedIOException((IOException) ex.getException());
         }
     }
     
+    /**
+     * Classifies a failed process.
+     * @param exitValue the exit value of the process.
+     * @param usage the resources used by the process.
+     * @param output the output of the process.
+     * @return the exception to throw. Never {@code null}.
+     */
+    TransformationException failure(final int exitValue, final ResourceUsage usage, final String output) {
+        assert usage != null;
+        assert output != null;
+
+        final long limitBytes = usage.getLimits().getMemoryBytes();
+        final long memlimitBytes = Configuration.intValue("guetzli.service.memlimit", GUETZLI_MAX_MEMORY) * 1024L * 1024L;
+        final long maxBytes = limitBytes > 0 ? Math.min(limitBytes, memlimitBytes) : memlimitBytes;
+        final String message = "Transformation failed: " + exitValue + lastLine(output);
+        if (exitValue == KILLED_EXIT_VALUE
+                || output.contains("Memory limit would be exceeded")
+                || output.contains("std::bad_alloc")
+                || usage.getPeakRssBytes() >= maxBytes * OUT_OF_MEMORY_FRACTION) {
+            return new TransformationOutOfMemoryException(message);
+        }
+        if (output.contains("Invalid input") || output.contains("Error reading") || output.contains("Unsupported")) {
+            return new InvalidInputException(message);
+        }
+        return new TransformationException(message);
+    }
+
+    static String lastLine(final String output) {
+        final String trimmed = output.trim();
+        return trimmed.isEmpty() ? "" : " - " + trimmed.substring(trimmed.lastIndexOf('\n') + 1);
+    }
+
+    /**
+     * Reads the output of a process appended to the log since the given offset.
+     * @return the output, at most the last {@value #MAX_OUTPUT_BYTES} bytes. Empty if the log is not readable.
+     */
+    String readOutput(final File log, final long offset) {
+        try (final RandomAccessFile in = new RandomAccessFile(log, "r")) {
+            final long start = Math.max(offset, in.length() - MAX_OUTPUT_BYTES);
+            final byte[] data = new byte[(int) Math.max(0, in.length() - start)];
+            in.seek(start);
+            in.readFully(data);
+            return new String(data, StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Unable to read process output from {0}: {1}", new Object[] {log, e});
+            return "";
+        }
+    }
+
     void configureProcessBuilder(final ProcessBuilder pb, final boolean redirectOutput, final Path targetPath) {
         assert pb != null;
         assert targetPath != null;
@@ -119,15 +285,15 @@ public final class GuetzliTransformationProcessor {
         }
     }
     
-    long timeoutValue() {
-        return 5;
-    }
-
-    TimeUnit timeoutUnit() {
-        return TimeUnit.SECONDS;
-    }
-    
-    long timeoutTries() {
-        return 180;
+    void kill(final Process p) {
+        p.destroy();
+        try {
+            if (!p.waitFor(KILL_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                p.destroyForcibly();
+            }
+        } catch (final InterruptedException ex) {
+            p.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
     }
 }
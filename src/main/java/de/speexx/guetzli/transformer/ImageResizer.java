@@ -0,0 +1,195 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Crops and scales images down before the <code>guetzli</code> transformation. The cost of <code>guetzli</code>
+ * grows superlinear with the number of pixels, so a smaller input saves a lot of CPU time.
+ * <p>The image is scaled down in steps of at most half the size with bilinear interpolation and the last step
+ * with bicubic interpolation. This avoids the aliasing of a single step downscale. The resized image is
+ * written lossless as PNG, so <code>guetzli</code> is the only lossy step.</p>
+ * @author sascha.kohlmann
+ */
+public final class ImageResizer {
+
+    private static final Logger LOG = Logger.getLogger(ImageResizer.class.getSimpleName());
+
+    /**
+     * Resizes the source image and writes the result as PNG.
+     * @param source the source image.
+     * @param target the PNG file to write.
+     * @param options the resize options.
+     * @return the size of the resized image.
+     * @throws IOException if and only if it is not possible to read the source or to write the target.
+     */
+    public Dimension resize(final Path source, final Path target, final ResizeOptions options) throws IOException {
+        return resize(source, target, options, JpegSegmentStripper.NORMAL_ORIENTATION);
+    }
+
+    /**
+     * Rotates the source image according to the EXIF orientation, resizes it and writes the result as PNG.
+     * @param source the source image.
+     * @param target the PNG file to write.
+     * @param options the resize options.
+     * @param orientation the EXIF orientation of the source image.
+     * @return the size of the resized image.
+     * @throws IOException if and only if it is not possible to read the source or to write the target.
+     * @see JpegSegmentStripper#readOrientation(java.io.InputStream)
+     */
+    public Dimension resize(final Path source, final Path target, final ResizeOptions options, final int orientation) throws IOException {
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(target);
+        Objects.requireNonNull(options);
+
+        final BufferedImage resized = resize(orient(read(source), orientation), options);
+        write(resized, target);
+        LOG.log(Level.INFO, "Resized {0} to {1}x{2}", new Object[] {source, resized.getWidth(), resized.getHeight()});
+        return new Dimension(resized.getWidth(), resized.getHeight());
+    }
+
+    /**
+     * Reads an image.
+     * @param source the image file.
+     * @return the decoded image. Never {@code null}.
+     * @throws IOException if and only if it is not possible to read the image.
+     */
+    public BufferedImage read(final Path source) throws IOException {
+        final BufferedImage image = ImageIO.read(source.toFile());
+        if (image == null) {
+            throw new IOException("No image reader available for " + source);
+        }
+        return image;
+    }
+
+    /**
+     * Writes an image as PNG.
+     * @param image the image.
+     * @param target the PNG file.
+     * @throws IOException if and only if it is not possible to write the image.
+     */
+    public void write(final BufferedImage image, final Path target) throws IOException {
+        if (!ImageIO.write(image, "png", target.toFile())) {
+            throw new IOException("No PNG image writer available");
+        }
+    }
+
+    /**
+     * Resizes the image.
+     * @param source the decoded image.
+     * @param options the resize options.
+     * @return the resized image. Never {@code null}.
+     */
+    public BufferedImage resize(final BufferedImage source, final ResizeOptions options) {
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(options);
+
+        final Rectangle region = options.cropRegion(source.getWidth(), source.getHeight());
+        BufferedImage image = source.getSubimage(region.x, region.y, region.width, region.height);
+
+        final Dimension scaled = options.scaledDimension(region.width, region.height);
+        image = scale(image, scaled.width, scaled.height);
+
+        final Dimension target = options.targetDimension(source.getWidth(), source.getHeight());
+        if (target.width != image.getWidth() || target.height != image.getHeight()) {
+            final int x = (image.getWidth() - target.width) / 2;
+            final int y = (image.getHeight() - target.height) / 2;
+            image = copy(image.getSubimage(x, y, target.width, target.height), target.width, target.height, null);
+        } else if (image.getRaster().getParent() != null) {
+            // only cropped: detach from the raster of the source image
+            image = copy(image, image.getWidth(), image.getHeight(), null);
+        }
+        return image;
+    }
+
+    /**
+     * Rotates and flips the image according to the EXIF orientation.
+     * @param source the decoded image.
+     * @param orientation the EXIF orientation between {@literal 1} and {@literal 8}.
+     * @return the image in normal orientation. The source image for orientation {@literal 1}.
+     */
+    public BufferedImage orient(final BufferedImage source, final int orientation) {
+        Objects.requireNonNull(source);
+        final int w = source.getWidth();
+        final int h = source.getHeight();
+        final AffineTransform transform;
+        switch (orientation) {
+            case 2: transform = new AffineTransform(-1, 0, 0, 1, w, 0); break;   // flip horizontal
+            case 3: transform = new AffineTransform(-1, 0, 0, -1, w, h); break;  // rotate 180
+            case 4: transform = new AffineTransform(1, 0, 0, -1, 0, h); break;   // flip vertical
+            case 5: transform = new AffineTransform(0, 1, 1, 0, 0, 0); break;    // transpose
+            case 6: transform = new AffineTransform(0, 1, -1, 0, h, 0); break;   // rotate 90 clockwise
+            case 7: transform = new AffineTransform(0, -1, -1, 0, h, w); break;  // transverse
+            case 8: transform = new AffineTransform(0, -1, 1, 0, 0, w); break;   // rotate 270 clockwise
+            default: return source;
+        }
+        final boolean swap = orientation >= 5;
+        final int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        final BufferedImage target = new BufferedImage(swap ? h : w, swap ? w : h, type);
+        final Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.drawImage(source, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    BufferedImage scale(final BufferedImage source, final int width, final int height) {
+        BufferedImage image = source;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        while (w / 2 >= width && h / 2 >= height) {
+            w /= 2;
+            h /= 2;
+            image = copy(image, w, h, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        if (w != width || h != height) {
+            image = copy(image, width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        }
+        return image;
+    }
+
+    static BufferedImage copy(final BufferedImage source, final int width, final int height, final Object interpolation) {
+        final int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        final BufferedImage target = new BufferedImage(width, height, type);
+        final Graphics2D graphics = target.createGraphics();
+        try {
+            if (interpolation != null) {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            }
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Removes metadata segments from a JPEG image segment by segment without decoding the pixels.
+ * <p>Kept are the JFIF and Adobe application segments, which are required to decode the image, and optional
+ * the ICC color profile. The EXIF segment is replaced by a minimal EXIF segment with only the orientation
+ * if the orientation should be kept. EXIF thumbnails, maker notes, XMP, IPTC and comments are removed.
+ * The entropy coded data after the first scan header is copied unchanged.</p>
+ * @author sascha.kohlmann
+ */
+public final class JpegSegmentStripper {
+
+    /** The orientation of an image without EXIF orientation. */
+    public static final int NORMAL_ORIENTATION = 1;
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+    private static final int APP14 = 0xEE;
+    private static final int APP15 = 0xEF;
+    private static final int COM = 0xFE;
+    private static final int ORIENTATION_TAG = 0x0112;
+
+    private static final byte[] JFIF = "JFIF\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXIF = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ICC = "ICC_PROFILE\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ADOBE = "Adobe".getBytes(StandardCharsets.US_ASCII);
+
+    private final StripOptions options;
+    private int orientation = NORMAL_ORIENTATION;
+
+    /**
+     * Creates a new stripper.
+     * @param options the segments to keep.
+     */
+    public JpegSegmentStripper(final StripOptions options) {
+        this.options = Objects.requireNonNull(options);
+    }
+
+    /**
+     * Copies the JPEG image without the metadata segments.
+     * @param in the JPEG image.
+     * @param out the stream to write the stripped JPEG image to.
+     * @return the number of removed bytes.
+     * @throws IOException if and only if it is not possible to read or write or if the input is no JPEG image.
+     */
+    public long strip(final InputStream in, final OutputStream out) throws IOException {
+        Objects.requireNonNull(in);
+        Objects.requireNonNull(out);
+        return process(new DataInputStream(in), out);
+    }
+
+    /**
+     * The EXIF orientation found by the last {@linkplain #strip(java.io.InputStream, java.io.OutputStream) strip}.
+     * @return the orientation between {@literal 1} and {@literal 8}.
+     */
+    public int getOrientation() {
+        return this.orientation;
+    }
+
+    /**
+     * Reads the EXIF orientation of a JPEG image. Reads only the segments in front of the first scan.
+     * @param in the JPEG image.
+     * @return the orientation between {@literal 1} and {@literal 8}.
+     * @throws IOException if and only if it is not possible to read or if the input is no JPEG image.
+     */
+    public static int readOrientation(final InputStream in) throws IOException {
+        final JpegSegmentStripper stripper = new JpegSegmentStripper(new StripOptions(true, true, false));
+        stripper.process(new DataInputStream(in), null);
+        return stripper.getOrientation();
+    }
+
+    long process(final DataInputStream in, final OutputStream out) throws IOException {
+        if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != SOI) {
+            throw new IOException("Not a JPEG image");
+        }
+        write(out, 0xFF, SOI);
+        long removed = 0;
+        while (true) {
+            final int marker = readMarker(in);
+            if (marker == SOS || marker == EOI) {
+                write(out, 0xFF, marker);
+                if (out != null) {
+                    copy(in, out);
+                }
+                return removed;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                write(out, 0xFF, marker); // standalone marker without length
+                continue;
+            }
+            final int length = in.readUnsignedShort();
+            if (length < 2) {
+                throw new IOException("Invalid segment length " + length);
+            }
+            final byte[] payload = new byte[length - 2];
+            in.readFully(payload);
+
+            final byte[] kept = filter(marker, payload);
+            if (kept == null) {
+                removed += 2 + length;
+            } else {
+                removed += payload.length - kept.length;
+                write(out, 0xFF, marker);
+                write(out, (kept.length + 2) >>> 8, (kept.length + 2) & 0xFF);
+                if (out != null) {
+                    out.write(kept);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides about a segment.
+     * @return the payload to write or {@code null} to remove the segment.
+     */
+    byte[] filter(final int marker, final byte[] payload) {
+        if (marker == APP0) {
+            return startsWith(payload, JFIF) ? payload : null;
+        }
+        if (marker == APP1) {
+            if (!startsWith(payload, EXIF)) {
+                return null; // XMP and others
+            }
+            this.orientation = parseOrientation(payload);
+            return this.options.isKeepOrientation() && this.orientation != NORMAL_ORIENTATION
+                    ? minimalExif(this.orientation) : null;
+        }
+        if (marker == APP2) {
+            return this.options.isKeepIcc() && startsWith(payload, ICC) ? payload : null;
+        }
+        if (marker == APP14) {
+            return startsWith(payload, ADOBE) ? payload : null;
+        }
+        if ((marker > APP2 && marker <= APP15) || marker == COM) {
+            return null;
+        }
+        return payload;
+    }
+
+    static int parseOrientation(final byte[] payload) {
+        final int tiff = EXIF.length;
+        if (payload.length < tiff + 8) {
+            return NORMAL_ORIENTATION;
+        }
+        final boolean littleEndian = payload[tiff] == 'I';
+        final int ifd = tiff + (int) readInt(payload, tiff + 4, littleEndian);
+        if (ifd < tiff || ifd + 2 > payload.length) {
+            return NORMAL_ORIENTATION;
+        }
+        final int entries = readShort(payload, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > payload.length) {
+                break;
+            }
+            if (readShort(payload, entry, littleEndian) == ORIENTATION_TAG) {
+                final int value = readShort(payload, entry + 8, littleEndian);
+                return value >= 1 && value <= 8 ? value : NORMAL_ORIENTATION;
+            }
+        }
+        return NORMAL_ORIENTATION;
+    }
+
+    /** An EXIF segment in big endian byte order with an IFD containing only the orientation. */
+    static byte[] minimalExif(final int orientation) {
+        final byte[] tiff = {
+            'M', 'M', 0, 42, 0, 0, 0, 8,                           // header with offset of IFD0
+            0, 1,                                                   // one entry
+            0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0, // orientation, SHORT, count 1
+            0, 0, 0, 0                                              // no next IFD
+        };
+        final byte[] exif = new byte[EXIF.length + tiff.length];
+        System.arraycopy(EXIF, 0, exif, 0, EXIF.length);
+        System.arraycopy(tiff, 0, exif, EXIF.length, tiff.length);
+        return exif;
+    }
+
+    static int readMarker(final DataInputStream in) throws IOException {
+        int b = in.readUnsignedByte();
+        if (b != 0xFF) {
+            throw new IOException("Invalid JPEG marker " + Integer.toHexString(b));
+        }
+        while (b == 0xFF) {
+            b = in.readUnsignedByte(); // fill bytes
+        }
+        return b;
+    }
+
+    static boolean startsWith(final byte[] payload, final byte[] prefix) {
+        if (payload.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (payload[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int readShort(final byte[] data, final int offset, final boolean littleEndian) {
+        final int b0 = data[offset] & 0xFF;
+        final int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    static long readInt(final byte[] data, final int offset, final boolean littleEndian) {
+        final long high = readShort(data, offset, littleEndian);
+        final long low = readShort(data, offset + 2, littleEndian);
+        return littleEndian ? (low << 16) | high : (high << 16) | low;
+    }
+
+    static void write(final OutputStream out, final int b0, final int b1) throws IOException {
+        if (out != null) {
+            out.write(b0);
+            out.write(b1);
+        }
+    }
+
+    static void copy(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import de.speexx.guetzli.service.Configuration;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Starts each <code>guetzli</code> process with a memory limit and pinned to the CPUs reserved for
+ * transformations, so the processes don't compete with the request threads and the kernel OOM killer hits the
+ * process instead of the JVM.
+ * <p>With a cgroup each process runs in its own cgroup v2 leaf with <code>memory.max</code> and
+ * <code>cpuset.cpus</code>. The cgroup must be delegated to the user of the JVM with the <code>memory</code> and
+ * <code>cpuset</code> controllers enabled in <code>cgroup.subtree_control</code>. Without a cgroup the address
+ * space is limited with <code>prlimit</code> and the CPUs with <code>taskset</code> if the tools are available.</p>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.limit.memory</code></dt>
+ *   <dd>The memory limit of each process in MB. Default is {@value #DEFAULT_MEMORY_MB} for no limit.</dd>
+ *   <dt><code>guetzli.service.limit.cpus</code></dt>
+ *   <dd>The CPU list reserved for the processes, e.g. <code>2-3</code> or <code>4,6</code>. Default are all
+ *       CPUs.</dd>
+ *   <dt><code>guetzli.service.limit.cgroup</code></dt>
+ *   <dd>The directory of the delegated cgroup, e.g. <code>/sys/fs/cgroup/guetzli</code>. Default is no
+ *       cgroup.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+final class ProcessLimiter {
+
+    private static final Logger LOG = Logger.getLogger(ProcessLimiter.class.getSimpleName());
+
+    static final long DEFAULT_MEMORY_MB = 0;
+    private static final Pattern CPU_LIST = Pattern.compile("[0-9]+(-[0-9]+)?(,[0-9]+(-[0-9]+)?)*");
+    private static final String PRLIMIT_CMD = "prlimit";
+    private static final String TASKSET_CMD = "taskset";
+    private static final String LEAF_PREFIX = "guetzli-";
+    /** Moves the shell into the leaf given as first argument and executes the remaining arguments. */
+    private static final String CGROUP_SCRIPT = "echo $$ > \"$1/cgroup.procs\" && shift && exec \"$@\"";
+
+    private static final Map<String, Boolean> AVAILABLE_TOOLS = new ConcurrentHashMap<>();
+    private static final AtomicLong SEQUENCE = new AtomicLong(System.currentTimeMillis());
+
+    private final ResourceLimits limits;
+    private final Path cgroup;
+
+    ProcessLimiter(final ResourceLimits limits, final Path cgroup) {
+        assert limits != null;
+        assert limits.getMechanism() != ResourceLimits.Mechanism.cgroup || cgroup != null;
+        this.limits = limits;
+        this.cgroup = cgroup;
+    }
+
+    /**
+     * The limiter of the configuration. Limits which can't be enforced are ignored.
+     * @return the limiter. Never {@code null}.
+     */
+    static ProcessLimiter configured() {
+        final long memoryBytes = Configuration.longValue("guetzli.service.limit.memory", DEFAULT_MEMORY_MB) * 1024L * 1024L;
+        String cpus = Configuration.stringValue("guetzli.service.limit.cpus", null);
+        if (cpus != null && !CPU_LIST.matcher(cpus).matches()) {
+            LOG.log(Level.WARNING, "Ignore invalid CPU list {0}", cpus);
+            cpus = null;
+        }
+        final String cgroupDir = Configuration.stringValue("guetzli.service.limit.cgroup", null);
+        if (cgroupDir != null) {
+            final Path cgroup = Paths.get(cgroupDir);
+            if (isDelegated(cgroup, memoryBytes, cpus)) {
+                return new ProcessLimiter(new ResourceLimits(ResourceLimits.Mechanism.cgroup, memoryBytes, cpus), cgroup);
+            }
+            LOG.log(Level.WARNING, "cgroup {0} is not delegated with the required controllers. Use prlimit and taskset", cgroup);
+        }
+        final long rlimitMemory = memoryBytes > 0 && isAvailable(PRLIMIT_CMD) ? memoryBytes : 0;
+        final String rlimitCpus = cpus != null && isAvailable(TASKSET_CMD) ? cpus : null;
+        if (rlimitMemory == 0 && rlimitCpus == null) {
+            return new ProcessLimiter(ResourceLimits.NONE, null);
+        }
+        return new ProcessLimiter(new ResourceLimits(ResourceLimits.Mechanism.rlimit, rlimitMemory, rlimitCpus), null);
+    }
+
+    /**
+     * Whether the cgroup is writable and the controllers for the limits are enabled for its leaves.
+     */
+    static boolean isDelegated(final Path cgroup, final long memoryBytes, final String cpus) {
+        final Path subtreeControl = cgroup.resolve("cgroup.subtree_control");
+        if (!Files.isWritable(subtreeControl)) {
+            return false;
+        }
+        try {
+            final List<String> controllers = Arrays.asList(new String(Files.readAllBytes(subtreeControl), StandardCharsets.US_ASCII).trim().split("\\s+"));
+            return (memoryBytes <= 0 || controllers.contains("memory"))
+                    && (cpus == null || controllers.contains("cpuset"));
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to read {0}: {1}", new Object[] {subtreeControl, e});
+            return false;
+        }
+    }
+
+    static boolean isAvailable(final String tool) {
+        return AVAILABLE_TOOLS.computeIfAbsent(tool, name -> {
+            final String path = System.getenv("PATH");
+            if (path != null) {
+                for (final String dir : path.split(File.pathSeparator)) {
+                    if (!dir.isEmpty() && Files.isExecutable(Paths.get(dir, name))) {
+                        return true;
+                    }
+                }
+            }
+            LOG.log(Level.WARNING, "{0} not found. Processes are started without this limit", name);
+            return false;
+        });
+    }
+
+    /**
+     * The limits of the started processes.
+     * @return the limits. Never {@code null}.
+     */
+    ResourceLimits getLimits() {
+        return this.limits;
+    }
+
+    /**
+     * Creates the cgroup leaf for a new process.
+     * @return the leaf or {@code null} if the limits are not enforced by a cgroup.
+     * @throws IOException if and only if it is not possible to create the leaf.
+     */
+    Path createLeaf() throws IOException {
+        if (this.limits.getMechanism() != ResourceLimits.Mechanism.cgroup) {
+            return null;
+        }
+        final Path leaf = Files.createDirectory(this.cgroup.resolve(LEAF_PREFIX + SEQUENCE.incrementAndGet()));
+        try {
+            if (this.limits.getMemoryBytes() > 0) {
+                write(leaf, "memory.max", String.valueOf(this.limits.getMemoryBytes()));
+                // only with swap accounting
+                if (Files.exists(leaf.resolve("memory.swap.max"))) {
+                    write(leaf, "memory.swap.max", "0");
+                }
+            }
+            if (this.limits.getCpus() != null) {
+                write(leaf, "cpuset.cpus", this.limits.getCpus());
+            }
+        } catch (final IOException e) {
+            removeLeaf(leaf);
+            throw e;
+        }
+        return leaf;
+    }
+
+    static void write(final Path leaf, final String name, final String value) throws IOException {
+        Files.write(leaf.resolve(name), value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Removes the cgroup leaf after the end of the process.
+     * @param leaf the leaf. Can be {@code null}.
+     */
+    void removeLeaf(final Path leaf) {
+        if (leaf != null) {
+            try {
+                Files.deleteIfExists(leaf);
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Unable to remove cgroup {0}: {1}", new Object[] {leaf, e});
+            }
+        }
+    }
+
+    /**
+     * Prefixes the command with the tools to enforce the limits. The tools execute the command, so the process
+     * ID is the ID of the command.
+     * @param command the command.
+     * @param leaf the cgroup leaf of the process. {@code null} without cgroup.
+     * @return the limited command.
+     */
+    List<String> limit(final List<String> command, final Path leaf) {
+        assert command != null;
+
+        final List<String> limited = new ArrayList<>();
+        switch (this.limits.getMechanism()) {
+            case cgroup:
+                assert leaf != null;
+                limited.addAll(Arrays.asList("sh", "-c", CGROUP_SCRIPT, "guetzli-limit", leaf.toString()));
+                break;
+            case rlimit:
+                if (this.limits.getMemoryBytes() > 0) {
+                    limited.addAll(Arrays.asList(PRLIMIT_CMD, "--as=" + this.limits.getMemoryBytes()));
+                }
+                if (this.limits.getCpus() != null) {
+                    limited.addAll(Arrays.asList(TASKSET_CMD, "-c", this.limits.getCpus()));
+                }
+                break;
+            default:
+                break;
+        }
+        limited.addAll(command);
+        return limited;
+    }
+}
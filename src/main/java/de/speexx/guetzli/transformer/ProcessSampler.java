@@ -0,0 +1,203 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import de.speexx.guetzli.service.Configuration;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the resource usage of running <code>guetzli</code> processes from the Linux <code>/proc</code>
+ * filesystem. A single daemon thread reads <code>/proc/&lt;pid&gt;/stat</code> for the CPU time and
+ * <code>/proc/&lt;pid&gt;/status</code> for the peak resident set size (<code>VmHWM</code>) of every watched
+ * process. Without <code>/proc</code> only the wall clock time is measured.
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.sampler.interval</code></dt>
+ *   <dd>The sample interval in milliseconds. Default is {@value #DEFAULT_INTERVAL_MILLIS}.</dd>
+ *   <dt><code>guetzli.service.sampler.clockticks</code></dt>
+ *   <dd>The clock ticks per second of the CPU times in <code>/proc/&lt;pid&gt;/stat</code>
+ *     (<code>getconf CLK_TCK</code>). Default is {@value #DEFAULT_CLOCK_TICKS}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class ProcessSampler {
+
+    private static final Logger LOG = Logger.getLogger(ProcessSampler.class.getSimpleName());
+
+    static final long DEFAULT_INTERVAL_MILLIS = 200;
+    static final long DEFAULT_CLOCK_TICKS = 100;
+    private static final Path PROC = Paths.get("/proc");
+    private static final long KIB = 1024;
+
+    private static volatile ProcessSampler instance;
+
+    private final Set<Sample> samples = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService executor;
+    private final long clockTicks;
+    private final boolean procAvailable;
+
+    ProcessSampler(final long intervalMillis, final long clockTicks) {
+        this.clockTicks = clockTicks;
+        this.procAvailable = Files.isDirectory(PROC.resolve("self"));
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "guetzli-process-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (this.procAvailable) {
+            this.executor.scheduleWithFixedDelay(this::sampleAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            LOG.log(Level.INFO, "No /proc filesystem. Measure only wall clock time of guetzli processes.");
+        }
+    }
+
+    /**
+     * The sampler of this node.
+     * @return the sampler. Never {@code null}.
+     */
+    public static ProcessSampler instance() {
+        ProcessSampler sampler = instance;
+        if (sampler == null) {
+            synchronized (ProcessSampler.class) {
+                sampler = instance;
+                if (sampler == null) {
+                    sampler = new ProcessSampler(
+                            Configuration.longValue("guetzli.service.sampler.interval", DEFAULT_INTERVAL_MILLIS),
+                            Configuration.longValue("guetzli.service.sampler.clockticks", DEFAULT_CLOCK_TICKS));
+                    instance = sampler;
+                }
+            }
+        }
+        return sampler;
+    }
+
+    /**
+     * Starts to sample a process.
+     * @param process the process to sample.
+     * @return the sample to {@linkplain Sample#stop() stop}. Never {@code null}.
+     */
+    public Sample watch(final Process process) {
+        final Sample sample = new Sample(pid(process));
+        if (this.procAvailable && sample.pid > 0) {
+            this.samples.add(sample);
+            sample(sample);
+        }
+        return sample;
+    }
+
+    void sampleAll() {
+        for (final Sample sample : this.samples) {
+            sample(sample);
+        }
+    }
+
+    void sample(final Sample sample) {
+        final Path dir = PROC.resolve(String.valueOf(sample.pid));
+        try {
+            final String stat = new String(Files.readAllBytes(dir.resolve("stat")), StandardCharsets.US_ASCII);
+            // the command name in parentheses may contain spaces
+            final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            final long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]); // utime + stime
+            final long hwm = readVmHwm(dir.resolve("status"));
+            synchronized (sample) {
+                sample.cpuTicks = Math.max(sample.cpuTicks, ticks);
+                sample.peakRssBytes = Math.max(sample.peakRssBytes, hwm);
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOG.log(Level.FINEST, "Unable to sample process {0}: {1}", new Object[] {sample.pid, e});
+        }
+    }
+
+    static long readVmHwm(final Path status) throws IOException {
+        final List<String> lines = Files.readAllLines(status, StandardCharsets.US_ASCII);
+        for (final String line : lines) {
+            if (line.startsWith("VmHWM:")) {
+                final String value = line.substring("VmHWM:".length()).trim();
+                return Long.parseLong(value.substring(0, value.indexOf(' '))) * KIB;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The process ID. Uses <code>Process.pid()</code> of newer Java versions or the private <code>pid</code>
+     * field of the Unix process implementation.
+     * @return the process ID or {@literal -1} if unknown.
+     */
+    static long pid(final Process process) {
+        return AccessController.doPrivileged((PrivilegedAction<Long>) () -> {
+            try {
+                final Method method = Process.class.getMethod("pid");
+                return ((Number) method.invoke(process)).longValue();
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                LOG.log(Level.FINEST, "No Process.pid() method: {0}", e);
+            }
+            try {
+                final Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getLong(process);
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                LOG.log(Level.FINEST, "No pid field: {0}", e);
+                return -1L;
+            }
+        });
+    }
+
+    /**
+     * The samples of a single process.
+     */
+    public final class Sample {
+
+        private final long pid;
+        private final long start = System.nanoTime();
+        private long cpuTicks;
+        private long peakRssBytes;
+
+        Sample(final long pid) {
+            this.pid = pid;
+        }
+
+        /**
+         * Stops sampling. Should be called immediately after the process ended.
+         * @return the resource usage. Never {@code null}.
+         */
+        public ResourceUsage stop() {
+            final long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.start);
+            ProcessSampler.this.samples.remove(this);
+            synchronized (this) {
+                return new ResourceUsage(this.cpuTicks * 1000 / ProcessSampler.this.clockTicks, this.peakRssBytes, wallMillis);
+            }
+        }
+    }
+}
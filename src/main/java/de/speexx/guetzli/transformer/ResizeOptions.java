@@ -0,0 +1,183 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.Objects;
+
+/**
+ * Describes how to resize an image before the <code>guetzli</code> transformation. The optional crop region is
+ * applied first. Afterwards the image is scaled down to the maximum width and height according to the
+ * {@link Fit fit mode}. Images are never scaled up.
+ * @author sascha.kohlmann
+ * @see ImageResizer
+ */
+public final class ResizeOptions {
+
+    /** How to fit an image into the maximum width and height. */
+    public enum Fit {
+        /** Scales the image down to fit completely into the maximum width and height. Keeps the aspect ratio. */
+        contain,
+        /** Scales the image down to cover the maximum width and height and crops the overlap centered. */
+        cover;
+    }
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final Fit fit;
+    private final Rectangle crop;
+
+    /**
+     * Creates new options.
+     * @param maxWidth the maximum width. {@literal 0} for no limit.
+     * @param maxHeight the maximum height. {@literal 0} for no limit.
+     * @param fit the fit mode. {@code null} for {@link Fit#contain contain}.
+     * @param crop the optional crop region. Can be {@code null}.
+     * @throws IllegalArgumentException if a value is negative, the crop region is empty, or
+     *                                  {@link Fit#cover cover} is requested without width and height.
+     */
+    public ResizeOptions(final int maxWidth, final int maxHeight, final Fit fit, final Rectangle crop) {
+        if (maxWidth < 0 || maxHeight < 0) {
+            throw new IllegalArgumentException("Maximum width and height must not be negative");
+        }
+        if (crop != null && (crop.x < 0 || crop.y < 0 || crop.width <= 0 || crop.height <= 0)) {
+            throw new IllegalArgumentException("Invalid crop region " + crop);
+        }
+        final Fit mode = fit == null ? Fit.contain : fit;
+        if (mode == Fit.cover && (maxWidth == 0 || maxHeight == 0)) {
+            throw new IllegalArgumentException("Fit mode 'cover' requires maximum width and height");
+        }
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.fit = mode;
+        this.crop = crop == null ? null : new Rectangle(crop);
+    }
+
+    /**
+     * Parses a crop region in the format <code>x,y,width,height</code>.
+     * @param crop the crop region. Can be {@code null}.
+     * @return the crop region or {@code null} if <em>crop</em> is {@code null} or empty.
+     * @throws IllegalArgumentException if the format is invalid.
+     */
+    public static Rectangle parseCrop(final String crop) {
+        if (crop == null || crop.trim().isEmpty()) {
+            return null;
+        }
+        final String[] values = crop.split(",");
+        if (values.length != 4) {
+            throw new IllegalArgumentException("Crop region must be 'x,y,width,height': " + crop);
+        }
+        try {
+            return new Rectangle(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()),
+                                 Integer.parseInt(values[2].trim()), Integer.parseInt(values[3].trim()));
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Crop region must be 'x,y,width,height': " + crop, e);
+        }
+    }
+
+    /**
+     * Formats a crop region in the format <code>x,y,width,height</code>.
+     * @param crop the crop region.
+     * @return the formatted region.
+     */
+    public static String formatCrop(final Rectangle crop) {
+        Objects.requireNonNull(crop);
+        return crop.x + "," + crop.y + "," + crop.width + "," + crop.height;
+    }
+
+    /**
+     * The crop region clipped to the image.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @return the region. The complete image if there is no crop region.
+     */
+    public Rectangle cropRegion(final int width, final int height) {
+        final Rectangle image = new Rectangle(0, 0, width, height);
+        if (this.crop == null) {
+            return image;
+        }
+        final Rectangle region = this.crop.intersection(image);
+        return region.isEmpty() ? image : region;
+    }
+
+    /**
+     * The size of the image after scaling but before cropping for {@link Fit#cover cover}.
+     * @param width the width of the cropped image.
+     * @param height the height of the cropped image.
+     * @return the scaled size.
+     */
+    public Dimension scaledDimension(final int width, final int height) {
+        final double widthScale = this.maxWidth == 0 ? 1d : (double) this.maxWidth / width;
+        final double heightScale = this.maxHeight == 0 ? 1d : (double) this.maxHeight / height;
+        final double scale = Math.min(1d, this.fit == Fit.cover ? Math.max(widthScale, heightScale) : Math.min(widthScale, heightScale));
+        return new Dimension(Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)));
+    }
+
+    /**
+     * The size of the resized image.
+     * @param width the width of the source image.
+     * @param height the height of the source image.
+     * @return the size of the resized image.
+     */
+    public Dimension targetDimension(final int width, final int height) {
+        final Rectangle region = cropRegion(width, height);
+        final Dimension scaled = scaledDimension(region.width, region.height);
+        if (this.fit == Fit.cover) {
+            return new Dimension(Math.min(this.maxWidth, scaled.width), Math.min(this.maxHeight, scaled.height));
+        }
+        return scaled;
+    }
+
+    /**
+     * The maximum width.
+     * @return the maximum width or {@literal 0} for no limit.
+     */
+    public int getMaxWidth() {
+        return this.maxWidth;
+    }
+
+    /**
+     * The maximum height.
+     * @return the maximum height or {@literal 0} for no limit.
+     */
+    public int getMaxHeight() {
+        return this.maxHeight;
+    }
+
+    /**
+     * The fit mode.
+     * @return the fit mode. Never {@code null}.
+     */
+    public Fit getFit() {
+        return this.fit;
+    }
+
+    /**
+     * The crop region.
+     * @return the crop region. Can be {@code null}.
+     */
+    public Rectangle getCrop() {
+        return this.crop == null ? null : new Rectangle(this.crop);
+    }
+
+    @Override
+    public String toString() {
+        return "ResizeOptions{" + "maxWidth=" + maxWidth + ", maxHeight=" + maxHeight + ", fit=" + fit + ", crop=" + (crop == null ? null : formatCrop(crop)) + '}';
+    }
+}
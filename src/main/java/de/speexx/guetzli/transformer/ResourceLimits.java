@@ -0,0 +1,89 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import java.util.Objects;
+
+/**
+ * The limits an external <code>guetzli</code> process was started with.
+ * @author sascha.kohlmann
+ * @see ProcessLimiter
+ */
+public final class ResourceLimits {
+
+    /** Limits of a process started without limits. */
+    public static final ResourceLimits NONE = new ResourceLimits(Mechanism.none, 0, null);
+
+    /**
+     * The mechanism which enforces the limits.
+     */
+    public enum Mechanism {
+        /** No limits. */
+        none,
+        /** Resource limits with <code>prlimit</code> and CPU affinity with <code>taskset</code>. */
+        rlimit,
+        /** A cgroup v2 leaf for each process. */
+        cgroup;
+    }
+
+    private final Mechanism mechanism;
+    private final long memoryBytes;
+    private final String cpus;
+
+    /**
+     * Creates new limits.
+     * @param mechanism the mechanism which enforces the limits.
+     * @param memoryBytes the memory limit in bytes. {@literal 0} for no limit.
+     * @param cpus the CPU list the process is pinned to, e.g. <code>2-3</code>. {@code null} for all CPUs.
+     */
+    public ResourceLimits(final Mechanism mechanism, final long memoryBytes, final String cpus) {
+        this.mechanism = Objects.requireNonNull(mechanism);
+        this.memoryBytes = memoryBytes;
+        this.cpus = cpus;
+    }
+
+    /**
+     * The mechanism which enforces the limits.
+     * @return the mechanism. Never {@code null}.
+     */
+    public Mechanism getMechanism() {
+        return this.mechanism;
+    }
+
+    /**
+     * The memory limit. For {@linkplain Mechanism#rlimit rlimit} the limit of the address space, for
+     * {@linkplain Mechanism#cgroup cgroup} the limit of the memory usage.
+     * @return the limit in bytes or {@literal 0} for no limit.
+     */
+    public long getMemoryBytes() {
+        return this.memoryBytes;
+    }
+
+    /**
+     * The CPU list the process is pinned to.
+     * @return the CPU list, e.g. <code>2-3</code>, or {@code null} for all CPUs.
+     */
+    public String getCpus() {
+        return this.cpus;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceLimits{" + "mechanism=" + mechanism + ", memoryBytes=" + memoryBytes + ", cpus=" + cpus + '}';
+    }
+}
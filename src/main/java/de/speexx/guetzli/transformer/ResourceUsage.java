@@ -0,0 +1,107 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import java.util.Objects;
+
+/**
+ * The resources used by an external <code>guetzli</code> process.
+ * @author sascha.kohlmann
+ * @see ProcessSampler
+ */
+public final class ResourceUsage {
+
+    /** Usage if nothing was measured. */
+    public static final ResourceUsage NONE = new ResourceUsage(0, 0, 0);
+
+    private final long cpuTimeMillis;
+    private final long peakRssBytes;
+    private final long wallTimeMillis;
+    private final ResourceLimits limits;
+
+    /**
+     * Creates a new usage.
+     * @param cpuTimeMillis the user and system CPU time in milliseconds.
+     * @param peakRssBytes the peak resident set size in bytes.
+     * @param wallTimeMillis the wall clock time in milliseconds.
+     */
+    public ResourceUsage(final long cpuTimeMillis, final long peakRssBytes, final long wallTimeMillis) {
+        this(cpuTimeMillis, peakRssBytes, wallTimeMillis, ResourceLimits.NONE);
+    }
+
+    /**
+     * Creates a new usage of a process started with limits.
+     * @param cpuTimeMillis the user and system CPU time in milliseconds.
+     * @param peakRssBytes the peak resident set size in bytes.
+     * @param wallTimeMillis the wall clock time in milliseconds.
+     * @param limits the limits of the process.
+     */
+    public ResourceUsage(final long cpuTimeMillis, final long peakRssBytes, final long wallTimeMillis, final ResourceLimits limits) {
+        this.cpuTimeMillis = cpuTimeMillis;
+        this.peakRssBytes = peakRssBytes;
+        this.wallTimeMillis = wallTimeMillis;
+        this.limits = Objects.requireNonNull(limits);
+    }
+
+    /**
+     * The usage with the limits of the process.
+     * @param limits the limits of the process.
+     * @return the usage with the limits.
+     */
+    public ResourceUsage withLimits(final ResourceLimits limits) {
+        return new ResourceUsage(this.cpuTimeMillis, this.peakRssBytes, this.wallTimeMillis, limits);
+    }
+
+    /**
+     * The user and system CPU time. The value is sampled and can be lower than the real value by up to one
+     * sample interval.
+     * @return the CPU time in milliseconds or {@literal 0} if unknown.
+     */
+    public long getCpuTimeMillis() {
+        return this.cpuTimeMillis;
+    }
+
+    /**
+     * The peak resident set size as reported by the kernel.
+     * @return the peak resident set size in bytes or {@literal 0} if unknown.
+     */
+    public long getPeakRssBytes() {
+        return this.peakRssBytes;
+    }
+
+    /**
+     * The wall clock time from start to end of the process.
+     * @return the wall clock time in milliseconds or {@literal 0} if unknown.
+     */
+    public long getWallTimeMillis() {
+        return this.wallTimeMillis;
+    }
+
+    /**
+     * The limits the process was started with.
+     * @return the limits. Never {@code null}.
+     */
+    public ResourceLimits getLimits() {
+        return this.limits;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceUsage{" + "cpuTimeMillis=" + cpuTimeMillis + ", peakRssBytes=" + peakRssBytes + ", wallTimeMillis=" + wallTimeMillis + ", limits=" + limits + '}';
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+/**
+ * Describes which metadata segments of a JPEG image to keep when {@linkplain JpegSegmentStripper stripping}.
+ * All other application segments and comments are removed.
+ * @author sascha.kohlmann
+ */
+public final class StripOptions {
+
+    private final boolean keepIcc;
+    private final boolean keepOrientation;
+    private final boolean rotate;
+
+    /**
+     * Creates new options.
+     * @param keepIcc {@code true} to keep the ICC color profile.
+     * @param keepOrientation {@code true} to keep the EXIF orientation. All other EXIF data is removed.
+     * @param rotate {@code true} to rotate the pixels according to the EXIF orientation. The orientation is
+     *               removed in this case.
+     */
+    public StripOptions(final boolean keepIcc, final boolean keepOrientation, final boolean rotate) {
+        this.keepIcc = keepIcc;
+        this.keepOrientation = keepOrientation;
+        this.rotate = rotate;
+    }
+
+    /**
+     * Whether to keep the ICC color profile.
+     * @return {@code true} to keep the ICC color profile.
+     */
+    public boolean isKeepIcc() {
+        return this.keepIcc;
+    }
+
+    /**
+     * Whether to keep the EXIF orientation.
+     * @return {@code true} to keep the EXIF orientation. Always {@code false} if the pixels are rotated.
+     */
+    public boolean isKeepOrientation() {
+        return this.keepOrientation && !this.rotate;
+    }
+
+    /**
+     * Whether to rotate the pixels according to the EXIF orientation.
+     * @return {@code true} to rotate the pixels.
+     */
+    public boolean isRotate() {
+        return this.rotate;
+    }
+
+    @Override
+    public String toString() {
+        return "StripOptions{" + "keepIcc=" + keepIcc + ", keepOrientation=" + keepOrientation + ", rotate=" + rotate + '}';
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import de.speexx.guetzli.service.Configuration;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Computes the timeout of a <code>guetzli</code> run from the number of pixels of the input image. The
+ * throughput in milliseconds per megapixel is an exponentially weighted moving average of the completed runs.
+ * The timeout is the expected duration multiplied with a safety factor, limited by a floor and a ceiling.
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.timeout.floor</code></dt>
+ *   <dd>The minimum timeout in seconds. Default is {@value #DEFAULT_FLOOR_SECONDS}.</dd>
+ *   <dt><code>guetzli.service.timeout.ceiling</code></dt>
+ *   <dd>The maximum timeout in seconds. Also used if the number of pixels is unknown.
+ *     Default is {@value #DEFAULT_CEILING_SECONDS}.</dd>
+ *   <dt><code>guetzli.service.timeout.safety</code></dt>
+ *   <dd>The factor applied to the expected duration. Default is {@value #DEFAULT_SAFETY_FACTOR}.</dd>
+ *   <dt><code>guetzli.service.timeout.initial</code></dt>
+ *   <dd>The throughput in seconds per megapixel before the first run completed.
+ *     Default is {@value #DEFAULT_SECONDS_PER_MEGAPIXEL}.</dd>
+ * </dl>
+ * @author sascha.kohlmann
+ */
+public final class TimeoutModel {
+
+    private static final Logger LOG = Logger.getLogger(TimeoutModel.class.getSimpleName());
+
+    static final long DEFAULT_FLOOR_SECONDS = 30;
+    static final long DEFAULT_CEILING_SECONDS = 3600;
+    static final double DEFAULT_SAFETY_FACTOR = 3;
+    static final double DEFAULT_SECONDS_PER_MEGAPIXEL = 60;
+    /** Weight of the latest run. */
+    static final double ALPHA = 0.2;
+    /** Smaller runs are dominated by the process start and don't calibrate the throughput. */
+    static final long MIN_CALIBRATION_PIXELS = 100_000;
+    private static final double MEGAPIXEL = 1_000_000d;
+
+    private static volatile TimeoutModel instance;
+
+    private final long floorMillis;
+    private final long ceilingMillis;
+    private final double safetyFactor;
+    private double millisPerMegapixel;
+
+    TimeoutModel(final long floorSeconds, final long ceilingSeconds, final double safetyFactor, final double secondsPerMegapixel) {
+        this.floorMillis = TimeUnit.SECONDS.toMillis(floorSeconds);
+        this.ceilingMillis = Math.max(this.floorMillis, TimeUnit.SECONDS.toMillis(ceilingSeconds));
+        this.safetyFactor = safetyFactor;
+        this.millisPerMegapixel = secondsPerMegapixel * 1000;
+    }
+
+    /**
+     * The model of this node.
+     * @return the model. Never {@code null}.
+     */
+    public static TimeoutModel instance() {
+        TimeoutModel model = instance;
+        if (model == null) {
+            synchronized (TimeoutModel.class) {
+                model = instance;
+                if (model == null) {
+                    model = new TimeoutModel(
+                            Configuration.longValue("guetzli.service.timeout.floor", DEFAULT_FLOOR_SECONDS),
+                            Configuration.longValue("guetzli.service.timeout.ceiling", DEFAULT_CEILING_SECONDS),
+                            Configuration.doubleValue("guetzli.service.timeout.safety", DEFAULT_SAFETY_FACTOR),
+                            Configuration.doubleValue("guetzli.service.timeout.initial", DEFAULT_SECONDS_PER_MEGAPIXEL));
+                    instance = model;
+                }
+            }
+        }
+        return model;
+    }
+
+    /**
+     * The timeout for an input image.
+     * @param pixels the number of pixels of the input image. {@literal 0} if unknown.
+     * @return the timeout in milliseconds.
+     */
+    public synchronized long timeoutMillis(final long pixels) {
+        if (pixels <= 0) {
+            return this.ceilingMillis;
+        }
+        final long expected = Math.round(this.safetyFactor * this.millisPerMegapixel * pixels / MEGAPIXEL);
+        return Math.min(this.ceilingMillis, Math.max(this.floorMillis, expected));
+    }
+
+    /**
+     * Calibrates the throughput with a completed run.
+     * @param pixels the number of pixels of the input image.
+     * @param wallTimeMillis the duration of the run.
+     */
+    public synchronized void record(final long pixels, final long wallTimeMillis) {
+        if (pixels < MIN_CALIBRATION_PIXELS || wallTimeMillis <= 0) {
+            return;
+        }
+        final double observed = wallTimeMillis * MEGAPIXEL / pixels;
+        this.millisPerMegapixel = ALPHA * observed + (1 - ALPHA) * this.millisPerMegapixel;
+        LOG.log(Level.FINE, "Throughput {0} ms per megapixel", this.millisPerMegapixel);
+    }
+
+    /**
+     * The current throughput estimation.
+     * @return the milliseconds per megapixel.
+     */
+    public synchronized long getMillisPerMegapixel() {
+        return Math.round(this.millisPerMegapixel);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.standalone;
+
+import de.speexx.guetzli.api.ApplicationConfiguration;
+import de.speexx.guetzli.api.support.Cleanup;
+import de.speexx.guetzli.api.support.StorageMigration;
+import de.speexx.guetzli.service.Configuration;
+import de.speexx.guetzli.service.ContentDeleter;
+import de.speexx.guetzli.service.ImageService;
+import de.speexx.guetzli.service.watch.FolderWatcher;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.core.UriBuilder;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
+
+/**
+ * Runs the REST API on an embedded Grizzly HTTP server without an application server. The services of the
+ * container are replaced by plain executors:
+ * <ul>
+ *   <li>the {@link ImageService} is a singleton,</li>
+ *   <li>new content events start the transformation {@linkplain StandaloneContentEvents directly},</li>
+ *   <li>the scheduled tasks run with a {@link ScheduledExecutorService}.</li>
+ * </ul>
+ * <p>Configuration:</p>
+ * <dl>
+ *   <dt><code>guetzli.service.host</code></dt>
+ *   <dd>The host name to bind to. Default is {@value #DEFAULT_HOST}.</dd>
+ *   <dt><code>guetzli.service.port</code></dt>
+ *   <dd>The port to listen on. Default is {@value #DEFAULT_PORT}.</dd>
+ * </dl>
+ * <p>The {@link FolderWatcher} is started if a watch directory is configured.</p>
+ * @author sascha.kohlmann
+ */
+public final class Main {
+
+    private static final Logger LOG = Logger.getLogger(Main.class.getSimpleName());
+
+    static final String DEFAULT_HOST = "0.0.0.0";
+    static final int DEFAULT_PORT = 8080;
+    private static final int STOP_DELAY_SECONDS = 2;
+
+    private Main() {
+    }
+
+    /**
+     * Starts the server.
+     * @param args not used.
+     * @throws IOException if and only if it is not possible to watch the configured watch directory.
+     */
+    public static void main(final String[] args) throws IOException {
+        final long start = System.nanoTime();
+
+        final ExecutorService workers = Executors.newCachedThreadPool(daemonThreads("guetzli-worker"));
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("guetzli-timer"));
+        final ImageService imgSrv = new ImageService();
+
+        final ResourceConfig config = ResourceConfig.forApplication(new ApplicationConfiguration());
+        // the resources are registered explicitly, scanning for features and providers only costs startup time
+        config.property(ServerProperties.FEATURE_AUTO_DISCOVERY_DISABLE, true);
+        config.property(ServerProperties.METAINF_SERVICES_LOOKUP_DISABLE, true);
+        config.property(ServerProperties.WADL_FEATURE_DISABLE, true);
+        config.property(ServerProperties.BV_FEATURE_DISABLE, true);
+        config.register(new StandaloneBinder(imgSrv, new StandaloneContentEvents(imgSrv, workers)));
+
+        final URI baseUri = UriBuilder.fromUri("http://localhost/")
+                                      .host(Configuration.stringValue("guetzli.service.host", DEFAULT_HOST))
+                                      .port(Configuration.intValue("guetzli.service.port", DEFAULT_PORT))
+                                      .path("api")
+                                      .build();
+        final HttpServer server = GrizzlyHttpServerFactory.createHttpServer(baseUri, config);
+
+        final Cleanup cleanup = new Cleanup(imgSrv);
+        final StorageMigration migration = new StorageMigration(imgSrv);
+        timer.scheduleWithFixedDelay(() -> run(() -> imgSrv.coordinate(workers)), 10, 10, TimeUnit.SECONDS);
+        timer.scheduleWithFixedDelay(() -> run(migration::process), 1, 1, TimeUnit.MINUTES);
+        timer.scheduleWithFixedDelay(() -> run(cleanup::process), 30, 30, TimeUnit.MINUTES);
+
+        // deletes the content IDs marked as deleted before the start
+        ContentDeleter.instance();
+
+        final FolderWatcher watcher = FolderWatcher.create(imgSrv, workers);
+        if (watcher != null) {
+            watcher.start();
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LOG.info("Stopping guetzli service");
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (final IOException e) {
+                    LOG.log(Level.FINE, "Unable to stop the folder watcher", e);
+                }
+            }
+            server.shutdown(STOP_DELAY_SECONDS, TimeUnit.SECONDS);
+            timer.shutdownNow();
+            workers.shutdownNow();
+        }, "guetzli-shutdown"));
+
+        LOG.log(Level.INFO, "guetzli service listening on {0} (started in {1} ms)",
+                new Object[] {baseUri, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+    }
+
+    /**
+     * Scheduled tasks must not throw, otherwise the executor cancels all further runs.
+     */
+    static void run(final Runnable task) {
+        try {
+            task.run();
+        } catch (final RuntimeException e) {
+            LOG.log(Level.WARNING, "Scheduled task failed", e);
+        }
+    }
+
+    static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            final Thread thread = new Thread(task, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            // failed jobs are already logged by the image service
+            thread.setUncaughtExceptionHandler((t, e) -> LOG.log(Level.FINE, "Job failed in " + t.getName(), e));
+            return thread;
+        };
+    }
+}
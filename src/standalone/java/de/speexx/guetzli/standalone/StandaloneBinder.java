@@ -0,0 +1,54 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.standalone;
+
+import de.speexx.guetzli.service.ImageService;
+import de.speexx.guetzli.service.event.ContentEvent;
+import de.speexx.guetzli.service.event.NewContent;
+import javax.enterprise.event.Event;
+import javax.enterprise.util.AnnotationLiteral;
+import org.glassfish.hk2.api.TypeLiteral;
+import org.glassfish.hk2.utilities.binding.AbstractBinder;
+
+/**
+ * Binds the singletons injected into the REST resources without CDI.
+ * @author sascha.kohlmann
+ */
+final class StandaloneBinder extends AbstractBinder {
+
+    private final ImageService imgSrv;
+    private final Event<ContentEvent> contentEvents;
+
+    StandaloneBinder(final ImageService imgSrv, final Event<ContentEvent> contentEvents) {
+        assert imgSrv != null;
+        assert contentEvents != null;
+        this.imgSrv = imgSrv;
+        this.contentEvents = contentEvents;
+    }
+
+    @Override
+    protected void configure() {
+        bind(this.imgSrv).to(ImageService.class);
+        bind(this.contentEvents).to(new TypeLiteral<Event<ContentEvent>>() {}).qualifiedBy(new NewContentLiteral());
+    }
+
+    @SuppressWarnings("AnnotationAsSuperInterface")
+    static final class NewContentLiteral extends AnnotationLiteral<NewContent> implements NewContent {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.standalone;
+
+import de.speexx.guetzli.service.ImageService;
+import de.speexx.guetzli.service.event.ContentEvent;
+import de.speexx.guetzli.service.event.NewContentListener;
+import java.lang.annotation.Annotation;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.enterprise.event.Event;
+import javax.enterprise.util.TypeLiteral;
+
+/**
+ * Replaces the CDI event of new content and the {@link NewContentListener} without an application server. A fired
+ * event submits the transformation jobs of the content directly to the executor.
+ * @author sascha.kohlmann
+ * @see ImageService#process(java.lang.String, java.util.concurrent.Executor)
+ */
+final class StandaloneContentEvents implements Event<ContentEvent> {
+
+    private static final Logger LOG = Logger.getLogger(StandaloneContentEvents.class.getSimpleName());
+
+    private final ImageService imgSrv;
+    private final Executor executor;
+
+    StandaloneContentEvents(final ImageService imgSrv, final Executor executor) {
+        assert imgSrv != null;
+        assert executor != null;
+        this.imgSrv = imgSrv;
+        this.executor = executor;
+    }
+
+    @Override
+    public void fire(final ContentEvent event) {
+        if (event == null || event.getContentId() == null) {
+            return;
+        }
+        this.imgSrv.process(event.getContentId(), this.executor);
+        LOG.log(Level.INFO, "Enqueued guetzli transformation for content ID {0}", event.getContentId());
+    }
+
+    @Override
+    public Event<ContentEvent> select(final Annotation... qualifiers) {
+        return this;
+    }
+
+    /**
+     * There are no event subtypes, so all events are handled alike.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <U extends ContentEvent> Event<U> select(final Class<U> subtype, final Annotation... qualifiers) {
+        return (Event<U>) this;
+    }
+
+    /**
+     * There are no event subtypes, so all events are handled alike.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <U extends ContentEvent> Event<U> select(final TypeLiteral<U> subtype, final Annotation... qualifiers) {
+        return (Event<U>) this;
+    }
+}
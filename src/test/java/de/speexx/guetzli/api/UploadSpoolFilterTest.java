@@ -0,0 +1,255 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.api;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Drives the {@link UploadSpoolFilter.Upload} like a servlet container.
+ * @author sascha.kohlmann
+ */
+public class UploadSpoolFilterTest {
+
+    private Path directory;
+    private Path spool;
+    private ChunkedInputStream in;
+    private Container container;
+    private UploadSpoolFilter.Upload upload;
+
+    @BeforeEach
+    public void openUpload() throws IOException {
+        this.directory = Files.createTempDirectory("guetzli-upload-test-");
+        this.spool = Files.createTempFile(this.directory, "guetzli-upload-", ".tmp");
+        this.in = new ChunkedInputStream();
+        this.container = new Container();
+        this.upload = new UploadSpoolFilter.Upload(this.container.context(), this.in,
+                                                   AsynchronousFileChannel.open(this.spool, StandardOpenOption.WRITE), this.spool);
+    }
+
+    @AfterEach
+    public void deleteSpool() throws IOException {
+        Files.walkFileTree(this.directory, new DeleteDirectoryVisitor());
+    }
+
+    @Test
+    public void chunksOfSeveralCalls() throws Exception {
+        this.in.offer("abc");
+        this.upload.onDataAvailable();
+        this.in.offer("def");
+        this.in.offer("gh");
+        this.upload.onDataAvailable();
+        this.upload.onAllDataRead();
+
+        assertTrue(this.container.dispatched.await(5, TimeUnit.SECONDS));
+        assertArrayEquals("abcdefgh".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(this.spool));
+        assertEquals(0, this.container.status);
+    }
+
+    @Test
+    public void rejectTooLargeUpload() throws Exception {
+        final byte[] chunk = new byte[1024 * 1024];
+        for (long size = 0; size <= GuetzliResource.MAX_SIZE_IN_BYTE; size += chunk.length) {
+            this.in.offer(chunk);
+        }
+        this.upload.onDataAvailable();
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, this.container.status);
+        assertTrue(this.container.completed);
+        this.upload.onAllDataRead();
+        assertEquals(1, this.container.dispatched.getCount());
+    }
+
+    @Test
+    public void keepSpoolUntilResuspendedRequestCompletes() throws Exception {
+        this.in.offer("abc");
+        this.upload.onDataAvailable();
+        this.upload.onAllDataRead();
+        assertTrue(this.container.dispatched.await(5, TimeUnit.SECONDS));
+
+        final Container resuspended = new Container();
+        this.upload.onStartAsync(new AsyncEvent(resuspended.context()));
+        assertEquals(1, resuspended.listeners.size());
+        assertTrue(Files.exists(this.spool));
+
+        resuspended.listeners.get(0).onComplete(new AsyncEvent(resuspended.context()));
+        assertFalse(Files.exists(this.spool));
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        this.in.offer("abc");
+        this.upload.onDataAvailable();
+        this.upload.onTimeout(new AsyncEvent(this.container.context()));
+
+        assertEquals(408, this.container.status);
+        assertEquals("Upload timeout.", this.container.body.toString());
+        assertTrue(this.container.completed);
+        this.upload.onComplete(new AsyncEvent(this.container.context()));
+        assertFalse(Files.exists(this.spool));
+    }
+
+    @Test
+    public void spoolChunkedUploads() {
+        assertTrue(UploadSpoolFilter.isSpooled(request("image/png", -1)));
+        assertTrue(UploadSpoolFilter.isSpooled(request("image/jpeg", 1000)));
+        assertFalse(UploadSpoolFilter.isSpooled(request("image/jpeg", GuetzliResource.MAX_SIZE_IN_BYTE + 1)));
+        assertFalse(UploadSpoolFilter.isSpooled(request("text/plain", 1000)));
+    }
+
+    static HttpServletRequest request(final String type, final long length) {
+        return (HttpServletRequest) Proxy.newProxyInstance(UploadSpoolFilterTest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMethod":
+                    return "POST";
+                case "getContentType":
+                    return type;
+                case "getContentLengthLong":
+                    return length;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Async context and response of the container.
+     */
+    static final class Container {
+
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        final List<AsyncListener> listeners = new ArrayList<>();
+        final StringWriter body = new StringWriter();
+        volatile int status;
+        volatile boolean completed;
+
+        AsyncContext context() {
+            final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "setStatus":
+                        this.status = (Integer) args[0];
+                        return null;
+                    case "setContentType":
+                        return null;
+                    case "getWriter":
+                        return new PrintWriter(this.body, true);
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+            return (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {AsyncContext.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getRequest":
+                        return null;
+                    case "getResponse":
+                        return response;
+                    case "dispatch":
+                        this.dispatched.countDown();
+                        return null;
+                    case "complete":
+                        this.completed = true;
+                        return null;
+                    case "addListener":
+                        this.listeners.add((AsyncListener) args[0]);
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+    }
+
+    /**
+     * Input stream which is ready while chunks are offered.
+     */
+    static final class ChunkedInputStream extends ServletInputStream {
+
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+
+        void offer(final String chunk) {
+            offer(chunk.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void offer(final byte[] chunk) {
+            this.chunks.add(chunk);
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            final byte[] chunk = this.chunks.poll();
+            if (chunk == null) {
+                return -1;
+            }
+            final int read = Math.min(len, chunk.length);
+            System.arraycopy(chunk, 0, b, off, read);
+            if (read < chunk.length) {
+                this.chunks.addFirst(Arrays.copyOfRange(chunk, read, chunk.length));
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return this.chunks.isEmpty();
+        }
+
+        @Override
+        public boolean isReady() {
+            return !this.chunks.isEmpty();
+        }
+
+        @Override
+        public void setReadListener(final ReadListener listener) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
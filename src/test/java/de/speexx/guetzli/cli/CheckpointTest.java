@@ -0,0 +1,74 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.cli;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import de.speexx.guetzli.service.ProcessStatus;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class CheckpointTest {
+
+    @Test
+    public void resumeWithRecordedFiles() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-batch");
+        try {
+            final Path checkpointFile = directory.resolve(BatchTransformation.CHECKPOINT_FILE);
+            final Path done = Files.write(directory.resolve("done.jpg"), new byte[] {1, 2, 3});
+            final Path failed = Files.write(directory.resolve("failed.jpg"), new byte[] {4, 5, 6});
+            try (final Checkpoint checkpoint = Checkpoint.open(checkpointFile, false)) {
+                checkpoint.record("done.jpg", done, ProcessStatus.transformed);
+                checkpoint.record("failed.jpg", failed, ProcessStatus.failed);
+            }
+
+            try (final Checkpoint checkpoint = Checkpoint.open(checkpointFile, false)) {
+                assertTrue(checkpoint.isUpToDate("done.jpg", done));
+                assertFalse(checkpoint.isUpToDate("failed.jpg", failed));
+                Files.write(done, new byte[] {1, 2, 3, 4});
+                assertFalse(checkpoint.isUpToDate("done.jpg", done));
+            }
+        } finally {
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+
+    @Test
+    public void touchedFileUpToDateWithHash() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-batch");
+        try {
+            final Path file = Files.write(directory.resolve("image.png"), new byte[] {1, 2, 3});
+            try (final Checkpoint checkpoint = Checkpoint.open(directory.resolve(BatchTransformation.CHECKPOINT_FILE), true)) {
+                checkpoint.record("image.png", file, ProcessStatus.skipped);
+                Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60_000));
+                assertTrue(checkpoint.isUpToDate("image.png", file));
+                Files.write(file, new byte[] {3, 2, 1});
+                assertFalse(checkpoint.isUpToDate("image.png", file));
+            }
+        } finally {
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+}
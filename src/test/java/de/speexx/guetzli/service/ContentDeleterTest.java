@@ -0,0 +1,90 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.service.storage.InMemoryStorage;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.Iterator;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class ContentDeleterTest {
+
+    @Test
+    public void tombstonedContentIsInvisibleUntilDeleted() throws Exception {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final ImageService service = new ImageService(storage);
+        final byte[] png = ImageServiceTest.png(10, 10);
+        final String contentId = service.newImage(new ByteArrayInputStream(png), png.length, ImageType.PNG, "test.png");
+        final ContentDeleter deleter = new ContentDeleter(service, 1000);
+
+        assertEquals(1, deleter.delete(Arrays.asList(contentId, "00000000000000000000000000000000")));
+        assertEquals(0, deleter.delete(Arrays.asList(contentId)));
+        assertEquals(1, deleter.getPending());
+        assertTrue(service.isDeleted(contentId));
+        assertThrows(FileNotFoundException.class, () -> service.getMetadata(contentId));
+        assertFalse(contains(service.getContentIds(), contentId));
+        assertTrue(contains(storage.contentIds(), contentId));
+        assertEquals(Arrays.asList(contentId), service.findTombstones());
+
+        assertTrue(deleter.deleteData(contentId));
+        assertEquals(0, deleter.getPending());
+        assertFalse(service.isDeleted(contentId));
+        assertFalse(contains(storage.contentIds(), contentId));
+    }
+
+    @Test
+    public void deletionWaitsForCancelledJobs() throws Exception {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final ImageService service = new ImageService(storage);
+        final byte[] png = ImageServiceTest.png(10, 10);
+        final String contentId = service.newImage(new ByteArrayInputStream(png), png.length, ImageType.PNG, "test.png");
+        final TransformationScheduler scheduler = TransformationScheduler.instance();
+        final TransformationJob job = scheduler.submitted(contentId, null);
+        final ContentDeleter deleter = new ContentDeleter(service, 1000);
+        try {
+            assertEquals(1, deleter.delete(Arrays.asList(contentId)));
+            assertTrue(job.isCancelled());
+            assertThrows(TransformationCancelledException.class, () -> scheduler.acquireSlot(job));
+            assertFalse(deleter.deleteData(contentId));
+            assertTrue(contains(storage.contentIds(), contentId));
+        } finally {
+            scheduler.finished(job);
+        }
+        assertTrue(deleter.deleteData(contentId));
+        assertFalse(contains(storage.contentIds(), contentId));
+    }
+
+    static boolean contains(final Iterator<String> contentIds, final String contentId) {
+        while (contentIds.hasNext()) {
+            if (contentIds.next().equals(contentId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
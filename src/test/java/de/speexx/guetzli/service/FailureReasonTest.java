@@ -0,0 +1,51 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import javax.imageio.IIOException;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class FailureReasonTest {
+
+    @Test
+    public void classification() {
+        assertEquals(FailureReason.timeout, FailureReason.of(new TransformationException(new TransformationTimeoutException("t"))));
+        assertEquals(FailureReason.outOfMemory, FailureReason.of(new TransformationOutOfMemoryException("m")));
+        assertEquals(FailureReason.invalidInput, FailureReason.of(new UncheckedIOException(new IIOException("Unsupported Image Type"))));
+        assertEquals(FailureReason.io, FailureReason.of(new TransformationException(new IOException("disk full"))));
+        assertEquals(FailureReason.error, FailureReason.of(new IllegalStateException()));
+    }
+
+    @Test
+    public void transientReasons() {
+        assertTrue(FailureReason.timeout.isTransient());
+        assertTrue(FailureReason.outOfMemory.isTransient());
+        assertTrue(FailureReason.io.isTransient());
+        assertFalse(FailureReason.invalidInput.isTransient());
+        assertFalse(FailureReason.error.isTransient());
+    }
+}
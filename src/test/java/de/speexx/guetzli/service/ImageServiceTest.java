@@ -0,0 +1,150 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import de.speexx.guetzli.service.cluster.LeaseManager;
+import de.speexx.guetzli.service.storage.InMemoryStorage;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class ImageServiceTest {
+
+    @Test
+    public void prepareVariantsFromOneUpload() throws Exception {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final ImageService service = new ImageService(storage);
+        final byte[] png = png(1000, 500);
+        final List<Variant> variants = Arrays.asList(new Variant(320), new Variant(640));
+
+        final String contentId = service.newImage(new ByteArrayInputStream(png), png.length, ImageType.PNG, "test.png", null, null, null, variants);
+        final List<Variant> prepared = service.prepareVariants(contentId);
+
+        assertEquals(variants, prepared);
+        assertEquals(variants, service.getMetadata(contentId).getVariants());
+        final ImageMetadata small = service.getMetadata(contentId, new Variant(320));
+        assertEquals(ProcessStatus.stored, small.getStatus());
+        assertEquals(320, small.getTargetWidth());
+        assertEquals(160, small.getTargetHeight());
+        assertTrue(storage.exists(contentId, service.inputName(new Variant(640))));
+    }
+
+    @Test
+    public void limitVariantsOverRepeatedRequests() throws Exception {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final ImageService service = new ImageService(storage);
+        final byte[] png = png(100, 50);
+        final String contentId = service.newImage(new ByteArrayInputStream(png), png.length, ImageType.PNG, "test.png");
+        final ImageMetadata meta = service.getMetadata(contentId);
+        meta.setStatus(ProcessStatus.transformed);
+        service.storeMetadata(meta);
+
+        final int max = 2 * ImageService.maxVariants();
+        for (int i = 0; i < max; i++) {
+            service.addVariants(contentId, Arrays.asList(new Variant(10 + i)));
+        }
+        assertEquals(max, service.getMetadata(contentId).getVariants().size());
+        // requesting existing variants again is fine
+        service.addVariants(contentId, Arrays.asList(new Variant(10)));
+        assertThrows(IllegalArgumentException.class, () -> service.addVariants(contentId, Arrays.asList(new Variant(500))));
+        assertEquals(max, service.getMetadata(contentId).getVariants().size());
+    }
+
+    @Test
+    public void addVariantsToFinishedTransformation() throws Exception {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final ImageService service = new ImageService(storage);
+        final byte[] png = png(100, 50);
+        final String contentId = service.newImage(new ByteArrayInputStream(png), png.length, ImageType.PNG, "test.png");
+        final Variant quality = new Variant(0, 90);
+
+        assertThrows(IllegalStateException.class, () -> service.addVariants(contentId, Arrays.asList(quality)));
+
+        final ImageMetadata meta = service.getMetadata(contentId);
+        meta.setStatus(ProcessStatus.transformed);
+        service.storeMetadata(meta);
+        assertEquals(Arrays.asList(quality), service.addVariants(contentId, Arrays.asList(quality)));
+        assertEquals(Arrays.asList(quality), service.getMetadata(contentId).getVariants());
+        assertEquals(ProcessStatus.stored, service.getMetadata(contentId, quality).getStatus());
+
+        // a transformed variant is served from the storage
+        final ImageMetadata variantMeta = service.getMetadata(contentId, quality);
+        variantMeta.setStatus(ProcessStatus.transformed);
+        service.storeMetadata(variantMeta);
+        assertTrue(service.addVariants(contentId, Arrays.asList(quality)).isEmpty());
+        assertTrue(service.prepareVariants(contentId).isEmpty());
+    }
+
+    @Test
+    public void tombstoneOfOtherNode() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-cluster");
+        try {
+            final InMemoryStorage storage = new InMemoryStorage();
+            final LeaseManager cluster = new LeaseManager(directory, "node", 60_000);
+            final ImageService service = new ImageService(storage, cluster);
+            final byte[] png = png(100, 50);
+            final String contentId = service.newImage(new ByteArrayInputStream(png), png.length, ImageType.PNG, "test.png");
+            assertFalse(service.isDeleted(contentId));
+            assertEquals(Arrays.asList(contentId), cluster.claimable(10, id -> !service.isDeleted(id)));
+
+            // written by another node
+            storage.write(contentId, "tombstone", new ByteArrayInputStream(new byte[0]));
+            Thread.sleep(ImageService.TOMBSTONE_CHECK_MILLIS + 10);
+
+            assertTrue(service.isDeleted(contentId));
+            assertThrows(FileNotFoundException.class, () -> service.getMetadata(contentId));
+            assertFalse(service.getContentIds().hasNext());
+            assertTrue(cluster.claimable(10, id -> !service.isDeleted(id)).isEmpty());
+            service.delete(contentId);
+        } finally {
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+
+    @Test
+    public void variantNames() {
+        assertEquals("w640", new Variant(640).getName());
+        assertEquals("q90", new Variant(0, 90).getName());
+        assertEquals(new Variant(640, 90), Variant.parse("w640q90"));
+        assertEquals(Arrays.asList(new Variant(0, 84), new Variant(0, 95)), Variant.parseQualities("84, 95, 84"));
+        assertThrows(IllegalArgumentException.class, () -> new Variant(0, 50));
+        assertThrows(IllegalArgumentException.class, () -> Variant.parse("x1"));
+    }
+
+    static byte[] png(final int width, final int height) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import de.speexx.guetzli.transformer.ResizeOptions;
+import java.awt.Rectangle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class SavingsPredictorTest {
+
+    private static final SavingsPredictor.TileTransformer UNUSED = (source, target, quality, pixels) -> {
+        throw new AssertionError("unexpected transformation");
+    };
+
+    @Test
+    public void tilesOnTheDiagonal() {
+        final SavingsPredictor predictor = new SavingsPredictor(UNUSED, true, 0, 256, 3);
+
+        final List<Rectangle> regions = predictor.tileRegions(1000, 1000);
+
+        assertEquals(Arrays.asList(new Rectangle(122, 122, 256, 256), new Rectangle(372, 372, 256, 256), new Rectangle(622, 622, 256, 256)), regions);
+    }
+
+    @Test
+    public void tilesClampedAtImageEdges() {
+        final SavingsPredictor predictor = new SavingsPredictor(UNUSED, true, 0, 256, 3);
+
+        final List<Rectangle> regions = predictor.tileRegions(300, 2000);
+
+        assertEquals(Arrays.asList(new Rectangle(0, 372, 256, 256), new Rectangle(22, 872, 256, 256), new Rectangle(44, 1372, 256, 256)), regions);
+        for (final Rectangle region : regions) {
+            assertTrue(new Rectangle(0, 0, 300, 2000).contains(region));
+        }
+    }
+
+    @Test
+    public void tilesLargerThanImage() {
+        final SavingsPredictor predictor = new SavingsPredictor(UNUSED, true, 0, 256, 2);
+
+        final List<Rectangle> regions = predictor.tileRegions(100, 50);
+
+        assertEquals(Arrays.asList(new Rectangle(0, 0, 100, 50), new Rectangle(0, 0, 100, 50)), regions);
+    }
+
+    @Test
+    public void applicableOnlyForLargeImagesWithoutResize() {
+        final SavingsPredictor predictor = new SavingsPredictor(UNUSED, true, 1_000_000, 256, 3);
+        final SavingsPredictor disabled = new SavingsPredictor(UNUSED, false, 1_000_000, 256, 3);
+
+        assertTrue(predictor.isApplicable(metadata(1000, 1000)));
+        assertFalse(predictor.isApplicable(metadata(999, 1000)));
+        assertFalse(disabled.isApplicable(metadata(1000, 1000)));
+        final ImageMetadata resized = metadata(1000, 1000);
+        resized.setResize(new ResizeOptions(500, 500, null, null));
+        assertFalse(predictor.isApplicable(resized));
+    }
+
+    @Test
+    public void predictTargetSizeFromTileRatio() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-predictor-");
+        try {
+            final Path source = directory.resolve("source.png");
+            Files.write(source, ImageServiceTest.png(600, 400));
+            final List<Long> tileSizes = new ArrayList<>();
+            final List<Long> tilePixels = new ArrayList<>();
+            final SavingsPredictor predictor = new SavingsPredictor((tile, target, quality, pixels) -> {
+                assertEquals(0, quality);
+                tileSizes.add(Files.size(tile));
+                tilePixels.add(pixels);
+                Files.write(target, new byte[100]);
+            }, true, 0, 64, 2);
+
+            final long predicted = predictor.predictTargetSize(metadata(600, 400), source);
+
+            assertEquals(Arrays.asList(64L * 64, 64L * 64), tilePixels);
+            final long tilesSize = tileSizes.stream().mapToLong(Long::longValue).sum();
+            assertEquals(Math.round((double) Files.size(source) * 200 / tilesSize), predicted);
+            try (final Stream<Path> files = Files.list(directory)) {
+                assertEquals(Arrays.asList(source), files.collect(Collectors.toList()));
+            }
+        } finally {
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+
+    static ImageMetadata metadata(final int width, final int height) {
+        final ImageMetadata meta = new ImageMetadata();
+        meta.setContentId("predictor-test");
+        meta.setSourceType(ImageType.PNG);
+        meta.setSourceWidth(width);
+        meta.setSourceHeight(height);
+        return meta;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.io.ByteBufferInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class TargetCacheTest {
+
+    @Test
+    public void leastRecentlyUsedImageEvicted() throws Exception {
+        final TargetCache cache = new TargetCache(30, 20);
+        cache.put("a", "target", image(10, (byte) 1));
+        cache.put("b", "target", image(10, (byte) 2));
+        assertNotNull(cache.get("a", "target"));
+
+        cache.put("c", "target", image(15, (byte) 3));
+
+        assertNull(cache.get("b", "target"));
+        assertEquals(25, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+        try (final InputStream in = new ByteBufferInputStream(cache.get("a", "target"))) {
+            final byte[] data = new byte[20];
+            assertEquals(10, in.read(data));
+            assertEquals(1, data[9]);
+            assertEquals(-1, in.read());
+        }
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(67, cache.getHitRatioPercent());
+    }
+
+    @Test
+    public void invalidateImages() {
+        final TargetCache cache = new TargetCache(100, 20);
+        assertFalse(cache.accepts(21));
+        assertTrue(cache.accepts(20));
+        cache.put("a", "target", image(10, (byte) 1));
+        cache.put("a", "target-w640", image(10, (byte) 1));
+        cache.put("ab", "target", image(10, (byte) 1));
+
+        cache.invalidate("a", "target-w640");
+        assertNull(cache.get("a", "target-w640"));
+        assertEquals(20, cache.getBytes());
+
+        cache.invalidate("a");
+        assertNull(cache.get("a", "target"));
+        assertNotNull(cache.get("ab", "target"));
+        assertEquals(10, cache.getBytes());
+    }
+
+    static ByteBuffer image(final int size, final byte value) {
+        final ByteBuffer image = ByteBuffer.allocateDirect(size);
+        while (image.hasRemaining()) {
+            image.put(value);
+        }
+        image.flip();
+        return image;
+    }
+}
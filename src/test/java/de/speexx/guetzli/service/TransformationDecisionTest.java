@@ -0,0 +1,109 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.transformer.ResizeOptions;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class TransformationDecisionTest {
+
+    @Test
+    public void lowQualityJpegIsSkipped() {
+        final ImageMetadata meta = jpeg(80, 1000, 1000);
+        final TransformationDecision decision = new TransformationDecision(84, 20_000_000L, 5);
+
+        assertEquals(SkipReason.lowSourceQuality, decision.beforeTransformation(meta));
+    }
+
+    @Test
+    public void lowQualityPngIsNotSkipped() {
+        final ImageMetadata meta = jpeg(80, 1000, 1000);
+        meta.setSourceType(ImageType.PNG);
+        final TransformationDecision decision = new TransformationDecision(84, 20_000_000L, 5);
+
+        assertNull(decision.beforeTransformation(meta));
+    }
+
+    @Test
+    public void largeImageIsSkipped() {
+        final ImageMetadata meta = jpeg(90, 6000, 4000);
+        final TransformationDecision decision = new TransformationDecision(84, 20_000_000L, 5);
+
+        assertEquals(SkipReason.tooManyPixels, decision.beforeTransformation(meta));
+    }
+
+    @Test
+    public void maxPixelsFollowMemoryLimit() {
+        assertEquals(20_000_000L, TransformationDecision.maxPixels(6000, 0));
+        assertEquals(40_000_000L, TransformationDecision.maxPixels(12000, 0));
+        assertEquals(10_000_000L, TransformationDecision.maxPixels(6000, 3000));
+        assertEquals(10_000_000L, TransformationDecision.maxPixels(0, 3000));
+        assertEquals(0, TransformationDecision.maxPixels(0, 0));
+
+        final ImageMetadata meta = jpeg(90, 6000, 4000);
+        assertNull(new TransformationDecision(84, TransformationDecision.maxPixels(12000, 0), 5).beforeTransformation(meta));
+        assertNull(new TransformationDecision(84, 0, 5).beforeTransformation(meta));
+    }
+
+    @Test
+    public void resizedLargeImageIsNotSkipped() {
+        final ImageMetadata meta = jpeg(80, 6000, 4000);
+        meta.setResize(new ResizeOptions(1600, 0, null, null));
+        final TransformationDecision decision = new TransformationDecision(84, 20_000_000L, 5);
+
+        assertNull(decision.beforeTransformation(meta));
+        assertNull(decision.afterTransformation(meta, 1000, 2000));
+    }
+
+    @Test
+    public void keepSmallerImage() {
+        final ImageMetadata meta = jpeg(90, 1000, 1000);
+        final TransformationDecision decision = new TransformationDecision(84, 20_000_000L, 5);
+
+        assertEquals(SkipReason.targetNotSmaller, decision.afterTransformation(meta, 1000, 1000));
+        assertNull(decision.afterTransformation(meta, 1000, 999));
+    }
+
+    @Test
+    public void lowPredictedGainIsSkipped() {
+        final ImageMetadata meta = jpeg(90, 6000, 3000);
+        final TransformationDecision decision = new TransformationDecision(84, 20_000_000L, 5);
+
+        assertNull(decision.afterPrediction(meta, 1000));
+        meta.setPredictedTargetSize(970);
+        assertEquals(SkipReason.lowPredictedGain, decision.afterPrediction(meta, 1000));
+        meta.setPredictedTargetSize(900);
+        assertNull(decision.afterPrediction(meta, 1000));
+    }
+
+    static ImageMetadata jpeg(final int quality, final int width, final int height) {
+        final ImageMetadata meta = new ImageMetadata();
+        meta.setContentId("id");
+        meta.setSourceType(ImageType.JPG);
+        meta.setSourceQuality(quality);
+        meta.setSourceWidth(width);
+        meta.setSourceHeight(height);
+        return meta;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class TransformationSchedulerTest {
+
+    @Test
+    public void saturationWithHysteresis() {
+        final TransformationScheduler scheduler = new TransformationScheduler(2, 4, 2);
+
+        scheduler.accepted(3);
+        assertFalse(scheduler.isSaturated());
+        scheduler.accepted(1);
+        assertTrue(scheduler.isSaturated());
+        scheduler.completed();
+        assertTrue(scheduler.isSaturated());
+        scheduler.completed();
+        assertFalse(scheduler.isSaturated());
+        assertEquals(2, scheduler.getPending());
+    }
+
+    @Test
+    public void retryAfterFromThroughput() {
+        final TransformationScheduler scheduler = new TransformationScheduler(2, 10, 0);
+
+        assertEquals(TransformationScheduler.DEFAULT_RETRY_AFTER_SECONDS, scheduler.getRetryAfterSeconds());
+        scheduler.accepted(12);
+        scheduler.completed();
+        scheduler.completed();
+
+        // 2 completions per minute and 10 pending transformations
+        assertEquals(300, scheduler.getRetryAfterSeconds());
+    }
+
+    @Test
+    public void queueOrderWithPriority() {
+        final TransformationScheduler scheduler = new TransformationScheduler(2, 10, 5);
+        scheduler.submitted("a", null);
+        scheduler.submitted("b", null);
+        scheduler.submitted("c", new Variant(640));
+
+        assertTrue(scheduler.reprioritize("c-w640", 5));
+        assertFalse(scheduler.reprioritize("d", 5));
+
+        final List<String> ids = scheduler.getQueued().stream().map(TransformationJob::getId).collect(Collectors.toList());
+        assertEquals(Arrays.asList("c-w640", "a", "b"), ids);
+        assertEquals(3, scheduler.getPending());
+    }
+
+    @Test
+    public void pausedSchedulerGivesNoSlots() throws Exception {
+        final TransformationScheduler scheduler = new TransformationScheduler(1, 10, 5);
+        final TransformationJob job = scheduler.submitted("a", null);
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.pause();
+
+        final Thread worker = new Thread(() -> {
+            try {
+                scheduler.acquireSlot(job);
+                started.countDown();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        worker.start();
+        assertFalse(started.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, scheduler.getRunning().size());
+
+        scheduler.resume();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(job), scheduler.getRunning());
+        scheduler.releaseSlot(job);
+        scheduler.finished(job);
+        assertEquals(0, scheduler.getPending());
+        worker.join();
+    }
+
+    @Test
+    public void exclusiveJobRunsAlone() throws Exception {
+        final TransformationScheduler scheduler = new TransformationScheduler(2, 10, 5);
+        final TransformationJob first = scheduler.submitted("a", null);
+        final TransformationJob exclusive = scheduler.submitted("b", null);
+        exclusive.setExclusive(true);
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.acquireSlot(first);
+
+        final Thread worker = new Thread(() -> {
+            try {
+                scheduler.acquireSlot(exclusive);
+                started.countDown();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        worker.start();
+        assertFalse(started.await(100, TimeUnit.MILLISECONDS));
+
+        scheduler.releaseSlot(first);
+        scheduler.finished(first);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(exclusive), scheduler.getRunning());
+        scheduler.releaseSlot(exclusive);
+        scheduler.finished(exclusive);
+        worker.join();
+    }
+}
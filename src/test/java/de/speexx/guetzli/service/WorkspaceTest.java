@@ -0,0 +1,122 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import de.speexx.guetzli.service.storage.FileSystemStorage;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class WorkspaceTest {
+
+    @Test
+    public void scratchWorkspaceStagesBlobs() throws Exception {
+        final Path base = Files.createTempDirectory("guetzli-storage-test-");
+        final Path scratchDir = Files.createTempDirectory("guetzli-scratch-test-");
+        try {
+            final FileSystemStorage storage = new FileSystemStorage(base);
+            storage.create("abcd");
+            storage.write("abcd", "source.png", new ByteArrayInputStream(new byte[100]));
+            final long stagedBefore = Workspace.getStagedBytes();
+            final Path directory;
+
+            try (final Workspace workspace = Workspace.openScratch(storage, "abcd", scratchDir, 1000, Workspace.estimate(storage, "abcd", "source.png"))) {
+                assertEquals(stagedBefore + 300, Workspace.getStagedBytes());
+                final Path source = workspace.fetch("source.png");
+                directory = source.getParent();
+                assertEquals(scratchDir, directory.getParent());
+                assertEquals(stagedBefore + 300, Workspace.getStagedBytes());
+
+                workspace.reserve(6);
+                Files.write(workspace.path("target.jpg"), "target".getBytes(StandardCharsets.UTF_8));
+                workspace.commit("target.jpg");
+                assertFalse(Files.exists(workspace.path("target.jpg")));
+                assertEquals(stagedBefore + 300, Workspace.getStagedBytes());
+
+                // beyond the reservation
+                workspace.reserve(250);
+                assertEquals(stagedBefore + 356, Workspace.getStagedBytes());
+            }
+
+            assertFalse(Files.exists(directory));
+            assertEquals(stagedBefore, Workspace.getStagedBytes());
+            assertEquals(6, storage.size("abcd", "target.jpg"));
+        } finally {
+            Files.walkFileTree(base, new DeleteDirectoryVisitor());
+            Files.walkFileTree(scratchDir, new DeleteDirectoryVisitor());
+        }
+    }
+
+    @Test
+    public void reservationsDontOvershootLimit() throws Exception {
+        final Path base = Files.createTempDirectory("guetzli-storage-test-");
+        final Path scratchDir = Files.createTempDirectory("guetzli-scratch-test-");
+        try {
+            final FileSystemStorage storage = new FileSystemStorage(base);
+            storage.create("abcd");
+            storage.write("abcd", "source.png", new ByteArrayInputStream(new byte[100]));
+            final long limit = Workspace.getStagedBytes() + 500;
+            final long estimate = Workspace.estimate(storage, "abcd", "source.png");
+
+            try (final Workspace first = Workspace.openScratch(storage, "abcd", scratchDir, limit, estimate);
+                 final Workspace second = Workspace.openScratch(storage, "abcd", scratchDir, limit, estimate)) {
+                assertEquals(scratchDir, first.path("source.png").getParent().getParent());
+                assertEquals(storage.localDirectory("abcd"), second.path("source.png").getParent());
+                assertTrue(Workspace.getStagedBytes() <= limit);
+            }
+            assertEquals(limit - 500, Workspace.getStagedBytes());
+        } finally {
+            Files.walkFileTree(base, new DeleteDirectoryVisitor());
+            Files.walkFileTree(scratchDir, new DeleteDirectoryVisitor());
+        }
+    }
+
+    @Test
+    public void fullScratchDirectoryUsesStorage() throws Exception {
+        final Path base = Files.createTempDirectory("guetzli-storage-test-");
+        final Path scratchDir = Files.createTempDirectory("guetzli-scratch-test-");
+        try {
+            final FileSystemStorage storage = new FileSystemStorage(base);
+            storage.create("abcd");
+            storage.write("abcd", "source.png", new ByteArrayInputStream(new byte[100]));
+            Files.createDirectory(scratchDir.resolve("guetzli-stale"));
+            Files.createDirectory(scratchDir.resolve("other"));
+
+            try (final Workspace workspace = Workspace.openScratch(storage, "abcd", scratchDir, 0, 0)) {
+                assertEquals(storage.localDirectory("abcd"), workspace.fetch("source.png").getParent());
+            }
+
+            Workspace.deleteWorkspaces(scratchDir);
+            assertFalse(Files.exists(scratchDir.resolve("guetzli-stale")));
+            assertTrue(Files.exists(scratchDir.resolve("other")));
+        } finally {
+            Files.walkFileTree(base, new DeleteDirectoryVisitor());
+            Files.walkFileTree(scratchDir, new DeleteDirectoryVisitor());
+        }
+    }
+}
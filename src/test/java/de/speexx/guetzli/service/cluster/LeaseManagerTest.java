@@ -0,0 +1,142 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.cluster;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class LeaseManagerTest {
+
+    @Test
+    public void onlyOneNodeHoldsALease() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-cluster");
+        try {
+            final LeaseManager first = new LeaseManager(directory, "first", 60_000);
+            final LeaseManager second = new LeaseManager(directory, "second", 60_000);
+            first.enqueue("a");
+            first.enqueue("b");
+
+            assertTrue(first.acquire("a"));
+            assertTrue(first.acquire("a"));
+            assertFalse(second.acquire("a"));
+            assertEquals(Collections.singletonList("b"), second.claimable(10));
+
+            first.release("a");
+            assertTrue(second.acquire("a"));
+            second.dequeue("a");
+            assertEquals(Collections.singletonList("b"), first.claimable(10));
+        } finally {
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+
+    @Test
+    public void takeOverExpiredLease() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-cluster");
+        try {
+            final LeaseManager dead = new LeaseManager(directory, "dead", 1);
+            final LeaseManager living = new LeaseManager(directory, "living", 60_000);
+            dead.enqueue("a");
+            assertTrue(dead.acquire("a"));
+            assertTrue(dead.electLeader());
+            Thread.sleep(20);
+
+            assertFalse(dead.isLeader());
+            assertEquals(Arrays.asList("a"), living.claimable(10));
+            assertTrue(living.acquire("a"));
+            assertTrue(living.electLeader());
+            assertTrue(living.isLeader());
+
+            dead.renewAll();
+            assertFalse(dead.acquire("a"));
+            assertTrue(living.isLeader());
+        } finally {
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+
+    @Test
+    public void staleTakeOverRestoresNewLease() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-cluster");
+        try {
+            final LeaseManager dead = new LeaseManager(directory, "dead", 1);
+            final LeaseManager slow = new LeaseManager(directory, "slow", 60_000);
+            final LeaseManager fast = new LeaseManager(directory, "fast", 60_000);
+            assertTrue(dead.acquire("a"));
+            Thread.sleep(20);
+
+            // slow reads the expired lease, fast takes it over before slow renames it
+            final Properties expired = LeaseManager.read(slow.leasePath("a"));
+            assertTrue(fast.acquire("a"));
+            assertFalse(slow.takeOver("a", expired));
+
+            assertEquals("fast", LeaseManager.read(fast.leasePath("a")).getProperty("node"));
+            assertTrue(fast.acquire("a"));
+            assertFalse(slow.acquire("a"));
+            try (final Stream<Path> leases = Files.list(directory.resolve("leases"))) {
+                assertEquals(1, leases.count());
+            }
+        } finally {
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+
+    @Test
+    public void concurrentTakeOverByOneNode() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-cluster");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final LeaseManager dead = new LeaseManager(directory, "dead", 1);
+            assertTrue(dead.acquire("a"));
+            Thread.sleep(20);
+
+            final List<Callable<Boolean>> nodes = IntStream.range(0, 8)
+                    .mapToObj(i -> new LeaseManager(directory, "node" + i, 60_000))
+                    .map(node -> (Callable<Boolean>) () -> node.acquire("a"))
+                    .collect(Collectors.toList());
+            int holders = 0;
+            for (final Future<Boolean> acquired : executor.invokeAll(nodes)) {
+                holders += acquired.get() ? 1 : 0;
+            }
+            assertEquals(1, holders);
+        } finally {
+            executor.shutdownNow();
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class FileSystemStorageTest {
+
+    private static final String CONTENT_ID = "abcdef0123";
+
+    private Path base;
+    private FileSystemStorage storage;
+
+    @BeforeEach
+    public void createStorage() throws Exception {
+        this.base = Files.createTempDirectory("guetzli-storage-test-");
+        this.storage = new FileSystemStorage(this.base);
+    }
+
+    @AfterEach
+    public void deleteStorage() throws Exception {
+        Files.walkFileTree(this.base, new DeleteDirectoryVisitor());
+    }
+
+    @Test
+    public void shardedDirectory() throws Exception {
+        assertEquals(this.base.resolve("ab").resolve("cd").resolve(CONTENT_ID), this.storage.localDirectory(CONTENT_ID));
+        assertFalse(Files.exists(this.storage.localDirectory(CONTENT_ID)));
+        assertThrows(FileNotFoundException.class, () -> this.storage.write(CONTENT_ID, "source.png", new ByteArrayInputStream(new byte[1])));
+
+        this.storage.create(CONTENT_ID);
+        this.storage.write(CONTENT_ID, "source.png", new ByteArrayInputStream(new byte[3]));
+
+        assertTrue(Files.exists(this.base.resolve("ab").resolve("cd").resolve(CONTENT_ID).resolve("source.png")));
+        assertEquals(3, this.storage.size(CONTENT_ID, "source.png"));
+        assertTrue(this.storage.contentIds().hasNext());
+    }
+
+    @Test
+    public void noWritesAfterDelete() throws Exception {
+        this.storage.create(CONTENT_ID);
+        this.storage.delete(CONTENT_ID);
+
+        assertThrows(FileNotFoundException.class, () -> this.storage.writeMetadata(CONTENT_ID, "meta", new Properties()));
+        assertFalse(Files.exists(this.storage.localDirectory(CONTENT_ID)));
+    }
+
+    @Test
+    public void legacyDirectory() throws Exception {
+        final Path legacy = Files.createDirectory(this.base.resolve(CONTENT_ID));
+        Files.write(legacy.resolve("source.png"), new byte[2]);
+
+        assertEquals(legacy, this.storage.localDirectory(CONTENT_ID));
+        assertEquals(2, this.storage.size(CONTENT_ID, "source.png"));
+        this.storage.write(CONTENT_ID, "target.jpg", new ByteArrayInputStream(new byte[1]));
+        assertTrue(Files.exists(legacy.resolve("target.jpg")));
+        assertEquals(CONTENT_ID, this.storage.contentIds().next());
+    }
+
+    @Test
+    public void migrateLegacyDirectory() throws Exception {
+        final Path legacy = Files.createDirectory(this.base.resolve(CONTENT_ID));
+        Files.write(legacy.resolve("source.png"), new byte[2]);
+
+        assertEquals(0, this.storage.migrateToShardedLayout(10, id -> false));
+        assertEquals(1, this.storage.migrateToShardedLayout(10, id -> true));
+
+        assertFalse(Files.exists(legacy));
+        assertEquals(this.storage.shardedDirectory(CONTENT_ID), this.storage.localDirectory(CONTENT_ID));
+        assertEquals(2, this.storage.size(CONTENT_ID, "source.png"));
+        assertEquals(0, this.storage.migrateToShardedLayout(10, id -> true));
+    }
+
+    @Test
+    public void migrationSkipsContentInUse() throws Exception {
+        final Path legacy = Files.createDirectory(this.base.resolve(CONTENT_ID));
+        final Lock inUse = this.storage.lock(CONTENT_ID).readLock();
+        inUse.lock();
+        try {
+            final Thread migration = new Thread(() -> {
+                try {
+                    assertEquals(0, this.storage.migrateToShardedLayout(10, id -> true));
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            migration.start();
+            migration.join();
+        } finally {
+            inUse.unlock();
+        }
+        assertTrue(Files.exists(legacy));
+        assertEquals(1, this.storage.migrateToShardedLayout(10, id -> true));
+    }
+}
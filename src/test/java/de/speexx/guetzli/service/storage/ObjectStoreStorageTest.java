@@ -0,0 +1,229 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the {@link ObjectStoreStorage} against a minimal local S3 stand-in.
+ * @author sascha.kohlmann
+ */
+public class ObjectStoreStorageTest {
+
+    private final Map<String, byte[]> objects = new ConcurrentSkipListMap<>();
+    private HttpServer server;
+    private ObjectStoreStorage storage;
+
+    @BeforeEach
+    public void startStandIn() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/bucket", this::handle);
+        this.server.start();
+        final URI endpoint = URI.create("http://localhost:" + this.server.getAddress().getPort());
+        this.storage = new ObjectStoreStorage(endpoint, "bucket", "us-east-1", "access", "secret");
+    }
+
+    @AfterEach
+    public void stopStandIn() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void blobRoundTrip() throws Exception {
+        this.storage.write("abc", "source.jpg", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+
+        assertTrue(this.storage.exists("abc", "source.jpg"));
+        assertFalse(this.storage.exists("abc", "target.jpg"));
+        assertEquals(3, this.storage.size("abc", "source.jpg"));
+        try (final InputStream in = this.storage.read("abc", "source.jpg")) {
+            assertEquals(1, in.read());
+            assertEquals(2, in.read());
+            assertEquals(3, in.read());
+            assertEquals(-1, in.read());
+        }
+        assertThrows(FileNotFoundException.class, () -> this.storage.read("abc", "target.jpg"));
+    }
+
+    @Test
+    public void metadataRoundTrip() throws Exception {
+        final Properties p = new Properties();
+        p.setProperty("process.status", "stored");
+        this.storage.writeMetadata("abc", "meta", p);
+
+        assertEquals("stored", this.storage.readMetadata("abc", "meta").getProperty("process.status"));
+    }
+
+    @Test
+    public void listAndDelete() throws Exception {
+        this.storage.write("abc", "source.jpg", new ByteArrayInputStream(new byte[] {1}));
+        this.storage.write("abc", "target.jpg", new ByteArrayInputStream(new byte[] {1}));
+        this.storage.write("def", "source.png", new ByteArrayInputStream(new byte[] {1}));
+
+        final Set<String> ids = new HashSet<>();
+        for (final Iterator<String> itr = this.storage.contentIds(); itr.hasNext(); ) {
+            ids.add(itr.next());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("abc", "def")), ids);
+
+        this.storage.delete("abc");
+        assertFalse(this.storage.exists("abc", "source.jpg"));
+        assertFalse(this.storage.exists("abc", "target.jpg"));
+        assertTrue(this.storage.exists("def", "source.png"));
+    }
+
+    @Test
+    public void hangingObjectStoreTimesOut() throws Exception {
+        this.server.createContext("/hanging", exchange -> {
+            try {
+                Thread.sleep(2_000);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, new byte[0]);
+        });
+        final URI endpoint = URI.create("http://localhost:" + this.server.getAddress().getPort());
+        final ObjectStoreStorage hanging = new ObjectStoreStorage(endpoint, "hanging", "us-east-1", "access", "secret", 100);
+
+        assertThrows(SocketTimeoutException.class, () -> hanging.read("abc", "source.jpg"));
+    }
+
+    @Test
+    public void rejectDocumentTypeInListResponse() throws Exception {
+        final byte[] xml = ("<?xml version=\"1.0\"?><!DOCTYPE r [<!ENTITY e SYSTEM \"file:///etc/passwd\">]>"
+                + "<ListBucketResult><CommonPrefixes><Prefix>&e;</Prefix></CommonPrefixes></ListBucketResult>").getBytes(StandardCharsets.UTF_8);
+        this.server.createContext("/doctype", exchange -> respond(exchange, 200, xml));
+        final URI endpoint = URI.create("http://localhost:" + this.server.getAddress().getPort());
+        final ObjectStoreStorage doctype = new ObjectStoreStorage(endpoint, "doctype", "us-east-1", "access", "secret");
+
+        assertThrows(IOException.class, () -> doctype.contentIds().hasNext());
+    }
+
+    @Test
+    public void errorResponse() throws Exception {
+        this.server.createContext("/denied", exchange -> respond(exchange, 403, "denied".getBytes(StandardCharsets.UTF_8)));
+        final URI endpoint = URI.create("http://localhost:" + this.server.getAddress().getPort());
+        final ObjectStoreStorage denied = new ObjectStoreStorage(endpoint, "denied", "us-east-1", "access", "secret");
+
+        final IOException e = assertThrows(IOException.class, () -> denied.read("abc", "source.jpg"));
+        assertTrue(e.getMessage().contains("403"));
+    }
+
+    void handle(final HttpExchange exchange) throws IOException {
+        final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=access/")) {
+            respond(exchange, 403, new byte[0]);
+            return;
+        }
+        final String path = exchange.getRequestURI().getPath();
+        final String key = path.length() > "/bucket/".length() ? path.substring("/bucket/".length()) : "";
+        switch (exchange.getRequestMethod()) {
+            case "PUT":
+                try (final InputStream in = exchange.getRequestBody()) {
+                    this.objects.put(key, InMemoryStorage.toBytes(in));
+                }
+                respond(exchange, 200, new byte[0]);
+                break;
+            case "DELETE":
+                this.objects.remove(key);
+                respond(exchange, 204, null);
+                break;
+            case "HEAD":
+                if (this.objects.containsKey(key)) {
+                    exchange.getResponseHeaders().add("Content-Length", String.valueOf(this.objects.get(key).length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                exchange.close();
+                break;
+            default:
+                if (key.isEmpty()) {
+                    respond(exchange, 200, list(exchange.getRequestURI().getRawQuery()));
+                } else if (this.objects.containsKey(key)) {
+                    respond(exchange, 200, this.objects.get(key));
+                } else {
+                    respond(exchange, 404, new byte[0]);
+                }
+        }
+    }
+
+    byte[] list(final String rawQuery) throws IOException {
+        String prefix = "";
+        boolean delimiter = false;
+        for (final String param : rawQuery.split("&")) {
+            final String[] pair = param.split("=", 2);
+            if ("prefix".equals(pair[0])) {
+                prefix = URLDecoder.decode(pair[1], "UTF-8");
+            } else if ("delimiter".equals(pair[0])) {
+                delimiter = true;
+            }
+        }
+        final StringBuilder xml = new StringBuilder("<ListBucketResult><IsTruncated>false</IsTruncated>");
+        final Set<String> prefixes = new TreeSet<>();
+        for (final String key : this.objects.keySet()) {
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            if (delimiter) {
+                prefixes.add(key.substring(0, key.indexOf('/', prefix.length()) + 1));
+            } else {
+                xml.append("<Contents><Key>").append(key).append("</Key></Contents>");
+            }
+        }
+        for (final String common : prefixes) {
+            xml.append("<CommonPrefixes><Prefix>").append(common).append("</Prefix></CommonPrefixes>");
+        }
+        return xml.append("</ListBucketResult>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void respond(final HttpExchange exchange, final int code, final byte[] body) throws IOException {
+        exchange.sendResponseHeaders(code, body == null ? -1 : body.length);
+        if (body != null) {
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class WriteBehindStorageTest {
+
+    @Test
+    public void coalesceStatusTransitions() throws Exception {
+        final CountingStorage delegate = new CountingStorage();
+        final WriteBehindStorage storage = new WriteBehindStorage(delegate, 60_000);
+
+        storage.writeMetadata("a", "meta", status("waiting"));
+        storage.writeMetadata("a", "meta", status("transforming"));
+        assertEquals("transforming", storage.readMetadata("a", "meta").getProperty("status"));
+        storage.writeMetadata("a", "meta", status("transformed"));
+        storage.flush("a");
+
+        assertEquals(1, delegate.metadataWrites.get());
+        assertEquals(1, delegate.flushes.get());
+        assertEquals("transformed", delegate.readMetadata("a", "meta").getProperty("status"));
+    }
+
+    @Test
+    public void deleteWaitsForFlushInProgress() throws Exception {
+        final CountingStorage delegate = new CountingStorage();
+        final WriteBehindStorage storage = new WriteBehindStorage(delegate, 60_000);
+        delegate.blockWrites("a");
+        storage.writeMetadata("a", "meta", status("transforming"));
+
+        final Thread flush = new Thread(() -> {
+            try {
+                storage.flush("a");
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        flush.start();
+        assertTrue(delegate.writing.await(5, TimeUnit.SECONDS));
+        final Thread delete = new Thread(() -> {
+            try {
+                storage.delete("a");
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        delete.start();
+        delete.join(100);
+        assertTrue(delete.isAlive());
+
+        delegate.release.countDown();
+        flush.join();
+        delete.join();
+        assertThrows(FileNotFoundException.class, () -> storage.readMetadata("a", "meta"));
+        assertFalse(delegate.exists("a", "meta"));
+    }
+
+    @Test
+    public void flushOfOtherContentDoesntWait() throws Exception {
+        final CountingStorage delegate = new CountingStorage();
+        final WriteBehindStorage storage = new WriteBehindStorage(delegate, 60_000);
+        delegate.blockWrites("a");
+        storage.writeMetadata("a", "meta", status("transforming"));
+        storage.writeMetadata("b", "meta", status("transformed"));
+
+        final Thread flush = new Thread(() -> {
+            try {
+                storage.flush("a");
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        flush.start();
+        assertTrue(delegate.writing.await(5, TimeUnit.SECONDS));
+        storage.flush("b");
+        assertEquals("transformed", delegate.readMetadata("b", "meta").getProperty("status"));
+        assertFalse(delegate.exists("a", "meta"));
+
+        delegate.release.countDown();
+        flush.join();
+        assertEquals("transforming", delegate.readMetadata("a", "meta").getProperty("status"));
+    }
+
+    static Properties status(final String status) {
+        final Properties p = new Properties();
+        p.setProperty("status", status);
+        return p;
+    }
+
+    static final class CountingStorage implements Storage {
+
+        private final InMemoryStorage storage = new InMemoryStorage();
+        final AtomicInteger metadataWrites = new AtomicInteger();
+        final AtomicInteger flushes = new AtomicInteger();
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private volatile String blocked;
+
+        void blockWrites(final String contentId) {
+            this.blocked = contentId;
+        }
+
+        @Override
+        public void writeMetadata(final String contentId, final String name, final Properties metadata) throws IOException {
+            this.metadataWrites.incrementAndGet();
+            if (contentId.equals(this.blocked)) {
+                this.writing.countDown();
+                try {
+                    this.release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            this.storage.writeMetadata(contentId, name, metadata);
+        }
+
+        @Override
+        public void flush(final String contentId) {
+            this.flushes.incrementAndGet();
+        }
+
+        @Override
+        public Properties readMetadata(final String contentId, final String name) throws IOException, FileNotFoundException {
+            return this.storage.readMetadata(contentId, name);
+        }
+
+        @Override
+        public void write(final String contentId, final String name, final InputStream in) throws IOException {
+            this.storage.write(contentId, name, in);
+        }
+
+        @Override
+        public void importFile(final String contentId, final String name, final Path file) throws IOException {
+            this.storage.importFile(contentId, name, file);
+        }
+
+        @Override
+        public InputStream read(final String contentId, final String name) throws IOException, FileNotFoundException {
+            return this.storage.read(contentId, name);
+        }
+
+        @Override
+        public void exportFile(final String contentId, final String name, final Path file) throws IOException, FileNotFoundException {
+            this.storage.exportFile(contentId, name, file);
+        }
+
+        @Override
+        public boolean exists(final String contentId, final String name) {
+            return this.storage.exists(contentId, name);
+        }
+
+        @Override
+        public long size(final String contentId, final String name) throws IOException, FileNotFoundException {
+            return this.storage.size(contentId, name);
+        }
+
+        @Override
+        public void remove(final String contentId, final String name) {
+            this.storage.remove(contentId, name);
+        }
+
+        @Override
+        public void delete(final String contentId) {
+            this.storage.delete(contentId);
+        }
+
+        @Override
+        public Iterator<String> contentIds() {
+            return this.storage.contentIds();
+        }
+
+        @Override
+        public Path localDirectory(final String contentId) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.watch;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import de.speexx.guetzli.service.ImageService;
+import de.speexx.guetzli.service.storage.InMemoryStorage;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.ImageIO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class FolderWatcherTest {
+
+    @Test
+    public void ingestSettledFilesInBatches() throws Exception {
+        final Path directory = Files.createTempDirectory("guetzli-watch");
+        try {
+            final InMemoryStorage storage = new InMemoryStorage();
+            final List<Runnable> jobs = new ArrayList<>();
+            final FolderWatcher watcher = new FolderWatcher(directory, directory.resolve("out"), 1000, 2, new ImageService(storage), jobs::add);
+            for (int i = 0; i < 3; i++) {
+                ImageIO.write(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB), "png", directory.resolve("image" + i + ".png").toFile());
+            }
+            Files.write(directory.resolve("notes.txt"), new byte[] {1});
+            watcher.scan();
+
+            assertEquals(0, watcher.tick(10_000));
+            assertEquals(0, watcher.tick(10_500));
+            assertEquals(2, watcher.tick(11_000));
+            assertEquals(1, watcher.tick(12_000));
+
+            assertFalse(Files.exists(directory.resolve("image0.png")));
+            assertTrue(Files.exists(directory.resolve("notes.txt")));
+            assertEquals(3, jobs.size());
+            int stored = 0;
+            for (final Iterator<String> ids = storage.contentIds(); ids.hasNext(); ids.next()) {
+                stored++;
+            }
+            assertEquals(3, stored);
+        } finally {
+            Files.walkFileTree(directory, new DeleteDirectoryVisitor());
+        }
+    }
+}
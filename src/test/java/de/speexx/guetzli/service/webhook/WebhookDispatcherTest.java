@@ -0,0 +1,114 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.service.webhook;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the {@link WebhookDispatcher} against a local HTTP stand-in.
+ * @author sascha.kohlmann
+ */
+public class WebhookDispatcherTest {
+
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private HttpServer server;
+    private String url;
+
+    @BeforeEach
+    public void startStandIn() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/callback", exchange -> {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (final InputStream in = exchange.getRequestBody()) {
+                int b;
+                while ((b = in.read()) != -1) {
+                    body.write(b);
+                }
+            }
+            if (this.failures.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                this.bodies.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+                exchange.sendResponseHeaders(204, -1);
+            }
+            exchange.close();
+        });
+        this.server.start();
+        this.url = "http://localhost:" + this.server.getAddress().getPort() + "/callback";
+    }
+
+    @AfterEach
+    public void stopStandIn() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void batchesNotificationsForSameUrl() throws Exception {
+        final WebhookDispatcher dispatcher = new WebhookDispatcher(200, 10, 100, 10, 3);
+        dispatcher.deliver(this.url, "{\"a\":1}");
+        dispatcher.deliver(this.url, "{\"b\":2}");
+
+        awaitDelivery(dispatcher);
+        assertEquals(1, this.bodies.size());
+        assertEquals("[{\"a\":1},{\"b\":2}]", this.bodies.get(0));
+    }
+
+    @Test
+    public void retriesFailedDelivery() throws Exception {
+        this.failures.set(2);
+        final WebhookDispatcher dispatcher = new WebhookDispatcher(0, 10, 100, 10, 3);
+        dispatcher.deliver(this.url, "{\"a\":1}");
+
+        awaitDelivery(dispatcher);
+        assertEquals(1, this.bodies.size());
+        assertEquals("{\"a\":1}", this.bodies.get(0));
+    }
+
+    @Test
+    public void dropsOldestWhenFull() throws Exception {
+        final WebhookDispatcher dispatcher = new WebhookDispatcher(200, 10, 2, 10, 3);
+        dispatcher.deliver(this.url, "{\"a\":1}");
+        dispatcher.deliver(this.url, "{\"b\":2}");
+        dispatcher.deliver(this.url, "{\"c\":3}");
+
+        awaitDelivery(dispatcher);
+        assertEquals("[{\"b\":2},{\"c\":3}]", this.bodies.get(0));
+    }
+
+    static void awaitDelivery(final WebhookDispatcher dispatcher) throws InterruptedException {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (dispatcher.pendingCount() > 0 && System.nanoTime() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dispatcher.pendingCount());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class ImageResizerTest {
+
+    @Test
+    public void containKeepsAspectRatio() {
+        final ResizeOptions options = new ResizeOptions(1600, 1600, ResizeOptions.Fit.contain, null);
+
+        assertEquals(new Dimension(1600, 1067), options.targetDimension(6000, 4000));
+    }
+
+    @Test
+    public void neverScaleUp() {
+        final ResizeOptions options = new ResizeOptions(1600, 0, null, null);
+
+        assertEquals(new Dimension(800, 600), options.targetDimension(800, 600));
+    }
+
+    @Test
+    public void coverCropsToExactSize() {
+        final BufferedImage source = new BufferedImage(6000, 4000, BufferedImage.TYPE_INT_RGB);
+        final ResizeOptions options = new ResizeOptions(400, 400, ResizeOptions.Fit.cover, null);
+
+        final BufferedImage resized = new ImageResizer().resize(source, options);
+
+        assertEquals(400, resized.getWidth());
+        assertEquals(400, resized.getHeight());
+    }
+
+    @Test
+    public void cropBeforeScale() {
+        final BufferedImage source = new BufferedImage(2000, 1000, BufferedImage.TYPE_INT_RGB);
+        final ResizeOptions options = new ResizeOptions(500, 0, null, new Rectangle(0, 0, 1000, 1000));
+
+        final BufferedImage resized = new ImageResizer().resize(source, options);
+
+        assertEquals(500, resized.getWidth());
+        assertEquals(500, resized.getHeight());
+    }
+}
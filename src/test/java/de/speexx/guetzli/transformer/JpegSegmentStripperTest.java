@@ -0,0 +1,95 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.imageio.ImageIO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class JpegSegmentStripperTest {
+
+    @Test
+    public void stripKeepsOrientation() throws Exception {
+        final byte[] jpeg = jpegWithMetadata(6);
+        final JpegSegmentStripper stripper = new JpegSegmentStripper(new StripOptions(true, true, false));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final long removed = stripper.strip(new ByteArrayInputStream(jpeg), out);
+
+        assertEquals(6, stripper.getOrientation());
+        assertEquals(jpeg.length - out.size(), removed);
+        assertEquals(6, JpegSegmentStripper.readOrientation(new ByteArrayInputStream(out.toByteArray())));
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void stripRemovesOrientationForRotation() throws Exception {
+        final byte[] jpeg = jpegWithMetadata(6);
+        final JpegSegmentStripper stripper = new JpegSegmentStripper(new StripOptions(true, true, true));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        stripper.strip(new ByteArrayInputStream(jpeg), out);
+
+        assertEquals(6, stripper.getOrientation());
+        assertEquals(1, JpegSegmentStripper.readOrientation(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void orientSwapsDimension() {
+        final BufferedImage rotated = new ImageResizer().orient(new BufferedImage(40, 20, BufferedImage.TYPE_INT_RGB), 6);
+
+        assertEquals(20, rotated.getWidth());
+        assertEquals(40, rotated.getHeight());
+    }
+
+    /** A JPEG with an EXIF segment in little endian byte order, a XMP segment and a comment after the SOI. */
+    static byte[] jpegWithMetadata(final int orientation) throws Exception {
+        final ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB), "jpg", image);
+        final byte[] plain = image.toByteArray();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(plain, 0, 2);
+        final byte[] exif = new byte[6 + 8 + 2 + 12 + 4 + 1000];
+        System.arraycopy("Exif\0\0".getBytes(StandardCharsets.US_ASCII), 0, exif, 0, 6);
+        final byte[] tiff = {'I', 'I', 42, 0, 8, 0, 0, 0, 1, 0, 0x12, 0x01, 3, 0, 1, 0, 0, 0, (byte) orientation, 0, 0, 0};
+        System.arraycopy(tiff, 0, exif, 6, tiff.length);
+        segment(out, 0xE1, exif);
+        segment(out, 0xE1, "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>".getBytes(StandardCharsets.US_ASCII));
+        segment(out, 0xFE, "comment".getBytes(StandardCharsets.US_ASCII));
+        out.write(plain, 2, plain.length - 2);
+        return out.toByteArray();
+    }
+
+    static void segment(final ByteArrayOutputStream out, final int marker, final byte[] payload) {
+        out.write(0xFF);
+        out.write(marker);
+        out.write((payload.length + 2) >>> 8);
+        out.write((payload.length + 2) & 0xFF);
+        out.write(payload, 0, payload.length);
+    }
+}
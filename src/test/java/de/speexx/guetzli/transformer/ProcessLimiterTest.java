@@ -0,0 +1,77 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import de.speexx.guetzli.io.DeleteDirectoryVisitor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class ProcessLimiterTest {
+
+    private static final List<String> COMMAND = Arrays.asList("guetzli", "--memlimit", "6000", "in.png", "out.jpg");
+
+    @Test
+    public void rlimitCommand() throws Exception {
+        final ProcessLimiter limiter = new ProcessLimiter(new ResourceLimits(ResourceLimits.Mechanism.rlimit, 1024, "2-3"), null);
+
+        assertNull(limiter.createLeaf());
+        assertEquals(Arrays.asList("prlimit", "--as=1024", "taskset", "-c", "2-3", "guetzli", "--memlimit", "6000", "in.png", "out.jpg"),
+                     limiter.limit(COMMAND, null));
+    }
+
+    @Test
+    public void cgroupCommand() {
+        final ProcessLimiter limiter = new ProcessLimiter(new ResourceLimits(ResourceLimits.Mechanism.cgroup, 1024, null), Paths.get("/sys/fs/cgroup/guetzli"));
+
+        final List<String> command = limiter.limit(COMMAND, Paths.get("/sys/fs/cgroup/guetzli/guetzli-1"));
+        assertEquals(Arrays.asList("sh", "-c"), command.subList(0, 2));
+        assertEquals(Arrays.asList("/sys/fs/cgroup/guetzli/guetzli-1", "guetzli", "--memlimit", "6000", "in.png", "out.jpg"),
+                     command.subList(4, command.size()));
+        assertEquals(COMMAND, new ProcessLimiter(ResourceLimits.NONE, null).limit(COMMAND, null));
+    }
+
+    @Test
+    public void cgroupLeafWithoutSwapAccounting() throws Exception {
+        final Path cgroup = Files.createTempDirectory("guetzli-cgroup-test-");
+        try {
+            Files.write(cgroup.resolve("cgroup.subtree_control"), "memory\n".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(ProcessLimiter.isDelegated(cgroup, 1024, null));
+            assertFalse(ProcessLimiter.isDelegated(cgroup, 1024, "2-3"));
+
+            final ProcessLimiter limiter = new ProcessLimiter(new ResourceLimits(ResourceLimits.Mechanism.cgroup, 1024, null), cgroup);
+            final Path leaf = limiter.createLeaf();
+            assertEquals("1024", new String(Files.readAllBytes(leaf.resolve("memory.max")), StandardCharsets.US_ASCII));
+            assertFalse(Files.exists(leaf.resolve("memory.swap.max")));
+        } finally {
+            Files.walkFileTree(cgroup, new DeleteDirectoryVisitor());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class ProcessSamplerTest {
+
+    @Test
+    public void readPeakRss() throws Exception {
+        final Path status = Files.createTempFile("status", ".txt");
+        try {
+            Files.write(status, Arrays.asList("Name:\tguetzli", "VmPeak:\t  20000 kB", "VmHWM:\t   1234 kB", "VmRSS:\t   1000 kB"), StandardCharsets.US_ASCII);
+
+            assertEquals(1234 * 1024, ProcessSampler.readVmHwm(status));
+        } finally {
+            Files.delete(status);
+        }
+    }
+
+    @Test
+    public void sampleRunningProcess() throws Exception {
+        final Process process = new ProcessBuilder("sleep", "1").start();
+        final ProcessSampler.Sample sample = ProcessSampler.instance().watch(process);
+        process.waitFor();
+
+        final ResourceUsage usage = sample.stop();
+
+        assertTrue(usage.getWallTimeMillis() >= 900);
+        if (Files.isDirectory(Paths.get("/proc/self"))) {
+            assertTrue(usage.getPeakRssBytes() > 0);
+        }
+    }
+}
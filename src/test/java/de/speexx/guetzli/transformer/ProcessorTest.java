@@ -17,12 +17,16 @@
  */
 package de.speexx.guetzli.transformer;
 
+import de.speexx.guetzli.service.InvalidInputException;
+import de.speexx.guetzli.service.TransformationException;
+import de.speexx.guetzli.service.TransformationOutOfMemoryException;
 import java.net.URI;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Disabled;
 
@@ -49,4 +53,21 @@ public class ProcessorTest {
             Files.deleteIfExists(targetFile);
         }
     }
+
+    @Test
+    public void failureClassification() {
+        final GuetzliTransformationProcessor p = new GuetzliTransformationProcessor();
+        final ResourceUsage usage = new ResourceUsage(100, 1024, 100);
+
+        assertTrue(p.failure(GuetzliTransformationProcessor.KILLED_EXIT_VALUE, usage, "") instanceof TransformationOutOfMemoryException);
+        assertTrue(p.failure(1, usage, "Memory limit would be exceeded. Failing.\n") instanceof TransformationOutOfMemoryException);
+        assertTrue(p.failure(1, usage, "Invalid input JPEG file\nGuetzli processing failed\n") instanceof InvalidInputException);
+        assertTrue(p.failure(134, usage, "terminate called after throwing an instance of 'std::bad_alloc'\n") instanceof TransformationOutOfMemoryException);
+        final ResourceUsage limited = usage.withLimits(new ResourceLimits(ResourceLimits.Mechanism.rlimit, 1100, null));
+        assertTrue(p.failure(1, limited, "") instanceof TransformationOutOfMemoryException);
+
+        final TransformationException other = p.failure(1, usage, "");
+        assertEquals(TransformationException.class, other.getClass());
+        assertEquals("Transformation failed: 1", other.getMessage());
+    }
 }
@@ -0,0 +1,49 @@
+/*
+ * A simple wrapper for Googles guetzli JPEG compressor.
+ * Copyright (C) 2017 Sascha Kohlmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.speexx.guetzli.transformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author sascha.kohlmann
+ */
+public class TimeoutModelTest {
+
+    @Test
+    public void timeoutBetweenFloorAndCeiling() {
+        final TimeoutModel model = new TimeoutModel(30, 3600, 3, 60);
+
+        assertEquals(30_000, model.timeoutMillis(10_000));
+        assertEquals(360_000, model.timeoutMillis(2_000_000));
+        assertEquals(3_600_000, model.timeoutMillis(50_000_000));
+        assertEquals(3_600_000, model.timeoutMillis(0));
+    }
+
+    @Test
+    public void calibrateWithCompletedRuns() {
+        final TimeoutModel model = new TimeoutModel(30, 3600, 3, 60);
+
+        model.record(2_000_000, 20_000);
+
+        assertEquals(50_000, model.getMillisPerMegapixel());
+        model.record(50_000, 60_000);
+        assertEquals(50_000, model.getMillisPerMegapixel());
+    }
+}